@@ -0,0 +1,201 @@
+package rtoshiro.github.com.audio.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import rtoshiro.github.com.audio.LatencyHistogram;
+import rtoshiro.github.com.audio.Mp4SegmentStitcher;
+import rtoshiro.github.com.audio.PcmRingBuffer;
+import rtoshiro.github.com.audio.PeakFile;
+import rtoshiro.github.com.audio.PeakFileWriter;
+import rtoshiro.github.com.audio.RangeCache;
+import rtoshiro.github.com.audio.RecordingRecovery;
+import rtoshiro.github.com.audio.WavDecoder;
+import rtoshiro.github.com.audio.WavFileWriter;
+
+/**
+ * File and buffer paths: peak generation and rendering, joining MP4 segments, reads of the range cache
+ * of the streaming proxy, the PCM ring and the latency histograms.
+ */
+@State(Scope.Thread)
+public class ContainerBenchmark extends BenchmarkConfig {
+
+    static final int FRAMES = 44100 * 60;
+    static final int PIXELS = 1080;
+    static final int SEGMENTS = 10;
+    // One minute of AAC at 16 kHz per segment
+    static final int AAC_FRAMES = 16000 * 60 / 1024;
+    static final int CACHED = 4 * 1024 * 1024;
+
+    File wav;
+    File peaksFile;
+    PeakFile peaks;
+    final short[] mins = new short[PIXELS];
+    final short[] maxs = new short[PIXELS];
+    long start;
+
+    File directory;
+    final List<File> segments = new ArrayList<File>();
+    File stitched;
+
+    RangeCache cache;
+    RangeCache.Entry entry;
+    final byte[] read = new byte[64 * 1024];
+    long offset;
+
+    PcmRingBuffer ring;
+    PcmRingBuffer.Cursor cursor;
+
+    final LatencyHistogram histogram = new LatencyHistogram("benchmark");
+    long value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        wav = File.createTempFile("benchmark", ".wav");
+        WavFileWriter writer = new WavFileWriter(wav);
+        writer.onStart(44100, 1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FRAMES * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < FRAMES; i++)
+            buffer.putShort((short) (Math.sin(i / 50.0) * (i % 30000)));
+        buffer.flip();
+        writer.onPcm(buffer, 0);
+        writer.onStop();
+        peaksFile = PeakFile.sidecarOf(wav.getPath());
+        PeakFileWriter.generate(new WavDecoder(), wav.getPath(), peaksFile);
+        peaks = PeakFile.open(peaksFile);
+
+        directory = File.createTempFile("benchmark", "");
+        directory.delete();
+        directory.mkdirs();
+        for (int i = 0; i < SEGMENTS; i++) {
+            File journal = new File(directory, "segment" + i + ".aac");
+            writeAdts(journal, AAC_FRAMES);
+            File segment = new File(directory, "segment" + i + ".m4a");
+            RecordingRecovery.finish(Collections.singletonList(journal), segment);
+            segments.add(segment);
+        }
+        stitched = new File(directory, "stitched.m4a");
+
+        cache = new RangeCache(new File(directory, "cache"), 2 * CACHED);
+        entry = cache.open("http://host/stream.m4a");
+        entry.setInfo(CACHED, "audio/mp4");
+        byte[] chunk = new byte[64 * 1024];
+        for (int position = 0; position < CACHED; position += chunk.length)
+            entry.write(position, chunk, 0, chunk.length);
+
+        ring = new PcmRingBuffer(4096, 8);
+        cursor = ring.newCursor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wav.delete();
+        peaksFile.delete();
+        cache.close(entry);
+        cache.clear();
+        delete(directory);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes AAC-LC 16 kHz mono ADTS frames, as a durable recording journal.
+     */
+    static void writeAdts(File file, int count) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = 7 + 100 + (i * 37) % 200;
+                byte[] frame = new byte[length];
+                frame[0] = (byte) 0xff;
+                frame[1] = (byte) 0xf1;
+                frame[2] = (byte) (1 << 6 | 8 << 2);
+                frame[3] = (byte) (1 << 6 | (length >>> 11) & 0x03);
+                frame[4] = (byte) (length >>> 3);
+                frame[5] = (byte) ((length & 0x07) << 5 | 0x1f);
+                frame[6] = (byte) 0xfc;
+                Arrays.fill(frame, 7, length, (byte) i);
+                out.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Decodes one minute of PCM and writes its peak file.
+     */
+    @Benchmark
+    public long generatePeaks() throws IOException {
+        PeakFileWriter.generate(new WavDecoder(), wav.getPath(), peaksFile);
+        return peaksFile.length();
+    }
+
+    /**
+     * Renders 10 seconds, moving along the file like a scrolling waveform view.
+     */
+    @Benchmark
+    public int renderPeaks() {
+        start = (start + 4410) % (FRAMES - 441000);
+        return peaks.render(start, start + 441000, PIXELS, mins, maxs);
+    }
+
+    /**
+     * Joins ten one minute segments of a pausable recording.
+     */
+    @Benchmark
+    public long stitchSegments() throws IOException {
+        Mp4SegmentStitcher.stitch(segments, stitched);
+        return stitched.length();
+    }
+
+    /**
+     * Reads 64 KB of a cached resource, as the proxy serves a range from the cache.
+     */
+    @Benchmark
+    public int readCachedRange() throws IOException {
+        offset = (offset + 40960) % (CACHED - read.length);
+        int total = 0;
+        while (total < read.length)
+            total += entry.read(offset + total, read, total, read.length - total);
+        return total;
+    }
+
+    @Benchmark
+    public long ringWriteAndTake() throws InterruptedException {
+        ByteBuffer chunk = ring.writeChunk();
+        chunk.putLong(value++);
+        ring.commit(chunk.position());
+        ByteBuffer view = cursor.take();
+        long read = view.getLong(0);
+        cursor.release();
+        return read;
+    }
+
+    @Benchmark
+    public long recordLatency() {
+        histogram.record(value++ & 0xfff);
+        return histogram.getCount();
+    }
+}
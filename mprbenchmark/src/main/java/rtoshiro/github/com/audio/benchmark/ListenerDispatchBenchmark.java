@@ -0,0 +1,57 @@
+package rtoshiro.github.com.audio.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import rtoshiro.github.com.audio.ListenerRegistry;
+import rtoshiro.github.com.audio.MediaPlayerRecorder;
+
+/**
+ * Dispatch of one event to the listeners of a registry, inline.
+ */
+@State(Scope.Thread)
+public class ListenerDispatchBenchmark extends BenchmarkConfig {
+
+    static final class Consumer implements MediaPlayerRecorder.OnTimeUpdateListener {
+        final Blackhole blackhole;
+
+        Consumer(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onTimeUpdate(MediaPlayerRecorder mpr, long currentPosition) {
+            blackhole.consume(currentPosition);
+        }
+    }
+
+    static final ListenerRegistry.Notifier<MediaPlayerRecorder.OnTimeUpdateListener> NOTIFIER = new ListenerRegistry.Notifier<MediaPlayerRecorder.OnTimeUpdateListener>() {
+        @Override
+        public boolean notify(MediaPlayerRecorder.OnTimeUpdateListener listener, int arg1, int arg2, long value) {
+            listener.onTimeUpdate(null, value);
+            return true;
+        }
+    };
+
+    @Param({"1", "4", "16"})
+    int listeners;
+
+    ListenerRegistry<MediaPlayerRecorder.OnTimeUpdateListener> registry;
+    long value;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        registry = new ListenerRegistry<MediaPlayerRecorder.OnTimeUpdateListener>();
+        for (int i = 0; i < listeners; i++)
+            registry.add(new Consumer(blackhole));
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        return registry.dispatch(NOTIFIER, 0, 0, value++);
+    }
+}
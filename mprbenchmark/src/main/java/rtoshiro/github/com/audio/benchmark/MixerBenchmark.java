@@ -0,0 +1,110 @@
+package rtoshiro.github.com.audio.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Locale;
+
+import rtoshiro.github.com.audio.Mixer;
+
+/**
+ * The software mixer: one buffer of 256 stereo frames at 48 kHz (5.33 ms of audio) from N tracks.
+ * <p/>
+ * Each iteration also prints the number of tracks that fit in real time on the machine.
+ */
+@State(Scope.Thread)
+public class MixerBenchmark extends BenchmarkConfig {
+
+    static final int SAMPLE_RATE = 48000;
+    static final int FRAMES = 256;
+    static final int CHANNELS = 2;
+    static final double BUFFER_NANOS = FRAMES * 1e9 / SAMPLE_RATE;
+
+    /**
+     * Endless track, looping one second of noise.
+     */
+    static class LoopSource implements Mixer.Source {
+        final float[] loop;
+        int position;
+
+        LoopSource(long seed) {
+            loop = new float[SAMPLE_RATE * CHANNELS];
+            for (int i = 0; i < loop.length; i++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                loop[i] = (seed >> 40) / (float) (1 << 23) * 0.5f;
+            }
+        }
+
+        @Override
+        public int read(float[] buffer, int frames) {
+            int size = frames * CHANNELS;
+            int copied = 0;
+            while (copied < size) {
+                int count = Math.min(size - copied, loop.length - position);
+                System.arraycopy(loop, position, buffer, copied, count);
+                copied += count;
+                position = (position + count) % loop.length;
+            }
+            return frames;
+        }
+    }
+
+    @Param({"1", "8", "32", "128"})
+    int tracks;
+
+    Mixer mixer;
+    final short[] out = new short[FRAMES * CHANNELS];
+    boolean up;
+    long buffers;
+    long iterationStart;
+
+    @Setup
+    public void setUp() {
+        mixer = new Mixer(CHANNELS, FRAMES, tracks);
+        for (int i = 0; i < tracks; i++)
+            mixer.addTrack(new LoopSource(i), 1f / tracks);
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        buffers = 0;
+        iterationStart = System.nanoTime();
+    }
+
+    /**
+     * Prints the tracks that fit in real time: tracks * duration of a buffer / time to mix it.
+     */
+    @TearDown(Level.Iteration)
+    public void reportRealTimeTracks() {
+        if (buffers == 0)
+            return;
+        double nanosPerBuffer = (double) (System.nanoTime() - iterationStart) / buffers;
+        System.out.println(String.format(Locale.US, "%d tracks: %.0f ns per buffer, %d tracks in real time",
+                tracks, nanosPerBuffer, (long) (tracks * BUFFER_NANOS / nanosPerBuffer)));
+    }
+
+    @Benchmark
+    public short mix() {
+        buffers++;
+        mixer.mix(out);
+        return out[FRAMES];
+    }
+
+    /**
+     * Every track ramping its gain for the whole buffer, as while fading or ducking.
+     */
+    @Benchmark
+    public short mixWithRamps() {
+        buffers++;
+        up = !up;
+        for (int i = 0; i < tracks; i++)
+            mixer.setGain(i, up ? 1f / tracks : 0.5f / tracks, FRAMES);
+        mixer.mix(out);
+        return out[FRAMES];
+    }
+}
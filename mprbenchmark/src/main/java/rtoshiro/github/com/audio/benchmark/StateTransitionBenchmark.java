@@ -0,0 +1,74 @@
+package rtoshiro.github.com.audio.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import rtoshiro.github.com.audio.FakeEngineFactory;
+import rtoshiro.github.com.audio.MediaPlayerRecorder;
+import rtoshiro.github.com.audio.TickScheduler;
+import rtoshiro.github.com.audio.VirtualClock;
+
+/**
+ * State transitions of MediaPlayerRecorder on a simulated engine: pause and resume, seek,
+ * and a whole prepare-play-complete session.
+ */
+@State(Scope.Thread)
+public class StateTransitionBenchmark extends BenchmarkConfig {
+
+    VirtualClock clock;
+    FakeEngineFactory factory;
+    MediaPlayerRecorder mpr;
+    int position;
+
+    @Setup
+    public void setUp() {
+        clock = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        factory.setPlayerDuration(Integer.MAX_VALUE / 2);
+        mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+        mpr.setDataSource("song.mp3");
+        mpr.setOnTimeUpdateListener(new MediaPlayerRecorder.OnTimeUpdateListener() {
+            @Override
+            public void onTimeUpdate(MediaPlayerRecorder mpr, long currentPosition) {
+            }
+        });
+        mpr.play();
+        clock.advance(factory.getPrepareDelay());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mpr.release();
+    }
+
+    @Benchmark
+    public int pauseAndPlay() {
+        mpr.pause();
+        mpr.play();
+        return mpr.getCurrentState();
+    }
+
+    @Benchmark
+    public int seek() {
+        position = (position + 1000) % 60000;
+        mpr.seekTo(position);
+        clock.advance(factory.getSeekDelay());
+        return mpr.getCurrentPosition();
+    }
+
+    @Benchmark
+    public int session() {
+        VirtualClock clock = new VirtualClock();
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        factory.setPlayerDuration(1000);
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+        mpr.setDataSource("song.mp3");
+        mpr.play();
+        clock.runUntilIdle(100);
+        mpr.release();
+        return mpr.getCurrentState();
+    }
+}
@@ -0,0 +1,55 @@
+package rtoshiro.github.com.audio.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import rtoshiro.github.com.audio.FakeEngineFactory;
+import rtoshiro.github.com.audio.MediaPlayerRecorder;
+import rtoshiro.github.com.audio.TickScheduler;
+import rtoshiro.github.com.audio.VirtualClock;
+
+/**
+ * The time-update path: one second of playback of several MediaPlayerRecorder sharing a TickScheduler,
+ * each one notifying its listener every 100 milliseconds.
+ */
+@State(Scope.Thread)
+public class TimeUpdateBenchmark extends BenchmarkConfig {
+
+    @Param({"1", "8", "64"})
+    int players;
+
+    VirtualClock clock;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        clock = new VirtualClock();
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        factory.setPlayerDuration(Integer.MAX_VALUE / 2);
+        TickScheduler ticks = new TickScheduler(clock);
+        for (int i = 0; i < players; i++) {
+            MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory, ticks);
+            mpr.setTimeUpdateInterval(100);
+            mpr.setDataSource("song" + i + ".mp3");
+            mpr.setOnTimeUpdateListener(new MediaPlayerRecorder.OnTimeUpdateListener() {
+                @Override
+                public void onTimeUpdate(MediaPlayerRecorder mpr, long currentPosition) {
+                    blackhole.consume(currentPosition);
+                }
+            });
+            mpr.play();
+            // Spreads the deadlines like players started at different times
+            clock.advance(7);
+        }
+        clock.advance(factory.getPrepareDelay());
+    }
+
+    @Benchmark
+    public long oneSecond() {
+        clock.advance(1000);
+        return clock.now();
+    }
+}
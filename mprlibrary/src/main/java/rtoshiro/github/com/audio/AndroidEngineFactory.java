@@ -0,0 +1,41 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * EngineFactory backed by android.media.MediaPlayer and android.media.MediaRecorder.
+ */
+public class AndroidEngineFactory implements EngineFactory {
+
+    protected volatile RecorderProfile recorderProfile;
+
+    public AndroidEngineFactory() {
+        this(RecorderProfile.DEFAULT);
+    }
+
+    /**
+     * @param recorderProfile Settings of the recorders created
+     */
+    public AndroidEngineFactory(RecorderProfile recorderProfile) {
+        this.recorderProfile = recorderProfile;
+    }
+
+    public RecorderProfile getRecorderProfile() {
+        return recorderProfile;
+    }
+
+    /**
+     * @param recorderProfile Settings of the recorders created from now on
+     */
+    public void setRecorderProfile(RecorderProfile recorderProfile) {
+        this.recorderProfile = recorderProfile;
+    }
+
+    @Override
+    public PlayerEngine createPlayer() {
+        return new AndroidPlayerEngine();
+    }
+
+    @Override
+    public RecorderEngine createRecorder() {
+        return new AndroidRecorderEngine(recorderProfile);
+    }
+}
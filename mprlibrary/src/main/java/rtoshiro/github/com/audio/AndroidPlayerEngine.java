@@ -0,0 +1,167 @@
+package rtoshiro.github.com.audio;
+
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Build;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * PlayerEngine backed by android.media.MediaPlayer.
+ */
+public class AndroidPlayerEngine implements PlayerEngine, MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener, MediaPlayer.OnSeekCompleteListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnBufferingUpdateListener {
+
+    protected final MediaPlayer player;
+    protected volatile Listener listener;
+    protected volatile boolean prepared;
+    protected volatile boolean preparing;
+
+    public AndroidPlayerEngine() {
+        this.player = new MediaPlayer();
+        this.player.setOnPreparedListener(this);
+        this.player.setOnErrorListener(this);
+        this.player.setOnInfoListener(this);
+        this.player.setOnSeekCompleteListener(this);
+        this.player.setOnCompletionListener(this);
+        this.player.setOnBufferingUpdateListener(this);
+        this.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    }
+
+    public MediaPlayer getMediaPlayer() {
+        return player;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        this.player.setDataSource(path);
+    }
+
+    @Override
+    public void setDataSource(FileDescriptor fd, long offset, long length) throws IOException {
+        this.player.setDataSource(fd, offset, length);
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.player.setLooping(looping);
+    }
+
+    @Override
+    public void prepareAsync() {
+        this.preparing = true;
+        this.player.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        this.player.start();
+    }
+
+    @Override
+    public void pause() {
+        this.player.pause();
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        this.player.seekTo(msec);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return this.player.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return this.player.getDuration();
+    }
+
+    @Override
+    public boolean setNextEngine(PlayerEngine next) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            return false;
+        if (next == null) {
+            this.player.setNextMediaPlayer(null);
+            return true;
+        }
+        if (!(next instanceof AndroidPlayerEngine))
+            return false;
+        this.player.setNextMediaPlayer(((AndroidPlayerEngine) next).player);
+        return true;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+    @Override
+    public boolean isPreparing() {
+        return preparing;
+    }
+
+    @Override
+    public void reset() {
+        this.prepared = false;
+        this.preparing = false;
+        this.player.reset();
+    }
+
+    @Override
+    public void release() {
+        this.prepared = false;
+        this.preparing = false;
+        this.player.release();
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mediaPlayer) {
+        this.prepared = true;
+        this.preparing = false;
+        Listener l = this.listener;
+        if (l != null)
+            l.onPrepared(this);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+        this.prepared = false;
+        this.preparing = false;
+        Listener l = this.listener;
+        return l != null && l.onError(this, what, extra);
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+        Listener l = this.listener;
+        return l != null && l.onInfo(this, what, extra);
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mediaPlayer) {
+        Listener l = this.listener;
+        if (l != null)
+            l.onSeekComplete(this);
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mediaPlayer) {
+        Listener l = this.listener;
+        if (l != null)
+            l.onCompletion(this);
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mediaPlayer, int percent) {
+        Listener l = this.listener;
+        if (l != null)
+            l.onBufferingUpdate(this, percent);
+    }
+}
@@ -0,0 +1,102 @@
+package rtoshiro.github.com.audio;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * RecorderEngine backed by android.media.MediaRecorder.
+ * Records with a RecorderProfile, by default from MIC to MPEG_4/AAC, 16kHz mono when the platform allows it.
+ */
+public class AndroidRecorderEngine implements RecorderEngine, MediaRecorder.OnErrorListener, MediaRecorder.OnInfoListener {
+
+    protected final MediaRecorder recorder;
+    protected final RecorderProfile profile;
+    protected volatile Listener listener;
+    protected boolean started;
+
+    public AndroidRecorderEngine() {
+        this(RecorderProfile.DEFAULT);
+    }
+
+    /**
+     * @param profile Settings of the recorder. LOW_BANDWIDTH is used instead if the platform does not support it.
+     */
+    public AndroidRecorderEngine(RecorderProfile profile) {
+        this.profile = profile.forSdk(Build.VERSION.SDK_INT);
+        this.recorder = new MediaRecorder();
+        this.recorder.setOnErrorListener(this);
+        this.recorder.setOnInfoListener(this);
+        this.profile.apply(this.recorder);
+    }
+
+    public MediaRecorder getMediaRecorder() {
+        return recorder;
+    }
+
+    /**
+     * @return The profile actually used
+     */
+    public RecorderProfile getProfile() {
+        return profile;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setOutputFile(String path) {
+        this.recorder.setOutputFile(path);
+    }
+
+    @Override
+    public void setMaxDuration(int maxDuration) {
+        this.recorder.setMaxDuration(maxDuration);
+    }
+
+    @Override
+    public void setMaxFileSize(long maxFileSize) {
+        this.recorder.setMaxFileSize(maxFileSize);
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        this.recorder.prepare();
+    }
+
+    @Override
+    public void start() {
+        this.recorder.start();
+        this.started = true;
+    }
+
+    @Override
+    public void stop() {
+        if (this.started) {
+            this.started = false;
+            this.recorder.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        this.recorder.release();
+    }
+
+    @Override
+    public void onError(MediaRecorder mediaRecorder, int what, int extra) {
+        Listener l = this.listener;
+        if (l != null)
+            l.onError(this, what, extra);
+    }
+
+    @Override
+    public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
+        Listener l = this.listener;
+        if (l != null)
+            l.onInfo(this, what, extra);
+    }
+}
@@ -0,0 +1,221 @@
+package rtoshiro.github.com.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many short audio files packed into one (see AudioBundleBuilder), played by offset and length
+ * from a single open descriptor: a clip costs no file lookup and no descriptor of its own.
+ * <p/>
+ * Format (big endian): magic "MPRB", version, entry count, slot count (a power of two), names length,
+ * then an open addressing hash table of slots: name hash (FNV-1a of the UTF-8 name), name offset and
+ * name length in the names, duration in milliseconds, data offset (long) and data length (long).
+ * Empty slots have a name length of 0. The UTF-8 names follow the slots, then the data of the entries.
+ * Only the header is memory-mapped; lookups hash the name and probe the slots from there.
+ */
+public class AudioBundle implements Closeable {
+
+    public static final int MAGIC = 0x4d505242;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".bundle";
+
+    static final int HEADER_SIZE = 20;
+    static final int SLOT_SIZE = 32;
+
+    /**
+     * Location of a clip in its bundle.
+     */
+    public static class Entry {
+        protected final AudioBundle bundle;
+        protected final String name;
+        protected final long offset;
+        protected final long length;
+        protected final int duration;
+
+        public Entry(AudioBundle bundle, String name, long offset, long length, int duration) {
+            this.bundle = bundle;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.duration = duration;
+        }
+
+        public AudioBundle getBundle() {
+            return bundle;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Position of the clip in the bundle file
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return Duration in milliseconds, or -1 if the builder could not probe it
+         */
+        public int getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return bundle.getFile() + "#" + name;
+        }
+    }
+
+    protected final File file;
+    protected final FileInputStream input;
+    protected final ByteBuffer header;
+    protected final int count;
+    protected final int mask;
+    protected final int namesOffset;
+
+    protected AudioBundle(File file, FileInputStream input, ByteBuffer header) throws IOException {
+        this.file = file;
+        this.input = input;
+        this.header = header;
+        this.count = header.getInt(8);
+        int slots = header.getInt(12);
+        if (slots <= 0 || (slots & (slots - 1)) != 0 || count < 0 || count > slots)
+            throw new IOException(file + " has a malformed index");
+        this.mask = slots - 1;
+        this.namesOffset = HEADER_SIZE + slots * SLOT_SIZE;
+    }
+
+    /**
+     * Opens a bundle and maps its index. The file stays open until close: its descriptor is shared by the entries.
+     */
+    public static AudioBundle open(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException(file + " is not an audio bundle");
+            ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (fixed.getInt(0) != MAGIC)
+                throw new IOException(file + " is not an audio bundle");
+            if (fixed.getInt(4) != VERSION)
+                throw new IOException(file + " has an unsupported version");
+            long size = HEADER_SIZE + (long) fixed.getInt(12) * SLOT_SIZE + fixed.getInt(16);
+            if (fixed.getInt(12) < 0 || fixed.getInt(16) < 0 || size > channel.size())
+                throw new IOException(file + " is truncated");
+            return new AudioBundle(file, input, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IOException e) {
+            RangeCache.closeQuietly(input);
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Descriptor of the open bundle, to give to a player with the offset and the length of an entry
+     */
+    public FileDescriptor getFD() throws IOException {
+        return input.getFD();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The entry, or null if the bundle has none of that name
+     */
+    public Entry get(String name) {
+        byte[] key = utf8(name);
+        int hash = hash(key);
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            int nameLength = header.getInt(slot + 8);
+            if (nameLength == 0)
+                return null;
+            if (header.getInt(slot) == hash && nameLength == key.length && nameEquals(header.getInt(slot + 4), key))
+                return entryAt(slot, name);
+        }
+    }
+
+    /**
+     * @return The entries, in the order of the index
+     */
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i <= mask; i++) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            int nameLength = header.getInt(slot + 8);
+            if (nameLength == 0)
+                continue;
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++)
+                name[j] = header.get(namesOffset + header.getInt(slot + 4) + j);
+            entries.add(entryAt(slot, string(name)));
+        }
+        return entries;
+    }
+
+    protected Entry entryAt(int slot, String name) {
+        return new Entry(this, name, header.getLong(slot + 16), header.getLong(slot + 24), header.getInt(slot + 12));
+    }
+
+    protected boolean nameEquals(int offset, byte[] key) {
+        int position = namesOffset + offset;
+        for (int j = 0; j < key.length; j++) {
+            if (header.get(position + j) != key[j])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    static byte[] utf8(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every platform supports UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+    static String string(byte[] utf8) {
+        try {
+            return new String(utf8, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * FNV-1a, 32 bits
+     */
+    static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
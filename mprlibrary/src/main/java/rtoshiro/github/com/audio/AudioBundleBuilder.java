@@ -0,0 +1,186 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs audio files into an AudioBundle. Runs on the JVM, e.g. as a build step:
+ * <pre>
+ * java -cp mprlibrary.jar rtoshiro.github.com.audio.AudioBundleBuilder prompts.bundle prompts/
+ * </pre>
+ * Entries are named after their file, without the directory. Durations come from the headers (AudioProbe).
+ * The bundle is written to a temporary file and renamed.
+ */
+public class AudioBundleBuilder {
+
+    /**
+     * Data of each entry starts on a multiple of this
+     */
+    static final int ALIGNMENT = 8;
+
+    protected final Map<String, File> files = new LinkedHashMap<String, File>();
+
+    /**
+     * @param name Name of the entry, not empty
+     * @throws IllegalArgumentException If the name is empty or already added
+     */
+    public AudioBundleBuilder add(String name, File file) {
+        if (name.length() == 0 || files.containsKey(name))
+            throw new IllegalArgumentException("Invalid or duplicate name: " + name);
+        files.put(name, file);
+        return this;
+    }
+
+    /**
+     * Adds the audio files of a directory (RecordingIndexer.AUDIO_FILES), sorted by name.
+     */
+    public AudioBundleBuilder addDirectory(File directory) throws IOException {
+        File[] children = directory.listFiles(RecordingIndexer.AUDIO_FILES);
+        if (children == null)
+            throw new IOException("Could not list " + directory);
+        Arrays.sort(children);
+        for (File child : children)
+            add(child.getName(), child);
+        return this;
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public void build(File output) throws IOException {
+        int slots = 2;
+        while (slots < files.size() * 2)
+            slots *= 2;
+
+        List<byte[]> names = new ArrayList<byte[]>(files.size());
+        int namesLength = 0;
+        for (String name : files.keySet()) {
+            byte[] utf8 = AudioBundle.utf8(name);
+            names.add(utf8);
+            namesLength += utf8.length;
+        }
+        long headerSize = AudioBundle.HEADER_SIZE + (long) slots * AudioBundle.SLOT_SIZE + namesLength;
+        if (headerSize > Integer.MAX_VALUE)
+            throw new IOException("Too many entries");
+
+        ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+        header.putInt(AudioBundle.MAGIC);
+        header.putInt(AudioBundle.VERSION);
+        header.putInt(files.size());
+        header.putInt(slots);
+        header.putInt(namesLength);
+
+        File temp = new File(output.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            long offset = align(headerSize);
+            int nameOffset = 0;
+            int i = 0;
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                byte[] name = names.get(i++);
+                File file = entry.getValue();
+                long length = copy(file, channel, offset);
+
+                int hash = AudioBundle.hash(name);
+                int slot = hash & (slots - 1);
+                while (header.getInt(AudioBundle.HEADER_SIZE + slot * AudioBundle.SLOT_SIZE + 8) != 0)
+                    slot = (slot + 1) & (slots - 1);
+                int position = AudioBundle.HEADER_SIZE + slot * AudioBundle.SLOT_SIZE;
+                header.putInt(position, hash);
+                header.putInt(position + 4, nameOffset);
+                header.putInt(position + 8, name.length);
+                header.putInt(position + 12, durationOf(file));
+                header.putLong(position + 16, offset);
+                header.putLong(position + 24, length);
+                int namePosition = AudioBundle.HEADER_SIZE + slots * AudioBundle.SLOT_SIZE + nameOffset;
+                for (int j = 0; j < name.length; j++)
+                    header.put(namePosition + j, name[j]);
+
+                nameOffset += name.length;
+                offset = align(offset + length);
+            }
+            header.clear();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(false);
+        } catch (IOException e) {
+            RangeCache.closeQuietly(out);
+            temp.delete();
+            throw e;
+        }
+        out.close();
+        if (!temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + output);
+        }
+    }
+
+    /**
+     * @return Bytes copied
+     */
+    protected static long copy(File file, FileChannel channel, long offset) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel source = input.getChannel();
+            long length = source.size();
+            long copied = 0;
+            while (copied < length) {
+                long transferred = source.transferTo(copied, length - copied, channel.position(offset + copied));
+                if (transferred <= 0)
+                    throw new IOException(file + " was truncated while copied");
+                copied += transferred;
+            }
+            return length;
+        } finally {
+            RangeCache.closeQuietly(input);
+        }
+    }
+
+    protected static int durationOf(File file) {
+        try {
+            return (int) AudioProbe.probe(file).getDuration();
+        } catch (IOException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            // Malformed boxes
+            return -1;
+        }
+    }
+
+    static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * AudioBundleBuilder bundle (file | directory)...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AudioBundleBuilder bundle (file | directory)...");
+            System.exit(2);
+        }
+        AudioBundleBuilder builder = new AudioBundleBuilder();
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            if (file.isDirectory())
+                builder.addDirectory(file);
+            else
+                builder.add(file.getName(), file);
+        }
+        File output = new File(args[0]);
+        builder.build(output);
+        System.out.println(builder.size() + " entries, " + output.length() + " bytes: " + output);
+    }
+}
@@ -0,0 +1,34 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder of an audio file to 16 bit PCM.
+ */
+public interface AudioDecoder {
+
+    /**
+     * Opens the file and reads its format.
+     */
+    void open(String path) throws IOException;
+
+    /**
+     * @return Sample rate in Hz, valid after open
+     */
+    int getSampleRate();
+
+    /**
+     * @return Number of interleaved channels, valid after open
+     */
+    int getChannels();
+
+    /**
+     * Decodes the next PCM into buffer, from index 0, in the byte order of the buffer.
+     *
+     * @return Number of bytes decoded (a multiple of the frame size), or -1 at the end of the file
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    void release();
+}
@@ -0,0 +1,327 @@
+package rtoshiro.github.com.audio;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the format, duration, codec, sample rate and channels of an audio file from its headers,
+ * without a player or a decoder. See ProbeCache to keep the results.
+ * <p/>
+ * MPEG-4 (M4A, 3GPP): box headers are read and mdat is skipped, only moov is read.
+ * WAV: the fmt and data chunks. ADTS and AMR: frame headers only, skipping the payloads.
+ */
+public final class AudioProbe {
+
+    public static final String FORMAT_MP4 = "mp4";
+    public static final String FORMAT_WAV = "wav";
+    public static final String FORMAT_ADTS = "aac";
+    public static final String FORMAT_AMR = "amr";
+    public static final String FORMAT_AMR_WB = "amr-wb";
+
+    public static final String CODEC_AAC = "audio/mp4a-latm";
+    public static final String CODEC_AMR_NB = "audio/3gpp";
+    public static final String CODEC_AMR_WB = "audio/amr-wb";
+    public static final String CODEC_PCM = "audio/raw";
+
+    /**
+     * What the headers of a file tell.
+     */
+    public static class Info {
+        protected final String format;
+        protected final long duration;
+        protected final String codec;
+        protected final int sampleRate;
+        protected final int channels;
+
+        public Info(String format, long duration, String codec, int sampleRate, int channels) {
+            this.format = format;
+            this.duration = duration;
+            this.codec = codec;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        /**
+         * @return One of the FORMAT_ constants
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return Duration in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return MIME type of the codec (one of the CODEC_ constants for the formats written by the library)
+         */
+        public String getCodec() {
+            return codec;
+        }
+
+        /**
+         * @return Sample rate in Hz, or 0 if unknown
+         */
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        /**
+         * @return Number of channels, or 0 if unknown
+         */
+        public int getChannels() {
+            return channels;
+        }
+
+        @Override
+        public String toString() {
+            return format + " " + codec + " " + sampleRate + " Hz " + channels + " ch " + duration + " ms";
+        }
+    }
+
+    private static final byte[] AMR_MAGIC = "#!AMR\n".getBytes();
+    private static final byte[] AMR_WB_MAGIC = "#!AMR-WB\n".getBytes();
+
+    // Payload bytes of an AMR frame per frame type (the header byte excluded), 20 ms each
+    private static final int[] AMR_FRAME_SIZES = {12, 13, 15, 17, 19, 20, 26, 31, 5, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] AMR_WB_FRAME_SIZES = {17, 23, 32, 36, 40, 46, 50, 58, 60, 5, 0, 0, 0, 0, 0, 0};
+
+    private AudioProbe() {
+    }
+
+    /**
+     * @throws IOException If the file cannot be read or its format is not known
+     */
+    public static Info probe(File file) throws IOException {
+        byte[] magic = new byte[12];
+        int length = readMagic(file, magic);
+        if (length >= 8 && isMp4(Mp4Box.type(ByteBuffer.wrap(magic), 0)))
+            return probeMp4(file);
+        if (length >= 12 && magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F'
+                && magic[8] == 'W' && magic[9] == 'A' && magic[10] == 'V' && magic[11] == 'E')
+            return probeWav(file);
+        if (length >= 7 && RecordingRecovery.isAdts(magic, 0))
+            return probeAdts(file);
+        if (startsWith(magic, length, AMR_WB_MAGIC))
+            return new Info(FORMAT_AMR_WB, probeAmr(file, AMR_WB_MAGIC.length, AMR_WB_FRAME_SIZES), CODEC_AMR_WB, 16000, 1);
+        if (startsWith(magic, length, AMR_MAGIC))
+            return new Info(FORMAT_AMR, probeAmr(file, AMR_MAGIC.length, AMR_FRAME_SIZES), CODEC_AMR_NB, 8000, 1);
+        throw new IOException(file + " has an unknown format");
+    }
+
+    private static boolean isMp4(int type) {
+        return type == Mp4Box.FTYP || type == Mp4Box.MOOV || type == Mp4Box.MDAT || type == Mp4Box.FREE;
+    }
+
+    private static boolean startsWith(byte[] buffer, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int readMagic(File file, byte[] magic) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            int read;
+            while (length < magic.length && (read = in.read(magic, length, magic.length - length)) > 0)
+                length += read;
+            return length;
+        } finally {
+            RangeCache.closeQuietly(in);
+        }
+    }
+
+    static Info probeMp4(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            for (Mp4Box.Header header : Mp4Box.readTopLevel(channel)) {
+                if (header.type != Mp4Box.MOOV)
+                    continue;
+                ByteBuffer moov = Mp4Box.read(channel, header);
+                int mvhd = Mp4Box.child(moov, 0, Mp4Box.MVHD);
+                if (mvhd < 0)
+                    throw new IOException(file + " has no mvhd");
+                long timescale;
+                long duration;
+                if (moov.get(mvhd + 8) == 1) {
+                    timescale = moov.getInt(mvhd + 28) & 0xffffffffL;
+                    duration = moov.getLong(mvhd + 32);
+                } else {
+                    timescale = moov.getInt(mvhd + 20) & 0xffffffffL;
+                    duration = moov.getInt(mvhd + 24) & 0xffffffffL;
+                }
+                if (timescale == 0)
+                    throw new IOException(file + " has no timescale");
+                return probeTrack(moov, duration * 1000 / timescale);
+            }
+            throw new IOException(file + " has no moov (unfinished recording?)");
+        } finally {
+            RangeCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads the codec and format of the first audio track.
+     *
+     * @param duration Duration of the movie, in milliseconds
+     */
+    private static Info probeTrack(ByteBuffer moov, long duration) {
+        int end = Mp4Box.size(moov, 0);
+        for (int trak = 8; trak + 8 <= end && Mp4Box.size(moov, trak) >= 8; trak += Mp4Box.size(moov, trak)) {
+            if (Mp4Box.type(moov, trak) != Mp4Box.TRAK)
+                continue;
+            int hdlr = Mp4Box.path(moov, trak, Mp4Box.MDIA, Mp4Box.HDLR);
+            int mdhd = Mp4Box.path(moov, trak, Mp4Box.MDIA, Mp4Box.MDHD);
+            int stsd = Mp4Box.path(moov, trak, Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL, Mp4Box.STSD);
+            if (hdlr < 0 || stsd < 0 || moov.getInt(hdlr + 16) != Mp4Box.type("soun"))
+                continue;
+            // First sample entry, after the full box header and the entry count
+            int entry = stsd + 16;
+            if (entry + 36 > stsd + Mp4Box.size(moov, stsd))
+                continue;
+            int type = Mp4Box.type(moov, entry);
+            int channels = moov.getShort(entry + 24) & 0xffff;
+            int sampleRate = moov.getShort(entry + 32) & 0xffff;
+            if (sampleRate == 0 && mdhd >= 0)
+                sampleRate = moov.getInt(mdhd + (moov.get(mdhd + 8) == 1 ? 28 : 20));
+            String codec;
+            if (type == Mp4Box.MP4A)
+                codec = CODEC_AAC;
+            else if (type == Mp4Box.type("samr"))
+                codec = CODEC_AMR_NB;
+            else if (type == Mp4Box.type("sawb"))
+                codec = CODEC_AMR_WB;
+            else
+                codec = Mp4Box.name(type);
+            return new Info(FORMAT_MP4, duration, codec, sampleRate, channels);
+        }
+        return new Info(FORMAT_MP4, duration, null, 0, 0);
+    }
+
+    static Info probeWav(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            long fileSize = channel.size();
+            ByteBuffer chunk = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            long byteRate = 0;
+            int channels = 0;
+            int sampleRate = 0;
+            long position = 12;
+            while (position + 8 <= fileSize) {
+                chunk.clear().limit(8);
+                Mp4Box.readFully(channel, chunk, position);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xffffffffL;
+                if (id == 0x20746d66) {
+                    // "fmt ": channels at 2, sample rate at 4, byte rate at 8
+                    chunk.clear().limit(16);
+                    Mp4Box.readFully(channel, chunk, position + 8);
+                    channels = chunk.getShort(2);
+                    sampleRate = chunk.getInt(4);
+                    byteRate = chunk.getInt(8) & 0xffffffffL;
+                } else if (id == 0x61746164) {
+                    // "data": a size of 0 (or beyond the end) was never patched, the data runs to the end
+                    long available = fileSize - position - 8;
+                    long data = size == 0 || size > available ? available : size;
+                    if (byteRate == 0)
+                        throw new IOException(file + " has no fmt chunk before data");
+                    return new Info(FORMAT_WAV, data * 1000 / byteRate, CODEC_PCM, sampleRate, channels);
+                }
+                position += 8 + size + (size & 1);
+            }
+            throw new IOException(file + " has no data chunk");
+        } finally {
+            RangeCache.closeQuietly(input);
+        }
+    }
+
+    static Info probeAdts(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 8192);
+        try {
+            byte[] header = new byte[7];
+            long frames = 0;
+            int rateIndex = -1;
+            int channels = 0;
+            while (readFully(in, header) && RecordingRecovery.isAdts(header, 0)) {
+                int frameLength = (header[3] & 0x03) << 11 | (header[4] & 0xff) << 3 | (header[5] & 0xe0) >>> 5;
+                int blocks = (header[6] & 0x03) + 1;
+                if (rateIndex < 0) {
+                    rateIndex = (header[2] >>> 2) & 0x0f;
+                    channels = (header[2] & 0x01) << 2 | (header[3] & 0xc0) >>> 6;
+                }
+                if (frameLength < 7 || !skipFully(in, frameLength - 7))
+                    break;
+                frames += blocks;
+            }
+            if (rateIndex < 0 || rateIndex >= RecordingRecovery.SAMPLE_RATES.length)
+                throw new IOException(file + " has no valid ADTS frame");
+            int sampleRate = RecordingRecovery.SAMPLE_RATES[rateIndex];
+            return new Info(FORMAT_ADTS, frames * RecordingRecovery.SAMPLES_PER_FRAME * 1000 / sampleRate, CODEC_AAC, sampleRate, channels);
+        } finally {
+            RangeCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return Duration in milliseconds
+     */
+    static long probeAmr(File file, int headerLength, int[] frameSizes) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 8192);
+        try {
+            if (!skipFully(in, headerLength))
+                return 0;
+            long frames = 0;
+            int toc;
+            while ((toc = in.read()) >= 0) {
+                if (!skipFully(in, frameSizes[(toc >>> 3) & 0x0f]))
+                    break;
+                frames++;
+            }
+            return frames * 20;
+        } finally {
+            RangeCache.closeQuietly(in);
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0)
+                return false;
+            length += read;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip() may stop early without being at the end
+                if (in.read() < 0)
+                    return false;
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+        return true;
+    }
+}
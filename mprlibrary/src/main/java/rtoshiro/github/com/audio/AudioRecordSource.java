@@ -0,0 +1,87 @@
+package rtoshiro.github.com.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PcmSource backed by android.media.AudioRecord.
+ */
+public class AudioRecordSource implements PcmSource {
+
+    protected final int audioSource;
+    protected final int sampleRate;
+    protected final int channels;
+    protected final int bufferSize;
+    protected AudioRecord record;
+
+    public AudioRecordSource(int sampleRate, int channels) {
+        this(MediaRecorder.AudioSource.MIC, sampleRate, channels, 0);
+    }
+
+    /**
+     * @param audioSource MediaRecorder.AudioSource.*
+     * @param sampleRate  Sample rate in Hz
+     * @param channels    1 or 2
+     * @param bufferSize  Size of the AudioRecord internal buffer in bytes (raised to the minimum allowed)
+     */
+    public AudioRecordSource(int audioSource, int sampleRate, int channels, int bufferSize) {
+        this.audioSource = audioSource;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        int min = AudioRecord.getMinBufferSize(sampleRate, channelConfig(), AudioFormat.ENCODING_PCM_16BIT);
+        this.bufferSize = Math.max(bufferSize, min);
+    }
+
+    protected int channelConfig() {
+        return channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (record == null) {
+            record = new AudioRecord(audioSource, sampleRate, channelConfig(), AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                record.release();
+                record = null;
+                throw new IOException("AudioRecord could not be initialized");
+            }
+        }
+        record.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        AudioRecord r = record;
+        if (r == null)
+            return AudioRecord.ERROR_INVALID_OPERATION;
+        return r.read(buffer, size);
+    }
+
+    @Override
+    public void stop() {
+        if (record != null)
+            record.stop();
+    }
+
+    @Override
+    public void release() {
+        if (record != null) {
+            record.release();
+            record = null;
+        }
+    }
+}
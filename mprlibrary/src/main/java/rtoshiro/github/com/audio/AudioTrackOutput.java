@@ -0,0 +1,87 @@
+package rtoshiro.github.com.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+import java.io.IOException;
+
+/**
+ * PcmOutput backed by a streaming android.media.AudioTrack.
+ */
+public class AudioTrackOutput implements PcmOutput {
+
+    protected final int streamType;
+    protected final int sampleRate;
+    protected final int channels;
+    protected final int bufferSize;
+    protected AudioTrack track;
+
+    public AudioTrackOutput(int sampleRate, int channels) {
+        this(AudioManager.STREAM_MUSIC, sampleRate, channels, 0);
+    }
+
+    /**
+     * @param streamType AudioManager.STREAM_*
+     * @param sampleRate Sample rate in Hz
+     * @param channels   1 or 2
+     * @param bufferSize Size of the AudioTrack internal buffer in bytes (raised to the minimum allowed).
+     *                   The smaller, the lower the latency
+     */
+    public AudioTrackOutput(int streamType, int sampleRate, int channels, int bufferSize) {
+        this.streamType = streamType;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        int min = AudioTrack.getMinBufferSize(sampleRate, channelConfig(), AudioFormat.ENCODING_PCM_16BIT);
+        this.bufferSize = Math.max(bufferSize, min);
+    }
+
+    protected int channelConfig() {
+        return channels == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (track == null) {
+            track = new AudioTrack(streamType, sampleRate, channelConfig(), AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+            if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+                track.release();
+                track = null;
+                throw new IOException("AudioTrack could not be initialized");
+            }
+        }
+        track.play();
+    }
+
+    @Override
+    public int write(short[] samples, int offset, int size) {
+        AudioTrack t = track;
+        if (t == null)
+            return AudioTrack.ERROR_INVALID_OPERATION;
+        return t.write(samples, offset, size);
+    }
+
+    @Override
+    public void stop() {
+        if (track != null)
+            track.stop();
+    }
+
+    @Override
+    public void release() {
+        if (track != null) {
+            track.release();
+            track = null;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Estimates how fast a remote source is being buffered, from the buffering updates of the player.
+ * <p/>
+ * The buffering percentage, applied to the duration, gives the buffered position. Its progress over
+ * time is the fill rate: milliseconds of media buffered per millisecond. Below 1 the download is slower
+ * than playback and playback stalls once the buffer ahead of the position is consumed.
+ * When byte counts are known (through a CachingProxy) the network throughput is estimated as well.
+ * <p/>
+ * Both rates are exponentially weighted moving averages, weighted by the time between samples.
+ */
+public class BandwidthEstimator {
+
+    public static final long DEFAULT_HALF_LIFE = 2000;
+
+    protected final long halfLife;
+    private long lastTime = -1;
+    private int bufferedPosition;
+    private int duration = -1;
+    private long lastBytes = -1;
+    private double fillRate = -1;
+    private double throughput = -1;
+    private int samples;
+
+    public BandwidthEstimator() {
+        this(DEFAULT_HALF_LIFE);
+    }
+
+    /**
+     * @param halfLife Age, in milliseconds, at which a sample weighs half as much as a new one
+     */
+    public BandwidthEstimator(long halfLife) {
+        this.halfLife = halfLife;
+    }
+
+    /**
+     * Forgets the samples, e.g. when the data source changes.
+     */
+    public synchronized void reset() {
+        lastTime = -1;
+        bufferedPosition = 0;
+        duration = -1;
+        lastBytes = -1;
+        fillRate = -1;
+        throughput = -1;
+        samples = 0;
+    }
+
+    /**
+     * @param now      Monotonic time in milliseconds
+     * @param percent  Buffering percentage reported by the player
+     * @param duration Duration of the source in milliseconds, or -1 if unknown
+     * @param bytes    Bytes received from the network so far, or -1 if unknown
+     */
+    public synchronized void onBufferingUpdate(long now, int percent, int duration, long bytes) {
+        percent = Math.max(0, Math.min(100, percent));
+        int position = duration > 0 ? (int) ((long) duration * percent / 100) : 0;
+        if (lastTime >= 0 && now > lastTime) {
+            long elapsed = now - lastTime;
+            double weight = 1 - Math.pow(0.5, (double) elapsed / halfLife);
+            if (duration > 0 && this.duration > 0 && percent < 100) {
+                double rate = (double) Math.max(0, position - bufferedPosition) / elapsed;
+                fillRate = fillRate < 0 ? rate : fillRate + weight * (rate - fillRate);
+            }
+            if (bytes >= 0 && lastBytes >= 0) {
+                double rate = (bytes - lastBytes) * 1000.0 / elapsed;
+                throughput = throughput < 0 ? rate : throughput + weight * (rate - throughput);
+            }
+        }
+        if (lastTime < 0 || now > lastTime) {
+            lastTime = now;
+            lastBytes = bytes;
+        }
+        bufferedPosition = Math.max(bufferedPosition, position);
+        this.duration = duration;
+        if (percent >= 100)
+            bufferedPosition = Math.max(bufferedPosition, duration);
+        samples++;
+    }
+
+    /**
+     * @return Media buffered per millisecond (1 is as fast as playback), or -1 before two updates
+     */
+    public synchronized double getFillRate() {
+        return fillRate;
+    }
+
+    /**
+     * @return Bytes per second received from the network, or -1 if unknown
+     */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return Buffered position in milliseconds
+     */
+    public synchronized int getBufferedPosition() {
+        return bufferedPosition;
+    }
+
+    /**
+     * Sets the duration before the first update, e.g. the one of the prepared player.
+     *
+     * @param duration Duration of the source in milliseconds, or -1 if unknown (a live stream)
+     */
+    public synchronized void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @return Duration given by the last update, or -1 if unknown
+     */
+    public synchronized int getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Number of buffering updates since the last reset
+     */
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return True if the whole source is buffered
+     */
+    public synchronized boolean isComplete() {
+        return duration > 0 && bufferedPosition >= duration;
+    }
+
+    /**
+     * @param position Playback position in milliseconds
+     * @return Milliseconds of media buffered ahead of the position
+     */
+    public synchronized int getBufferAhead(int position) {
+        return Math.max(0, bufferedPosition - position);
+    }
+
+    /**
+     * @param position Playback position in milliseconds
+     * @return Milliseconds of playback before the buffer runs out at the current fill rate,
+     * Long.MAX_VALUE if it does not, or -1 if the fill rate is unknown
+     */
+    public synchronized long getTimeToStall(int position) {
+        if (isComplete() || fillRate >= 1)
+            return Long.MAX_VALUE;
+        if (fillRate < 0)
+            return -1;
+        long ahead = Math.max(0, bufferedPosition - position);
+        long toStall = (long) (ahead / (1 - fillRate));
+        // The download may complete before the buffer runs out
+        if (fillRate > 0 && (duration - bufferedPosition) / fillRate <= toStall)
+            return Long.MAX_VALUE;
+        return toStall;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "buffered=" + bufferedPosition + "/" + duration + " fillRate=" + fillRate + " throughput=" + Math.round(throughput);
+    }
+}
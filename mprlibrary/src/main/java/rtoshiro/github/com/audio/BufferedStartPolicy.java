@@ -0,0 +1,53 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Starts playback once the buffer is large enough to play to the end without stalling.
+ * <p/>
+ * If the source buffers faster than it plays (with a safety margin), a minimum buffer is enough.
+ * Otherwise the buffer ahead must cover what the download loses on playback until it completes:
+ * (duration - buffered) * (1 - rate) / rate. Playback starts anyway after a maximum wait,
+ * so a source that never reports buffering progress still plays.
+ * A source of unknown duration (a live stream) has no end to buffer to: it starts as soon as it is prepared.
+ */
+public class BufferedStartPolicy implements StartPolicy {
+
+    public static final int DEFAULT_MIN_BUFFER = 2000;
+    public static final long DEFAULT_MAX_WAIT = 8000;
+    public static final double DEFAULT_SAFETY = 1.2;
+
+    protected final int minBuffer;
+    protected final long maxWait;
+    protected final double safety;
+
+    public BufferedStartPolicy() {
+        this(DEFAULT_MIN_BUFFER, DEFAULT_MAX_WAIT, DEFAULT_SAFETY);
+    }
+
+    /**
+     * @param minBuffer Milliseconds buffered ahead of the position, always required
+     * @param maxWait   Milliseconds after which playback starts whatever the buffer
+     * @param safety    Divisor of the estimated fill rate, above 1 to be pessimistic
+     */
+    public BufferedStartPolicy(int minBuffer, long maxWait, double safety) {
+        this.minBuffer = minBuffer;
+        this.maxWait = maxWait;
+        this.safety = safety;
+    }
+
+    @Override
+    public boolean shouldStart(BandwidthEstimator estimator, int position, long waited) {
+        if (estimator.isComplete() || waited >= maxWait || estimator.getDuration() < 0)
+            return true;
+        int ahead = estimator.getBufferAhead(position);
+        if (ahead < minBuffer)
+            return false;
+        double rate = estimator.getFillRate() / safety;
+        if (rate >= 1)
+            return true;
+        if (rate <= 0)
+            return false;
+        int duration = estimator.getDuration();
+        long remaining = duration - estimator.getBufferedPosition();
+        return ahead >= remaining * (1 - rate) / rate;
+    }
+}
@@ -0,0 +1,458 @@
+package rtoshiro.github.com.audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback HTTP proxy that caches remote data sources in a RangeCache.
+ * <p/>
+ * MediaPlayer is given a http://127.0.0.1 URL (see getProxyUrl). Each request, with or without a
+ * Range header, is served from the cache where bytes are available, and only the missing spans are
+ * fetched from the origin server (and stored while they are forwarded).
+ */
+public class CachingProxy {
+
+    private static final String PATH_PREFIX = "/?url=";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    protected final RangeCache cache;
+    protected final int connectTimeout;
+    protected final int readTimeout;
+
+    protected ServerSocket serverSocket;
+    protected Thread acceptThread;
+    protected ExecutorService executor;
+
+    protected final AtomicLong requests = new AtomicLong();
+    protected final AtomicLong bytesFromCache = new AtomicLong();
+    protected final AtomicLong bytesFromNetwork = new AtomicLong();
+
+    public CachingProxy(RangeCache cache) {
+        this(cache, 15000, 15000);
+    }
+
+    /**
+     * @param cache          Cache where fetched bytes are stored
+     * @param connectTimeout Timeout in milliseconds to connect to the origin server
+     * @param readTimeout    Timeout in milliseconds to read from the origin server
+     */
+    public CachingProxy(RangeCache cache, int connectTimeout, int readTimeout) {
+        this.cache = cache;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Starts listening on a loopback port chosen by the system.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null)
+            return;
+        serverSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CachingProxy-connection");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final ServerSocket server = serverSocket;
+        final ExecutorService connections = executor;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        connections.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed by stop()
+                    }
+                }
+            }
+        }, "CachingProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops listening and closes the pending connections.
+     */
+    public synchronized void stop() {
+        if (serverSocket == null)
+            return;
+        closeQuietly(serverSocket);
+        executor.shutdownNow();
+        serverSocket = null;
+        executor = null;
+        acceptThread = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return serverSocket != null;
+    }
+
+    /**
+     * @return Local port, or -1 if the proxy is not running
+     */
+    public synchronized int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * @param url Data source
+     * @return Loopback URL serving url through the cache, or url itself if it is not remote or the proxy is not running
+     */
+    public String getProxyUrl(String url) {
+        int port = getPort();
+        if (port < 0 || !isRemote(url))
+            return url;
+        try {
+            return "http://127.0.0.1:" + port + PATH_PREFIX + URLEncoder.encode(url, "UTF-8");
+        } catch (IOException e) {
+            return url;
+        }
+    }
+
+    public static boolean isRemote(String url) {
+        return url != null && (url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    public RangeCache getCache() {
+        return cache;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBytesFromCache() {
+        return bytesFromCache.get();
+    }
+
+    public long getBytesFromNetwork() {
+        return bytesFromNetwork.get();
+    }
+
+    protected void handle(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+            String requestLine = readLine(in);
+            if (requestLine == null)
+                return;
+            String range = null;
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range"))
+                    range = line.substring(colon + 1).trim();
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || !parts[1].startsWith(PATH_PREFIX)
+                    || !(parts[0].equals("GET") || parts[0].equals("HEAD"))) {
+                writeStatus(out, "400 Bad Request");
+                return;
+            }
+            requests.incrementAndGet();
+            String url = URLDecoder.decode(parts[1].substring(PATH_PREFIX.length()), "UTF-8");
+
+            long start = 0;
+            long end = -1;
+            if (range != null && range.startsWith("bytes=")) {
+                String spec = range.substring("bytes=".length());
+                int dash = spec.indexOf('-');
+                if (dash > 0) {
+                    start = Long.parseLong(spec.substring(0, dash).trim());
+                    String last = spec.substring(dash + 1).trim();
+                    if (last.length() > 0)
+                        end = Long.parseLong(last);
+                } else if (dash == 0) {
+                    // Suffix range: the last bytes
+                    start = -Long.parseLong(spec.substring(1).trim());
+                } else {
+                    range = null;
+                }
+            } else {
+                range = null;
+            }
+
+            RangeCache.Entry entry = cache.open(url);
+            try {
+                serve(entry, url, parts[0].equals("HEAD"), range != null, start, end, out);
+            } finally {
+                cache.close(entry);
+            }
+        } catch (SocketException e) {
+            // client went away (MediaPlayer closes connections when it seeks)
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @param start First byte, or minus the length of a suffix range (bytes=-N)
+     * @param end   Last byte, or -1 for the end of the resource
+     */
+    protected void serve(RangeCache.Entry entry, String url, boolean head, boolean partial, long start, long end, OutputStream out) throws IOException {
+        HttpURLConnection upstream = null;
+        InputStream upstreamIn = null;
+        try {
+            long length = entry.getLength();
+            if (start < 0 && length < 0) {
+                // The start of a suffix range depends on the length: asks for the first byte to learn it
+                upstream = openUpstream(url, 0, 0);
+                if (upstream == null) {
+                    writeStatus(out, "502 Bad Gateway");
+                    return;
+                }
+                length = totalLength(upstream);
+                if (length >= 0)
+                    entry.setInfo(length, upstream.getContentType());
+                upstream.disconnect();
+                upstream = null;
+            }
+            if (start < 0) {
+                if (length <= 0) {
+                    writeStatus(out, "416 Requested Range Not Satisfiable");
+                    return;
+                }
+                start = Math.max(0, length + start);
+                end = length - 1;
+            }
+            if (length < 0) {
+                upstream = openUpstream(url, start, end);
+                if (upstream == null) {
+                    writeStatus(out, "502 Bad Gateway");
+                    return;
+                }
+                length = totalLength(upstream);
+                entry.setInfo(length, upstream.getContentType());
+                upstreamIn = upstream.getInputStream();
+                if (upstream.getResponseCode() == HttpURLConnection.HTTP_OK)
+                    skipFully(upstreamIn, start);
+                if (length < 0) {
+                    // unknown length, forward without caching
+                    out.write(("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                    if (!head)
+                        bytesFromNetwork.addAndGet(pipe(upstreamIn, out, Long.MAX_VALUE, null, 0));
+                    out.flush();
+                    return;
+                }
+            }
+
+            if (start >= length) {
+                out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */" + length
+                        + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                out.flush();
+                return;
+            }
+            long last = (end < 0 || end >= length) ? length - 1 : end;
+
+            StringBuilder headers = new StringBuilder();
+            if (partial)
+                headers.append("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes ")
+                        .append(start).append('-').append(last).append('/').append(length).append("\r\n");
+            else
+                headers.append("HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Length: ").append(last - start + 1).append("\r\n");
+            String contentType = entry.getContentType();
+            if (contentType != null)
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("ISO-8859-1"));
+            if (head) {
+                out.flush();
+                return;
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= last) {
+                long available = entry.available(position);
+                if (available > 0) {
+                    long count = Math.min(available, last - position + 1);
+                    long copied = 0;
+                    while (copied < count) {
+                        int read = entry.read(position + copied, buffer, 0, (int) Math.min(buffer.length, count - copied));
+                        out.write(buffer, 0, read);
+                        copied += read;
+                    }
+                    bytesFromCache.addAndGet(count);
+                    position += count;
+                    if (upstream != null) {
+                        // Filled by another connection meanwhile: the upstream is not at position anymore
+                        RangeCache.closeQuietly(upstreamIn);
+                        upstream.disconnect();
+                        upstream = null;
+                        upstreamIn = null;
+                    }
+                    continue;
+                }
+
+                long next = entry.nextCachedStart(position);
+                long fetchLast = (next < 0 || next > last) ? last : next - 1;
+                if (upstream == null) {
+                    upstream = openUpstream(url, position, fetchLast);
+                    if (upstream == null)
+                        throw new IOException("Upstream request failed for " + url);
+                    upstreamIn = upstream.getInputStream();
+                    if (upstream.getResponseCode() == HttpURLConnection.HTTP_OK)
+                        skipFully(upstreamIn, position);
+                }
+                long count = fetchLast - position + 1;
+                long fetched = pipe(upstreamIn, out, count, entry, position);
+                bytesFromNetwork.addAndGet(fetched);
+                if (fetched < count)
+                    throw new IOException("Upstream ended early for " + url);
+                position += count;
+                RangeCache.closeQuietly(upstreamIn);
+                upstream.disconnect();
+                upstream = null;
+                upstreamIn = null;
+            }
+            out.flush();
+        } finally {
+            RangeCache.closeQuietly(upstreamIn);
+            if (upstream != null)
+                upstream.disconnect();
+        }
+    }
+
+    /**
+     * The bytes are requested without content encoding: the cached ranges are offsets in the media itself.
+     *
+     * @return Connection with a 200 or 206 response, or null for any other (or an encoded) response
+     */
+    protected HttpURLConnection openUpstream(String url, long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+        int code = connection.getResponseCode();
+        String encoding = connection.getHeaderField("Content-Encoding");
+        if ((code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL)
+                || (encoding != null && !encoding.trim().equalsIgnoreCase("identity"))) {
+            connection.disconnect();
+            return null;
+        }
+        return connection;
+    }
+
+    /**
+     * @return Total length of the resource, or -1 if the server does not tell
+     */
+    protected static long totalLength(HttpURLConnection connection) throws IOException {
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null) {
+                int slash = contentRange.lastIndexOf('/');
+                String total = contentRange.substring(slash + 1).trim();
+                if (slash > 0 && !total.equals("*"))
+                    return Long.parseLong(total);
+            }
+            return -1;
+        }
+        String contentLength = connection.getHeaderField("Content-Length");
+        return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+    }
+
+    /**
+     * Copies up to count bytes from in to out, storing them in the entry (if not null) at position.
+     *
+     * @return Number of bytes copied
+     */
+    protected static long pipe(InputStream in, OutputStream out, long count, RangeCache.Entry entry, long position) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        while (copied < count) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+            if (read < 0)
+                break;
+            // cache first, so the bytes are kept even if the client has gone away
+            if (entry != null)
+                entry.write(position + copied, buffer, 0, read);
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    protected static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new IOException("Unexpected end of stream");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    protected static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n')
+                break;
+            if (c != '\r')
+                line.append((char) c);
+        }
+        if (c < 0 && line.length() == 0)
+            return null;
+        return line.toString();
+    }
+
+    protected static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /**
+     * Sockets are Closeable only from API 19
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+}
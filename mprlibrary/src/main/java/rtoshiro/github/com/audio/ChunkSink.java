@@ -0,0 +1,32 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+
+/**
+ * Destination of a file uploaded in chunks by StreamingUploader.
+ * <p/>
+ * Chunks are identified by their offset, so writing a chunk again (after a failure, or because the
+ * file has been patched) replaces it. One sink receives one file.
+ */
+public interface ChunkSink {
+
+    /**
+     * Opens the upload, or resumes it.
+     *
+     * @return Number of bytes, from the start of the file, the destination already has
+     */
+    long open() throws IOException;
+
+    /**
+     * @param offset Offset of the chunk in the file
+     * @param data   Bytes of the chunk
+     * @param length Number of bytes of the chunk
+     * @param crc    CRC32 of the chunk, for the destination to check it
+     */
+    void write(long offset, byte[] data, int length, long crc) throws IOException;
+
+    /**
+     * Completes the upload: the file has this length and every chunk has been written.
+     */
+    void finish(long length) throws IOException;
+}
@@ -0,0 +1,145 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short audio files decoded once to PCM and kept in memory, least recently used first out of a byte budget.
+ * <p/>
+ * Clips are keyed by path, length and modification time: a file that changed is decoded again.
+ * A clip larger than the whole budget is decoded but not kept.
+ * get() decodes on a miss: preload the clips off the main thread.
+ */
+public class ClipCache {
+
+    protected final long maxBytes;
+    protected final PeakCache.DecoderFactory decoderFactory;
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    protected long residentBytes;
+    protected int hits;
+    protected int misses;
+    protected int evictions;
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final PcmClip clip;
+
+        Entry(long length, long lastModified, PcmClip clip) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.clip = clip;
+        }
+    }
+
+    public ClipCache() {
+        this(4 * 1024 * 1024, PeakCache.DEFAULT_DECODERS);
+    }
+
+    /**
+     * @param maxBytes       Budget of the decoded samples kept
+     * @param decoderFactory Decoders of the clips
+     */
+    public ClipCache(long maxBytes, PeakCache.DecoderFactory decoderFactory) {
+        this.maxBytes = maxBytes;
+        this.decoderFactory = decoderFactory;
+    }
+
+    /**
+     * @return The decoded clip, decoded first unless it is cached and the file did not change
+     */
+    public PcmClip get(String path) throws IOException {
+        File file = new File(path);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (lastModified == 0)
+            throw new IOException(path + " does not exist");
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                hits++;
+                return entry.clip;
+            }
+            misses++;
+        }
+
+        PcmClip clip = PcmClip.decode(decoderFactory.createDecoder(path), path);
+        synchronized (this) {
+            Entry previous = entries.remove(path);
+            if (previous != null)
+                residentBytes -= previous.clip.getSizeInBytes();
+            if (clip.getSizeInBytes() <= maxBytes) {
+                entries.put(path, new Entry(length, lastModified, clip));
+                residentBytes += clip.getSizeInBytes();
+                Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+                while (residentBytes > maxBytes && iterator.hasNext()) {
+                    residentBytes -= iterator.next().getValue().clip.getSizeInBytes();
+                    iterator.remove();
+                    evictions++;
+                }
+            }
+        }
+        return clip;
+    }
+
+    /**
+     * @return True if the clip of the file is cached and the file did not change
+     */
+    public synchronized boolean contains(String path) {
+        Entry entry = entries.get(path);
+        File file = new File(path);
+        return entry != null && entry.length == file.length() && entry.lastModified == file.lastModified();
+    }
+
+    public synchronized void invalidate(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null)
+            residentBytes -= entry.clip.getSizeInBytes();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        residentBytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Bytes of the decoded samples cached
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Clips dropped to stay within the budget
+     */
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Hits out of the gets, 0 before the first get
+     */
+    public synchronized float getHitRate() {
+        int total = hits + misses;
+        return total > 0 ? (float) hits / total : 0;
+    }
+}
@@ -0,0 +1,259 @@
+package rtoshiro.github.com.audio;
+
+import android.os.Process;
+
+import java.io.IOException;
+
+/**
+ * Low latency player of short clips (UI sounds, prompts) decoded in a ClipCache.
+ * <p/>
+ * A trigger only adds a voice to the mix: there is no player to prepare. Voices overlap, up to a
+ * maximum, past which the oldest voice is stopped. A thread mixes the voices in blocks and writes them
+ * to a streaming PcmOutput, whose blocking writes pace it; the output is stopped while no voice plays.
+ * Voices are tracks of a Mixer, played by a Mixer.ClipSource, which converts the clips to the channels
+ * and the sample rate of the output. Mixing does not allocate.
+ */
+public class ClipPlayer {
+
+    protected final ClipCache cache;
+    protected final PcmOutput output;
+    protected final int framesPerBlock;
+    protected final int channels;
+    protected final Mixer mixer;
+    /**
+     * Source and id of the voice of each track of the mixer
+     */
+    protected final Mixer.ClipSource[] sources;
+    protected final int[] ids;
+    /**
+     * Tracks of the voices, in the order they started
+     */
+    protected final int[] voices;
+    protected final short[] block;
+    protected final Object lock = new Object();
+    protected int voiceCount;
+    protected int nextId = 1;
+    protected int triggers;
+    protected int stolen;
+    protected boolean running = true;
+    protected Thread thread;
+
+    public ClipPlayer(ClipCache cache, PcmOutput output) {
+        this(cache, output, 8, 256);
+    }
+
+    /**
+     * @param cache          Cache the clips played by path come from
+     * @param output         Output, started and stopped by the player
+     * @param maxVoices      Clips played at once
+     * @param framesPerBlock Frames mixed per write. The smaller, the lower the latency and the higher the cost
+     */
+    public ClipPlayer(ClipCache cache, PcmOutput output, int maxVoices, int framesPerBlock) {
+        this.cache = cache;
+        this.output = output;
+        this.framesPerBlock = framesPerBlock;
+        this.channels = output.getChannels();
+        this.mixer = new Mixer(channels, framesPerBlock, maxVoices);
+        this.sources = new Mixer.ClipSource[maxVoices];
+        this.ids = new int[maxVoices];
+        this.voices = new int[maxVoices];
+        this.block = new short[framesPerBlock * channels];
+    }
+
+    public ClipCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Decodes clips into the cache ahead of their first play. Call it off the main thread.
+     */
+    public void preload(String... paths) throws IOException {
+        for (String path : paths)
+            cache.get(path);
+    }
+
+    /**
+     * Plays a clip from the cache, decoding it first on a miss.
+     *
+     * @return Id of the voice, for stop
+     * @throws IllegalStateException if the player has been released
+     */
+    public int play(String path, float gain) throws IOException {
+        return play(cache.get(path), gain);
+    }
+
+    /**
+     * Plays a clip over the ones playing.
+     *
+     * @param gain Linear gain, 1 for unchanged
+     * @return Id of the voice, for stop
+     * @throws IllegalStateException if the player has been released
+     */
+    public int play(PcmClip clip, float gain) {
+        Mixer.ClipSource source = new Mixer.ClipSource(clip, channels, output.getSampleRate());
+        synchronized (lock) {
+            if (!running)
+                throw new IllegalStateException("play called after release");
+            if (voiceCount == voices.length) {
+                // Steal the oldest voice
+                remove(0);
+                stolen++;
+            }
+            int track = mixer.addTrack(source, gain);
+            sources[track] = source;
+            ids[track] = nextId++;
+            voices[voiceCount++] = track;
+            triggers++;
+            if (thread == null)
+                thread = startThread();
+            lock.notifyAll();
+            return ids[track];
+        }
+    }
+
+    /**
+     * Stops a voice.
+     *
+     * @return False if it already ended
+     */
+    public boolean stop(int id) {
+        synchronized (lock) {
+            for (int i = 0; i < voiceCount; i++) {
+                if (ids[voices[i]] == id) {
+                    remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public void stopAll() {
+        synchronized (lock) {
+            while (voiceCount > 0)
+                remove(voiceCount - 1);
+        }
+    }
+
+    /**
+     * @return Number of voices playing
+     */
+    public int getVoiceCount() {
+        synchronized (lock) {
+            return voiceCount;
+        }
+    }
+
+    /**
+     * @return Clips played since the creation
+     */
+    public int getTriggers() {
+        synchronized (lock) {
+            return triggers;
+        }
+    }
+
+    /**
+     * @return Voices stopped because more than the maximum played at once
+     */
+    public int getStolen() {
+        synchronized (lock) {
+            return stolen;
+        }
+    }
+
+    /**
+     * Stops the thread and releases the output. The cache is kept.
+     */
+    public void release() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            t = thread;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        output.release();
+    }
+
+    /**
+     * Starts the thread of the mix, on the first play.
+     */
+    protected Thread startThread() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                loop();
+            }
+        }, "ClipPlayer");
+        thread.start();
+        return thread;
+    }
+
+    protected void loop() {
+        while (true) {
+            synchronized (lock) {
+                try {
+                    while (running && voiceCount == 0)
+                        lock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running)
+                    return;
+            }
+            try {
+                output.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                stopAll();
+                continue;
+            }
+            while (mix(block, framesPerBlock)) {
+                if (output.write(block, 0, block.length) < 0) {
+                    stopAll();
+                    break;
+                }
+            }
+            output.stop();
+        }
+    }
+
+    /**
+     * Mixes the next block of the voices, removing the ones that end.
+     *
+     * @param out    Interleaved samples, in the channels of the output
+     * @param frames Frames to mix, at most framesPerBlock
+     * @return False, and out is untouched, if no voice was playing
+     */
+    protected boolean mix(short[] out, int frames) {
+        synchronized (lock) {
+            if (voiceCount == 0 || !running)
+                return false;
+            mixer.mix(out, frames);
+            for (int i = voiceCount - 1; i >= 0; i--) {
+                if (sources[voices[i]].isFinished())
+                    remove(i);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes a voice, keeping the others in the order they started.
+     */
+    protected void remove(int index) {
+        int track = voices[index];
+        mixer.removeTrack(track);
+        sources[track] = null;
+        System.arraycopy(voices, index + 1, voices, index, voiceCount - index - 1);
+        voiceCount--;
+    }
+}
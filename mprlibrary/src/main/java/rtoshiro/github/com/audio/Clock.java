@@ -0,0 +1,20 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Source of time, in milliseconds.
+ * Only the difference between two values is meaningful.
+ */
+public interface Clock {
+
+    long now();
+
+    /**
+     * Monotonic clock, not affected by wall-clock changes.
+     */
+    Clock MONOTONIC = new Clock() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+}
@@ -0,0 +1,296 @@
+package rtoshiro.github.com.audio;
+
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.LinkedList;
+
+/**
+ * Serial queue of engine commands, run on a worker.
+ * <p/>
+ * Commands run in order, one at a time. While queued:
+ * <ul>
+ * <li>a seek following a seek replaces it, so only the latest target is pending;</li>
+ * <li>play following pause (or pause following play) replaces it when the target says the pair only affects
+ * playback, so redundant pairs cancel out;</li>
+ * <li>a command following the same command (other than seek, set data source and recorder prepared) is dropped.</li>
+ * </ul>
+ * A command can be asynchronous (a seek): the queue then waits for complete() before running the next one,
+ * so there is at most one seek in flight and the time to reach the latest target does not depend on
+ * how many seeks were issued. Each command gets a sequence number, and a completion for another command
+ * (e.g. one arriving after its timeout) is dropped.
+ */
+public class CommandQueue {
+
+    public static final int PREPARE_TO_PLAY = 1;
+    public static final int PREPARE_TO_RECORD = 2;
+    public static final int PLAY = 3;
+    public static final int RECORD = 4;
+    public static final int PAUSE = 5;
+    public static final int SEEK = 6;
+    public static final int RELEASE = 7;
+    public static final int SET_DATA_SOURCE = 8;
+    public static final int FINISH_RECORDING = 9;
+    public static final int EVICT = 10;
+    public static final int RECORDER_PREPARED = 11;
+    public static final int PREWARM_RECORDER = 12;
+    public static final int START_HELD = 13;
+
+    public static final long DEFAULT_COMPLETE_TIMEOUT = 3000;
+
+    public interface Target {
+        /**
+         * Runs a command on the worker.
+         *
+         * @return True if the command goes on asynchronously: the queue waits for complete()
+         */
+        boolean execute(int command, int arg, Object value);
+
+        /**
+         * Called on the worker when a command threw, instead of letting the exception kill the worker.
+         * The next commands still run.
+         */
+        void onFailure(int command, RuntimeException e);
+
+        /**
+         * Called when next is queued right after queued, with nothing else pending or running.
+         *
+         * @return True if queued can be dropped: next undoes it from the current state
+         */
+        boolean canReplace(int queued, int next);
+    }
+
+    static final class Command {
+        final int type;
+        int arg;
+        Object value;
+
+        Command(int type, int arg, Object value) {
+            this.type = type;
+            this.arg = arg;
+            this.value = value;
+        }
+    }
+
+    private static Scheduler sharedWorker;
+
+    protected final Scheduler worker;
+    protected final Target target;
+    protected long completeTimeout = DEFAULT_COMPLETE_TIMEOUT;
+    private final LinkedList<Command> pending = new LinkedList<Command>();
+    private boolean scheduled;
+    private boolean running;
+    private boolean waiting;
+    private long sequence;
+    private boolean completed;
+    private long executed;
+    private long coalesced;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private Runnable timeout;
+
+    /**
+     * @return A worker on a background thread with audio priority, shared by the queues that use it
+     */
+    public static synchronized Scheduler getSharedWorker() {
+        if (sharedWorker == null) {
+            HandlerThread thread = new HandlerThread("MediaPlayerRecorder", Process.THREAD_PRIORITY_AUDIO);
+            thread.start();
+            sharedWorker = new HandlerScheduler(thread.getLooper());
+        }
+        return sharedWorker;
+    }
+
+    /**
+     * @param worker Scheduler the commands run on
+     * @param target Runner of the commands
+     */
+    public CommandQueue(Scheduler worker, Target target) {
+        this.worker = worker;
+        this.target = target;
+    }
+
+    /**
+     * @param completeTimeout Milliseconds after which an asynchronous command is considered complete
+     */
+    public void setCompleteTimeout(long completeTimeout) {
+        this.completeTimeout = completeTimeout;
+    }
+
+    public void enqueue(int type) {
+        enqueue(type, 0, null);
+    }
+
+    /**
+     * Queues a command, coalescing it with the last queued one when possible.
+     */
+    public synchronized void enqueue(int type, int arg, Object value) {
+        Command last = pending.isEmpty() ? null : pending.getLast();
+        if (last != null) {
+            if (type == SEEK && last.type == SEEK) {
+                last.arg = arg;
+                coalesced++;
+                return;
+            }
+            if ((type == PLAY && last.type == PAUSE) || (type == PAUSE && last.type == PLAY)) {
+                if (pending.size() == 1 && !running && !waiting && target.canReplace(last.type, type)) {
+                    pending.removeLast();
+                    coalesced++;
+                }
+            } else if (type == last.type && type != SET_DATA_SOURCE && type != RECORDER_PREPARED) {
+                coalesced++;
+                return;
+            }
+        }
+        pending.add(new Command(type, arg, value));
+        scheduleDrain();
+    }
+
+    /**
+     * Called by the target when the asynchronous command in flight has failed.
+     */
+    public void complete() {
+        long sequence;
+        synchronized (this) {
+            sequence = this.sequence;
+        }
+        complete(sequence);
+    }
+
+    /**
+     * Called by the target when an asynchronous command has completed (or failed).
+     * A completion for another command than the running one, e.g. arriving after its timeout, is dropped.
+     *
+     * @param sequence Sequence number of the command, from getSequence() while it ran
+     */
+    public void complete(long sequence) {
+        Runnable timeout;
+        synchronized (this) {
+            if (sequence != this.sequence)
+                return;
+            if (!waiting) {
+                // Completed before execute returned
+                if (running)
+                    completed = true;
+                return;
+            }
+            waiting = false;
+            timeout = this.timeout;
+            this.timeout = null;
+            scheduleDrain();
+        }
+        worker.cancel(timeout);
+    }
+
+    /**
+     * Drops the queued commands, e.g. when the target is released.
+     */
+    public synchronized void clear() {
+        pending.clear();
+    }
+
+    /**
+     * @return Type of the next queued command, or 0 if there is none
+     */
+    public synchronized int getNextCommand() {
+        Command next = pending.peek();
+        return next != null ? next.type : 0;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return Sequence number of the command running, or of the last one run
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return True while an asynchronous command is in flight
+     */
+    public synchronized boolean isWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return Number of commands run
+     */
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * @return Number of commands merged into, or cancelled by, a later one
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    private void scheduleDrain() {
+        if (!scheduled && !waiting && !pending.isEmpty()) {
+            scheduled = true;
+            worker.schedule(drain, 0);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Command command;
+            synchronized (this) {
+                scheduled = false;
+                if (waiting)
+                    return;
+                command = pending.poll();
+                if (command == null)
+                    return;
+                executed++;
+                sequence++;
+                running = true;
+                completed = false;
+            }
+            boolean async;
+            try {
+                async = target.execute(command.type, command.arg, command.value);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    running = false;
+                }
+                target.onFailure(command.type, e);
+                continue;
+            }
+            Runnable timeout;
+            synchronized (this) {
+                running = false;
+                if (!async || completed)
+                    continue;
+                waiting = true;
+                timeout = new Timeout(sequence);
+                this.timeout = timeout;
+            }
+            worker.schedule(timeout, completeTimeout);
+            return;
+        }
+    }
+
+    private final class Timeout implements Runnable {
+        final long sequence;
+
+        Timeout(long sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            complete(sequence);
+        }
+    }
+}
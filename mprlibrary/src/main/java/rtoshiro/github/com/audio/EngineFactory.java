@@ -0,0 +1,11 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Creates the engines MediaPlayerRecorder plays and records with.
+ */
+public interface EngineFactory {
+
+    PlayerEngine createPlayer();
+
+    RecorderEngine createRecorder();
+}
@@ -0,0 +1,149 @@
+package rtoshiro.github.com.audio;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Caps the number of live engines (native MediaPlayer and MediaRecorder) of the MediaPlayerRecorder
+ * instances using it.
+ * <p/>
+ * Instances are kept in least recently used order. When an instance needs a new engine and the cap
+ * is reached, the least recently used instances that are idle (paused or prepared, not recording)
+ * release their player. An evicted instance keeps its state and position: its next play() prepares
+ * a new player and resumes where it was. When no instance can be evicted the cap is exceeded,
+ * an engine is never refused.
+ */
+public class EngineSessionManager {
+
+    public static final int DEFAULT_MAX_ENGINES = 6;
+
+    private static EngineSessionManager shared;
+
+    protected final int maxEngines;
+    private final LinkedHashMap<MediaPlayerRecorder, Boolean> live = new LinkedHashMap<MediaPlayerRecorder, Boolean>(16, 0.75f, true);
+    private int maxLive;
+    private long evictions;
+    private long restores;
+    private long overLimit;
+
+    /**
+     * @return The instance shared by the whole process
+     */
+    public static synchronized EngineSessionManager getShared() {
+        if (shared == null)
+            shared = new EngineSessionManager(DEFAULT_MAX_ENGINES);
+        return shared;
+    }
+
+    /**
+     * @param maxEngines Maximum number of live engines
+     */
+    public EngineSessionManager(int maxEngines) {
+        if (maxEngines < 1)
+            throw new IllegalArgumentException("Invalid maximum engines");
+        this.maxEngines = maxEngines;
+    }
+
+    /**
+     * Called by an instance about to create an engine. Evicts idle instances if needed.
+     */
+    public void acquire(MediaPlayerRecorder mpr) {
+        List<MediaPlayerRecorder> victims = null;
+        synchronized (this) {
+            live.put(mpr, Boolean.TRUE);
+            int excess = live.size() - maxEngines;
+            if (excess > 0) {
+                Iterator<MediaPlayerRecorder> it = live.keySet().iterator();
+                while (it.hasNext() && excess > 0) {
+                    MediaPlayerRecorder candidate = it.next();
+                    if (candidate != mpr && candidate.isEvictable()) {
+                        it.remove();
+                        if (victims == null)
+                            victims = new ArrayList<MediaPlayerRecorder>();
+                        victims.add(candidate);
+                        excess--;
+                    }
+                }
+                evictions += victims != null ? victims.size() : 0;
+                if (excess > 0)
+                    overLimit++;
+            }
+            if (live.size() > maxLive)
+                maxLive = live.size();
+        }
+        // Outside of the lock: victims with a command queue release their player on its thread,
+        // the others on this one
+        if (victims != null) {
+            for (MediaPlayerRecorder victim : victims)
+                victim.evict();
+        }
+    }
+
+    /**
+     * Called by an instance using its engine, so it becomes the most recently used.
+     */
+    public synchronized void touch(MediaPlayerRecorder mpr) {
+        live.get(mpr);
+    }
+
+    /**
+     * Called by an instance that has released its engines.
+     */
+    public synchronized void release(MediaPlayerRecorder mpr) {
+        live.remove(mpr);
+    }
+
+    /**
+     * Called by an evicted instance that resumes with a new player.
+     */
+    public synchronized void onRestored(MediaPlayerRecorder mpr) {
+        restores++;
+    }
+
+    public int getMaxEngines() {
+        return maxEngines;
+    }
+
+    /**
+     * @return Number of instances holding an engine
+     */
+    public synchronized int getLiveCount() {
+        return live.size();
+    }
+
+    /**
+     * @return Highest number of instances that held an engine at the same time
+     */
+    public synchronized int getMaxLiveCount() {
+        return maxLive;
+    }
+
+    /**
+     * @return Number of players released because of the cap
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of evicted instances that resumed playback
+     */
+    public synchronized long getRestores() {
+        return restores;
+    }
+
+    /**
+     * @return Number of times the cap has been exceeded because no instance was idle
+     */
+    public synchronized long getOverLimit() {
+        return overLimit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "live=" + live.size() + "/" + maxEngines + " maxLive=" + maxLive + " evictions=" + evictions
+                + " restores=" + restores + " overLimit=" + overLimit;
+    }
+}
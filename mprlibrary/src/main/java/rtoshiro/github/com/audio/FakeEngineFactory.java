@@ -0,0 +1,99 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * EngineFactory that creates FakePlayerEngine and FakeRecorderEngine instances sharing one VirtualClock.
+ */
+public class FakeEngineFactory implements EngineFactory {
+
+    protected final VirtualClock clock;
+    protected int playerDuration = 10000;
+    protected long prepareDelay = 50;
+    protected long seekDelay = 10;
+    protected long chainDelay;
+    protected double bufferingRate;
+    protected int recorderBytesPerSecond = 4000;
+    protected int createdPlayers;
+    protected int createdRecorders;
+
+    public FakeEngineFactory(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public PlayerEngine createPlayer() {
+        createdPlayers++;
+        FakePlayerEngine player = new FakePlayerEngine(clock, playerDuration, prepareDelay, seekDelay);
+        player.setBufferingRate(bufferingRate);
+        player.setChainDelay(chainDelay);
+        return player;
+    }
+
+    @Override
+    public RecorderEngine createRecorder() {
+        createdRecorders++;
+        return new FakeRecorderEngine(clock, recorderBytesPerSecond);
+    }
+
+    public double getBufferingRate() {
+        return bufferingRate;
+    }
+
+    /**
+     * @param bufferingRate Milliseconds of media http sources download per millisecond, 0 for instantly
+     */
+    public void setBufferingRate(double bufferingRate) {
+        this.bufferingRate = bufferingRate;
+    }
+
+    public int getPlayerDuration() {
+        return playerDuration;
+    }
+
+    public void setPlayerDuration(int playerDuration) {
+        this.playerDuration = playerDuration;
+    }
+
+    public long getPrepareDelay() {
+        return prepareDelay;
+    }
+
+    public void setPrepareDelay(long prepareDelay) {
+        this.prepareDelay = prepareDelay;
+    }
+
+    public long getSeekDelay() {
+        return seekDelay;
+    }
+
+    public void setSeekDelay(long seekDelay) {
+        this.seekDelay = seekDelay;
+    }
+
+    public long getChainDelay() {
+        return chainDelay;
+    }
+
+    public void setChainDelay(long chainDelay) {
+        this.chainDelay = chainDelay;
+    }
+
+    public int getRecorderBytesPerSecond() {
+        return recorderBytesPerSecond;
+    }
+
+    public void setRecorderBytesPerSecond(int recorderBytesPerSecond) {
+        this.recorderBytesPerSecond = recorderBytesPerSecond;
+    }
+
+    public int getCreatedPlayers() {
+        return createdPlayers;
+    }
+
+    public int getCreatedRecorders() {
+        return createdRecorders;
+    }
+}
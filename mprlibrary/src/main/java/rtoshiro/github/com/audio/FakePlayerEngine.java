@@ -0,0 +1,341 @@
+package rtoshiro.github.com.audio;
+
+import android.media.MediaPlayer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * PlayerEngine simulated on top of a VirtualClock.
+ * <p/>
+ * It needs no device: preparing, seeking and reaching the end of the source are events scheduled
+ * on the clock, so playback sessions can be driven (and measured) on a plain JVM.
+ * Data sources containing "error" fail when prepared.
+ */
+public class FakePlayerEngine implements PlayerEngine {
+
+    protected static final int IDLE = 0;
+    protected static final int INITIALIZED = 1;
+    protected static final int PREPARING = 2;
+    protected static final int PREPARED = 3;
+    protected static final int STARTED = 4;
+    protected static final int PAUSED = 5;
+    protected static final int COMPLETED = 6;
+    protected static final int RELEASED = 7;
+
+    protected final VirtualClock clock;
+    protected final int duration;
+    protected final long prepareDelay;
+    protected final long seekDelay;
+    protected double bufferingRate;
+    protected long chainDelay;
+    protected long downloadStartedAt;
+
+    protected volatile Listener listener;
+    protected String dataSource;
+    protected boolean looping;
+    protected int state;
+    protected int position;
+    protected long startedAt;
+    protected FakePlayerEngine next;
+
+    protected final Runnable prepared = new Runnable() {
+        @Override
+        public void run() {
+            if (state != PREPARING)
+                return;
+            Listener l = listener;
+            if (dataSource.contains("error")) {
+                state = IDLE;
+                if (l != null && !l.onError(FakePlayerEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO))
+                    l.onCompletion(FakePlayerEngine.this);
+                return;
+            }
+            state = PREPARED;
+            if (l != null) {
+                l.onPrepared(FakePlayerEngine.this);
+                if (dataSource.startsWith("http")) {
+                    if (bufferingRate > 0)
+                        buffering.run();
+                    else
+                        l.onBufferingUpdate(FakePlayerEngine.this, 100);
+                }
+            }
+        }
+    };
+
+    /**
+     * Reports the download progress every second, until complete
+     */
+    protected final Runnable buffering = new Runnable() {
+        @Override
+        public void run() {
+            Listener l = listener;
+            if (state == RELEASED || state == IDLE || l == null)
+                return;
+            int percent = getBufferingPercent();
+            l.onBufferingUpdate(FakePlayerEngine.this, percent);
+            if (percent < 100)
+                clock.schedule(this, 1000);
+        }
+    };
+
+    protected final Runnable completed = new Runnable() {
+        @Override
+        public void run() {
+            if (state != STARTED)
+                return;
+            position = duration;
+            state = COMPLETED;
+            FakePlayerEngine chained = next;
+            next = null;
+            if (chained != null && chained.isPrepared())
+                chained.start(chainDelay);
+            Listener l = listener;
+            if (l != null)
+                l.onCompletion(FakePlayerEngine.this);
+        }
+    };
+
+    protected final Runnable seekCompleted = new Runnable() {
+        @Override
+        public void run() {
+            Listener l = listener;
+            if (state != RELEASED && l != null)
+                l.onSeekComplete(FakePlayerEngine.this);
+        }
+    };
+
+    protected final Runnable bufferingEnded = new Runnable() {
+        @Override
+        public void run() {
+            Listener l = listener;
+            if (state != RELEASED && l != null)
+                l.onInfo(FakePlayerEngine.this, MediaPlayer.MEDIA_INFO_BUFFERING_END, 0);
+        }
+    };
+
+    /**
+     * @param clock        Clock that drives the engine
+     * @param duration     Duration of every data source in milliseconds, or -1 for a live stream, which never completes
+     * @param prepareDelay Time prepareAsync takes to complete in milliseconds
+     * @param seekDelay    Time seekTo takes to complete in milliseconds
+     */
+    public FakePlayerEngine(VirtualClock clock, int duration, long prepareDelay, long seekDelay) {
+        this.clock = clock;
+        this.duration = duration;
+        this.prepareDelay = prepareDelay;
+        this.seekDelay = seekDelay;
+        this.state = IDLE;
+    }
+
+    protected void checkNotReleased() {
+        if (state == RELEASED)
+            throw new IllegalStateException("Engine has been released");
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        checkNotReleased();
+        if (state != IDLE)
+            throw new IllegalStateException("Data source already set");
+        if (path == null)
+            throw new IOException("Invalid data source");
+        this.dataSource = path;
+        this.state = INITIALIZED;
+    }
+
+    /**
+     * The source is named "fd:offset+length".
+     */
+    @Override
+    public void setDataSource(FileDescriptor fd, long offset, long length) throws IOException {
+        if (fd == null || !fd.valid() || offset < 0 || length <= 0)
+            throw new IOException("Invalid data source");
+        setDataSource("fd:" + offset + "+" + length);
+    }
+
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * @param bufferingRate Milliseconds of media http sources download per millisecond, 0 for instantly
+     */
+    public void setBufferingRate(double bufferingRate) {
+        this.bufferingRate = bufferingRate;
+    }
+
+    /**
+     * @return Percentage of the source downloaded since prepareAsync, at the buffering rate
+     */
+    public int getBufferingPercent() {
+        if (bufferingRate <= 0)
+            return 100;
+        if (duration < 0)
+            return 0;
+        long buffered = (long) ((clock.now() - downloadStartedAt) * bufferingRate);
+        return (int) Math.min(100, buffered * 100 / duration);
+    }
+
+    @Override
+    public void prepareAsync() {
+        if (state != INITIALIZED)
+            throw new IllegalStateException("prepareAsync called in state " + state);
+        state = PREPARING;
+        downloadStartedAt = clock.now();
+        clock.schedule(prepared, prepareDelay);
+    }
+
+    /**
+     * @param chainDelay Time in milliseconds the engine chained with setNextEngine takes to output audio
+     *                   after the completion of this one
+     */
+    public void setChainDelay(long chainDelay) {
+        this.chainDelay = chainDelay;
+    }
+
+    /**
+     * Starts, with the position held for delay milliseconds (the output is not running yet).
+     */
+    protected void start(long delay) {
+        start();
+        if (delay > 0) {
+            startedAt += delay;
+            clock.cancel(completed);
+            if (!looping && duration >= 0)
+                clock.schedule(completed, delay + duration - position);
+        }
+    }
+
+    @Override
+    public void start() {
+        checkNotReleased();
+        if (state == STARTED)
+            return;
+        if (state != PREPARED && state != PAUSED && state != COMPLETED)
+            throw new IllegalStateException("start called in state " + state);
+        if (state == COMPLETED)
+            position = 0;
+        state = STARTED;
+        startedAt = clock.now();
+        scheduleCompletion();
+    }
+
+    protected void scheduleCompletion() {
+        clock.cancel(completed);
+        if (!looping && duration >= 0)
+            clock.schedule(completed, duration - position);
+    }
+
+    @Override
+    public void pause() {
+        checkNotReleased();
+        if (state != STARTED)
+            return;
+        position = getCurrentPosition();
+        state = PAUSED;
+        clock.cancel(completed);
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        checkNotReleased();
+        if (state != PREPARED && state != STARTED && state != PAUSED && state != COMPLETED)
+            throw new IllegalStateException("seekTo called in state " + state);
+        position = Math.max(0, Math.min(duration, msec));
+        if (state == STARTED) {
+            startedAt = clock.now();
+            scheduleCompletion();
+        }
+        clock.schedule(seekCompleted, seekDelay);
+    }
+
+    /**
+     * Simulates a buffering stall: the position stops advancing for the given time,
+     * between MEDIA_INFO_BUFFERING_START and MEDIA_INFO_BUFFERING_END.
+     */
+    public void stall(long duration) {
+        if (state != STARTED)
+            return;
+        position = getCurrentPosition();
+        startedAt = clock.now() + duration;
+        clock.cancel(completed);
+        if (!looping && this.duration >= 0)
+            clock.schedule(completed, duration + this.duration - position);
+        clock.schedule(bufferingEnded, duration);
+        Listener l = listener;
+        if (l != null)
+            l.onInfo(this, MediaPlayer.MEDIA_INFO_BUFFERING_START, 0);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        if (state != STARTED)
+            return position;
+        long elapsed = position + Math.max(0, clock.now() - startedAt);
+        if (duration < 0)
+            return (int) elapsed;
+        if (looping)
+            return (int) (elapsed % duration);
+        return (int) Math.min(duration, elapsed);
+    }
+
+    @Override
+    public int getDuration() {
+        return (state == IDLE || state == INITIALIZED || state == PREPARING) ? -1 : duration;
+    }
+
+    @Override
+    public boolean setNextEngine(PlayerEngine next) {
+        if (next != null && !(next instanceof FakePlayerEngine))
+            return false;
+        this.next = (FakePlayerEngine) next;
+        return true;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return state == PREPARED || state == STARTED || state == PAUSED || state == COMPLETED;
+    }
+
+    @Override
+    public boolean isPreparing() {
+        return state == PREPARING;
+    }
+
+    @Override
+    public void reset() {
+        checkNotReleased();
+        clock.cancel(prepared);
+        clock.cancel(completed);
+        clock.cancel(seekCompleted);
+        clock.cancel(bufferingEnded);
+        clock.cancel(buffering);
+        state = IDLE;
+        position = 0;
+        looping = false;
+        next = null;
+        dataSource = null;
+    }
+
+    @Override
+    public void release() {
+        state = RELEASED;
+        clock.cancel(prepared);
+        clock.cancel(completed);
+        clock.cancel(seekCompleted);
+        clock.cancel(bufferingEnded);
+        clock.cancel(buffering);
+    }
+}
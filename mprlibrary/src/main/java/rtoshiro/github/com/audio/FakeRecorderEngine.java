@@ -0,0 +1,111 @@
+package rtoshiro.github.com.audio;
+
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+
+/**
+ * RecorderEngine simulated on top of a VirtualClock.
+ * <p/>
+ * It writes nothing; max duration and max file size (computed from a constant byte rate) are
+ * reported through onInfo when the virtual time reaches them.
+ */
+public class FakeRecorderEngine implements RecorderEngine {
+
+    protected final VirtualClock clock;
+    protected final int bytesPerSecond;
+
+    protected volatile Listener listener;
+    protected String outputFile;
+    protected int maxDuration;
+    protected long maxFileSize;
+    protected boolean prepared;
+    protected boolean started;
+    protected long startedAt;
+
+    protected final Runnable maxDurationReached = new Runnable() {
+        @Override
+        public void run() {
+            Listener l = listener;
+            if (started && l != null)
+                l.onInfo(FakeRecorderEngine.this, MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED, 0);
+        }
+    };
+
+    protected final Runnable maxFileSizeReached = new Runnable() {
+        @Override
+        public void run() {
+            Listener l = listener;
+            if (started && l != null)
+                l.onInfo(FakeRecorderEngine.this, MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED, 0);
+        }
+    };
+
+    /**
+     * @param clock          Clock that drives the engine
+     * @param bytesPerSecond Simulated encoded byte rate, used for max file size
+     */
+    public FakeRecorderEngine(VirtualClock clock, int bytesPerSecond) {
+        this.clock = clock;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setOutputFile(String path) {
+        this.outputFile = path;
+    }
+
+    @Override
+    public void setMaxDuration(int maxDuration) {
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        if (outputFile == null || outputFile.contains("error"))
+            throw new IOException("Invalid output file: " + outputFile);
+        prepared = true;
+    }
+
+    @Override
+    public void start() {
+        if (!prepared)
+            throw new IllegalStateException("start called before prepare");
+        started = true;
+        startedAt = clock.now();
+        if (maxDuration > 0)
+            clock.schedule(maxDurationReached, maxDuration);
+        if (maxFileSize > 0 && bytesPerSecond > 0)
+            clock.schedule(maxFileSizeReached, maxFileSize * 1000L / bytesPerSecond);
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        clock.cancel(maxDurationReached);
+        clock.cancel(maxFileSizeReached);
+    }
+
+    @Override
+    public void release() {
+        stop();
+        prepared = false;
+    }
+
+    /**
+     * @return Simulated number of bytes written since start
+     */
+    public long getBytesWritten() {
+        return started ? (clock.now() - startedAt) * bytesPerSecond / 1000L : 0;
+    }
+}
@@ -0,0 +1,39 @@
+package rtoshiro.github.com.audio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Scheduler running on the thread of a Looper, timed by SystemClock.elapsedRealtime (monotonic).
+ */
+public class HandlerScheduler implements Scheduler {
+
+    protected final Handler handler;
+
+    /**
+     * Scheduler on the main thread.
+     */
+    public HandlerScheduler() {
+        this(Looper.getMainLooper());
+    }
+
+    public HandlerScheduler(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void schedule(Runnable runnable, long delay) {
+        handler.postDelayed(runnable, Math.max(0, delay));
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        handler.removeCallbacks(runnable);
+    }
+}
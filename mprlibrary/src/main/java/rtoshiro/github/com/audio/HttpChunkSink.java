@@ -0,0 +1,125 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * ChunkSink uploading to a URL with resumable PUT requests.
+ * <p/>
+ * Each chunk is a PUT with "Content-Range: bytes first-last/*" and an "X-Content-CRC32" header,
+ * answered with 308 (Resume Incomplete) or 2xx. The upload is resumed with an empty PUT whose
+ * Content-Range has neither range nor length: the 308 answer holds the bytes received in a
+ * "Range: bytes=0-last" header. It is completed with an empty PUT whose Content-Range only has the length.
+ */
+public class HttpChunkSink implements ChunkSink {
+
+    public static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    protected final URL url;
+    protected final int connectTimeout;
+    protected final int readTimeout;
+
+    public HttpChunkSink(URL url) {
+        this(url, 15000, 30000);
+    }
+
+    /**
+     * @param url            Upload URL
+     * @param connectTimeout Timeout in milliseconds to connect to the server
+     * @param readTimeout    Timeout in milliseconds to read the answers of the server
+     */
+    public HttpChunkSink(URL url, int connectTimeout, int readTimeout) {
+        this.url = url;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    @Override
+    public long open() throws IOException {
+        HttpURLConnection connection = put("bytes */*", null, 0, -1);
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND)
+                return 0;
+            check(connection, status);
+            String range = connection.getHeaderField("Range");
+            if (range == null || !range.startsWith("bytes=0-"))
+                return 0;
+            return Long.parseLong(range.substring("bytes=0-".length()).trim()) + 1;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Range " + connection.getHeaderField("Range"));
+        } finally {
+            close(connection);
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] data, int length, long crc) throws IOException {
+        HttpURLConnection connection = put("bytes " + offset + "-" + (offset + length - 1) + "/*", data, length, crc);
+        try {
+            check(connection, connection.getResponseCode());
+        } finally {
+            close(connection);
+        }
+    }
+
+    @Override
+    public void finish(long length) throws IOException {
+        HttpURLConnection connection = put("bytes */" + length, null, 0, -1);
+        try {
+            int status = connection.getResponseCode();
+            if (status / 100 != 2)
+                throw new IOException("Upload not completed: HTTP " + status);
+        } finally {
+            close(connection);
+        }
+    }
+
+    protected HttpURLConnection put(String contentRange, byte[] data, int length, long crc) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        connection.setRequestProperty("Content-Range", contentRange);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        if (crc >= 0)
+            connection.setRequestProperty("X-Content-CRC32", Long.toHexString(crc));
+        OutputStream out = connection.getOutputStream();
+        try {
+            if (length > 0)
+                out.write(data, 0, length);
+        } finally {
+            out.close();
+        }
+        return connection;
+    }
+
+    private static void check(HttpURLConnection connection, int status) throws IOException {
+        if (status != STATUS_RESUME_INCOMPLETE && status / 100 != 2)
+            throw new IOException("Upload failed: HTTP " + status + " " + connection.getResponseMessage());
+    }
+
+    private static void close(HttpURLConnection connection) {
+        try {
+            InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[512];
+                while (in.read(buffer) >= 0) {
+                    // drains the body so the connection can be reused
+                }
+                in.close();
+            }
+        } catch (IOException ignored) {
+            connection.disconnect();
+        }
+    }
+}
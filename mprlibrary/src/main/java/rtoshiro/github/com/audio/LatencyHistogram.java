@@ -0,0 +1,227 @@
+package rtoshiro.github.com.audio;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values (latencies in milliseconds) with log-linear buckets.
+ * <p/>
+ * Values below 16 have their own bucket; above, each power of 2 is split in 8 buckets, so a bucket
+ * is at most 12.5% wide. Recording is lock-free and allocates nothing; it can be called from any thread.
+ */
+public class LatencyHistogram {
+
+    static final int LINEAR = 16;
+    static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    protected final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    static long width(int bucket) {
+        if (bucket < LINEAR)
+            return 1;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        return 1L << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // retry
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return Smallest value recorded, or 0 if empty
+     */
+    public long getMin() {
+        return count.get() > 0 ? min.get() : 0;
+    }
+
+    /**
+     * @return Largest value recorded, or 0 if empty
+     */
+    public long getMax() {
+        return count.get() > 0 ? max.get() : 0;
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n > 0 ? (double) sum.get() / n : 0;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return The middle of the bucket holding the percentile (clamped to min and max), or 0 if empty.
+     * The 100th percentile is the exact max.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        if (percentile >= 100)
+            return getMax();
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long value = lowerBound(i) + width(i) / 2;
+                return Math.max(getMin(), Math.min(getMax(), value));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        long n = other.getCount();
+        if (n == 0)
+            return;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(n);
+        sum.addAndGet(other.getSum());
+        long value = other.getMin();
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // retry
+        }
+        value = other.getMax();
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Appends one line: name count min p50 p90 p99 max mean.
+     */
+    public void writeText(StringBuilder out) {
+        out.append(name)
+                .append(" count=").append(getCount())
+                .append(" min=").append(getMin())
+                .append(" p50=").append(getPercentile(50))
+                .append(" p90=").append(getPercentile(90))
+                .append(" p99=").append(getPercentile(99))
+                .append(" max=").append(getMax())
+                .append(" mean=").append(Math.round(getMean()))
+                .append('\n');
+    }
+
+    /**
+     * Writes the name, totals and the non-empty buckets (index and count).
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        out.writeUTF(name);
+        long n = getCount();
+        out.writeLong(n);
+        out.writeLong(getSum());
+        out.writeLong(getMin());
+        out.writeLong(getMax());
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0)
+                used++;
+        }
+        out.writeShort(used);
+        for (int i = 0; i < BUCKETS && used > 0; i++) {
+            long c = counts.get(i);
+            if (c != 0) {
+                out.writeShort(i);
+                out.writeLong(c);
+                used--;
+            }
+        }
+    }
+
+    /**
+     * Reads a histogram written by writeBinary.
+     */
+    public static LatencyHistogram readBinary(DataInput in) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram(in.readUTF());
+        histogram.count.set(in.readLong());
+        histogram.sum.set(in.readLong());
+        long min = in.readLong();
+        long max = in.readLong();
+        if (histogram.count.get() > 0) {
+            histogram.min.set(min);
+            histogram.max.set(max);
+        }
+        int used = in.readUnsignedShort();
+        for (int i = 0; i < used; i++) {
+            int bucket = in.readUnsignedShort();
+            if (bucket >= BUCKETS)
+                throw new IOException("Invalid bucket " + bucket);
+            histogram.counts.set(bucket, in.readLong());
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,48 @@
+package rtoshiro.github.com.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PcmConsumer that measures the peak and RMS level of the last chunk.
+ * Levels are in the 0..1 range of full scale.
+ */
+public class LevelMeter implements PcmConsumer {
+
+    protected volatile float peak;
+    protected volatile float rms;
+
+    public float getPeak() {
+        return peak;
+    }
+
+    public float getRms() {
+        return rms;
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) {
+        peak = 0;
+        rms = 0;
+    }
+
+    @Override
+    public void onPcm(ByteBuffer buffer, long frameIndex) {
+        final int limit = buffer.limit();
+        int max = 0;
+        double sum = 0;
+        for (int i = 0; i < limit; i += 2) {
+            int sample = buffer.getShort(i);
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > max)
+                max = abs;
+            sum += (double) sample * sample;
+        }
+        int samples = limit / 2;
+        peak = max / 32768f;
+        rms = samples > 0 ? (float) (Math.sqrt(sum / samples) / 32768.0) : 0f;
+    }
+
+    @Override
+    public void onStop() {
+    }
+}
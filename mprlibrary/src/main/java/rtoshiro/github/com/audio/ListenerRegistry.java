@@ -0,0 +1,220 @@
+package rtoshiro.github.com.audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscribers of one kind of listener.
+ * <p/>
+ * Subscribers are kept in a copy-on-write array: registering copies it, dispatching only reads it,
+ * without locks or allocation for inline subscribers. A subscriber with an Executor is called on it,
+ * so a slow listener does not stall the thread dispatching the event (typically the engine's).
+ * <p/>
+ * The dispatch latency of each subscriber (from dispatch to the end of its call, so the queueing time
+ * of the Executor included) is measured to find slow consumers.
+ */
+public class ListenerRegistry<L> {
+
+    /**
+     * Calls one listener method with the arguments of an event.
+     * Notifiers are created once, so dispatching allocates nothing.
+     */
+    public interface Notifier<L> {
+        /**
+         * @return True if the listener handled the event (for listeners that return a result)
+         */
+        boolean notify(L listener, int arg1, int arg2, long value);
+    }
+
+    public static class Subscriber<L> {
+        final L listener;
+        final Executor executor;
+        final AtomicLong dispatches = new AtomicLong();
+        final AtomicLong totalLatency = new AtomicLong();
+        final AtomicLong maxLatency = new AtomicLong();
+
+        Subscriber(L listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        public L getListener() {
+            return listener;
+        }
+
+        /**
+         * @return Executor the listener is called on, or null if it is called inline
+         */
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        public long getDispatches() {
+            return dispatches.get();
+        }
+
+        public long getMaxLatencyNanos() {
+            return maxLatency.get();
+        }
+
+        public long getAverageLatencyNanos() {
+            long count = dispatches.get();
+            return count > 0 ? totalLatency.get() / count : 0;
+        }
+
+        void record(long latency) {
+            dispatches.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            long max;
+            while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) {
+                // retry
+            }
+        }
+    }
+
+    private static final class Dispatch<L> implements Runnable {
+        final Subscriber<L> subscriber;
+        final Notifier<L> notifier;
+        final int arg1;
+        final int arg2;
+        final long value;
+        final long dispatchTime;
+
+        Dispatch(Subscriber<L> subscriber, Notifier<L> notifier, int arg1, int arg2, long value, long dispatchTime) {
+            this.subscriber = subscriber;
+            this.notifier = notifier;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.value = value;
+            this.dispatchTime = dispatchTime;
+        }
+
+        @Override
+        public void run() {
+            try {
+                notifier.notify(subscriber.listener, arg1, arg2, value);
+            } finally {
+                subscriber.record(System.nanoTime() - dispatchTime);
+            }
+        }
+    }
+
+    private volatile Subscriber<L>[] subscribers = newArray(0);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <L> Subscriber<L>[] newArray(int length) {
+        return new Subscriber[length];
+    }
+
+    /**
+     * Adds a listener called inline, on the thread of the event.
+     *
+     * @return False if it was already registered
+     */
+    public boolean add(L listener) {
+        return add(listener, null);
+    }
+
+    /**
+     * Adds a listener.
+     *
+     * @param executor Executor the listener is called on, or null to call it inline.
+     *                 Listeners called on an executor can not handle events (their result is ignored).
+     * @return False if it was already registered
+     */
+    public synchronized boolean add(L listener, Executor executor) {
+        if (listener == null)
+            throw new NullPointerException("listener");
+        if (indexOf(listener) >= 0)
+            return false;
+        Subscriber<L>[] current = subscribers;
+        Subscriber<L>[] updated = newArray(current.length + 1);
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = new Subscriber<L>(listener, executor);
+        subscribers = updated;
+        return true;
+    }
+
+    /**
+     * @return False if it was not registered
+     */
+    public synchronized boolean remove(L listener) {
+        int index = indexOf(listener);
+        if (index < 0)
+            return false;
+        Subscriber<L>[] current = subscribers;
+        Subscriber<L>[] updated = newArray(current.length - 1);
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        subscribers = updated;
+        return true;
+    }
+
+    public synchronized void clear() {
+        subscribers = newArray(0);
+    }
+
+    public boolean contains(L listener) {
+        return indexOf(listener) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return subscribers.length == 0;
+    }
+
+    public int size() {
+        return subscribers.length;
+    }
+
+    private int indexOf(L listener) {
+        Subscriber<L>[] current = subscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener == listener)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Notifies every subscriber, in registration order.
+     *
+     * @return True if an inline subscriber handled the event
+     */
+    public boolean dispatch(Notifier<L> notifier, int arg1, int arg2, long value) {
+        Subscriber<L>[] current = subscribers;
+        boolean handled = false;
+        for (Subscriber<L> subscriber : current) {
+            long start = System.nanoTime();
+            if (subscriber.executor == null) {
+                try {
+                    handled |= notifier.notify(subscriber.listener, arg1, arg2, value);
+                } finally {
+                    subscriber.record(System.nanoTime() - start);
+                }
+            } else {
+                subscriber.executor.execute(new Dispatch<L>(subscriber, notifier, arg1, arg2, value, start));
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * @return A snapshot of the subscribers, with their latency metrics
+     */
+    public List<Subscriber<L>> getSubscribers() {
+        return new ArrayList<Subscriber<L>>(Arrays.asList(subscribers));
+    }
+
+    /**
+     * @return The highest dispatch latency of the current subscribers, in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        long max = 0;
+        for (Subscriber<L> subscriber : subscribers)
+            max = Math.max(max, subscriber.maxLatency.get());
+        return max;
+    }
+}
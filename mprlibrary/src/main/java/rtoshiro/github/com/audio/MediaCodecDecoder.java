@@ -0,0 +1,180 @@
+package rtoshiro.github.com.audio;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * AudioDecoder of any format supported by the platform, with MediaExtractor and MediaCodec (API 16).
+ * Decodes the first audio track. open() decodes up to the first output, so the sample rate and the channels
+ * are the ones of the PCM even when they differ from the container (HE-AAC, parametric stereo).
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MediaCodecDecoder implements AudioDecoder {
+
+    private static final long TIMEOUT_US = 10000;
+
+    protected MediaExtractor extractor;
+    protected MediaCodec codec;
+    protected ByteBuffer[] inputBuffers;
+    protected ByteBuffer[] outputBuffers;
+    protected final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    protected int sampleRate;
+    protected int channels;
+    protected boolean inputDone;
+    protected boolean outputDone;
+
+    /**
+     * Output buffer partially copied by the previous read, or -1
+     */
+    protected int pending = -1;
+    protected int pendingOffset;
+
+    @Override
+    public void open(String path) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            throw new IOException("Decoding requires API 16");
+        release();
+        extractor = new MediaExtractor();
+        extractor.setDataSource(path);
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat track = extractor.getTrackFormat(i);
+            String mime = track.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = track;
+                break;
+            }
+        }
+        if (format == null) {
+            release();
+            throw new IOException(path + " has no audio track");
+        }
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        codec.configure(format, null, null, 0);
+        codec.start();
+        inputBuffers = codec.getInputBuffers();
+        outputBuffers = codec.getOutputBuffers();
+        inputDone = false;
+        outputDone = false;
+        pending = -1;
+        while (pending < 0 && !outputDone)
+            dequeue();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        while (pending < 0) {
+            if (outputDone)
+                return -1;
+            dequeue();
+        }
+
+        // Copies as much as fits, keeping the rest of the output buffer for the next read
+        ByteBuffer output = outputBuffers[pending];
+        int frameSize = channels * 2;
+        int length = Math.min(info.size - pendingOffset, buffer.capacity() - buffer.capacity() % frameSize);
+        buffer.clear();
+        // Decoded PCM is in native order, whatever the order of the output buffer
+        if (buffer.order() == ByteOrder.nativeOrder()) {
+            ByteBuffer source = output.duplicate();
+            source.limit(info.offset + pendingOffset + length);
+            source.position(info.offset + pendingOffset);
+            buffer.put(source);
+        } else {
+            ByteBuffer source = output.duplicate().order(ByteOrder.nativeOrder());
+            for (int i = 0; i < length; i += 2)
+                buffer.putShort(i, source.getShort(info.offset + pendingOffset + i));
+        }
+        buffer.position(0);
+        buffer.limit(length);
+        pendingOffset += length;
+        if (pendingOffset >= info.size) {
+            codec.releaseOutputBuffer(pending, false);
+            pending = -1;
+        }
+        return length;
+    }
+
+    /**
+     * Feeds the codec and takes its next output: a buffer of PCM, kept as pending, or a change of format.
+     */
+    protected void dequeue() {
+        feed();
+        int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            outputBuffers = codec.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = codec.getOutputFormat();
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        } else if (index >= 0) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                outputDone = true;
+            if (info.size > 0) {
+                pending = index;
+                pendingOffset = 0;
+            } else {
+                codec.releaseOutputBuffer(index, false);
+            }
+        }
+    }
+
+    /**
+     * Queues the next compressed sample, if the codec has a free input buffer.
+     */
+    protected void feed() {
+        if (inputDone)
+            return;
+        int index = codec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0)
+            return;
+        int size = extractor.readSampleData(inputBuffers[index], 0);
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            codec.release();
+            codec = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+        inputBuffers = null;
+        outputBuffers = null;
+        pending = -1;
+    }
+}
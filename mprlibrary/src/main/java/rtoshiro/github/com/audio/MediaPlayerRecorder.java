@@ -1,20 +1,24 @@
 package rtoshiro.github.com.audio;
 
-import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
-import android.os.Build;
-import android.os.Handler;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Created by Tox on 12/10/15.
  * <p/>
  * Library that handles playing and recording audio files.
  * Play local and remote files and record local files.
+ * <p/>
+ * Playing and recording go through PlayerEngine and RecorderEngine, created by an EngineFactory.
+ * By default, AndroidEngineFactory is used.
  */
-public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnSeekCompleteListener, MediaRecorder.OnErrorListener, MediaRecorder.OnInfoListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnBufferingUpdateListener {
+public class MediaPlayerRecorder implements PlayerEngine.Listener, RecorderEngine.Listener {
 
     public interface OnTimeUpdateListener {
         /**
@@ -95,6 +99,32 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
         boolean onError(MediaPlayerRecorder mpr, int what, int extra);
     }
 
+    public interface OnStateChangeListener {
+        /**
+         * Called after every state transition. Useful for tracing.
+         * It is called on the thread that caused the transition.
+         *
+         * @param mpr   MediaPlayerRecorder that changed its state
+         * @param event StateMachine.EVENT_* that caused the transition
+         * @param from  Previous state
+         * @param to    New state
+         */
+        void onStateChange(MediaPlayerRecorder mpr, int event, int from, int to);
+    }
+
+    public interface OnVoiceActivityListener {
+        /**
+         * Called when the voice activity detector of the recorder detects the start of speech or silence
+         * (see PcmEngineFactory.setVoiceActivityDetection).
+         * It is called on the thread of the detector.
+         *
+         * @param mpr      MediaPlayerRecorder recording
+         * @param voice    True at the start of speech, false at the start of silence
+         * @param position Time of the start in the recording, in milliseconds, silence included
+         */
+        void onVoiceActivity(MediaPlayerRecorder mpr, boolean voice, long position);
+    }
+
     /**
      * Initial state before calling prepareTo or when recording is paused
      * As recorder doesn't have PAUSED stated, it sets state to NONE
@@ -151,105 +181,526 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
      */
     public static final int PREPARINGTORECORDANDRECORDING = 9;
 
-    protected MediaPlayer player;
-    protected MediaRecorder recorder;
-
-    protected int currentState;
-    protected int lastState;
+    /**
+     * OnErrorListener extra of a queued command not allowed in the state it ran in (as MediaPlayer's INVALID_OPERATION)
+     */
+    public static final int ERROR_INVALID_OPERATION = -38;
+
+    protected final EngineFactory engineFactory;
+    protected PlayerEngine player;
+    protected PlayerPool playerPool;
+    protected CachingProxy cachingProxy;
+    protected PeakCache peakCache;
+    protected ProbeCache probeCache = ProbeCache.getShared();
+    protected volatile MediaPlayerRecorder next;
+    // Instance this one is chained to, as its next
+    protected volatile MediaPlayerRecorder previous;
+    protected RecorderEngine recorder;
+    protected Scheduler recorderWorker;
+    protected RecorderPreparation recorderPreparation;
+    protected RecorderPreparation warmRecorder;
+
+    protected final StateMachine stateMachine;
+    protected volatile int lastState;
     protected String dataSource;
+    protected AudioBundle.Entry bundleEntry;
     protected boolean looping;
     protected int maxDuration;
     protected long maxFileSize;
-    protected long startRecordTime;
-    protected Handler handler;
+    protected boolean pausableRecording;
+    protected boolean durableRecording;
+    protected final List<String> segments = new ArrayList<String>();
+    protected RecordingJournal journal;
 
     /**
-     * Runnable responsable to keep tracking on player or recorder updates
+     * Start of the current record run (monotonic time of the tick scheduler), or -1 when not recording
      */
-    protected Runnable runnableTimeUpdate = new Runnable() {
-        public void run() {
-            if (onTimeUpdateListener != null) {
-                if (currentState == PLAYING) {
-                    onTimeUpdateListener.onTimeUpdate(MediaPlayerRecorder.this, player.getCurrentPosition());
-                } else if (currentState == RECORDING) {
-                    long millis = System.currentTimeMillis() - startRecordTime;
-                    onTimeUpdateListener.onTimeUpdate(MediaPlayerRecorder.this, millis);
+    protected long startRecordTime = -1;
+
+    /**
+     * Time recorded by the previous runs into the same file (pausable recording)
+     */
+    protected long recordedTime;
+
+    protected ChunkSink uploadSink;
+    protected StreamingUploader uploader;
+    protected StreamingUploader.Listener onUploadListener;
+    protected EngineSessionManager sessionManager;
+    /**
+     * Position to resume from after the player has been evicted, or -1
+     */
+    protected int restorePosition = -1;
+    protected int restoreDuration = -1;
+    protected boolean restoring;
+
+    protected CommandQueue commandQueue;
+    protected boolean seeking;
+    /**
+     * Sequence numbers of the queued seeks in flight, in the order the player completes them
+     */
+    private final LinkedList<Long> seekSequences = new LinkedList<Long>();
+
+    /**
+     * Runs the commands queued by the public methods, on the command worker
+     */
+    protected final CommandQueue.Target commandTarget = new CommandQueue.Target() {
+        @Override
+        public boolean execute(int command, int arg, Object value) {
+            switch (command) {
+                case CommandQueue.PREPARE_TO_PLAY:
+                    doPrepareToPlay();
+                    break;
+                case CommandQueue.PREPARE_TO_RECORD:
+                    doPrepareToRecord();
+                    break;
+                case CommandQueue.PLAY:
+                    doPlay();
+                    break;
+                case CommandQueue.RECORD:
+                    doRecord();
+                    break;
+                case CommandQueue.PAUSE:
+                    doPause();
+                    break;
+                case CommandQueue.SEEK: {
+                    // Tagged before seeking: the player may complete the seek on another thread
+                    Long sequence = commandQueue.getSequence();
+                    synchronized (seekSequences) {
+                        seekSequences.add(sequence);
+                    }
+                    if (doSeekTo(arg))
+                        return true;
+                    synchronized (seekSequences) {
+                        seekSequences.remove(sequence);
+                    }
+                    return false;
                 }
+                case CommandQueue.RELEASE:
+                    doRelease();
+                    break;
+                case CommandQueue.SET_DATA_SOURCE:
+                    if (value instanceof AudioBundle.Entry)
+                        doSetBundleEntry((AudioBundle.Entry) value);
+                    else
+                        doSetDataSource((String) value);
+                    break;
+                case CommandQueue.FINISH_RECORDING:
+                    doFinishRecording();
+                    break;
+                case CommandQueue.EVICT:
+                    doEvict();
+                    break;
+                case CommandQueue.RECORDER_PREPARED:
+                    onRecorderPreparation((RecorderPreparation) value);
+                    break;
+                case CommandQueue.PREWARM_RECORDER:
+                    doPrewarmRecorder();
+                    break;
+                case CommandQueue.START_HELD:
+                    if (isHeldStartAllowed())
+                        onPrepared(player);
+                    break;
+            }
+            return false;
+        }
+
+        @Override
+        public void onFailure(int command, RuntimeException e) {
+            // No caller to throw to: invalid operations are reported as MediaPlayer reports them
+            e.printStackTrace();
+            int extra = e instanceof IllegalStateException ? ERROR_INVALID_OPERATION : 0;
+            errorListeners.dispatch(errorNotifier, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra, 0);
+        }
+
+        @Override
+        public boolean canReplace(int queued, int next) {
+            // Only while the pair affects playback alone: a pause while recording stops the recorder,
+            // a play without a player prepares one
+            int state = stateMachine.get();
+            return (state == PLAYING || state == PAUSED) && player != null;
+        }
+    };
+
+    protected TickScheduler tickScheduler;
+    protected long timeUpdateInterval = 1000;
+
+    /**
+     * Tick listener responsable to keep tracking on player or recorder updates
+     */
+    protected final TickScheduler.OnTickListener tickListener = new TickScheduler.OnTickListener() {
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            if (timeUpdateListeners.isEmpty())
+                return;
+            int state = stateMachine.get();
+            if (state == PLAYING) {
+                PlayerEngine engine = player;
+                if (engine != null)
+                    timeUpdateListeners.dispatch(timeUpdateNotifier, 0, 0, engine.getCurrentPosition());
+            } else if (state == RECORDING) {
+                timeUpdateListeners.dispatch(timeUpdateNotifier, 0, 0, getRecordingTime());
+            }
+        }
+    };
+
+    /**
+     * Interval of the probe of the playback position measuring the first audio, in milliseconds
+     */
+    protected static final long FIRST_AUDIO_PROBE_INTERVAL = 10;
+
+    protected PlaybackMetrics metrics;
+    private long prepareStartTime = -1;
+    private long playStartTime = -1;
+    private int playStartPosition;
+    private long seekStartTime = -1;
+    private long stallStartTime = -1;
+
+    /**
+     * Records the first audio when the playback position starts advancing
+     */
+    protected final TickScheduler.OnTickListener firstAudioProbe = new TickScheduler.OnTickListener() {
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            PlaybackMetrics metrics = MediaPlayerRecorder.this.metrics;
+            if (metrics == null || player == null || stateMachine.get() != PLAYING) {
+                scheduler.unsubscribe(this);
+                playStartTime = -1;
+            } else if (player.getCurrentPosition() != playStartPosition) {
+                scheduler.unsubscribe(this);
+                metrics.firstAudio.record(metrics.now() - playStartTime);
+                playStartTime = -1;
+            }
+        }
+    };
+
+    /**
+     * Interval at which a start held by the start policy is reconsidered, in milliseconds
+     */
+    protected static final long START_CHECK_INTERVAL = 250;
+
+    protected final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator();
+    protected StartPolicy startPolicy;
+    private volatile boolean gateStart;
+    private volatile long awaitingStartSince = -1;
+
+    /**
+     * Reconsiders a start held by the start policy as time passes
+     */
+    protected final TickScheduler.OnTickListener startCheck = new TickScheduler.OnTickListener() {
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            if (awaitingStartSince < 0)
+                scheduler.unsubscribe(this);
+            else
+                startHeld();
+        }
+    };
+
+    /**
+     * Interval of the check of the playback position against the silent spans, in milliseconds
+     */
+    protected static final long SKIP_SILENCE_INTERVAL = 50;
 
-                handler.postDelayed(this, 1000);
+    protected boolean skipSilence;
+    protected volatile SilenceFile silence;
+
+    /**
+     * Seeks over the silent spans of the source while playing
+     */
+    protected final TickScheduler.OnTickListener silenceSkipper = new TickScheduler.OnTickListener() {
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            SilenceFile spans = silence;
+            PlayerEngine engine = player;
+            if (spans == null || engine == null || stateMachine.get() != PLAYING) {
+                scheduler.unsubscribe(this);
+                return;
             }
+            if (seeking || restoring)
+                return;
+            int target = spans.getSkipTarget(engine.getCurrentPosition());
+            if (target >= 0)
+                seekTo(target);
         }
     };
 
+    /**
+     * Listeners set with the setters. Each setter replaces its previous listener in the registry.
+     */
     protected OnTimeUpdateListener onTimeUpdateListener;
     protected OnCompletionListener onCompletionListener;
     protected OnPreparedListener onPreparedListener;
     protected OnBufferingUpdateListener onBufferingUpdateListener;
     protected OnSeekListener onSeekListener;
     protected OnErrorListener onErrorListener;
+    protected OnStateChangeListener onStateChangeListener;
+    protected OnVoiceActivityListener onVoiceActivityListener;
+
+    protected final ListenerRegistry<OnTimeUpdateListener> timeUpdateListeners = new ListenerRegistry<OnTimeUpdateListener>();
+    protected final ListenerRegistry<OnCompletionListener> completionListeners = new ListenerRegistry<OnCompletionListener>();
+    protected final ListenerRegistry<OnPreparedListener> preparedListeners = new ListenerRegistry<OnPreparedListener>();
+    protected final ListenerRegistry<OnBufferingUpdateListener> bufferingUpdateListeners = new ListenerRegistry<OnBufferingUpdateListener>();
+    protected final ListenerRegistry<OnSeekListener> seekListeners = new ListenerRegistry<OnSeekListener>();
+    protected final ListenerRegistry<OnErrorListener> errorListeners = new ListenerRegistry<OnErrorListener>();
+    protected final ListenerRegistry<OnStateChangeListener> stateChangeListeners = new ListenerRegistry<OnStateChangeListener>();
+    protected final ListenerRegistry<OnVoiceActivityListener> voiceActivityListeners = new ListenerRegistry<OnVoiceActivityListener>();
+
+    protected final ListenerRegistry.Notifier<OnTimeUpdateListener> timeUpdateNotifier = new ListenerRegistry.Notifier<OnTimeUpdateListener>() {
+        @Override
+        public boolean notify(OnTimeUpdateListener listener, int arg1, int arg2, long value) {
+            listener.onTimeUpdate(MediaPlayerRecorder.this, value);
+            return false;
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnCompletionListener> completionNotifier = new ListenerRegistry.Notifier<OnCompletionListener>() {
+        @Override
+        public boolean notify(OnCompletionListener listener, int success, int arg2, long value) {
+            listener.onCompletion(MediaPlayerRecorder.this, success != 0);
+            return false;
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnPreparedListener> preparedNotifier = new ListenerRegistry.Notifier<OnPreparedListener>() {
+        @Override
+        public boolean notify(OnPreparedListener listener, int recorder, int arg2, long value) {
+            if (recorder != 0)
+                listener.onRecorderPrepared(MediaPlayerRecorder.this);
+            else
+                listener.onPlayerPrepared(MediaPlayerRecorder.this);
+            return false;
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnBufferingUpdateListener> bufferingUpdateNotifier = new ListenerRegistry.Notifier<OnBufferingUpdateListener>() {
+        @Override
+        public boolean notify(OnBufferingUpdateListener listener, int percent, int arg2, long value) {
+            listener.onBufferingUpdate(MediaPlayerRecorder.this, percent);
+            return false;
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnSeekListener> seekCompleteNotifier = new ListenerRegistry.Notifier<OnSeekListener>() {
+        @Override
+        public boolean notify(OnSeekListener listener, int arg1, int arg2, long value) {
+            listener.onSeekComplete(MediaPlayerRecorder.this);
+            return false;
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnErrorListener> errorNotifier = new ListenerRegistry.Notifier<OnErrorListener>() {
+        @Override
+        public boolean notify(OnErrorListener listener, int what, int extra, long value) {
+            return listener.onError(MediaPlayerRecorder.this, what, extra);
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnStateChangeListener> stateChangeNotifier = new ListenerRegistry.Notifier<OnStateChangeListener>() {
+        @Override
+        public boolean notify(OnStateChangeListener listener, int event, int from, long to) {
+            listener.onStateChange(MediaPlayerRecorder.this, event, from, (int) to);
+            return false;
+        }
+    };
+
+    protected final ListenerRegistry.Notifier<OnVoiceActivityListener> voiceActivityNotifier = new ListenerRegistry.Notifier<OnVoiceActivityListener>() {
+        @Override
+        public boolean notify(OnVoiceActivityListener listener, int event, int from, long to) {
+            listener.onVoiceActivity(MediaPlayerRecorder.this, event == 1, to);
+            return false;
+        }
+    };
 
     protected void initRecorder() {
         if (this.recorder == null) {
-            this.recorder = new MediaRecorder();
-            this.recorder.setOnErrorListener(this);
-            this.recorder.setOnInfoListener(this);
-            this.recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            this.recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            this.recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            this.recorder.setMaxDuration(maxDuration);
-            this.recorder.setMaxFileSize(maxFileSize);
-            if (this.dataSource != null)
-                this.recorder.setOutputFile(dataSource);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO) {
-                this.recorder.setAudioSamplingRate(16000);
-                this.recorder.setAudioChannels(1);
+            if (this.sessionManager != null)
+                this.sessionManager.acquire(this);
+            this.recorder = createRecorder(this.dataSource != null ? nextOutput() : null);
+        }
+    }
+
+    /**
+     * Creates and sets up a recorder engine. Can be called from the recorder worker.
+     */
+    protected RecorderEngine createRecorder(String output) {
+        RecorderEngine engine = engineFactory.createRecorder();
+        engine.setListener(this);
+        engine.setMaxDuration(maxDuration);
+        engine.setMaxFileSize(maxFileSize);
+        if (output != null)
+            engine.setOutputFile(output);
+        return engine;
+    }
+
+    /**
+     * @return Path of the file of the next recording run
+     */
+    protected String nextOutput() {
+        return pausableRecording || durableRecording ? nextSegment() : dataSource;
+    }
+
+    /**
+     * @return Path of the file of the next recording run, when recording is pausable or durable
+     */
+    protected String nextSegment() {
+        String segment = pausableRecording ? dataSource + ".part" + segments.size() : dataSource;
+        if (durableRecording)
+            segment = RecordingJournal.journalOf(segment);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Joins the recorded segments into the data source file, if there are any.
+     *
+     * @return False if the segments could not be joined. In that case, they are kept on disk.
+     */
+    protected boolean joinSegments() {
+        if (segments.isEmpty())
+            return true;
+
+        boolean journals = segments.get(0).endsWith(RecordingJournal.EXTENSION);
+        List<File> files = new ArrayList<File>(segments.size());
+        for (String segment : segments) {
+            File file = new File(segment);
+            if (file.length() > 0)
+                files.add(file);
+        }
+        if (files.isEmpty()) {
+            segments.clear();
+            return false;
+        }
+
+        File output = new File(dataSource);
+        try {
+            if (journals) {
+                RecordingRecovery.finish(files, output);
+            } else if (files.size() == 1) {
+                output.delete();
+                if (!files.get(0).renameTo(output))
+                    throw new IOException("Could not rename " + files.get(0) + " to " + output);
+            } else {
+                // Joined by container: WAV from the PCM engines, MP4 from MediaRecorder
+                if (RecordingRecovery.isWav(files.get(0)))
+                    RecordingRecovery.joinWav(files, output);
+                else
+                    Mp4SegmentStitcher.stitch(files, output);
+                for (File file : files)
+                    file.delete();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        segments.clear();
+        return true;
     }
 
     protected void initPlayer() throws IOException {
         if (this.player == null) {
-            this.player = new MediaPlayer();
-            this.player.setOnPreparedListener(this);
-            this.player.setOnErrorListener(this);
-            this.player.setOnSeekCompleteListener(this);
-            this.player.setOnCompletionListener(this);
-            this.player.setOnBufferingUpdateListener(this);
-            this.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            this.player.setLooping(looping);
-            if (this.dataSource != null)
-                this.player.setDataSource(dataSource);
+            if (this.sessionManager != null)
+                this.sessionManager.acquire(this);
+            String source = resolveDataSource();
+            AudioBundle.Entry entry = this.bundleEntry;
+            if (entry != null) {
+                this.player = engineFactory.createPlayer();
+                this.player.setListener(this);
+                this.player.setLooping(looping);
+                this.player.setDataSource(entry.getBundle().getFD(), entry.getOffset(), entry.getLength());
+            } else if (this.playerPool != null && source != null) {
+                this.player = playerPool.acquire(source);
+                this.player.setListener(this);
+                this.player.setLooping(looping);
+            } else {
+                this.player = engineFactory.createPlayer();
+                this.player.setListener(this);
+                this.player.setLooping(looping);
+                if (source != null)
+                    this.player.setDataSource(source);
+            }
         }
     }
 
+    /**
+     * @return The data source given to the player: remote sources are rewritten through the caching proxy, if any
+     */
+    protected String resolveDataSource() {
+        if (this.cachingProxy != null)
+            return this.cachingProxy.getProxyUrl(dataSource);
+        return dataSource;
+    }
+
     protected void releasePlayer() {
+        chain(null);
+        stopAwaitingStart();
         if (this.player != null) {
-            this.player.release();
+            if (this.playerPool != null)
+                this.playerPool.recycle(this.player);
+            else
+                this.player.release();
             this.player = null;
+            if (this.recorder == null && this.sessionManager != null)
+                this.sessionManager.release(this);
         }
+        this.restoring = false;
     }
 
     protected void releaseRecorder() {
+        cancelRecorderPreparation(false);
         if (this.recorder != null) {
             this.recorder.stop();
             this.recorder.release();
             this.recorder = null;
+            if (this.journal != null) {
+                this.journal.stop();
+                this.journal = null;
+            }
+            if (this.uploader != null)
+                this.uploader.finish();
+            // A durable recording that is not pausable is complete once stopped
+            if (this.durableRecording && !this.pausableRecording && !joinSegments())
+                errorListeners.dispatch(errorNotifier, MediaRecorder.MEDIA_RECORDER_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO, 0);
+            if (this.player == null && this.sessionManager != null)
+                this.sessionManager.release(this);
+            if (this.peakCache != null && this.dataSource != null)
+                this.peakCache.invalidate(dataSource);
         }
     }
 
     protected void startTimeUpdate() {
-        startRecordTime = System.currentTimeMillis();
-        handler.post(runnableTimeUpdate);
+        tickScheduler.subscribe(tickListener, timeUpdateInterval);
     }
 
     protected void stopTimeUpdate() {
-        handler.removeCallbacks(runnableTimeUpdate);
+        tickScheduler.unsubscribe(tickListener);
     }
 
     public MediaPlayerRecorder() {
+        this(new AndroidEngineFactory());
+    }
+
+    /**
+     * @param engineFactory Factory of the engines used to play and record
+     */
+    public MediaPlayerRecorder(EngineFactory engineFactory) {
+        this(engineFactory, TickScheduler.getShared());
+    }
+
+    /**
+     * @param engineFactory Factory of the engines used to play and record
+     * @param tickScheduler Scheduler of the time updates (e.g. on a VirtualClock, off the main thread)
+     */
+    public MediaPlayerRecorder(EngineFactory engineFactory, TickScheduler tickScheduler) {
+        this.engineFactory = engineFactory;
         this.looping = false;
-        this.handler = new Handler();
-        this.currentState = NONE;
+        this.tickScheduler = tickScheduler;
+        this.stateMachine = new StateMachine(NONE);
+        this.stateMachine.setOnTransitionListener(new StateMachine.OnTransitionListener() {
+            @Override
+            public void onTransition(int event, int from, int to) {
+                stateChangeListeners.dispatch(stateChangeNotifier, event, from, to);
+            }
+        });
     }
 
     /**
@@ -259,36 +710,42 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
      * @throws IllegalStateException If the current state is related to record (RECORDING, PREPARINGTORECORD, ...)
      */
     public boolean prepareToPlay() throws IllegalStateException {
-        switch (this.currentState) {
-            case NONE:
-            case PAUSED: {
-                this.currentState = PREPARINGTOPLAY;
-                break;
-            }
-            case PLAYING:
-            case PREPARINGTOPLAY:
-            case PREPAREDTOPLAY:
-            case PREPARINGTOPLAYANDPLAYING: {
-                return true;
-            }
-            case RECORDING:
-            case PREPARINGTORECORD:
-            case PREPAREDTORECORD:
-            case PREPARINGTORECORDANDRECORDING: {
-                throw new IllegalStateException("Recording state conflicts with Playing state");
-            }
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            queue.enqueue(CommandQueue.PREPARE_TO_PLAY);
+            return true;
         }
+        return doPrepareToPlay();
+    }
+
+    protected boolean doPrepareToPlay() throws IllegalStateException {
+        if (this.sessionManager != null && this.player != null)
+            this.sessionManager.touch(this);
+        int transition = stateMachine.fire(StateMachine.EVENT_PREPARE_TO_PLAY);
+        if (StateMachine.action(transition) != StateMachine.ACTION_PREPARE_PLAYER)
+            return true;
 
         if (this.player == null) {
+            cancelRecorderPreparation(true);
+            joinSegments();
+            silence = skipSilence && dataSource != null && !CachingProxy.isRemote(dataSource) ? SilenceFile.load(dataSource) : null;
             try {
                 initPlayer();
-                this.player.prepareAsync();
+                if (this.player.isPrepared())
+                    onPrepared(this.player);
+                else if (!this.player.isPreparing()) {
+                    if (metrics != null)
+                        prepareStartTime = metrics.now();
+                    bandwidthEstimator.reset();
+                    gateStart = startPolicy != null && CachingProxy.isRemote(dataSource);
+                    this.player.prepareAsync();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
             }
-        } else if (this.currentState == PREPARINGTOPLAY)
-            this.currentState = PREPAREDTOPLAY;
+        } else
+            stateMachine.compareAndSet(PREPARINGTOPLAY, PREPAREDTOPLAY);
 
         return true;
     }
@@ -300,219 +757,604 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
      * @return True is it has started preparing for record successfully. Otherwise, false
      */
     public boolean prepareToRecord() throws IllegalStateException {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            queue.enqueue(CommandQueue.PREPARE_TO_RECORD);
+            return true;
+        }
+        return doPrepareToRecord();
+    }
+
+    protected boolean doPrepareToRecord() throws IllegalStateException {
         if (dataSource == null)
             return false;
 
-        switch (this.currentState) {
-            case NONE:
-            case PAUSED: {
-                release();
+        int transition = stateMachine.fire(StateMachine.EVENT_PREPARE_TO_RECORD);
+        if (StateMachine.action(transition) != StateMachine.ACTION_PREPARE_RECORDER)
+            return true;
 
-                this.currentState = PREPARINGTORECORD;
-                break;
-            }
-            case RECORDING:
-            case PREPARINGTORECORD:
-            case PREPAREDTORECORD:
-            case PREPARINGTORECORDANDRECORDING: {
-                return true;
-            }
-            case PLAYING:
-            case PREPARINGTOPLAY:
-            case PREPAREDTOPLAY:
-            case PREPARINGTOPLAYANDPLAYING: {
-                throw new IllegalStateException("Playing state conflicts with Recording state");
-            }
+        releasePlayer();
+        releaseRecorder();
 
+        // A new file, unless resuming a pausable recording (the segment of a pre-warmed recorder is new)
+        RecorderPreparation warm = this.warmRecorder != null ? this.warmRecorder : this.recorderPreparation;
+        if (!pausableRecording || segments.size() <= (warm != null ? 1 : 0))
+            recordedTime = 0;
+        if (this.warmRecorder != null) {
+            this.warmRecorder = null;
+            adoptRecorder(warm);
+            return true;
+        }
+        if (warm != null) {
+            // The pre-warm in flight completes this prepare
+            warm.warm = false;
+            return true;
+        }
+        if (this.recorderWorker != null) {
+            startRecorderPreparation(false);
+            return true;
         }
-
         initRecorder();
         try {
+            long start = metrics != null ? metrics.now() : 0;
             this.recorder.prepare();
-            if (this.currentState == PREPARINGTORECORDANDRECORDING) {
-                this.currentState = PREPAREDTORECORD;
-
-                if (onPreparedListener != null)
-                    onPreparedListener.onRecorderPrepared(this);
-
-                record();
-            } else {
-                this.currentState = PREPAREDTORECORD;
-
-                if (onPreparedListener != null)
-                    onPreparedListener.onRecorderPrepared(this);
-            }
-
-
+            if (metrics != null)
+                metrics.recorderPrepare.record(metrics.now() - start);
         } catch (IOException e) {
             e.printStackTrace();
 
-            pause();
+            doPause();
+            if ((pausableRecording || durableRecording) && !segments.isEmpty())
+                new File(segments.remove(segments.size() - 1)).delete();
             return false;
         }
 
+        onRecorderPrepared();
         return true;
     }
 
     /**
-     * Starts or resumes playback.
-     * If playback had previously been paused, playback will continue from where it was paused.
-     * If playback had been released, or never started before, playback will start at the beginning.
+     * Creates and prepares a recorder on the recorder worker, or on the calling thread if there is none.
      *
-     * @return True if is has been started without any error. Returns false if prepareToPlay returns false.
+     * @param warm True to keep it for the next prepareToRecord, without changing the state
      */
-    public boolean play() throws IllegalStateException {
-        switch (this.currentState) {
-            case NONE: {
-                if (prepareToPlay())
-                    return play();
-                else
-                    return false;
-            }
-            case PLAYING:
-            case PREPARINGTOPLAYANDPLAYING: {
-                return true;
-            }
-            case PREPARINGTOPLAY: {
-                this.currentState = PREPARINGTOPLAYANDPLAYING;
-                return true;
-            }
-            case PAUSED:
-            case PREPAREDTOPLAY: {
-                this.currentState = PLAYING;
-                this.startTimeUpdate();
-                this.player.start();
-                return true;
-            }
-            case RECORDING:
-            case PREPARINGTORECORD:
-            case PREPAREDTORECORD:
-            case PREPARINGTORECORDANDRECORDING: {
-                throw new IllegalStateException("Recording state conflicts with Playing state");
-            }
-            default:
-                return false;
+    protected void startRecorderPreparation(boolean warm) {
+        final RecorderPreparation preparation = new RecorderPreparation(nextOutput(), warm);
+        this.recorderPreparation = preparation;
+        Scheduler worker = this.recorderWorker;
+        if (worker == null) {
+            preparation.run();
+            onRecorderPreparation(preparation);
+            return;
         }
+        worker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                preparation.run();
+                CommandQueue queue = commandQueue;
+                if (queue != null) {
+                    queue.enqueue(CommandQueue.RECORDER_PREPARED, 0, preparation);
+                } else {
+                    tickScheduler.getScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            onRecorderPreparation(preparation);
+                        }
+                    }, 0);
+                }
+            }
+        }, 0);
     }
 
     /**
-     * Pauses playback or recording.
-     * It can be safely called in any state.
+     * Forgets the recorder being prepared (its engine is released when the preparation completes),
+     * and the pre-warmed recorder if warm is true.
      */
-    public void pause() {
-        switch (this.currentState) {
-            case PLAYING:
-            case PREPARINGTOPLAY:
-            case PREPAREDTOPLAY:
-            case PREPARINGTOPLAYANDPLAYING: {
-                this.player.pause();
-                stopTimeUpdate();
-                this.currentState = PAUSED;
-                break;
-            }
-            case RECORDING:
-            case PREPAREDTORECORD:
-            case PREPARINGTORECORD:
-            case PREPARINGTORECORDANDRECORDING: {
-                if (this.recorder != null) {
-//                    releaseRecorder();
-                    release();
-                    stopTimeUpdate();
-                }
-                break;
-            }
+    protected void cancelRecorderPreparation(boolean warm) {
+        RecorderPreparation preparation = this.recorderPreparation;
+        if (preparation != null && (warm || !preparation.warm)) {
+            this.recorderPreparation = null;
+            if (preparation.isSegment())
+                segments.remove(preparation.output);
+        }
+        preparation = this.warmRecorder;
+        if (warm && preparation != null) {
+            this.warmRecorder = null;
+            if (preparation.isSegment())
+                segments.remove(preparation.output);
+            preparation.discard();
         }
     }
 
     /**
-     * Begins capturing and encoding data to the file specified with setDataSource()
-     * *
-     *
-     * @return True if is has started recording successfully
-     * @throws IllegalStateException If the current state is related to player
+     * Called on the thread of the commands (or of the ticks, without commands) when a recorder has been prepared.
      */
-    public boolean record() throws IllegalStateException {
-
-        switch (this.currentState) {
-            case NONE:
-            case PAUSED: {
-                if (prepareToRecord())
-                    return record();
-                else
-                    return false;
-            }
-            case PLAYING:
-            case PREPARINGTOPLAY:
-            case PREPAREDTOPLAY:
-            case PREPARINGTOPLAYANDPLAYING: {
-                throw new IllegalStateException("Playing state conflicts with Recording state");
-            }
-            case RECORDING:
-            case PREPARINGTORECORDANDRECORDING: {
-                return true;
-            }
-            case PREPARINGTORECORD: {
-                this.currentState = PREPARINGTORECORDANDRECORDING;
-                return true;
-            }
-            case PREPAREDTORECORD: {
-                this.currentState = RECORDING;
-                this.startTimeUpdate();
-                this.recorder.start();
-                return true;
-            }
-            default:
-                return false;
+    protected void onRecorderPreparation(RecorderPreparation preparation) {
+        if (preparation != this.recorderPreparation) {
+            // Cancelled
+            preparation.discard();
+            return;
+        }
+        this.recorderPreparation = null;
+
+        if (preparation.error != null) {
+            preparation.error.printStackTrace();
+            if (preparation.isSegment())
+                segments.remove(preparation.output);
+            preparation.discard();
+            if (!preparation.warm)
+                onError(preparation.engine, MediaRecorder.MEDIA_RECORDER_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            return;
         }
+        if (preparation.warm)
+            this.warmRecorder = preparation;
+        else
+            adoptRecorder(preparation);
+    }
+
+    protected void adoptRecorder(RecorderPreparation preparation) {
+        if (metrics != null)
+            metrics.recorderPrepare.record(preparation.elapsed);
+        if (this.sessionManager != null)
+            this.sessionManager.acquire(this);
+        this.recorder = preparation.engine;
+        onRecorderPrepared();
     }
 
     /**
-     * Seeks to specified time position.
+     * Prepares a recorder for the data source ahead of record() (or prepareToRecord()), on the recorder worker
+     * if there is one, so that recording starts without waiting for the recorder to be set up.
+     * The state does not change. The pre-warmed recorder is released by release, setDataSource,
+     * prepareToPlay and finishRecording.
+     * Preparing creates the output file: without pausable or durable recording, the data source is overwritten.
      *
-     * @param sec the offset in milliseconds from the start to seek to
+     * @return False if there is no data source, or the state is not NONE, or a recorder is already prepared
      */
-    public void seekTo(int sec) {
-        if (this.currentState == RECORDING ||
-                this.currentState == PREPARINGTORECORDANDRECORDING ||
-                this.currentState == PREPARINGTORECORD ||
-                this.currentState == PREPAREDTORECORD) {
-            throw new IllegalStateException("Recording state conflicts with playing state");
-        }
-        if (this.player != null) {
-            this.lastState = this.currentState;
-            pause();
-            this.player.seekTo(sec);
+    public boolean prewarmRecorder() {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            queue.enqueue(CommandQueue.PREWARM_RECORDER);
+            return true;
         }
+        return doPrewarmRecorder();
     }
 
-    /**
-     * Releases all resources from player and recorder.
-     * It is called when recorder is paused
-     */
-    public void release() {
-        releasePlayer();
-        releaseRecorder();
-        this.currentState = NONE;
+    protected boolean doPrewarmRecorder() {
+        if (this.dataSource == null || CachingProxy.isRemote(this.dataSource) || stateMachine.get() != NONE
+                || this.player != null || this.recorder != null || this.warmRecorder != null || this.recorderPreparation != null)
+            return false;
+        startRecorderPreparation(true);
+        return true;
     }
 
-    public boolean isPlaying() {
-        return (this.currentState == PLAYING || this.currentState == PREPARINGTOPLAYANDPLAYING);
+    /**
+     * @return True if a pre-warmed recorder is ready for the next record
+     */
+    public boolean isRecorderWarm() {
+        return warmRecorder != null;
     }
 
-    public boolean isRecording() {
-        return (this.currentState == RECORDING || this.currentState == PREPARINGTORECORDANDRECORDING);
+    public Scheduler getRecorderWorker() {
+        return recorderWorker;
     }
 
-    public boolean isLooping() {
-        return looping;
+    /**
+     * Sets the worker recorders are created and prepared on (e.g. CommandQueue.getSharedWorker()).
+     * prepareToRecord then returns once preparing has started: the state stays PREPARINGTORECORD (or
+     * PREPARINGTORECORDANDRECORDING after record) until OnPreparedListener.onRecorderPrepared, and
+     * recording starts then if record was called. A failure goes to OnErrorListener.
+     * Without a command worker, completions are delivered on the thread of the tick scheduler.
+     *
+     * @param recorderWorker Worker, or null to prepare on the calling thread
+     */
+    public void setRecorderWorker(Scheduler recorderWorker) {
+        this.recorderWorker = recorderWorker;
     }
 
-    public void setLooping(boolean looping) {
+    /**
+     * Creation and preparation of a recorder, run on the recorder worker.
+     */
+    protected class RecorderPreparation implements Runnable {
+        protected final String output;
+        protected final boolean segment;
+        protected boolean warm;
+        protected RecorderEngine engine;
+        protected IOException error;
+        protected long elapsed;
+
+        protected RecorderPreparation(String output, boolean warm) {
+            this.output = output;
+            this.segment = !output.equals(dataSource);
+            this.warm = warm;
+        }
+
+        /**
+         * @return True if the output is a segment or a journal, not the data source
+         */
+        public boolean isSegment() {
+            return segment;
+        }
+
+        public boolean isWarm() {
+            return warm;
+        }
+
+        @Override
+        public void run() {
+            PlaybackMetrics m = metrics;
+            long start = m != null ? m.now() : 0;
+            engine = createRecorder(output);
+            try {
+                engine.prepare();
+            } catch (IOException e) {
+                error = e;
+            }
+            if (m != null)
+                elapsed = m.now() - start;
+        }
+
+        /**
+         * Releases the engine and deletes what it created, unless it is the data source or has been
+         * given to a later recorder.
+         */
+        protected void discard() {
+            if (engine != null)
+                engine.release();
+            if (segment && !segments.contains(output))
+                new File(output).delete();
+        }
+    }
+
+    /**
+     * Called when the recorder has been prepared.
+     */
+    protected void onRecorderPrepared() {
+        int transition = stateMachine.fire(StateMachine.EVENT_RECORDER_PREPARED);
+        int action = StateMachine.action(transition);
+        if (action == StateMachine.ACTION_NONE)
+            return;
+
+        preparedListeners.dispatch(preparedNotifier, 1, 0, 0);
+
+        if (action == StateMachine.ACTION_RECORD_AFTER_PREPARED)
+            doRecord();
+    }
+
+    /**
+     * Starts or resumes playback.
+     * If playback had previously been paused, playback will continue from where it was paused.
+     * If playback had been released, or never started before, playback will start at the beginning.
+     *
+     * @return True if is has been started without any error. Returns false if prepareToPlay returns false.
+     */
+    public boolean play() throws IllegalStateException {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            queue.enqueue(CommandQueue.PLAY);
+            return true;
+        }
+        return doPlay();
+    }
+
+    protected boolean doPlay() throws IllegalStateException {
+        if (this.player == null && this.restorePosition >= 0 && stateMachine.get() == PAUSED) {
+            // Evicted: prepares a new player, it resumes at the saved position
+            if (this.sessionManager != null)
+                this.sessionManager.onRestored(this);
+            if (!doPrepareToPlay())
+                return false;
+        } else if (this.sessionManager != null && this.player != null)
+            this.sessionManager.touch(this);
+        if (metrics != null && playStartTime < 0 && stateMachine.get() != PLAYING)
+            playStartTime = metrics.now();
+        int transition = stateMachine.fire(StateMachine.EVENT_PLAY);
+        switch (StateMachine.action(transition)) {
+            case StateMachine.ACTION_PREPARE_FIRST: {
+                if (doPrepareToPlay())
+                    return doPlay();
+                playStartTime = -1;
+                return false;
+            }
+            case StateMachine.ACTION_START_PLAYER: {
+                this.startTimeUpdate();
+                if (metrics != null && playStartTime >= 0) {
+                    playStartPosition = this.player.getCurrentPosition();
+                    tickScheduler.subscribe(firstAudioProbe, FIRST_AUDIO_PROBE_INTERVAL);
+                }
+                if (silence != null)
+                    tickScheduler.subscribe(silenceSkipper, SKIP_SILENCE_INTERVAL);
+                if (this.restorePosition > 0 && !this.restoring) {
+                    // Starts once the position of the evicted player is restored
+                    this.restoring = true;
+                    this.player.seekTo(this.restorePosition);
+                } else if (!this.restoring) {
+                    this.restorePosition = -1;
+                    this.player.start();
+                }
+                return true;
+            }
+            case StateMachine.ACTION_REJECT:
+                playStartTime = -1;
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Pauses playback or recording.
+     * It can be safely called in any state.
+     */
+    public void pause() {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.PAUSE);
+        else
+            doPause();
+    }
+
+    protected void doPause() {
+        int transition = stateMachine.fire(StateMachine.EVENT_PAUSE);
+        switch (StateMachine.action(transition)) {
+            case StateMachine.ACTION_PAUSE_PLAYER: {
+                boolean awaitingStart = stopAwaitingStart();
+                if (this.player != null && !awaitingStart && !this.restoring)
+                    this.player.pause();
+                stopTimeUpdate();
+                tickScheduler.unsubscribe(firstAudioProbe);
+                tickScheduler.unsubscribe(silenceSkipper);
+                playStartTime = -1;
+                stallStartTime = -1;
+                // The player is prepared, only its start was held
+                if (awaitingStart)
+                    onPrepared(this.player);
+                break;
+            }
+            case StateMachine.ACTION_STOP_RECORDER: {
+                releasePlayer();
+                releaseRecorder();
+                stopTimeUpdate();
+                if (startRecordTime >= 0) {
+                    recordedTime += tickScheduler.now() - startRecordTime;
+                    startRecordTime = -1;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Begins capturing and encoding data to the file specified with setDataSource()
+     * *
+     *
+     * @return True if is has started recording successfully
+     * @throws IllegalStateException If the current state is related to player
+     */
+    public boolean record() throws IllegalStateException {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            queue.enqueue(CommandQueue.RECORD);
+            return true;
+        }
+        return doRecord();
+    }
+
+    protected boolean doRecord() throws IllegalStateException {
+        int transition = stateMachine.fire(StateMachine.EVENT_RECORD);
+        switch (StateMachine.action(transition)) {
+            case StateMachine.ACTION_PREPARE_FIRST: {
+                if (doPrepareToRecord())
+                    return doRecord();
+                else
+                    return false;
+            }
+            case StateMachine.ACTION_START_RECORDER: {
+                this.startRecordTime = tickScheduler.now();
+                this.startTimeUpdate();
+                long start = metrics != null ? metrics.now() : 0;
+                this.recorder.start();
+                if (metrics != null)
+                    metrics.recorderStart.record(metrics.now() - start);
+                startJournal();
+                startUpload();
+                return true;
+            }
+            case StateMachine.ACTION_REJECT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Seeks to specified time position.
+     *
+     * @param sec the offset in milliseconds from the start to seek to
+     */
+    public void seekTo(int sec) {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.SEEK, sec, null);
+        else
+            doSeekTo(sec);
+    }
+
+    /**
+     * @return True if a seek has been issued (it completes with onSeekComplete)
+     */
+    protected boolean doSeekTo(int sec) {
+        int transition = stateMachine.fire(StateMachine.EVENT_SEEK);
+        if (this.player == null) {
+            if (this.restorePosition >= 0) {
+                // Evicted: the position is applied when playback resumes
+                this.restorePosition = Math.max(0, sec);
+                seekListeners.dispatch(seekCompleteNotifier, 0, 0, 0);
+            }
+            return false;
+        }
+        if (this.sessionManager != null)
+            this.sessionManager.touch(this);
+        // A seek following an unfinished one resumes to the state before the first one
+        if (!this.seeking)
+            this.lastState = StateMachine.from(transition);
+        this.seeking = true;
+        if (metrics != null && seekStartTime < 0)
+            seekStartTime = metrics.now();
+        doPause();
+        this.player.seekTo(sec);
+        return true;
+    }
+
+    /**
+     * Releases all resources from player and recorder.
+     * It is called when recorder is paused
+     * With pausable recording, the recorded segments are joined into the data source file.
+     */
+    public void release() {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.RELEASE);
+        else
+            doRelease();
+    }
+
+    protected void doRelease() {
+        this.seeking = false;
+        this.restorePosition = -1;
+        this.restoreDuration = -1;
+        releasePlayer();
+        releaseRecorder();
+        cancelRecorderPreparation(true);
+        stateMachine.fire(StateMachine.EVENT_RELEASE);
+        joinSegments();
+    }
+
+    /**
+     * Stops recording. With pausable recording, joins every segment recorded since the data source
+     * was set into the data source file: samples are copied as they are, without re-encoding.
+     *
+     * @return False if the segments could not be joined (they are kept on disk, next to the data source)
+     */
+    public boolean finishRecording() {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            queue.enqueue(CommandQueue.FINISH_RECORDING);
+            return true;
+        }
+        return doFinishRecording();
+    }
+
+    protected boolean doFinishRecording() {
+        doPause();
+        cancelRecorderPreparation(true);
+        return joinSegments();
+    }
+
+    /**
+     * Chains another MediaPlayerRecorder to start, without a gap, when this one completes.
+     * Both must be prepared to play (or playing, for this one) and use engines of the same kind.
+     * When this one completes, it is paused and next goes to PLAYING before OnCompletionListener is called.
+     *
+     * @param next MediaPlayerRecorder to start at completion, or null to remove the chained one
+     * @return False if it could not be chained (not prepared or not supported by the platform)
+     */
+    public boolean setNextMediaPlayerRecorder(MediaPlayerRecorder next) {
+        PlayerEngine engine = this.player;
+        if (engine == null)
+            return false;
+        if (next == null) {
+            chain(null);
+            engine.setNextEngine(null);
+            return true;
+        }
+        if (next.player == null || next.getCurrentState() != PREPAREDTOPLAY)
+            return false;
+        if (!engine.setNextEngine(next.player))
+            return false;
+        chain(next);
+        return true;
+    }
+
+    /**
+     * Sets next, and the link back from it.
+     */
+    protected void chain(MediaPlayerRecorder next) {
+        MediaPlayerRecorder previousNext = this.next;
+        if (previousNext != null && previousNext.previous == this)
+            previousNext.previous = null;
+        this.next = next;
+        if (next != null)
+            next.previous = this;
+    }
+
+    public MediaPlayerRecorder getNextMediaPlayerRecorder() {
+        return next;
+    }
+
+    /**
+     * Called on the chained MediaPlayerRecorder when its engine has been started by the previous one.
+     */
+    protected void onChainedStart() {
+        if (stateMachine.compareAndSet(PREPAREDTOPLAY, PLAYING))
+            startTimeUpdate();
+    }
+
+    public boolean isPlaying() {
+        int state = stateMachine.get();
+        return (state == PLAYING || state == PREPARINGTOPLAYANDPLAYING);
+    }
+
+    public boolean isRecording() {
+        int state = stateMachine.get();
+        return (state == RECORDING || state == PREPARINGTORECORDANDRECORDING);
+    }
+
+    public boolean isLooping() {
+        return looping;
+    }
+
+    public void setLooping(boolean looping) {
         this.looping = looping;
         if (this.player != null)
             this.player.setLooping(looping);
     }
 
+    public boolean isPausableRecording() {
+        return pausableRecording;
+    }
+
+    /**
+     * When true, each record run (until pause) is written to its own segment, next to the data source,
+     * and record after pause resumes instead of overwriting the file.
+     * Segments are joined into the data source file by finishRecording, release, setDataSource or prepareToPlay.
+     * Recorder must use the MPEG_4 output format.
+     *
+     * @param pausableRecording True to keep the recorded segments across pause and record
+     */
+    public void setPausableRecording(boolean pausableRecording) {
+        this.pausableRecording = pausableRecording;
+    }
+
+    public boolean isDurableRecording() {
+        return durableRecording;
+    }
+
+    /**
+     * When true, recordings survive a crash of the process or a loss of power: each record run is written
+     * to a journal next to the data source (see RecordingJournal), flushed to storage while recording, and
+     * turned into the data source file when recording stops (or, if pausable, when segments are joined).
+     * Journals left by a crash are repaired by RecordingRecovery.recover, e.g. at startup.
+     * Recorder must write frames that can be read on their own: AAC_ADTS (RecorderProfile.DURABLE_SPEECH),
+     * which is turned into an M4A file, raw AMR, or WAV (PcmEngineFactory). MPEG_4 journals are only readable
+     * once the recorder has stopped, so they do not survive a crash. If the data source file cannot be written
+     * when recording stops, the error listener is called. Takes effect at the next recording.
+     *
+     * @param durableRecording True to record through journals
+     */
+    public void setDurableRecording(boolean durableRecording) {
+        this.durableRecording = durableRecording;
+    }
+
     public String getDataSource() {
         return dataSource;
     }
@@ -525,8 +1367,101 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
      * @param path The path of the file or the http URL of the stream.
      */
     public void setDataSource(String path) {
-        release();
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.SET_DATA_SOURCE, 0, path);
+        else
+            doSetDataSource(path);
+    }
+
+    protected void doSetDataSource(String path) {
+        doRelease();
+        // Segments that could not be joined stay on disk, next to the previous data source
+        segments.clear();
         this.dataSource = path;
+        this.bundleEntry = null;
+    }
+
+    /**
+     * Sets an entry of an open AudioBundle as the data source, to play it from the descriptor of the bundle.
+     * Entries cannot be recorded: getDataSource returns null, and the bundle must stay open while it plays.
+     *
+     * @param entry Entry returned by AudioBundle.get
+     */
+    public void setBundleEntry(AudioBundle.Entry entry) {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.SET_DATA_SOURCE, 0, entry);
+        else
+            doSetBundleEntry(entry);
+    }
+
+    protected void doSetBundleEntry(AudioBundle.Entry entry) {
+        doRelease();
+        // Segments that could not be joined stay on disk, next to the previous data source
+        segments.clear();
+        this.dataSource = null;
+        this.bundleEntry = entry;
+    }
+
+    /**
+     * @return The bundle entry set as the data source, or null
+     */
+    public AudioBundle.Entry getBundleEntry() {
+        return bundleEntry;
+    }
+
+    /**
+     * @return Milliseconds recorded into the data source file: it keeps counting across pause and record
+     * with pausable recording. Measured with a monotonic clock.
+     */
+    public long getRecordingTime() {
+        long start = startRecordTime;
+        return recordedTime + (start >= 0 ? tickScheduler.now() - start : 0);
+    }
+
+    public long getTimeUpdateInterval() {
+        return timeUpdateInterval;
+    }
+
+    /**
+     * @param timeUpdateInterval Milliseconds between OnTimeUpdateListener calls (1000 by default)
+     */
+    public void setTimeUpdateInterval(long timeUpdateInterval) {
+        if (timeUpdateInterval <= 0)
+            throw new IllegalArgumentException("timeUpdateInterval must be positive");
+        this.timeUpdateInterval = timeUpdateInterval;
+        if (tickScheduler.isSubscribed(tickListener))
+            tickScheduler.subscribe(tickListener, timeUpdateInterval);
+    }
+
+    public CommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    /**
+     * Runs play, pause, seekTo, record... on a worker instead of the calling thread.
+     * They then return true as soon as the command is queued; errors go to OnErrorListener
+     * (with ERROR_INVALID_OPERATION for commands not allowed in the current state).
+     * Queued seeks collapse to the latest target, and pause/play pairs cancel out (see CommandQueue).
+     * Must be called before the first command.
+     *
+     * @param worker Worker of the commands (e.g. CommandQueue.getSharedWorker()), or null to run them on the calling thread
+     */
+    public void setCommandWorker(Scheduler worker) {
+        this.commandQueue = worker != null ? new CommandQueue(worker, commandTarget) : null;
+    }
+
+    public TickScheduler getTickScheduler() {
+        return tickScheduler;
+    }
+
+    /**
+     * Sets the scheduler of time updates. By default, the one shared by every instance (TickScheduler.getShared()).
+     * Must be called while not playing or recording.
+     */
+    public void setTickScheduler(TickScheduler tickScheduler) {
+        this.tickScheduler = tickScheduler;
     }
 
     public int getMaxDuration() {
@@ -550,7 +1485,7 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public int getCurrentState() {
-        return currentState;
+        return stateMachine.get();
     }
 
     /**
@@ -560,6 +1495,8 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
      * cannot be calculated
      */
     public int getCurrentPosition() {
+        if (this.restorePosition >= 0 && (this.player == null || this.restoring))
+            return this.restorePosition;
         if (this.player != null)
             return this.player.getCurrentPosition();
         return -1;
@@ -574,7 +1511,39 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     public int getDuration() {
         if (this.player != null)
             return this.player.getDuration();
-        return -1;
+        if (this.restorePosition >= 0)
+            return this.restoreDuration;
+        return probeDuration();
+    }
+
+    /**
+     * @return Duration of the local data source read from its headers (see ProbeCache) or from the
+     * index of its bundle, or -1
+     */
+    protected int probeDuration() {
+        AudioBundle.Entry entry = this.bundleEntry;
+        if (entry != null)
+            return entry.getDuration();
+        ProbeCache cache = this.probeCache;
+        String source = this.dataSource;
+        if (cache == null || source == null || this.recorder != null || CachingProxy.isRemote(source))
+            return -1;
+        AudioProbe.Info info = cache.get(source);
+        return info != null ? (int) info.getDuration() : -1;
+    }
+
+    public ProbeCache getProbeCache() {
+        return probeCache;
+    }
+
+    /**
+     * Sets the cache used by getDuration to read the duration of the data source from its headers before
+     * it is prepared to play. ProbeCache.getShared() by default.
+     *
+     * @param probeCache Cache, or null to only know the duration once prepared
+     */
+    public void setProbeCache(ProbeCache probeCache) {
+        this.probeCache = probeCache;
     }
 
     public OnTimeUpdateListener getOnTimeUpdateListener() {
@@ -582,7 +1551,14 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public void setOnTimeUpdateListener(OnTimeUpdateListener onTimeUpdateListener) {
-        this.onTimeUpdateListener = onTimeUpdateListener;
+        this.onTimeUpdateListener = replace(timeUpdateListeners, this.onTimeUpdateListener, onTimeUpdateListener);
+    }
+
+    /**
+     * @return Every OnTimeUpdateListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnTimeUpdateListener> getTimeUpdateListeners() {
+        return timeUpdateListeners;
     }
 
     public OnCompletionListener getOnCompletionListener() {
@@ -590,7 +1566,14 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public void setOnCompletionListener(OnCompletionListener onCompletionListener) {
-        this.onCompletionListener = onCompletionListener;
+        this.onCompletionListener = replace(completionListeners, this.onCompletionListener, onCompletionListener);
+    }
+
+    /**
+     * @return Every OnCompletionListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnCompletionListener> getCompletionListeners() {
+        return completionListeners;
     }
 
     public OnPreparedListener getOnPreparedListener() {
@@ -598,7 +1581,14 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public void setOnPreparedListener(OnPreparedListener onPreparedListener) {
-        this.onPreparedListener = onPreparedListener;
+        this.onPreparedListener = replace(preparedListeners, this.onPreparedListener, onPreparedListener);
+    }
+
+    /**
+     * @return Every OnPreparedListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnPreparedListener> getPreparedListeners() {
+        return preparedListeners;
     }
 
     public OnBufferingUpdateListener getOnBufferingUpdateListener() {
@@ -606,7 +1596,14 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public void setOnBufferingUpdateListener(OnBufferingUpdateListener onBufferingUpdateListener) {
-        this.onBufferingUpdateListener = onBufferingUpdateListener;
+        this.onBufferingUpdateListener = replace(bufferingUpdateListeners, this.onBufferingUpdateListener, onBufferingUpdateListener);
+    }
+
+    /**
+     * @return Every OnBufferingUpdateListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnBufferingUpdateListener> getBufferingUpdateListeners() {
+        return bufferingUpdateListeners;
     }
 
     public OnSeekListener getOnSeekListener() {
@@ -614,7 +1611,14 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public void setOnSeekListener(OnSeekListener onSeekListener) {
-        this.onSeekListener = onSeekListener;
+        this.onSeekListener = replace(seekListeners, this.onSeekListener, onSeekListener);
+    }
+
+    /**
+     * @return Every OnSeekListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnSeekListener> getSeekListeners() {
+        return seekListeners;
     }
 
     public OnErrorListener getOnErrorListener() {
@@ -622,81 +1626,446 @@ public class MediaPlayerRecorder implements MediaPlayer.OnPreparedListener, Medi
     }
 
     public void setOnErrorListener(OnErrorListener onErrorListener) {
-        this.onErrorListener = onErrorListener;
+        this.onErrorListener = replace(errorListeners, this.onErrorListener, onErrorListener);
+    }
+
+    /**
+     * @return Every OnErrorListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnErrorListener> getErrorListeners() {
+        return errorListeners;
+    }
+
+    public OnStateChangeListener getOnStateChangeListener() {
+        return onStateChangeListener;
+    }
+
+    public void setOnStateChangeListener(OnStateChangeListener onStateChangeListener) {
+        this.onStateChangeListener = replace(stateChangeListeners, this.onStateChangeListener, onStateChangeListener);
+    }
+
+    /**
+     * @return Every OnStateChangeListener: add more with an Executor each, see their dispatch latency
+     */
+    public ListenerRegistry<OnStateChangeListener> getStateChangeListeners() {
+        return stateChangeListeners;
+    }
+
+    public OnVoiceActivityListener getOnVoiceActivityListener() {
+        return onVoiceActivityListener;
+    }
+
+    public void setOnVoiceActivityListener(OnVoiceActivityListener onVoiceActivityListener) {
+        this.onVoiceActivityListener = replace(voiceActivityListeners, this.onVoiceActivityListener, onVoiceActivityListener);
+    }
+
+    public ListenerRegistry<OnVoiceActivityListener> getVoiceActivityListeners() {
+        return voiceActivityListeners;
+    }
+
+    private static <L> L replace(ListenerRegistry<L> registry, L previous, L listener) {
+        if (previous != null)
+            registry.remove(previous);
+        if (listener != null)
+            registry.add(listener);
+        return listener;
+    }
+
+    public PlayerPool getPlayerPool() {
+        return playerPool;
+    }
+
+    /**
+     * Sets the pool players are taken from and given back to.
+     * When the data source has been prewarmed in the pool (PlayerPool.prewarm), play() starts
+     * without waiting for preparation.
+     * Takes effect the next time the player is initialized.
+     *
+     * @param playerPool Pool to use, or null to create and release players directly
+     */
+    public void setPlayerPool(PlayerPool playerPool) {
+        this.playerPool = playerPool;
+    }
+
+    public CachingProxy getCachingProxy() {
+        return cachingProxy;
+    }
+
+    /**
+     * Sets the proxy remote (http) data sources are played through, so fetched bytes are cached on disk
+     * and replays or seeks into fetched ranges cost no network.
+     * When used with a PlayerPool, prewarm the proxied URL (CachingProxy.getProxyUrl).
+     * Takes effect the next time the player is initialized.
+     *
+     * @param cachingProxy Running proxy, or null to play remote sources directly
+     */
+    public void setCachingProxy(CachingProxy cachingProxy) {
+        this.cachingProxy = cachingProxy;
+    }
+
+    public PeakCache getPeakCache() {
+        return peakCache;
+    }
+
+    /**
+     * @param peakCache Cache used by getPeaks, shared by the MediaPlayerRecorder instances of a screen
+     */
+    public void setPeakCache(PeakCache peakCache) {
+        this.peakCache = peakCache;
+    }
+
+    /**
+     * @return Buffering estimate of the current remote source
+     */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return bandwidthEstimator;
+    }
+
+    public boolean isSkipSilence() {
+        return skipSilence;
+    }
+
+    /**
+     * When true, playback of a local file seeks over the silent spans of its SilenceFile, if it has one
+     * (written while recording with a VoiceActivityDetector). Applies from the next prepareToPlay.
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        this.skipSilence = skipSilence;
+    }
+
+    public StartPolicy getStartPolicy() {
+        return startPolicy;
+    }
+
+    /**
+     * Sets the policy deciding when playback of a remote source starts, when play() has been called
+     * before the player was prepared. The state stays PREPARINGTOPLAYANDPLAYING until it allows the start.
+     *
+     * @param startPolicy Policy (e.g. BufferedStartPolicy), or null to start as soon as prepared
+     */
+    public void setStartPolicy(StartPolicy startPolicy) {
+        this.startPolicy = startPolicy;
+    }
+
+    /**
+     * @return The upload of the last recording, or null
+     */
+    public StreamingUploader getUploader() {
+        return uploader;
+    }
+
+    public ChunkSink getUploadSink() {
+        return uploadSink;
+    }
+
+    /**
+     * Sets the destination of the next recording, uploaded while it is recorded (e.g. a HttpChunkSink).
+     * Chunks are sent as the file grows; when recording stops, only the tail and the header patched by
+     * the recorder are left to send. A sink receives one recording: set a new one for the next.
+     * Not supported with pausable or durable recording, whose file is only complete once its segments are joined.
+     *
+     * @param uploadSink Destination, or null to not upload
+     */
+    public void setUploadSink(ChunkSink uploadSink) {
+        this.uploadSink = uploadSink;
+    }
+
+    public StreamingUploader.Listener getOnUploadListener() {
+        return onUploadListener;
+    }
+
+    /**
+     * @param onUploadListener Listener of the uploads, called on the upload thread
+     */
+    public void setOnUploadListener(StreamingUploader.Listener onUploadListener) {
+        this.onUploadListener = onUploadListener;
+    }
+
+    public EngineSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    /**
+     * Sets the manager capping the live engines of the process, e.g. EngineSessionManager.getShared().
+     * When it evicts this instance, the player is released but the state and position are kept,
+     * and the next play() resumes with a new player. Set it before the first prepare.
+     *
+     * @param sessionManager Manager, or null to keep the engines until release()
+     */
+    public void setSessionManager(EngineSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public PlaybackMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the latency histograms to record into: prepare, first audio, seek, stalls and recorder start.
+     * The same instance can be set on several MediaPlayerRecorder. Metrics are off by default (null).
+     *
+     * @param metrics Histograms to record into, or null to stop recording
+     */
+    public void setMetrics(PlaybackMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the waveform of the data source file, generating its peak file if needed.
+     * It may decode the whole file: do not call it on the main thread.
+     *
+     * @return The peaks, or null if there is no peak cache or no local data source
+     */
+    public PeakFile getPeaks() throws IOException {
+        PeakCache cache = this.peakCache;
+        String path = this.dataSource;
+        if (cache == null || path == null || CachingProxy.isRemote(path))
+            return null;
+        return cache.get(path);
+    }
+
+    public EngineFactory getEngineFactory() {
+        return engineFactory;
     }
 
     @Override
-    public void onPrepared(MediaPlayer mediaPlayer) {
-        int oldState = this.currentState;
-        this.currentState = PREPAREDTOPLAY;
+    public void onPrepared(PlayerEngine engine) {
+        if (metrics != null && prepareStartTime >= 0)
+            metrics.prepare.record(metrics.now() - prepareStartTime);
+        prepareStartTime = -1;
+
+        if (gateStart && stateMachine.get() == PREPARINGTOPLAYANDPLAYING) {
+            if (awaitingStartSince < 0) {
+                awaitingStartSince = tickScheduler.now();
+                bandwidthEstimator.setDuration(engine.getDuration());
+                if (!isStartAllowed()) {
+                    tickScheduler.subscribe(startCheck, START_CHECK_INTERVAL);
+                    return;
+                }
+            } else if (!isStartAllowed())
+                return;
+        }
+        stopAwaitingStart();
+        gateStart = false;
+
+        int transition = stateMachine.fire(StateMachine.EVENT_PLAYER_PREPARED);
+        int action = StateMachine.action(transition);
+        if (action == StateMachine.ACTION_NONE)
+            return;
 
-        if (oldState == PREPARINGTOPLAYANDPLAYING)
-            play();
+        if (action == StateMachine.ACTION_PLAY_AFTER_PREPARED)
+            doPlay();
 
-        if (onPreparedListener != null)
-            onPreparedListener.onPlayerPrepared(this);
+        preparedListeners.dispatch(preparedNotifier, 0, 0, 0);
     }
 
     @Override
-    public boolean onError(MediaPlayer mediaPlayer, int i, int i1) {
-        pause();
+    public boolean onError(PlayerEngine engine, int i, int i1) {
+        doPause();
+        this.seeking = false;
+        this.seekStartTime = -1;
+        this.prepareStartTime = -1;
+        CommandQueue queue = this.commandQueue;
+        if (queue != null) {
+            // No seek in flight completes after an error
+            synchronized (seekSequences) {
+                seekSequences.clear();
+            }
+            queue.complete();
+        }
 
-        if (onErrorListener != null)
-            return onErrorListener.onError(this, i, i1);
-        return false;
+        return errorListeners.dispatch(errorNotifier, i, i1, 0);
     }
 
     @Override
-    public void onError(MediaRecorder mediaRecorder, int i, int i1) {
-        pause();
+    public void onError(RecorderEngine engine, int i, int i1) {
+        doPause();
 
-        boolean result = false;
-        if (onErrorListener != null)
-            result = onErrorListener.onError(this, i, i1);
+        boolean result = errorListeners.dispatch(errorNotifier, i, i1, 0);
 
         if (!result)
-            if (onCompletionListener != null)
-                onCompletionListener.onCompletion(this, false);
+            completionListeners.dispatch(completionNotifier, 0, 0, 0);
     }
 
     @Override
-    public void onCompletion(MediaPlayer mediaPlayer) {
-        if (this.currentState == PLAYING && this.looping) {
-            play();
+    public void onCompletion(PlayerEngine engine) {
+        MediaPlayerRecorder chained = this.next;
+        chain(null);
+        if (chained != null) {
+            doPause();
+            chained.onChainedStart();
+        } else if (stateMachine.get() == PLAYING && this.looping) {
+            doPlay();
         } else {
-            pause();
+            doPause();
         }
 
-        if (onCompletionListener != null)
-            onCompletionListener.onCompletion(this, true);
+        completionListeners.dispatch(completionNotifier, 1, 0, 0);
+    }
+
+    @Override
+    public boolean onInfo(PlayerEngine engine, int i, int i1) {
+        PlaybackMetrics metrics = this.metrics;
+        if (metrics != null && stateMachine.get() == PLAYING) {
+            if (i == MediaPlayer.MEDIA_INFO_BUFFERING_START && stallStartTime < 0) {
+                metrics.onStallStart();
+                stallStartTime = metrics.now();
+            } else if (i == MediaPlayer.MEDIA_INFO_BUFFERING_END && stallStartTime >= 0) {
+                metrics.stall.record(metrics.now() - stallStartTime);
+                stallStartTime = -1;
+            }
+        }
+        return false;
     }
 
     @Override
-    public void onInfo(MediaRecorder mediaRecorder, int i, int i1) {
-        if (i == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
+    public void onInfo(RecorderEngine engine, int i, int i1) {
+        if (i == VoiceActivityDetector.INFO_VOICE_START || i == VoiceActivityDetector.INFO_SILENCE_START) {
+            voiceActivityListeners.dispatch(voiceActivityNotifier, i == VoiceActivityDetector.INFO_VOICE_START ? 1 : 0, 0, recordedTime + i1);
+        } else if (i == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
                 i == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
-            pause();
+            doPause();
 
-            if (onCompletionListener != null)
-                onCompletionListener.onCompletion(this, true);
+            completionListeners.dispatch(completionNotifier, 1, 0, 0);
         } else {
-            onError(mediaRecorder, i, i1);
+            onError(engine, i, i1);
         }
     }
 
     @Override
-    public void onSeekComplete(MediaPlayer mediaPlayer) {
-        if (this.lastState == PLAYING)
-            play();
+    public void onSeekComplete(PlayerEngine engine) {
+        if (this.restoring) {
+            this.restoring = false;
+            this.restorePosition = -1;
+            if (stateMachine.get() == PLAYING)
+                engine.start();
+            return;
+        }
+        CommandQueue queue = this.commandQueue;
+        // While scrubbing, stays paused until the latest seek
+        if (queue == null || queue.getNextCommand() != CommandQueue.SEEK) {
+            this.seeking = false;
+            if (metrics != null && seekStartTime >= 0)
+                metrics.seek.record(metrics.now() - seekStartTime);
+            seekStartTime = -1;
+            if (this.lastState == PLAYING)
+                doPlay();
+        }
+
+        seekListeners.dispatch(seekCompleteNotifier, 0, 0, 0);
+        Long sequence;
+        synchronized (seekSequences) {
+            sequence = seekSequences.isEmpty() ? null : seekSequences.removeFirst();
+        }
+        if (queue != null && sequence != null)
+            queue.complete(sequence);
+    }
+
+    /**
+     * @return True if the start policy lets the held playback start
+     */
+    protected boolean isStartAllowed() {
+        StartPolicy policy = this.startPolicy;
+        return policy == null || policy.shouldStart(bandwidthEstimator, this.player.getCurrentPosition(),
+                tickScheduler.now() - awaitingStartSince);
+    }
+
+    /**
+     * Starts flushing the journal being recorded, when recording is durable.
+     */
+    protected void startJournal() {
+        if (!this.durableRecording || segments.isEmpty())
+            return;
+        this.journal = new RecordingJournal(new File(segments.get(segments.size() - 1)), RecordingJournal.DEFAULT_SYNC_INTERVAL);
+        this.journal.start();
+    }
+
+    /**
+     * Starts streaming the file being recorded to the upload sink, if any. The sink is used once.
+     */
+    protected void startUpload() {
+        ChunkSink sink = this.uploadSink;
+        if (sink == null || this.pausableRecording || this.durableRecording || this.dataSource == null)
+            return;
+        this.uploadSink = null;
+        this.uploader = new StreamingUploader(new File(this.dataSource), sink);
+        this.uploader.setListener(this.onUploadListener);
+        this.uploader.start();
+    }
+
+    /**
+     * @return True if the player can be released by the session manager: it is paused or prepared,
+     * and not chained to start after another instance (whose engine holds the player)
+     */
+    protected boolean isEvictable() {
+        int state = stateMachine.get();
+        return (state == PAUSED || state == PREPAREDTOPLAY) && this.recorder == null && !this.seeking
+                && this.previous == null;
+    }
+
+    /**
+     * Releases the player on request of the session manager, keeping the position for the next play().
+     */
+    protected void evict() {
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.EVICT);
+        else
+            doEvict();
+    }
+
+    protected void doEvict() {
+        PlayerEngine player = this.player;
+        if (player == null)
+            return;
+        if (!isEvictable()) {
+            // Used again since it was chosen
+            if (this.sessionManager != null)
+                this.sessionManager.acquire(this);
+            return;
+        }
+        int position = this.restoring ? this.restorePosition : player.getCurrentPosition();
+        this.restoreDuration = player.getDuration();
+        this.restorePosition = Math.max(0, position);
+        stateMachine.compareAndSet(PREPAREDTOPLAY, PAUSED);
+        releasePlayer();
+    }
+
+    private boolean isHeldStartAllowed() {
+        return awaitingStartSince >= 0 && this.player != null && isStartAllowed();
+    }
+
+    /**
+     * Starts the playback held by the start policy if it is allowed now, on the command worker when there is one.
+     */
+    protected void startHeld() {
+        if (!isHeldStartAllowed())
+            return;
+        CommandQueue queue = this.commandQueue;
+        if (queue != null)
+            queue.enqueue(CommandQueue.START_HELD);
+        else
+            onPrepared(this.player);
+    }
 
-        if (onSeekListener != null)
-            onSeekListener.onSeekComplete(this);
+    /**
+     * @return True if a start was held by the start policy
+     */
+    private boolean stopAwaitingStart() {
+        if (awaitingStartSince < 0)
+            return false;
+        awaitingStartSince = -1;
+        tickScheduler.unsubscribe(startCheck);
+        return true;
     }
 
     @Override
-    public void onBufferingUpdate(MediaPlayer mediaPlayer, int percent) {
-        if (onBufferingUpdateListener != null)
-            onBufferingUpdateListener.onBufferingUpdate(this, percent);
+    public void onBufferingUpdate(PlayerEngine engine, int percent) {
+        CachingProxy proxy = this.cachingProxy;
+        bandwidthEstimator.onBufferingUpdate(tickScheduler.now(), percent, engine.getDuration(),
+                proxy != null ? proxy.getBytesFromNetwork() : -1);
+        startHeld();
+        bufferingUpdateListeners.dispatch(bufferingUpdateNotifier, percent, 0, 0);
     }
 
 }
@@ -0,0 +1,326 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Sums tracks of float PCM into one buffer, with a gain per track, gain ramps and a saturating
+ * conversion to 16 bit.
+ * <p/>
+ * Tracks read from a Source, in the channels and the sample rate of the mixer, one buffer at a time.
+ * Their state is kept in parallel arrays and every buffer is allocated by the constructor, so mixing
+ * does not allocate. The inner loops run over primitive arrays without branches, except where a ramp
+ * ends, so the JIT can unroll and vectorize them.
+ * Control methods can be called from any thread; mix is called by the thread that writes the output.
+ */
+public class Mixer {
+
+    /**
+     * Samples of a track.
+     */
+    public interface Source {
+        /**
+         * Reads the next interleaved samples, in the -1..1 range, into buffer from index 0.
+         *
+         * @return Frames read: fewer than asked only at the end of the track
+         */
+        int read(float[] buffer, int frames);
+    }
+
+    /**
+     * Source playing a PcmClip once, converted to the channels and the sample rate of the mixer: mono is
+     * copied to every channel, more channels are averaged (first two) down to mono, and the rate is
+     * converted by linear interpolation.
+     */
+    public static class ClipSource implements Source {
+        protected final short[] samples;
+        protected final int clipChannels;
+        protected final int clipFrames;
+        protected final int channels;
+        // Position and step in frames of the clip, 16.16 fixed point
+        protected final long step;
+        protected long position;
+
+        /**
+         * Plays the clip at its own sample rate.
+         */
+        public ClipSource(PcmClip clip, int channels) {
+            this(clip, channels, clip.getSampleRate());
+        }
+
+        public ClipSource(PcmClip clip, int channels, int sampleRate) {
+            this.samples = clip.getSamples();
+            this.clipChannels = clip.getChannels();
+            this.clipFrames = samples.length / clipChannels;
+            this.channels = channels;
+            this.step = ((long) clip.getSampleRate() << 16) / sampleRate;
+        }
+
+        @Override
+        public int read(float[] buffer, int frames) {
+            if (step == 1 << 16 && clipChannels == channels) {
+                int frame = (int) (position >> 16);
+                int count = Math.min(frames, clipFrames - frame);
+                int start = frame * channels;
+                int size = count * channels;
+                for (int i = 0; i < size; i++)
+                    buffer[i] = samples[start + i] * (1f / 32768f);
+                position += (long) count << 16;
+                return count;
+            }
+            long position = this.position;
+            int f = 0;
+            for (; f < frames; f++) {
+                int index = (int) (position >> 16);
+                if (index >= clipFrames)
+                    break;
+                int fraction = (int) (position & 0xffff);
+                int next = index + 1 < clipFrames ? index + 1 : index;
+                for (int c = 0; c < channels; c++) {
+                    int a;
+                    int b;
+                    if (clipChannels == channels || clipChannels > 1 && channels > 1) {
+                        int source = c < clipChannels ? c : clipChannels - 1;
+                        a = samples[index * clipChannels + source];
+                        b = samples[next * clipChannels + source];
+                    } else if (clipChannels == 1) {
+                        a = samples[index];
+                        b = samples[next];
+                    } else {
+                        // Down to mono: average of the first two channels
+                        a = (samples[index * clipChannels] + samples[index * clipChannels + 1]) >> 1;
+                        b = (samples[next * clipChannels] + samples[next * clipChannels + 1]) >> 1;
+                    }
+                    int sample = a + (int) (((long) (b - a) * fraction) >> 16);
+                    buffer[f * channels + c] = sample * (1f / 32768f);
+                }
+                position += step;
+            }
+            this.position = position;
+            return f;
+        }
+
+        /**
+         * @return True once every frame of the clip has been read
+         */
+        public boolean isFinished() {
+            return (position >> 16) >= clipFrames;
+        }
+
+        public void rewind() {
+            position = 0;
+        }
+    }
+
+    protected final int channels;
+    protected final int framesPerBuffer;
+    protected final Source[] sources;
+    protected final float[] gains;
+    protected final float[] targets;
+    protected final float[] steps;
+    protected final int[] rampFrames;
+    protected final float[] scratch;
+    protected final float[] sum;
+    protected float masterGain = 1;
+    protected int trackCount;
+
+    /**
+     * @param channels        Interleaved channels of the sources and of the output
+     * @param framesPerBuffer Frames mixed per call to mix
+     * @param maxTracks       Tracks mixed at once
+     */
+    public Mixer(int channels, int framesPerBuffer, int maxTracks) {
+        this.channels = channels;
+        this.framesPerBuffer = framesPerBuffer;
+        this.sources = new Source[maxTracks];
+        this.gains = new float[maxTracks];
+        this.targets = new float[maxTracks];
+        this.steps = new float[maxTracks];
+        this.rampFrames = new int[maxTracks];
+        this.scratch = new float[framesPerBuffer * channels];
+        this.sum = new float[framesPerBuffer * channels];
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFramesPerBuffer() {
+        return framesPerBuffer;
+    }
+
+    public int getMaxTracks() {
+        return sources.length;
+    }
+
+    /**
+     * @return Tracks that have not ended or been removed
+     */
+    public synchronized int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * Adds a track, mixed from the next buffer.
+     *
+     * @return Index of the track, or -1 if every track is taken
+     */
+    public synchronized int addTrack(Source source, float gain) {
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] == null) {
+                sources[i] = source;
+                gains[i] = gain;
+                targets[i] = gain;
+                rampFrames[i] = 0;
+                trackCount++;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void removeTrack(int track) {
+        if (sources[track] != null) {
+            sources[track] = null;
+            trackCount--;
+        }
+    }
+
+    /**
+     * @return False if the track ended, or has been removed
+     */
+    public synchronized boolean isPlaying(int track) {
+        return sources[track] != null;
+    }
+
+    /**
+     * Moves the gain of a track linearly, e.g. to fade or to duck the music under a voice.
+     *
+     * @param gain       Linear gain, 1 for unchanged
+     * @param rampFrames Frames to reach it, 0 for at once
+     */
+    public synchronized void setGain(int track, float gain, int rampFrames) {
+        targets[track] = gain;
+        if (rampFrames <= 0) {
+            gains[track] = gain;
+            this.rampFrames[track] = 0;
+        } else {
+            steps[track] = (gain - gains[track]) / rampFrames;
+            this.rampFrames[track] = rampFrames;
+        }
+    }
+
+    /**
+     * @return Current gain of the track, moving during a ramp
+     */
+    public synchronized float getGain(int track) {
+        return gains[track];
+    }
+
+    public synchronized float getMasterGain() {
+        return masterGain;
+    }
+
+    /**
+     * @param masterGain Linear gain applied to the sum, before saturation
+     */
+    public synchronized void setMasterGain(float masterGain) {
+        this.masterGain = masterGain;
+    }
+
+    /**
+     * Mixes the next buffer of the tracks. Tracks that end are removed.
+     *
+     * @param out framesPerBuffer interleaved frames of the sum, scaled by the master gain but not saturated
+     * @return Tracks mixed
+     */
+    public int mix(float[] out) {
+        return mix(out, framesPerBuffer);
+    }
+
+    /**
+     * Mixes the next frames of the tracks, e.g. a shorter buffer. Tracks that end are removed.
+     *
+     * @param frames At most framesPerBuffer
+     * @return Tracks mixed
+     */
+    public synchronized int mix(float[] out, int frames) {
+        final int size = frames * channels;
+        for (int i = 0; i < size; i++)
+            out[i] = 0;
+        int mixed = 0;
+        for (int t = 0; t < sources.length; t++) {
+            Source source = sources[t];
+            if (source == null)
+                continue;
+            int read = source.read(scratch, frames);
+            if (read < frames) {
+                sources[t] = null;
+                trackCount--;
+            }
+            if (read <= 0)
+                continue;
+            accumulate(t, scratch, out, read * channels);
+            mixed++;
+        }
+        final float master = masterGain;
+        if (master != 1) {
+            for (int i = 0; i < size; i++)
+                out[i] *= master;
+        }
+        return mixed;
+    }
+
+    /**
+     * Mixes the next buffer and converts it to 16 bit, clipping the samples out of range.
+     *
+     * @return Tracks mixed
+     */
+    public int mix(short[] out) {
+        return mix(out, framesPerBuffer);
+    }
+
+    /**
+     * Mixes the next frames and converts them to 16 bit, clipping the samples out of range.
+     *
+     * @param frames At most framesPerBuffer
+     * @return Tracks mixed
+     */
+    public synchronized int mix(short[] out, int frames) {
+        int mixed = mix(sum, frames);
+        saturate(sum, out, frames * channels);
+        return mixed;
+    }
+
+    /**
+     * Adds the samples of a track to the mix, ramping its gain.
+     */
+    protected void accumulate(int track, float[] in, float[] mix, int size) {
+        int i = 0;
+        int ramp = rampFrames[track];
+        if (ramp > 0) {
+            float gain = gains[track];
+            final float step = steps[track];
+            int end = Math.min(ramp * channels, size);
+            for (; i < end; i += channels) {
+                gain += step;
+                for (int c = 0; c < channels; c++)
+                    mix[i + c] += in[i + c] * gain;
+            }
+            ramp -= end / channels;
+            rampFrames[track] = ramp;
+            // Ends exactly on the target, whatever the rounding of the steps
+            gains[track] = ramp > 0 ? gain : targets[track];
+        }
+        final float gain = gains[track];
+        for (; i < size; i++)
+            mix[i] += in[i] * gain;
+    }
+
+    /**
+     * Converts -1..1 samples to 16 bit, clipping the ones out of range.
+     */
+    public static void saturate(float[] in, short[] out, int size) {
+        for (int i = 0; i < size; i++) {
+            float sample = in[i] * 32768f;
+            out[i] = (short) Math.max(-32768f, Math.min(32767f, sample));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers to walk ISO base media (MP4/M4A) boxes, in a file or in memory.
+ */
+public final class Mp4Box {
+
+    public static final int FTYP = type("ftyp");
+    public static final int MOOV = type("moov");
+    public static final int MDAT = type("mdat");
+    public static final int FREE = type("free");
+    public static final int MVHD = type("mvhd");
+    public static final int TRAK = type("trak");
+    public static final int TKHD = type("tkhd");
+    public static final int EDTS = type("edts");
+    public static final int MDIA = type("mdia");
+    public static final int MDHD = type("mdhd");
+    public static final int HDLR = type("hdlr");
+    public static final int MINF = type("minf");
+    public static final int SMHD = type("smhd");
+    public static final int DINF = type("dinf");
+    public static final int DREF = type("dref");
+    public static final int STBL = type("stbl");
+    public static final int STSD = type("stsd");
+    public static final int MP4A = type("mp4a");
+    public static final int ESDS = type("esds");
+    public static final int STTS = type("stts");
+    public static final int STSC = type("stsc");
+    public static final int STSZ = type("stsz");
+    public static final int STCO = type("stco");
+    public static final int CO64 = type("co64");
+    public static final int STSS = type("stss");
+    public static final int CTTS = type("ctts");
+    public static final int UDTA = type("udta");
+
+    /**
+     * Box found in a file.
+     */
+    public static class Header {
+        public final int type;
+        public final long offset;
+        public final long size;
+        public final int headerSize;
+
+        Header(int type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        public long getPayloadOffset() {
+            return offset + headerSize;
+        }
+
+        public long getPayloadSize() {
+            return size - headerSize;
+        }
+
+        public long getEnd() {
+            return offset + size;
+        }
+    }
+
+    private Mp4Box() {
+    }
+
+    public static int type(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+
+    public static String name(int type) {
+        return new String(new char[]{(char) ((type >>> 24) & 0xff), (char) ((type >>> 16) & 0xff), (char) ((type >>> 8) & 0xff), (char) (type & 0xff)});
+    }
+
+    /**
+     * Reads the header of the box at offset.
+     *
+     * @return The header, or null if there is no complete header at offset
+     */
+    public static Header readHeader(FileChannel channel, long offset) throws IOException {
+        long fileSize = channel.size();
+        if (offset + 8 > fileSize)
+            return null;
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.limit(8);
+        readFully(channel, buffer, offset);
+        long size = buffer.getInt(0) & 0xffffffffL;
+        int type = buffer.getInt(4);
+        int headerSize = 8;
+        if (size == 1) {
+            if (offset + 16 > fileSize)
+                return null;
+            buffer.limit(16);
+            readFully(channel, buffer, offset);
+            size = buffer.getLong(8);
+            headerSize = 16;
+        } else if (size == 0) {
+            size = fileSize - offset;
+        }
+        if (size < headerSize)
+            throw new IOException("Invalid box size " + size + " at " + offset);
+        return new Header(type, offset, size, headerSize);
+    }
+
+    /**
+     * @return Top level boxes of the file, stopping at the first truncated one
+     */
+    public static List<Header> readTopLevel(FileChannel channel) throws IOException {
+        List<Header> boxes = new ArrayList<Header>();
+        long offset = 0;
+        long fileSize = channel.size();
+        Header header;
+        while ((header = readHeader(channel, offset)) != null) {
+            boxes.add(header);
+            if (header.getEnd() > fileSize)
+                break;
+            offset = header.getEnd();
+        }
+        return boxes;
+    }
+
+    /**
+     * Reads the whole box (header included) in memory.
+     */
+    public static ByteBuffer read(FileChannel channel, Header header) throws IOException {
+        if (header.size > Integer.MAX_VALUE)
+            throw new IOException("Box " + name(header.type) + " is too large");
+        ByteBuffer buffer = ByteBuffer.allocate((int) header.size);
+        readFully(channel, buffer, header.offset);
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+    /**
+     * @return Size of the in-memory box at position
+     */
+    public static int size(ByteBuffer buffer, int position) {
+        return buffer.getInt(position);
+    }
+
+    public static int type(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 4);
+    }
+
+    /**
+     * Finds a child of the in-memory container box at position.
+     *
+     * @param container Position of the container box (its 8 bytes header)
+     * @param type      Type of the child
+     * @return Position of the child box, or -1 if there is none
+     */
+    public static int child(ByteBuffer buffer, int container, int type) {
+        int end = container + size(buffer, container);
+        int position = container + 8;
+        while (position + 8 <= end) {
+            int size = size(buffer, position);
+            if (size < 8)
+                return -1;
+            if (type(buffer, position) == type)
+                return position;
+            position += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a descendant following a path of types from the container at position.
+     *
+     * @return Position of the box, or -1 if the path does not exist
+     */
+    public static int path(ByteBuffer buffer, int container, int... types) {
+        int position = container;
+        for (int type : types) {
+            position = child(buffer, position, type);
+            if (position < 0)
+                return -1;
+        }
+        return position;
+    }
+
+    /**
+     * Counts the children of a given type of the in-memory container at position.
+     */
+    public static int count(ByteBuffer buffer, int container, int type) {
+        int end = container + size(buffer, container);
+        int position = container + 8;
+        int count = 0;
+        while (position + 8 <= end) {
+            int size = size(buffer, position);
+            if (size < 8)
+                break;
+            if (type(buffer, position) == type)
+                count++;
+            position += size;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,402 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins single track MP4/M4A recordings into one file without re-encoding.
+ * <p>
+ * Only the sample tables are merged (stts, stsc, stsz and stco/co64) and the durations of
+ * mvhd, tkhd and mdhd patched. Samples are copied with {@link FileChannel#transferTo}, so the
+ * cost is one sequential copy of the audio data. moov is written before mdat.
+ */
+public class Mp4SegmentStitcher {
+
+    /**
+     * Parsed segment: the moov in memory, the mdat position and the sample tables.
+     */
+    static class Segment {
+        final File file;
+        ByteBuffer ftyp;
+        ByteBuffer moov;
+        int trak;
+        int stbl;
+        long mdatPayload;
+        long mdatSize;
+        int movieTimescale;
+        int mediaTimescale;
+        ByteBuffer stsd;
+
+        int[] sttsCounts;
+        int[] sttsDeltas;
+        int[] stscFirst;
+        int[] stscSamples;
+        int sampleSize;
+        int sampleCount;
+        int[] sampleSizes;
+        long[] chunkOffsets;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        long getMediaDuration() {
+            long duration = 0;
+            for (int i = 0; i < sttsCounts.length; i++)
+                duration += (long) sttsCounts[i] * sttsDeltas[i];
+            return duration;
+        }
+    }
+
+    private Mp4SegmentStitcher() {
+    }
+
+    /**
+     * Joins segments into output, in order.
+     *
+     * @param segments Recordings with the same sample description (codec, rate and channels)
+     * @param output   File to write; it must not be one of the segments
+     * @throws IOException if a segment can not be read or segments are not compatible
+     */
+    public static void stitch(List<File> segments, File output) throws IOException {
+        if (segments.isEmpty())
+            throw new IOException("No segments");
+        List<Segment> parsed = new ArrayList<Segment>(segments.size());
+        for (File file : segments) {
+            if (file.equals(output))
+                throw new IOException("Output can not be one of the segments");
+            parsed.add(parse(file));
+        }
+        Segment first = parsed.get(0);
+        for (Segment segment : parsed) {
+            if (segment.mediaTimescale != first.mediaTimescale || !segment.stsd.equals(first.stsd))
+                throw new IOException(segment.file + " has a different sample description");
+        }
+
+        long payload = 0;
+        for (Segment segment : parsed)
+            payload += segment.mdatSize;
+        boolean largeMdat = payload + 8 > 0xffffffffL;
+        int mdatHeader = largeMdat ? 16 : 8;
+
+        // Tables do not depend on the offsets values, so moov keeps its size
+        int ftypSize = first.ftyp != null ? first.ftyp.remaining() : 0;
+        ByteBuffer moov = buildMoov(parsed, 0, largeMdat);
+        long base = ftypSize + moov.remaining() + mdatHeader;
+        moov = buildMoov(parsed, base, largeMdat);
+
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            FileChannel channel = out.getChannel();
+            if (first.ftyp != null)
+                writeFully(channel, first.ftyp.duplicate());
+            writeFully(channel, moov);
+            ByteBuffer header = ByteBuffer.allocate(mdatHeader);
+            if (largeMdat) {
+                header.putInt(1).putInt(Mp4Box.MDAT).putLong(payload + 16);
+            } else {
+                header.putInt((int) (payload + 8)).putInt(Mp4Box.MDAT);
+            }
+            header.flip();
+            writeFully(channel, header);
+            for (Segment segment : parsed) {
+                FileInputStream in = new FileInputStream(segment.file);
+                try {
+                    FileChannel source = in.getChannel();
+                    long position = segment.mdatPayload;
+                    long remaining = segment.mdatSize;
+                    while (remaining > 0) {
+                        long count = source.transferTo(position, remaining, channel);
+                        if (count <= 0)
+                            throw new IOException("Unexpected end of " + segment.file);
+                        position += count;
+                        remaining -= count;
+                    }
+                } finally {
+                    RangeCache.closeQuietly(in);
+                }
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            RangeCache.closeQuietly(out);
+            output.delete();
+            throw e;
+        }
+        out.close();
+    }
+
+    static Segment parse(File file) throws IOException {
+        Segment segment = new Segment(file);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            int mdats = 0;
+            for (Mp4Box.Header header : Mp4Box.readTopLevel(channel)) {
+                if (header.type == Mp4Box.FTYP) {
+                    segment.ftyp = Mp4Box.read(channel, header);
+                } else if (header.type == Mp4Box.MOOV) {
+                    segment.moov = Mp4Box.read(channel, header);
+                } else if (header.type == Mp4Box.MDAT) {
+                    segment.mdatPayload = header.getPayloadOffset();
+                    segment.mdatSize = Math.min(header.getPayloadSize(), channel.size() - segment.mdatPayload);
+                    mdats++;
+                }
+            }
+            if (segment.moov == null)
+                throw new IOException(file + " has no moov (unfinished recording?)");
+            if (mdats != 1)
+                throw new IOException(file + " has " + mdats + " mdat boxes");
+        } finally {
+            RangeCache.closeQuietly(in);
+        }
+
+        ByteBuffer moov = segment.moov;
+        if (Mp4Box.count(moov, 0, Mp4Box.TRAK) != 1)
+            throw new IOException(file + " is not a single track recording");
+        int mvhd = Mp4Box.child(moov, 0, Mp4Box.MVHD);
+        segment.trak = Mp4Box.child(moov, 0, Mp4Box.TRAK);
+        int mdhd = Mp4Box.path(moov, segment.trak, Mp4Box.MDIA, Mp4Box.MDHD);
+        segment.stbl = Mp4Box.path(moov, segment.trak, Mp4Box.MDIA, Mp4Box.MINF, Mp4Box.STBL);
+        if (mvhd < 0 || mdhd < 0 || segment.stbl < 0)
+            throw new IOException(file + " has an incomplete moov");
+        segment.movieTimescale = moov.getInt(mvhd + (version(moov, mvhd) == 1 ? 28 : 20));
+        segment.mediaTimescale = moov.getInt(mdhd + (version(moov, mdhd) == 1 ? 28 : 20));
+
+        int stbl = segment.stbl;
+        int stsd = Mp4Box.child(moov, stbl, Mp4Box.STSD);
+        int stts = Mp4Box.child(moov, stbl, Mp4Box.STTS);
+        int stsc = Mp4Box.child(moov, stbl, Mp4Box.STSC);
+        int stsz = Mp4Box.child(moov, stbl, Mp4Box.STSZ);
+        int stco = Mp4Box.child(moov, stbl, Mp4Box.STCO);
+        int co64 = Mp4Box.child(moov, stbl, Mp4Box.CO64);
+        if (stsd < 0 || stts < 0 || stsc < 0 || stsz < 0 || (stco < 0 && co64 < 0))
+            throw new IOException(file + " has an incomplete sample table");
+        segment.stsd = slice(moov, stsd);
+
+        int count = moov.getInt(stts + 12);
+        segment.sttsCounts = new int[count];
+        segment.sttsDeltas = new int[count];
+        for (int i = 0; i < count; i++) {
+            segment.sttsCounts[i] = moov.getInt(stts + 16 + i * 8);
+            segment.sttsDeltas[i] = moov.getInt(stts + 20 + i * 8);
+        }
+
+        count = moov.getInt(stsc + 12);
+        segment.stscFirst = new int[count];
+        segment.stscSamples = new int[count];
+        for (int i = 0; i < count; i++) {
+            segment.stscFirst[i] = moov.getInt(stsc + 16 + i * 12);
+            segment.stscSamples[i] = moov.getInt(stsc + 20 + i * 12);
+            if (moov.getInt(stsc + 24 + i * 12) != 1)
+                throw new IOException(file + " uses more than one sample description");
+        }
+
+        segment.sampleSize = moov.getInt(stsz + 12);
+        segment.sampleCount = moov.getInt(stsz + 16);
+        if (segment.sampleSize == 0) {
+            segment.sampleSizes = new int[segment.sampleCount];
+            for (int i = 0; i < segment.sampleCount; i++)
+                segment.sampleSizes[i] = moov.getInt(stsz + 20 + i * 4);
+        }
+
+        long mdatEnd = segment.mdatPayload + segment.mdatSize;
+        if (stco >= 0) {
+            count = moov.getInt(stco + 12);
+            segment.chunkOffsets = new long[count];
+            for (int i = 0; i < count; i++)
+                segment.chunkOffsets[i] = moov.getInt(stco + 16 + i * 4) & 0xffffffffL;
+        } else {
+            count = moov.getInt(co64 + 12);
+            segment.chunkOffsets = new long[count];
+            for (int i = 0; i < count; i++)
+                segment.chunkOffsets[i] = moov.getLong(co64 + 16 + i * 8);
+        }
+        for (long offset : segment.chunkOffsets) {
+            if (offset < segment.mdatPayload || offset > mdatEnd)
+                throw new IOException(file + " has samples outside of mdat");
+        }
+        return segment;
+    }
+
+    /**
+     * Rebuilds the moov of the first segment with the merged tables.
+     *
+     * @param base Position of the first sample of the output
+     */
+    static ByteBuffer buildMoov(List<Segment> segments, long base, boolean co64) {
+        Segment first = segments.get(0);
+        long mediaDuration = 0;
+        for (Segment segment : segments)
+            mediaDuration += segment.getMediaDuration();
+        long movieDuration = first.mediaTimescale == 0 ? 0 : mediaDuration * first.movieTimescale / first.mediaTimescale;
+
+        Mp4Writer writer = new Mp4Writer();
+        copyContainer(writer, segments, first.moov, 0, base, co64, mediaDuration, movieDuration);
+        return writer.toByteBuffer();
+    }
+
+    private static void copyContainer(Mp4Writer writer, List<Segment> segments, ByteBuffer moov, int container,
+                                      long base, boolean co64, long mediaDuration, long movieDuration) {
+        writer.begin(Mp4Box.type(moov, container));
+        int end = container + Mp4Box.size(moov, container);
+        int position = container + 8;
+        while (position + 8 <= end) {
+            int size = Mp4Box.size(moov, position);
+            if (size < 8)
+                break;
+            int type = Mp4Box.type(moov, position);
+            if (type == Mp4Box.TRAK || type == Mp4Box.MDIA || type == Mp4Box.MINF) {
+                copyContainer(writer, segments, moov, position, base, co64, mediaDuration, movieDuration);
+            } else if (type == Mp4Box.STBL) {
+                writeSampleTable(writer, segments, moov, position, base, co64);
+            } else if (type == Mp4Box.MVHD || type == Mp4Box.TKHD || type == Mp4Box.MDHD) {
+                int start = writer.size();
+                writer.write(moov, position, size);
+                patchDuration(writer, start, type, type == Mp4Box.MDHD ? mediaDuration : movieDuration);
+            } else if (type != Mp4Box.EDTS) {
+                // edts of the first segment does not describe the joined track
+                writer.write(moov, position, size);
+            }
+            position += size;
+        }
+        writer.end();
+    }
+
+    private static void patchDuration(Mp4Writer writer, int start, int type, long duration) {
+        ByteBuffer box = writer.toByteBuffer();
+        boolean v1 = box.get(start + 8) == 1;
+        int offset;
+        if (type == Mp4Box.TKHD) {
+            offset = v1 ? 36 : 28;
+        } else {
+            offset = v1 ? 32 : 24;
+        }
+        if (v1) {
+            box.putLong(start + offset, duration);
+        } else {
+            box.putInt(start + offset, (int) Math.min(duration, 0xffffffffL));
+        }
+    }
+
+    private static void writeSampleTable(Mp4Writer writer, List<Segment> segments, ByteBuffer moov, int stbl,
+                                         long base, boolean co64) {
+        writer.begin(Mp4Box.STBL);
+        writer.write(segments.get(0).stsd);
+
+        // stts, merging runs across segments
+        int[] counts = new int[16];
+        int[] deltas = new int[16];
+        int runs = 0;
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.sttsCounts.length; i++) {
+                if (runs > 0 && deltas[runs - 1] == segment.sttsDeltas[i]) {
+                    counts[runs - 1] += segment.sttsCounts[i];
+                    continue;
+                }
+                if (runs == counts.length) {
+                    counts = copyOf(counts, runs * 2);
+                    deltas = copyOf(deltas, runs * 2);
+                }
+                counts[runs] = segment.sttsCounts[i];
+                deltas[runs++] = segment.sttsDeltas[i];
+            }
+        }
+        writer.beginFull(Mp4Box.STTS, 0, 0).writeInt(runs);
+        for (int i = 0; i < runs; i++)
+            writer.writeInt(counts[i]).writeInt(deltas[i]);
+        writer.end();
+
+        // stsc, first chunks shifted by the chunks of the previous segments
+        int entries = 0;
+        for (Segment segment : segments)
+            entries += segment.stscFirst.length;
+        writer.beginFull(Mp4Box.STSC, 0, 0).writeInt(entries);
+        int chunks = 0;
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.stscFirst.length; i++)
+                writer.writeInt(segment.stscFirst[i] + chunks).writeInt(segment.stscSamples[i]).writeInt(1);
+            chunks += segment.chunkOffsets.length;
+        }
+        writer.end();
+
+        // stsz, constant only if every segment has the same constant size
+        int constant = segments.get(0).sampleSize;
+        int samples = 0;
+        for (Segment segment : segments) {
+            if (segment.sampleSize != constant)
+                constant = 0;
+            samples += segment.sampleCount;
+        }
+        writer.beginFull(Mp4Box.STSZ, 0, 0).writeInt(constant).writeInt(samples);
+        if (constant == 0) {
+            for (Segment segment : segments) {
+                for (int i = 0; i < segment.sampleCount; i++)
+                    writer.writeInt(segment.sampleSize != 0 ? segment.sampleSize : segment.sampleSizes[i]);
+            }
+        }
+        writer.end();
+
+        // stco/co64, relative to the position of each segment payload in the output
+        writer.beginFull(co64 ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0).writeInt(chunks);
+        long payload = base;
+        for (Segment segment : segments) {
+            for (long offset : segment.chunkOffsets) {
+                long moved = payload + offset - segment.mdatPayload;
+                if (co64) {
+                    writer.writeLong(moved);
+                } else {
+                    writer.writeInt((int) moved);
+                }
+            }
+            payload += segment.mdatSize;
+        }
+        writer.end();
+
+        // Audio samples are all sync samples; keep the remaining boxes (sgpd, sbgp...) as they are
+        int end = stbl + Mp4Box.size(moov, stbl);
+        int position = stbl + 8;
+        while (position + 8 <= end) {
+            int size = Mp4Box.size(moov, position);
+            if (size < 8)
+                break;
+            int type = Mp4Box.type(moov, position);
+            if (type != Mp4Box.STSD && type != Mp4Box.STTS && type != Mp4Box.STSC && type != Mp4Box.STSZ
+                    && type != Mp4Box.STCO && type != Mp4Box.CO64 && type != Mp4Box.STSS && type != Mp4Box.CTTS)
+                writer.write(moov, position, size);
+            position += size;
+        }
+        writer.end();
+    }
+
+    private static int version(ByteBuffer buffer, int box) {
+        return buffer.get(box + 8);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int box) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(box);
+        copy.limit(box + Mp4Box.size(buffer, box));
+        return copy.slice();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Grows the stts runs (Arrays.copyOf is API 9)
+     */
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
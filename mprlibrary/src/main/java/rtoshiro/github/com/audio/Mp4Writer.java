@@ -0,0 +1,99 @@
+package rtoshiro.github.com.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory writer of MP4 boxes (big endian), with nested sizes patched on end().
+ */
+public class Mp4Writer extends ByteArrayOutputStream {
+
+    private int[] starts = new int[16];
+    private int depth;
+
+    public Mp4Writer() {
+        super(1024);
+    }
+
+    /**
+     * Opens a box; its size is written by the matching end().
+     */
+    public Mp4Writer begin(int type) {
+        if (depth == starts.length) {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(starts, 0, grown, 0, depth);
+            starts = grown;
+        }
+        starts[depth++] = count;
+        writeInt(0);
+        writeInt(type);
+        return this;
+    }
+
+    /**
+     * Opens a full box (with version and flags).
+     */
+    public Mp4Writer beginFull(int type, int version, int flags) {
+        begin(type);
+        writeInt((version << 24) | (flags & 0xffffff));
+        return this;
+    }
+
+    public Mp4Writer end() {
+        int start = starts[--depth];
+        int size = count - start;
+        buf[start] = (byte) (size >>> 24);
+        buf[start + 1] = (byte) (size >>> 16);
+        buf[start + 2] = (byte) (size >>> 8);
+        buf[start + 3] = (byte) size;
+        return this;
+    }
+
+    public Mp4Writer writeByte(int value) {
+        write(value);
+        return this;
+    }
+
+    public Mp4Writer writeShort(int value) {
+        write(value >>> 8);
+        write(value);
+        return this;
+    }
+
+    public Mp4Writer writeInt(int value) {
+        write(value >>> 24);
+        write(value >>> 16);
+        write(value >>> 8);
+        write(value);
+        return this;
+    }
+
+    public Mp4Writer writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+        return this;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer, without changing its position.
+     */
+    public Mp4Writer write(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining())
+            write(source.get());
+        return this;
+    }
+
+    /**
+     * Writes length bytes of the buffer from position (absolute).
+     */
+    public Mp4Writer write(ByteBuffer buffer, int position, int length) {
+        for (int i = 0; i < length; i++)
+            write(buffer.get(position + i));
+        return this;
+    }
+
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
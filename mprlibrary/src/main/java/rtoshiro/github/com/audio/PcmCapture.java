@@ -0,0 +1,324 @@
+package rtoshiro.github.com.audio;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Captures PCM from a PcmSource into a PcmRingBuffer and feeds the registered consumers.
+ * <p/>
+ * The capture thread only reads from the source into the ring, so it never waits for a consumer.
+ * Each consumer has its own thread and cursor; chunks it could not read in time are reported as lost
+ * through OnOverrunListener, and the highest lag is kept so the ring can be sized for long sessions.
+ */
+public class PcmCapture {
+
+    /**
+     * Error passed to Listener.onError when a consumer could not write, as MediaPlayer.MEDIA_ERROR_IO
+     */
+    public static final int ERROR_CONSUMER = -1004;
+
+    public interface Listener {
+        /**
+         * Called on the capture thread when the source or a consumer fails. Capture is stopped.
+         *
+         * @param capture PcmCapture that failed
+         * @param error   Error code returned by the source, or ERROR_CONSUMER
+         */
+        void onError(PcmCapture capture, int error);
+
+        /**
+         * Called on the capture thread when the max frames or max bytes limit has been reached.
+         * Capture is stopped and the consumers have received onStop when it is called.
+         *
+         * @param capture PcmCapture that reached the limit
+         * @param bytes   True if the limit was the max bytes, false if it was the max frames
+         */
+        void onLimitReached(PcmCapture capture, boolean bytes);
+    }
+
+    public interface OnOverrunListener {
+        /**
+         * Called on the consumer thread when it has missed chunks.
+         *
+         * @param capture  PcmCapture the consumer is registered to
+         * @param consumer PcmConsumer that missed chunks
+         * @param lost     Number of chunks missed since the previous call
+         */
+        void onOverrun(PcmCapture capture, PcmConsumer consumer, long lost);
+    }
+
+    protected class Worker implements Runnable {
+        final PcmConsumer consumer;
+        final PcmRingBuffer.Cursor cursor;
+        final Thread thread;
+
+        Worker(PcmConsumer consumer) {
+            this.consumer = consumer;
+            this.cursor = ring.newCursor();
+            this.thread = new Thread(this, "PcmCapture-" + consumer.getClass().getSimpleName());
+        }
+
+        @Override
+        public void run() {
+            final int frameSize = 2 * source.getChannels();
+            boolean failed = false;
+            try {
+                consumer.onStart(source.getSampleRate(), source.getChannels());
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
+                consumerFailed = true;
+            }
+            long reported = 0;
+            try {
+                ByteBuffer chunk;
+                while ((chunk = cursor.take()) != null) {
+                    if (!failed) {
+                        try {
+                            consumer.onPcm(chunk, cursor.getOffset() / frameSize);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            failed = true;
+                            consumerFailed = true;
+                        }
+                    }
+                    cursor.release();
+                    long lost = cursor.getLost();
+                    if (lost != reported) {
+                        OnOverrunListener l = onOverrunListener;
+                        if (l != null)
+                            l.onOverrun(PcmCapture.this, consumer, lost - reported);
+                        reported = lost;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+            try {
+                consumer.onStop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    protected final PcmSource source;
+    protected final PcmRingBuffer ring;
+    protected final List<PcmConsumer> consumers = new CopyOnWriteArrayList<PcmConsumer>();
+    protected final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+    protected volatile Listener listener;
+    protected volatile OnOverrunListener onOverrunListener;
+    protected volatile boolean running;
+    /**
+     * Set by a consumer thread that failed, so the capture thread stops and reports it
+     */
+    protected volatile boolean consumerFailed;
+    protected Thread captureThread;
+    protected long maxFrames;
+    protected long maxBytes;
+
+    /**
+     * @param source Source of PCM
+     * @param ring   Ring the chunks are read into; its chunk size is the size of each read
+     */
+    public PcmCapture(PcmSource source, PcmRingBuffer ring) {
+        this.source = source;
+        this.ring = ring;
+    }
+
+    /**
+     * Creates a ring sized in time.
+     *
+     * @param chunkMillis Duration of one chunk in milliseconds
+     * @param ringMillis  Duration of the whole ring in milliseconds
+     */
+    public static PcmRingBuffer createRing(PcmSource source, int chunkMillis, int ringMillis) {
+        int frameSize = 2 * source.getChannels();
+        int chunkSize = Math.max(1, source.getSampleRate() * chunkMillis / 1000) * frameSize;
+        return new PcmRingBuffer(chunkSize, Math.max(2, ringMillis / chunkMillis));
+    }
+
+    /**
+     * Registers a consumer. Consumers added while capturing are used from the next start().
+     */
+    public void addConsumer(PcmConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    public void removeConsumer(PcmConsumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setOnOverrunListener(OnOverrunListener onOverrunListener) {
+        this.onOverrunListener = onOverrunListener;
+    }
+
+    /**
+     * @param maxFrames Number of frames after which capture stops, or 0 for no limit
+     */
+    public void setMaxFrames(long maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * @param maxBytes Number of PCM bytes after which capture stops, or 0 for no limit
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        source.start();
+        ring.reset();
+        consumerFailed = false;
+        workers.clear();
+        for (PcmConsumer consumer : consumers) {
+            Worker worker = new Worker(consumer);
+            workers.add(worker);
+            worker.thread.start();
+        }
+        running = true;
+        captureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, "PcmCapture");
+        captureThread.start();
+    }
+
+    protected void capture() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        final int chunkSize = ring.getChunkSize();
+        final int frameSize = 2 * source.getChannels();
+        int error = 0;
+        boolean limitBytes = false;
+        boolean limitReached = false;
+        while (running) {
+            if (consumerFailed) {
+                error = ERROR_CONSUMER;
+                break;
+            }
+            int read = source.read(ring.writeChunk(), chunkSize);
+            if (read < 0) {
+                error = read;
+                break;
+            }
+            if (read == 0)
+                continue;
+            ring.commit(read);
+            long bytes = ring.getWrittenBytes();
+            if (maxBytes > 0 && bytes >= maxBytes) {
+                limitBytes = limitReached = true;
+                break;
+            }
+            if (maxFrames > 0 && bytes / frameSize >= maxFrames) {
+                limitReached = true;
+                break;
+            }
+        }
+        boolean stoppedHere = running;
+        running = false;
+        if (stoppedHere)
+            source.stop();
+        finish();
+
+        Listener l = listener;
+        if (l != null && stoppedHere) {
+            if (limitReached)
+                l.onLimitReached(this, limitBytes);
+            else if (error < 0)
+                l.onError(this, error);
+        }
+    }
+
+    /**
+     * Closes the ring and waits for every consumer to drain it.
+     */
+    protected void finish() {
+        ring.close();
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                worker.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops capturing. When it returns, every consumer has received onStop
+     * (unless it is called from a Listener callback, where it only returns).
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = captureThread;
+            if (running) {
+                running = false;
+                source.stop();
+            }
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void release() {
+        stop();
+        source.release();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public PcmSource getSource() {
+        return source;
+    }
+
+    public PcmRingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * @return Number of frames captured since start
+     */
+    public long getFramesCaptured() {
+        return ring.getWrittenBytes() / (2 * source.getChannels());
+    }
+
+    /**
+     * @return Number of chunks the consumer missed during the current (or last) capture, or -1 if it is not registered
+     */
+    public long getLost(PcmConsumer consumer) {
+        for (Worker worker : workers)
+            if (worker.consumer == consumer)
+                return worker.cursor.getLost();
+        return -1;
+    }
+
+    /**
+     * @return Highest number of chunks the consumer has been behind, or -1 if it is not registered
+     */
+    public long getMaxLag(PcmConsumer consumer) {
+        for (Worker worker : workers)
+            if (worker.consumer == consumer)
+                return worker.cursor.getMaxLag();
+        return -1;
+    }
+}
@@ -0,0 +1,96 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * A short audio file decoded to 16 bit PCM in memory.
+ */
+public class PcmClip {
+
+    protected final short[] samples;
+    protected final int sampleRate;
+    protected final int channels;
+
+    /**
+     * @param samples    Interleaved samples
+     * @param sampleRate Sample rate in Hz
+     * @param channels   Number of interleaved channels
+     */
+    public PcmClip(short[] samples, int sampleRate, int channels) {
+        this.samples = samples;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    /**
+     * Decodes a whole file. The decoder is released.
+     */
+    public static PcmClip decode(AudioDecoder decoder, String path) throws IOException {
+        try {
+            decoder.open(path);
+            int channels = decoder.getChannels();
+            if (channels <= 0)
+                throw new IOException(path + " has no channels");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(16384).order(ByteOrder.nativeOrder());
+            ShortBuffer shorts = buffer.asShortBuffer();
+            short[] samples = new short[16384];
+            int count = 0;
+            int read;
+            while ((read = decoder.read(buffer)) >= 0) {
+                int n = read / 2;
+                if (count + n > samples.length)
+                    samples = copyOf(samples, Math.max(samples.length * 2, count + n));
+                shorts.clear();
+                shorts.get(samples, count, n);
+                count += n;
+            }
+            count -= count % channels;
+            return new PcmClip(copyOf(samples, count), decoder.getSampleRate(), channels);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    public short[] getSamples() {
+        return samples;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFrames() {
+        return samples.length / channels;
+    }
+
+    /**
+     * @return Duration in milliseconds
+     */
+    public long getDuration() {
+        return getFrames() * 1000L / sampleRate;
+    }
+
+    /**
+     * @return Memory taken by the samples
+     */
+    public int getSizeInBytes() {
+        return samples.length * 2;
+    }
+
+    /**
+     * @return Copy of the first length samples, zero padded (Arrays.copyOf needs API 9)
+     */
+    private static short[] copyOf(short[] array, int length) {
+        short[] copy = new short[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
@@ -0,0 +1,33 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of the PCM captured by PcmCapture.
+ * Each consumer runs on its own thread, so a slow consumer does not slow down capture or other consumers.
+ */
+public interface PcmConsumer {
+
+    /**
+     * Called before the first chunk.
+     *
+     * @param sampleRate Sample rate in Hz
+     * @param channels   Number of interleaved channels
+     */
+    void onStart(int sampleRate, int channels) throws IOException;
+
+    /**
+     * Called for each captured chunk, in order.
+     * The buffer is a view of the ring (position 0, limit = chunk length) and is only valid during the call.
+     *
+     * @param buffer     16 bit native order PCM
+     * @param frameIndex Index of the first frame of the chunk since start
+     */
+    void onPcm(ByteBuffer buffer, long frameIndex) throws IOException;
+
+    /**
+     * Called after the last chunk.
+     */
+    void onStop() throws IOException;
+}
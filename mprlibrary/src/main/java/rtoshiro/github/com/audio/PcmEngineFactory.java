@@ -0,0 +1,79 @@
+package rtoshiro.github.com.audio;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * EngineFactory that plays with MediaPlayer and records raw PCM (WAV) with AudioRecord.
+ * <p/>
+ * The consumers added to the factory are attached to every recorder it creates, next to the WAV writer.
+ */
+public class PcmEngineFactory extends AndroidEngineFactory {
+
+    protected final int sampleRate;
+    protected final int channels;
+    protected final int chunkMillis;
+    protected final int ringMillis;
+    protected final List<PcmConsumer> consumers = new CopyOnWriteArrayList<PcmConsumer>();
+    protected boolean writePeaks = true;
+    protected VoiceActivityDetector voiceActivityDetector;
+    protected boolean trimSilence;
+
+    public PcmEngineFactory() {
+        this(16000, 1, 20, 2000);
+    }
+
+    /**
+     * @param sampleRate  Sample rate in Hz
+     * @param channels    1 or 2
+     * @param chunkMillis Duration of each AudioRecord read in milliseconds
+     * @param ringMillis  Duration of the ring in milliseconds, i.e. how late a consumer can be before losing data
+     */
+    public PcmEngineFactory(int sampleRate, int channels, int chunkMillis, int ringMillis) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.chunkMillis = chunkMillis;
+        this.ringMillis = ringMillis;
+    }
+
+    public void addConsumer(PcmConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    public void removeConsumer(PcmConsumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    public boolean isWritePeaks() {
+        return writePeaks;
+    }
+
+    /**
+     * @param writePeaks True (default) to write the peak file of each recording while recording
+     */
+    public void setWritePeaks(boolean writePeaks) {
+        this.writePeaks = writePeaks;
+    }
+
+    /**
+     * Detects speech in every recorder created, each with a copy of the settings of detector.
+     *
+     * @param detector    Settings of the detectors, or null for none
+     * @param trimSilence True to leave silence out of the recordings, false to write their silent spans to a SilenceFile
+     */
+    public void setVoiceActivityDetection(VoiceActivityDetector detector, boolean trimSilence) {
+        this.voiceActivityDetector = detector;
+        this.trimSilence = trimSilence;
+    }
+
+    @Override
+    public RecorderEngine createRecorder() {
+        PcmRecorderEngine engine = new PcmRecorderEngine(new AudioRecordSource(sampleRate, channels), chunkMillis, ringMillis);
+        engine.setWritePeaks(writePeaks);
+        if (voiceActivityDetector != null)
+            engine.setVoiceActivityDetector(new VoiceActivityDetector(voiceActivityDetector), trimSilence);
+        for (PcmConsumer consumer : consumers)
+            engine.addConsumer(consumer);
+        return engine;
+    }
+}
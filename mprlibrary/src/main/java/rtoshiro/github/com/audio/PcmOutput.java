@@ -0,0 +1,29 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+
+/**
+ * Sink of 16 bit PCM samples, played as they are written.
+ */
+public interface PcmOutput {
+
+    int getSampleRate();
+
+    int getChannels();
+
+    void start() throws IOException;
+
+    /**
+     * Writes interleaved samples. Blocks while the output buffer is full, which paces the writer.
+     *
+     * @return Number of samples written, or a negative error code
+     */
+    int write(short[] samples, int offset, int size);
+
+    /**
+     * Stops once the samples written so far have been played.
+     */
+    void stop();
+
+    void release();
+}
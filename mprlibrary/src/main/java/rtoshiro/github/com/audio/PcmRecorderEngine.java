@@ -0,0 +1,191 @@
+package rtoshiro.github.com.audio;
+
+import android.media.MediaRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RecorderEngine that captures raw PCM with a PcmCapture and writes it to a WAV file.
+ * <p/>
+ * Additional consumers (meters, uploaders, ...) read the same ring as the file writer.
+ * Max duration and max file size are enforced on the captured frames.
+ * <p/>
+ * With a VoiceActivityDetector, starts of speech and silence are reported with onInfo
+ * (VoiceActivityDetector.INFO_*). Silence is either left out of the file (and of its peaks) or
+ * written next to it as a SilenceFile.
+ */
+public class PcmRecorderEngine implements RecorderEngine, PcmCapture.Listener, VoiceActivityDetector.Listener {
+
+    protected final PcmSource source;
+    protected final PcmCapture capture;
+    protected final List<PcmConsumer> consumers = new ArrayList<PcmConsumer>();
+    protected volatile Listener listener;
+    protected String outputFile;
+    protected WavFileWriter writer;
+    protected PeakFileWriter peakWriter;
+    protected VoiceActivityDetector detector;
+    protected boolean trimSilence;
+    protected PcmConsumer detectorConsumer;
+    protected boolean writePeaks;
+    protected int maxDuration;
+    protected long maxFileSize;
+
+    /**
+     * @param source      Source of PCM
+     * @param chunkMillis Duration of each read in milliseconds
+     * @param ringMillis  Duration of the ring in milliseconds
+     */
+    public PcmRecorderEngine(PcmSource source, int chunkMillis, int ringMillis) {
+        this.source = source;
+        this.capture = new PcmCapture(source, PcmCapture.createRing(source, chunkMillis, ringMillis));
+        this.capture.setListener(this);
+    }
+
+    public PcmCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Adds a consumer fed with the same PCM as the file. Must be called before prepare().
+     */
+    public void addConsumer(PcmConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    /**
+     * When true, the waveform peaks are computed while recording and written next to the output file (see PeakFile).
+     */
+    public void setWritePeaks(boolean writePeaks) {
+        this.writePeaks = writePeaks;
+    }
+
+    /**
+     * Detects speech while recording. Must be called before prepare().
+     *
+     * @param detector    Detector, or null
+     * @param trimSilence True to leave silence out of the file, false to write the silent spans to a SilenceFile
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector detector, boolean trimSilence) {
+        this.detector = detector;
+        this.trimSilence = trimSilence;
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return detector;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setOutputFile(String path) {
+        this.outputFile = path;
+    }
+
+    @Override
+    public void setMaxDuration(int maxDuration) {
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        if (outputFile == null)
+            throw new IOException("No output file");
+        if (writer != null)
+            capture.removeConsumer(writer);
+        if (peakWriter != null) {
+            capture.removeConsumer(peakWriter);
+            peakWriter = null;
+        }
+        if (detectorConsumer != null) {
+            capture.removeConsumer(detectorConsumer);
+            detectorConsumer = null;
+        }
+        writer = new WavFileWriter(new File(outputFile));
+        if (writePeaks)
+            peakWriter = new PeakFileWriter(PeakFile.sidecarOf(outputFile));
+        if (detector != null && trimSilence) {
+            // The file and its peaks get the speech only
+            detector.setListener(this);
+            detector.setSilenceFile(null);
+            detectorConsumer = peakWriter != null ? new SilenceTrimmer(detector, writer, peakWriter) : new SilenceTrimmer(detector, writer);
+            capture.addConsumer(detectorConsumer);
+        } else {
+            capture.addConsumer(writer);
+            if (peakWriter != null)
+                capture.addConsumer(peakWriter);
+            if (detector != null) {
+                detector.setListener(this);
+                detector.setSilenceFile(SilenceFile.sidecarOf(outputFile));
+                detectorConsumer = detector;
+                capture.addConsumer(detector);
+            }
+        }
+        for (PcmConsumer consumer : consumers) {
+            capture.removeConsumer(consumer);
+            capture.addConsumer(consumer);
+        }
+        capture.setMaxFrames(maxDuration > 0 ? (long) maxDuration * source.getSampleRate() / 1000 : 0);
+        capture.setMaxBytes(maxFileSize > 0 ? Math.max(1, maxFileSize - WavFileWriter.HEADER_SIZE) : 0);
+    }
+
+    @Override
+    public void start() {
+        try {
+            capture.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Listener l = listener;
+            if (l != null)
+                l.onError(this, MediaRecorder.MEDIA_RECORDER_ERROR_UNKNOWN, 0);
+        }
+    }
+
+    @Override
+    public void stop() {
+        capture.stop();
+    }
+
+    @Override
+    public void release() {
+        capture.release();
+    }
+
+    @Override
+    public void onError(PcmCapture capture, int error) {
+        Listener l = listener;
+        if (l != null)
+            l.onError(this, MediaRecorder.MEDIA_RECORDER_ERROR_UNKNOWN, error);
+    }
+
+    @Override
+    public void onLimitReached(PcmCapture capture, boolean bytes) {
+        Listener l = listener;
+        if (l != null)
+            l.onInfo(this, bytes ? MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED : MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED, 0);
+    }
+
+    @Override
+    public void onVoiceStart(VoiceActivityDetector detector, long frame) {
+        Listener l = listener;
+        if (l != null)
+            l.onInfo(this, VoiceActivityDetector.INFO_VOICE_START, (int) (frame * 1000 / detector.getSampleRate()));
+    }
+
+    @Override
+    public void onSilenceStart(VoiceActivityDetector detector, long frame) {
+        Listener l = listener;
+        if (l != null)
+            l.onInfo(this, VoiceActivityDetector.INFO_SILENCE_START, (int) (frame * 1000 / detector.getSampleRate()));
+    }
+}
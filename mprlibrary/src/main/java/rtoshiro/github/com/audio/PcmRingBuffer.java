@@ -0,0 +1,215 @@
+package rtoshiro.github.com.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Single producer, multiple consumer ring of PCM chunks backed by one direct buffer.
+ * <p/>
+ * Every slice and every view is allocated up front, so neither writing nor reading allocates.
+ * The producer never waits: when a consumer falls behind by the whole ring, the chunks it missed
+ * are counted as lost and it jumps to the oldest chunk still available.
+ */
+public class PcmRingBuffer {
+
+    /**
+     * Read position of one consumer.
+     */
+    public class Cursor {
+        final ByteBuffer[] views;
+        long next;
+        long offset;
+        long lost;
+        long maxLag;
+
+        Cursor() {
+            views = new ByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++)
+                views[i] = chunks[i].duplicate().order(ByteOrder.nativeOrder());
+            next = written;
+        }
+
+        /**
+         * Waits for the next chunk.
+         *
+         * @return View of the chunk, or null if the ring has been closed and every chunk has been read
+         */
+        public ByteBuffer take() throws InterruptedException {
+            long available;
+            synchronized (lock) {
+                while ((available = written) <= next && !closed)
+                    lock.wait();
+                if (available <= next)
+                    return null;
+            }
+            long lag = available - next;
+            if (lag > maxLag)
+                maxLag = lag;
+            // the slot after the newest chunk may be being written by the producer
+            if (lag >= chunkCount) {
+                lost += lag - (chunkCount - 1);
+                next = available - (chunkCount - 1);
+            }
+            int index = (int) (next % chunkCount);
+            offset = offsets[index];
+            ByteBuffer view = views[index];
+            view.limit(lengths[index]).position(0);
+            return view;
+        }
+
+        /**
+         * Marks the chunk returned by take() as read.
+         *
+         * @return False if the producer overwrote the chunk while it was being read (it is counted as lost)
+         */
+        public boolean release() {
+            long sequence = next++;
+            if (written - sequence >= chunkCount) {
+                lost++;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return Byte offset, since the start of the capture, of the chunk returned by the last take()
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return Sequence number of the next chunk to read
+         */
+        public long getPosition() {
+            return next;
+        }
+
+        /**
+         * @return Number of chunks that have been overwritten before this consumer read them
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * @return Highest number of chunks this consumer has been behind the producer
+         */
+        public long getMaxLag() {
+            return maxLag;
+        }
+
+        /**
+         * @return Number of chunks currently waiting to be read
+         */
+        public long getLag() {
+            return Math.min(written - next, chunkCount);
+        }
+    }
+
+    protected final int chunkSize;
+    protected final int chunkCount;
+    protected final ByteBuffer buffer;
+    protected final ByteBuffer[] chunks;
+    protected final int[] lengths;
+    protected final long[] offsets;
+    protected long writtenBytes;
+    protected final Object lock = new Object();
+    protected volatile long written;
+    protected volatile boolean closed;
+
+    /**
+     * @param chunkSize  Size of one chunk in bytes (one read from the source)
+     * @param chunkCount Number of chunks in the ring
+     */
+    public PcmRingBuffer(int chunkSize, int chunkCount) {
+        if (chunkSize <= 0 || chunkCount <= 1)
+            throw new IllegalArgumentException("Invalid ring size");
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.buffer = ByteBuffer.allocateDirect(chunkSize * chunkCount).order(ByteOrder.nativeOrder());
+        this.chunks = new ByteBuffer[chunkCount];
+        this.lengths = new int[chunkCount];
+        this.offsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            buffer.limit((i + 1) * chunkSize).position(i * chunkSize);
+            chunks[i] = buffer.slice().order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return Chunk to fill with the next write. Its position is 0.
+     */
+    public ByteBuffer writeChunk() {
+        ByteBuffer chunk = chunks[(int) (written % chunkCount)];
+        chunk.clear();
+        return chunk;
+    }
+
+    /**
+     * Publishes the chunk returned by writeChunk().
+     *
+     * @param length Number of bytes written in the chunk
+     */
+    public void commit(int length) {
+        int index = (int) (written % chunkCount);
+        lengths[index] = length;
+        offsets[index] = writtenBytes;
+        writtenBytes += length;
+        synchronized (lock) {
+            written++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wakes up the consumers; they receive null once they have read every chunk.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Reopens the ring for a new capture, dropping any chunk not read yet.
+     */
+    public void reset() {
+        synchronized (lock) {
+            closed = false;
+            written = 0;
+            writtenBytes = 0;
+        }
+    }
+
+    /**
+     * @return New cursor, positioned at the next chunk to be written
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return Number of chunks written since the creation (or the last reset)
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return Number of bytes written since the creation (or the last reset)
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+}
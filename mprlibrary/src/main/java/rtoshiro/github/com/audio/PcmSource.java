@@ -0,0 +1,30 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of 16 bit PCM samples in native byte order.
+ */
+public interface PcmSource {
+
+    int getSampleRate();
+
+    int getChannels();
+
+    void start() throws IOException;
+
+    /**
+     * Reads up to size bytes into buffer, starting at index 0. Blocks until data is available.
+     * The position of buffer is not changed.
+     *
+     * @param buffer Direct buffer to read into
+     * @param size   Maximum number of bytes to read
+     * @return Number of bytes read, or a negative error code
+     */
+    int read(ByteBuffer buffer, int size);
+
+    void stop();
+
+    void release();
+}
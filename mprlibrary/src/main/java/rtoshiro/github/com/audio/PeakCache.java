@@ -0,0 +1,160 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opened peak files of audio files, generating the missing or stale ones.
+ * <p/>
+ * A peak file is stale when the length of the audio file differs from the one it was computed from,
+ * or, if unknown, when the audio file has been modified after it.
+ * get() may decode the whole audio file: call it off the main thread.
+ */
+public class PeakCache {
+
+    public interface DecoderFactory {
+        /**
+         * @return A decoder for the audio file
+         */
+        AudioDecoder createDecoder(String path);
+    }
+
+    /**
+     * WavDecoder for .wav files, MediaCodecDecoder for the others.
+     */
+    public static final DecoderFactory DEFAULT_DECODERS = new DecoderFactory() {
+        @Override
+        public AudioDecoder createDecoder(String path) {
+            if (path.toLowerCase().endsWith(".wav"))
+                return new WavDecoder();
+            return new MediaCodecDecoder();
+        }
+    };
+
+    protected final int maxEntries;
+    protected final DecoderFactory decoderFactory;
+    protected final LinkedHashMap<String, PeakFile> entries = new LinkedHashMap<String, PeakFile>(16, 0.75f, true);
+    /**
+     * Lock of each path being loaded, so a peak file is generated once however many threads ask for it
+     */
+    protected final Map<String, Loading> loading = new HashMap<String, Loading>();
+    protected int generated;
+
+    static final class Loading {
+        int users;
+    }
+
+    public PeakCache() {
+        this(8, DEFAULT_DECODERS);
+    }
+
+    /**
+     * @param maxEntries     Peak files kept mapped
+     * @param decoderFactory Decoders used to generate the missing peak files
+     */
+    public PeakCache(int maxEntries, DecoderFactory decoderFactory) {
+        this.maxEntries = maxEntries;
+        this.decoderFactory = decoderFactory;
+    }
+
+    /**
+     * @param path Path of the audio file
+     * @return Its peaks, generated first if there is no up to date peak file next to it
+     */
+    public PeakFile get(String path) throws IOException {
+        File audio = new File(path);
+        Loading lock;
+        synchronized (this) {
+            PeakFile peaks = entries.get(path);
+            if (peaks != null && isFresh(peaks, audio))
+                return peaks;
+            entries.remove(path);
+            lock = loading.get(path);
+            if (lock == null) {
+                lock = new Loading();
+                loading.put(path, lock);
+            }
+            lock.users++;
+        }
+        try {
+            synchronized (lock) {
+                // Loaded by the thread that held the lock
+                synchronized (this) {
+                    PeakFile peaks = entries.get(path);
+                    if (peaks != null && isFresh(peaks, audio))
+                        return peaks;
+                }
+                return load(path, audio);
+            }
+        } finally {
+            synchronized (this) {
+                if (--lock.users == 0)
+                    loading.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Opens the peak file of an audio file, generating it if needed, and keeps it.
+     */
+    protected PeakFile load(String path, File audio) throws IOException {
+        File file = PeakFile.sidecarOf(path);
+        PeakFile peaks = null;
+        if (file.exists()) {
+            try {
+                peaks = PeakFile.open(file);
+                if (!isFresh(peaks, audio))
+                    peaks = null;
+            } catch (IOException e) {
+                peaks = null;
+            }
+        }
+        if (peaks == null) {
+            if (!audio.exists())
+                throw new IOException(path + " does not exist");
+            PeakFileWriter.generate(decoderFactory.createDecoder(path), path, file);
+            peaks = PeakFile.open(file);
+            synchronized (this) {
+                generated++;
+            }
+        }
+
+        synchronized (this) {
+            entries.put(path, peaks);
+            Iterator<Map.Entry<String, PeakFile>> iterator = entries.entrySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return peaks;
+    }
+
+    protected boolean isFresh(PeakFile peaks, File audio) {
+        if (peaks.getSourceLength() > 0)
+            return peaks.getSourceLength() == audio.length();
+        return peaks.getFile().lastModified() >= audio.lastModified();
+    }
+
+    /**
+     * Forgets the peaks of an audio file, e.g. after it has been recorded again.
+     */
+    public synchronized void invalidate(String path) {
+        entries.remove(path);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of peak files generated by decoding
+     */
+    public synchronized int getGenerated() {
+        return generated;
+    }
+}
@@ -0,0 +1,192 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Multi-resolution waveform of an audio file, stored next to it (path + ".peaks") and memory-mapped.
+ * <p/>
+ * Each level holds the min and max sample of consecutive blocks of frames (all channels merged);
+ * each level has blocks 4 times larger than the previous one. Rendering picks the level closest to the
+ * zoom, so it reads at most a few peaks per pixel and never decodes audio.
+ * <p/>
+ * Format (big endian): magic "MPRK", version, sample rate, channels, frames (long), source length (long),
+ * level count, then for each level: frames per peak, peak count, data offset (long).
+ * Data is a (min, max) pair of shorts per peak.
+ */
+public class PeakFile {
+
+    public static final int MAGIC = 0x4d50524b;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".peaks";
+
+    static final int HEADER_SIZE = 36;
+    static final int LEVEL_SIZE = 16;
+
+    protected final File file;
+    protected final ByteBuffer buffer;
+    protected final int sampleRate;
+    protected final int channels;
+    protected final long frames;
+    protected final long sourceLength;
+    protected final int[] framesPerPeak;
+    protected final int[] counts;
+    protected final int[] offsets;
+
+    protected PeakFile(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException(file + " is not a peak file");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException(file + " has an unsupported version");
+        sampleRate = buffer.getInt(8);
+        channels = buffer.getInt(12);
+        frames = buffer.getLong(16);
+        sourceLength = buffer.getLong(24);
+        int levels = buffer.getInt(32);
+        if (levels < 0 || HEADER_SIZE + levels * LEVEL_SIZE > buffer.capacity())
+            throw new IOException(file + " is truncated");
+        framesPerPeak = new int[levels];
+        counts = new int[levels];
+        offsets = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            int position = HEADER_SIZE + i * LEVEL_SIZE;
+            framesPerPeak[i] = buffer.getInt(position);
+            counts[i] = buffer.getInt(position + 4);
+            long offset = buffer.getLong(position + 8);
+            if (framesPerPeak[i] <= 0 || offset + counts[i] * 4L > buffer.capacity())
+                throw new IOException(file + " is truncated");
+            offsets[i] = (int) offset;
+        }
+    }
+
+    /**
+     * Maps a peak file.
+     */
+    public static PeakFile open(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            // The mapping stays valid after the file is closed
+            return new PeakFile(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            RangeCache.closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return The peak file of an audio file
+     */
+    public static File sidecarOf(String path) {
+        return new File(path + EXTENSION);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return Number of frames of the audio
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return Duration of the audio in milliseconds
+     */
+    public long getDuration() {
+        return sampleRate > 0 ? frames * 1000 / sampleRate : 0;
+    }
+
+    /**
+     * @return Length of the audio file the peaks were computed from, or 0 if unknown
+     */
+    public long getSourceLength() {
+        return sourceLength;
+    }
+
+    public int getLevelCount() {
+        return counts.length;
+    }
+
+    public int getFramesPerPeak(int level) {
+        return framesPerPeak[level];
+    }
+
+    public int getPeakCount(int level) {
+        return counts[level];
+    }
+
+    public short getMin(int level, int index) {
+        return buffer.getShort(offsets[level] + index * 4);
+    }
+
+    public short getMax(int level, int index) {
+        return buffer.getShort(offsets[level] + index * 4 + 2);
+    }
+
+    /**
+     * @return The coarsest level whose peaks are not larger than framesPerPixel (0 when zoomed in past it)
+     */
+    public int levelFor(double framesPerPixel) {
+        int level = 0;
+        while (level + 1 < counts.length && framesPerPeak[level + 1] <= framesPerPixel)
+            level++;
+        return level;
+    }
+
+    /**
+     * Renders the frames [startFrame, endFrame) to pixels columns.
+     *
+     * @param mins Min sample of each column (at least pixels long)
+     * @param maxs Max sample of each column (at least pixels long)
+     * @return Number of columns rendered: fewer than pixels when the range goes past the end of the audio
+     */
+    public int render(long startFrame, long endFrame, int pixels, short[] mins, short[] maxs) {
+        if (pixels <= 0 || endFrame <= startFrame || counts.length == 0)
+            return 0;
+        double framesPerPixel = (double) (endFrame - startFrame) / pixels;
+        int level = levelFor(framesPerPixel);
+        int size = framesPerPeak[level];
+        int count = counts[level];
+        int base = offsets[level];
+        int rendered = 0;
+        for (int pixel = 0; pixel < pixels; pixel++) {
+            long from = startFrame + (long) (pixel * framesPerPixel);
+            long to = startFrame + (long) ((pixel + 1) * framesPerPixel);
+            if (from >= frames)
+                break;
+            int first = (int) (from / size);
+            int last = (int) Math.max(first, (to - 1) / size);
+            if (last >= count)
+                last = count - 1;
+            short min = Short.MAX_VALUE;
+            short max = Short.MIN_VALUE;
+            for (int i = first; i <= last; i++) {
+                short peakMin = buffer.getShort(base + i * 4);
+                short peakMax = buffer.getShort(base + i * 4 + 2);
+                if (peakMin < min)
+                    min = peakMin;
+                if (peakMax > max)
+                    max = peakMax;
+            }
+            mins[pixel] = min;
+            maxs[pixel] = max;
+            rendered++;
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,243 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * PcmConsumer that computes the peaks of the PCM as it goes and writes a PeakFile on stop.
+ * <p/>
+ * Only the finest level is kept while recording (4 bytes per block); coarser levels are derived from it on stop.
+ * The file is written to a temporary file and renamed, so readers never see a partial peak file.
+ */
+public class PeakFileWriter implements PcmConsumer {
+
+    public static final int DEFAULT_FRAMES_PER_PEAK = 256;
+    public static final int LEVEL_FACTOR = 4;
+    public static final int MAX_LEVELS = 8;
+
+    protected final File file;
+    protected final int framesPerPeak;
+    protected int sampleRate;
+    protected int channels;
+    protected long frames;
+    protected long bytes;
+    protected long sourceLength;
+    protected long sourceHeaderSize = WavFileWriter.HEADER_SIZE;
+
+    protected short[] mins = new short[1024];
+    protected short[] maxs = new short[1024];
+    protected int count;
+    protected int blockFrames;
+    protected short blockMin;
+    protected short blockMax;
+
+    public PeakFileWriter(File file) {
+        this(file, DEFAULT_FRAMES_PER_PEAK);
+    }
+
+    /**
+     * @param file          Peak file to write
+     * @param framesPerPeak Frames per peak of the finest level
+     */
+    public PeakFileWriter(File file, int framesPerPeak) {
+        this.file = file;
+        this.framesPerPeak = framesPerPeak;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the length of the audio file, stored to detect stale peak files.
+     * By default, it is the size of a WAV file with the PCM received.
+     */
+    public void setSourceLength(long sourceLength) {
+        this.sourceLength = sourceLength;
+    }
+
+    /**
+     * Computes the peak file of an audio file, decoding it.
+     *
+     * @param decoder Decoder for the audio file
+     * @param path    Path of the audio file
+     * @param file    Peak file to write
+     */
+    public static void generate(AudioDecoder decoder, String path, File file) throws IOException {
+        PeakFileWriter writer = new PeakFileWriter(file);
+        writer.setSourceLength(new File(path).length());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.nativeOrder());
+        decoder.open(path);
+        try {
+            writer.onStart(decoder.getSampleRate(), decoder.getChannels());
+            int length;
+            while ((length = decoder.read(buffer)) >= 0) {
+                buffer.position(0);
+                buffer.limit(length);
+                writer.onPcm(buffer, writer.frames);
+            }
+            writer.onStop();
+        } finally {
+            decoder.release();
+        }
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.frames = 0;
+        this.bytes = 0;
+        this.count = 0;
+        this.blockFrames = 0;
+        this.blockMin = Short.MAX_VALUE;
+        this.blockMax = Short.MIN_VALUE;
+    }
+
+    @Override
+    public void onPcm(ByteBuffer buffer, long frameIndex) {
+        // Chunks lost by this consumer are silence in the waveform, to keep it aligned with the audio
+        while (frames < frameIndex) {
+            long gap = Math.min(frameIndex - frames, framesPerPeak - blockFrames);
+            if (blockMin > 0)
+                blockMin = 0;
+            if (blockMax < 0)
+                blockMax = 0;
+            blockFrames += gap;
+            frames += gap;
+            if (blockFrames == framesPerPeak)
+                endBlock();
+        }
+
+        final int limit = buffer.limit();
+        final int frameSize = channels * 2;
+        short min = blockMin;
+        short max = blockMax;
+        int filled = blockFrames;
+        for (int i = buffer.position(); i + frameSize <= limit; i += frameSize) {
+            for (int c = 0; c < frameSize; c += 2) {
+                short sample = buffer.getShort(i + c);
+                if (sample < min)
+                    min = sample;
+                if (sample > max)
+                    max = sample;
+            }
+            if (++filled == framesPerPeak) {
+                blockMin = min;
+                blockMax = max;
+                blockFrames = filled;
+                endBlock();
+                min = Short.MAX_VALUE;
+                max = Short.MIN_VALUE;
+                filled = 0;
+            }
+        }
+        blockMin = min;
+        blockMax = max;
+        int received = (limit - buffer.position()) / frameSize;
+        frames += received;
+        bytes += received * frameSize;
+        blockFrames = filled;
+    }
+
+    protected void endBlock() {
+        if (count == mins.length) {
+            mins = copyOf(mins, count * 2);
+            maxs = copyOf(maxs, count * 2);
+        }
+        mins[count] = blockMin;
+        maxs[count] = blockMax;
+        count++;
+        blockFrames = 0;
+        blockMin = Short.MAX_VALUE;
+        blockMax = Short.MIN_VALUE;
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (blockFrames > 0)
+            endBlock();
+
+        // Levels: the finest one, then min/max of LEVEL_FACTOR peaks of the previous one
+        short[][] levelMins = new short[MAX_LEVELS][];
+        short[][] levelMaxs = new short[MAX_LEVELS][];
+        int[] levelCounts = new int[MAX_LEVELS];
+        levelMins[0] = mins;
+        levelMaxs[0] = maxs;
+        levelCounts[0] = count;
+        int levels = 1;
+        while (levels < MAX_LEVELS && levelCounts[levels - 1] > 1) {
+            short[] previousMins = levelMins[levels - 1];
+            short[] previousMaxs = levelMaxs[levels - 1];
+            int previous = levelCounts[levels - 1];
+            int size = (previous + LEVEL_FACTOR - 1) / LEVEL_FACTOR;
+            short[] levelMin = new short[size];
+            short[] levelMax = new short[size];
+            for (int i = 0; i < size; i++) {
+                short min = Short.MAX_VALUE;
+                short max = Short.MIN_VALUE;
+                int end = Math.min(previous, (i + 1) * LEVEL_FACTOR);
+                for (int j = i * LEVEL_FACTOR; j < end; j++) {
+                    if (previousMins[j] < min)
+                        min = previousMins[j];
+                    if (previousMaxs[j] > max)
+                        max = previousMaxs[j];
+                }
+                levelMin[i] = min;
+                levelMax[i] = max;
+            }
+            levelMins[levels] = levelMin;
+            levelMaxs[levels] = levelMax;
+            levelCounts[levels] = size;
+            levels++;
+        }
+
+        long dataSize = 0;
+        for (int i = 0; i < levels; i++)
+            dataSize += levelCounts[i] * 4L;
+        int headerSize = PeakFile.HEADER_SIZE + levels * PeakFile.LEVEL_SIZE;
+        ByteBuffer out = ByteBuffer.allocate((int) (headerSize + dataSize));
+        out.putInt(PeakFile.MAGIC).putInt(PeakFile.VERSION).putInt(sampleRate).putInt(channels);
+        out.putLong(frames).putLong(sourceLength > 0 ? sourceLength : sourceHeaderSize + bytes).putInt(levels);
+        long offset = headerSize;
+        int level = framesPerPeak;
+        for (int i = 0; i < levels; i++) {
+            out.putInt(level).putInt(levelCounts[i]).putLong(offset);
+            offset += levelCounts[i] * 4L;
+            level *= LEVEL_FACTOR;
+        }
+        for (int i = 0; i < levels; i++) {
+            for (int j = 0; j < levelCounts[i]; j++)
+                out.putShort(levelMins[i][j]).putShort(levelMaxs[i][j]);
+        }
+        out.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            FileChannel channel = output.getChannel();
+            while (out.hasRemaining())
+                channel.write(out);
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Grows the peak arrays: Arrays.copyOf needs API 9, the library runs on API 7
+     */
+    private static short[] copyOf(short[] array, int length) {
+        short[] copy = new short[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
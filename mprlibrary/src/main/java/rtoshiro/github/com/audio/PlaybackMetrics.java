@@ -0,0 +1,138 @@
+package rtoshiro.github.com.audio;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms of MediaPlayerRecorder, in milliseconds.
+ * <p/>
+ * One instance can be shared by every MediaPlayerRecorder of the application to aggregate them.
+ * Metrics are off unless set with MediaPlayerRecorder.setMetrics; then each measure costs a clock read
+ * and a few atomic increments.
+ */
+public class PlaybackMetrics {
+
+    public static final int MAGIC = 0x4d50524d;
+    public static final int VERSION = 1;
+
+    /**
+     * From prepareAsync to onPrepared
+     */
+    public final LatencyHistogram prepare = new LatencyHistogram("prepare");
+
+    /**
+     * From play() (or a restart after a seek) to the first advance of the playback position,
+     * probed every 10 milliseconds
+     */
+    public final LatencyHistogram firstAudio = new LatencyHistogram("first_audio");
+
+    /**
+     * From seekTo to onSeekComplete
+     */
+    public final LatencyHistogram seek = new LatencyHistogram("seek");
+
+    /**
+     * Duration of each buffering stall while playing (MEDIA_INFO_BUFFERING_START to END)
+     */
+    public final LatencyHistogram stall = new LatencyHistogram("stall");
+
+    /**
+     * Duration of the recorder prepare
+     */
+    public final LatencyHistogram recorderPrepare = new LatencyHistogram("recorder_prepare");
+
+    /**
+     * Duration of the recorder start
+     */
+    public final LatencyHistogram recorderStart = new LatencyHistogram("recorder_start");
+
+    private final AtomicLong stalls = new AtomicLong();
+
+    protected final Clock clock;
+
+    public PlaybackMetrics() {
+        this(Clock.MONOTONIC);
+    }
+
+    public PlaybackMetrics(Clock clock) {
+        this.clock = clock;
+    }
+
+    public long now() {
+        return clock.now();
+    }
+
+    public LatencyHistogram[] getHistograms() {
+        return new LatencyHistogram[]{prepare, firstAudio, seek, stall, recorderPrepare, recorderStart};
+    }
+
+    /**
+     * @return Number of buffering stalls started while playing
+     */
+    public long getStallCount() {
+        return stalls.get();
+    }
+
+    void onStallStart() {
+        stalls.incrementAndGet();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : getHistograms())
+            histogram.reset();
+        stalls.set(0);
+    }
+
+    /**
+     * @return One line per histogram, then the stall count
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        for (LatencyHistogram histogram : getHistograms())
+            histogram.writeText(out);
+        out.append("stalls count=").append(getStallCount()).append('\n');
+        return out.toString();
+    }
+
+    /**
+     * Writes a snapshot: magic, version, stall count, then the histograms.
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        LatencyHistogram[] histograms = getHistograms();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(getStallCount());
+        out.writeInt(histograms.length);
+        for (LatencyHistogram histogram : histograms)
+            histogram.writeBinary(out);
+    }
+
+    /**
+     * Reads a snapshot written by writeBinary. Unknown histograms are skipped.
+     */
+    public static PlaybackMetrics readBinary(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a metrics snapshot");
+        if (in.readInt() != VERSION)
+            throw new IOException("Unsupported metrics version");
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.stalls.set(in.readLong());
+        int count = in.readInt();
+        LatencyHistogram[] histograms = metrics.getHistograms();
+        for (int i = 0; i < count; i++) {
+            LatencyHistogram read = LatencyHistogram.readBinary(in);
+            for (LatencyHistogram histogram : histograms) {
+                if (histogram.getName().equals(read.getName()))
+                    histogram.add(read);
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
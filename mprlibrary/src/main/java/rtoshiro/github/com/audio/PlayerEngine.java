@@ -0,0 +1,118 @@
+package rtoshiro.github.com.audio;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Playback engine used by MediaPlayerRecorder.
+ * <p/>
+ * It mirrors the subset of android.media.MediaPlayer the library needs, so the state machine
+ * can run on top of the Android player or on top of a simulated one (see FakePlayerEngine).
+ */
+public interface PlayerEngine {
+
+    interface Listener {
+        /**
+         * Called when the engine is ready for playback.
+         *
+         * @param engine PlayerEngine that is prepared
+         */
+        void onPrepared(PlayerEngine engine);
+
+        /**
+         * Called when the end of the data source has been reached during playback.
+         *
+         * @param engine PlayerEngine that reached the end of the data source
+         */
+        void onCompletion(PlayerEngine engine);
+
+        /**
+         * Called to indicate an error.
+         *
+         * @param engine PlayerEngine the error pertains to
+         * @param what   the type of error (MediaPlayer.MEDIA_ERROR_*)
+         * @param extra  an extra code, specific to the error
+         * @return True if the error has been handled
+         */
+        boolean onError(PlayerEngine engine, int what, int extra);
+
+        /**
+         * Called to indicate an info or a warning.
+         *
+         * @param engine PlayerEngine the info pertains to
+         * @param what   the type of info (MediaPlayer.MEDIA_INFO_*)
+         * @param extra  an extra code, specific to the info
+         * @return True if the info has been handled
+         */
+        boolean onInfo(PlayerEngine engine, int what, int extra);
+
+        /**
+         * Called to indicate the completion of a seek operation.
+         *
+         * @param engine PlayerEngine that issued the seek operation
+         */
+        void onSeekComplete(PlayerEngine engine);
+
+        /**
+         * Called to update status in buffering a media stream received through progressive HTTP download.
+         *
+         * @param engine  PlayerEngine the update pertains to
+         * @param percent Percentage 0-100 of the content that has been buffered or played thus far
+         */
+        void onBufferingUpdate(PlayerEngine engine, int percent);
+    }
+
+    void setListener(Listener listener);
+
+    void setDataSource(String path) throws IOException;
+
+    /**
+     * Sets a part of an open file as the data source, e.g. an entry of an AudioBundle.
+     * The caller keeps the descriptor open until the engine is reset or released.
+     *
+     * @param fd     Descriptor of a seekable file
+     * @param offset Position of the media in the file
+     * @param length Length of the media in bytes
+     */
+    void setDataSource(FileDescriptor fd, long offset, long length) throws IOException;
+
+    void setLooping(boolean looping);
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void seekTo(int msec);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    /**
+     * @return True if prepareAsync has completed and the engine has not been reset since
+     */
+    boolean isPrepared();
+
+    /**
+     * @return True if prepareAsync has been called and has not completed yet
+     */
+    boolean isPreparing();
+
+    /**
+     * Sets the engine to start when this one completes, without a gap.
+     * Both engines must be prepared. Passing null removes the chained engine.
+     *
+     * @param next Engine created by the same EngineFactory, or null
+     * @return False if the platform or the engine does not support chaining
+     */
+    boolean setNextEngine(PlayerEngine next);
+
+    /**
+     * Returns the engine to its idle state, keeping the native resources for reuse.
+     */
+    void reset();
+
+    void release();
+}
@@ -0,0 +1,338 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * Bounded pool of PlayerEngine instances shared by MediaPlayerRecorder objects.
+ * <p/>
+ * Creating and preparing a player is the most expensive part of starting playback. The pool keeps
+ * two kinds of instances:
+ * - idle instances, created (or reset) and ready to receive a data source
+ * - warm instances, already preparing or prepared for a given data source (see prewarm)
+ * <p/>
+ * acquire() on a warm data source is a hit: the caller gets an engine that is prepared (or about to be),
+ * so play() starts immediately. Instances unused for longer than the idle timeout are released,
+ * and the pool never holds more than maxSize instances.
+ * <p/>
+ * While the pool holds instances, a tick every half idle timeout releases the unused ones, so they
+ * do not outlive the timeout by more than half of it even if the pool is not used anymore.
+ */
+public class PlayerPool {
+
+    protected class Slot implements PlayerEngine.Listener {
+        final PlayerEngine engine;
+        String dataSource;
+        long lastUsed;
+
+        Slot(PlayerEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public void onPrepared(PlayerEngine engine) {
+        }
+
+        @Override
+        public void onCompletion(PlayerEngine engine) {
+        }
+
+        @Override
+        public boolean onError(PlayerEngine engine, int what, int extra) {
+            discard(this);
+            return true;
+        }
+
+        @Override
+        public boolean onInfo(PlayerEngine engine, int what, int extra) {
+            return false;
+        }
+
+        @Override
+        public void onSeekComplete(PlayerEngine engine) {
+        }
+
+        @Override
+        public void onBufferingUpdate(PlayerEngine engine, int percent) {
+        }
+    }
+
+    protected final EngineFactory engineFactory;
+    protected final Clock clock;
+    protected final TickScheduler tickScheduler;
+    protected final int maxSize;
+    protected final long idleTimeout;
+
+    protected final LinkedList<Slot> idle = new LinkedList<Slot>();
+    protected final LinkedHashMap<String, Slot> warm = new LinkedHashMap<String, Slot>(16, 0.75f, true);
+
+    protected long hits;
+    protected long misses;
+    protected long evictions;
+    protected long created;
+
+    private final TickScheduler.OnTickListener evictionTick = new TickScheduler.OnTickListener() {
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            evictIdle();
+        }
+    };
+
+    /**
+     * @param engineFactory Factory used to create new engines
+     * @param maxSize       Maximum number of instances held by the pool (leased instances are not counted)
+     * @param idleTimeout   Time in milliseconds after which an unused instance is released
+     */
+    public PlayerPool(EngineFactory engineFactory, int maxSize, long idleTimeout) {
+        this(engineFactory, maxSize, idleTimeout, TickScheduler.getShared());
+    }
+
+    public PlayerPool(EngineFactory engineFactory, int maxSize, long idleTimeout, Scheduler scheduler) {
+        this(engineFactory, maxSize, idleTimeout, new TickScheduler(scheduler));
+    }
+
+    /**
+     * @param tickScheduler Ticks releasing the unused instances, and clock of the pool
+     */
+    public PlayerPool(EngineFactory engineFactory, int maxSize, long idleTimeout, TickScheduler tickScheduler) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        if (idleTimeout <= 0)
+            throw new IllegalArgumentException("idleTimeout must be positive");
+        this.engineFactory = engineFactory;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.clock = tickScheduler.getScheduler();
+        this.tickScheduler = tickScheduler;
+    }
+
+    /**
+     * Creates idle instances until the pool holds count instances (bounded by maxSize).
+     *
+     * @param count Number of instances to keep ready
+     */
+    public synchronized void prefill(int count) {
+        count = Math.min(count, maxSize);
+        long now = clock.now();
+        while (size() < count) {
+            Slot slot = createSlot();
+            slot.lastUsed = now;
+            idle.add(slot);
+        }
+        updateEvictionTick();
+    }
+
+    /**
+     * Starts preparing an instance for the data source in the background.
+     * A following acquire() for the same data source will be a hit.
+     *
+     * @param dataSource The path of the file or the http URL of the stream
+     */
+    public synchronized void prewarm(String dataSource) {
+        long now = clock.now();
+        evictIdle(now);
+
+        Slot slot = warm.get(dataSource);
+        if (slot != null) {
+            slot.lastUsed = now;
+            return;
+        }
+
+        slot = idle.poll();
+        if (slot == null) {
+            if (size() >= maxSize) {
+                if (warm.isEmpty())
+                    return;
+                Iterator<Slot> it = warm.values().iterator();
+                Slot eldest = it.next();
+                it.remove();
+                eldest.engine.release();
+                evictions++;
+            }
+            slot = createSlot();
+        }
+
+        try {
+            slot.engine.setListener(slot);
+            slot.engine.setDataSource(dataSource);
+            slot.engine.prepareAsync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            slot.engine.release();
+            return;
+        }
+        slot.dataSource = dataSource;
+        slot.lastUsed = now;
+        warm.put(dataSource, slot);
+        updateEvictionTick();
+    }
+
+    /**
+     * Leases an engine with the data source already set.
+     * If the data source has been prewarmed, the engine is preparing or prepared (see PlayerEngine.isPrepared).
+     * The caller owns the engine until it gives it back through recycle().
+     *
+     * @param dataSource The path of the file or the http URL of the stream
+     * @return Engine with the data source set
+     * @throws IOException If the data source cannot be set
+     */
+    public synchronized PlayerEngine acquire(String dataSource) throws IOException {
+        long now = clock.now();
+        evictIdle(now);
+
+        Slot slot = warm.remove(dataSource);
+        if (slot != null) {
+            hits++;
+            slot.engine.setListener(null);
+            updateEvictionTick();
+            return slot.engine;
+        }
+
+        misses++;
+        slot = idle.poll();
+        if (slot == null)
+            slot = createSlot();
+        updateEvictionTick();
+        slot.engine.setListener(null);
+        try {
+            slot.engine.setDataSource(dataSource);
+        } catch (IOException e) {
+            slot.engine.release();
+            throw e;
+        }
+        return slot.engine;
+    }
+
+    /**
+     * Gives an engine back to the pool. It is reset and kept idle, or released if the pool is full.
+     *
+     * @param engine Engine previously returned by acquire()
+     */
+    public synchronized void recycle(PlayerEngine engine) {
+        long now = clock.now();
+        evictIdle(now);
+
+        if (size() >= maxSize) {
+            engine.release();
+            return;
+        }
+        engine.reset();
+        Slot slot = new Slot(engine);
+        engine.setListener(slot);
+        slot.lastUsed = now;
+        idle.add(slot);
+        updateEvictionTick();
+    }
+
+    /**
+     * Releases every instance unused for longer than the idle timeout.
+     */
+    public synchronized void evictIdle() {
+        evictIdle(clock.now());
+        updateEvictionTick();
+    }
+
+    protected void evictIdle(long now) {
+        long limit = now - idleTimeout;
+        Iterator<Slot> it = idle.iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next();
+            if (slot.lastUsed < limit) {
+                it.remove();
+                slot.engine.release();
+                evictions++;
+            }
+        }
+        it = warm.values().iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next();
+            if (slot.lastUsed < limit) {
+                it.remove();
+                slot.engine.release();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Releases every instance held by the pool. Leased instances are not affected.
+     */
+    public synchronized void clear() {
+        for (Slot slot : idle)
+            slot.engine.release();
+        for (Slot slot : warm.values())
+            slot.engine.release();
+        idle.clear();
+        warm.clear();
+        updateEvictionTick();
+    }
+
+    protected synchronized void discard(Slot slot) {
+        if (slot.dataSource != null && warm.get(slot.dataSource) == slot) {
+            warm.remove(slot.dataSource);
+            slot.engine.release();
+            updateEvictionTick();
+        }
+    }
+
+    /**
+     * Ticks while the pool holds instances, stops with the last one.
+     */
+    private void updateEvictionTick() {
+        if (size() > 0)
+            tickScheduler.subscribe(evictionTick, Math.max(1, idleTimeout / 2));
+        else
+            tickScheduler.unsubscribe(evictionTick);
+    }
+
+    protected Slot createSlot() {
+        created++;
+        return new Slot(engineFactory.createPlayer());
+    }
+
+    /**
+     * @return Number of instances held by the pool (idle and warm)
+     */
+    public synchronized int size() {
+        return idle.size() + warm.size();
+    }
+
+    public synchronized boolean isWarm(String dataSource) {
+        return warm.containsKey(dataSource);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return Number of acquire() calls served by a prewarmed instance
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of acquire() calls that had to set the data source and prepare from scratch
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of engines created by the pool
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+}
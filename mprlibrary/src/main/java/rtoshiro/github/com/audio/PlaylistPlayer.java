@@ -0,0 +1,353 @@
+package rtoshiro.github.com.audio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plays a queue of data sources one after the other, without gaps.
+ * <p/>
+ * Each entry is played by its own MediaPlayerRecorder. While one entry plays, the next
+ * prefetchDepth entries are prepared in advance, and the next one is chained to the current one
+ * (see MediaPlayerRecorder.setNextMediaPlayerRecorder) when the platform allows it, so the engine
+ * itself starts it at completion. Otherwise, the prepared next entry is started from onCompletion.
+ * <p/>
+ * The time between the completion of an entry and the first audio of the next one (when its position
+ * starts advancing) is reported as the handoff latency.
+ */
+public class PlaylistPlayer implements MediaPlayerRecorder.OnCompletionListener, MediaPlayerRecorder.OnPreparedListener {
+
+    public interface OnHandoffListener {
+        /**
+         * Called when the playlist has moved to a new entry at completion of the previous one.
+         *
+         * @param playlist PlaylistPlayer that moved
+         * @param index    Index of the entry now playing
+         * @param latency  Time in milliseconds between the completion of the previous entry and the first audio of this one
+         * @param chained  True if the engine started the entry itself (gapless)
+         */
+        void onHandoff(PlaylistPlayer playlist, int index, long latency, boolean chained);
+    }
+
+    public interface OnPlaylistCompletionListener {
+        /**
+         * Called when the last entry of the playlist has completed.
+         *
+         * @param playlist PlaylistPlayer that completed
+         */
+        void onPlaylistCompletion(PlaylistPlayer playlist);
+    }
+
+    protected final EngineFactory engineFactory;
+    protected final Clock clock;
+    protected final TickScheduler tickScheduler;
+    protected final List<String> queue = new ArrayList<String>();
+    protected final Map<Integer, MediaPlayerRecorder> loaded = new HashMap<Integer, MediaPlayerRecorder>();
+    protected final LinkedList<MediaPlayerRecorder> spare = new LinkedList<MediaPlayerRecorder>();
+
+    protected PlayerPool playerPool;
+    protected int prefetchDepth = 1;
+    protected int index;
+    protected long handoffStart = -1;
+    protected boolean handoffChained;
+    protected long lastHandoffLatency = -1;
+    protected long maxHandoffLatency = -1;
+
+    protected OnHandoffListener onHandoffListener;
+    protected OnPlaylistCompletionListener onPlaylistCompletionListener;
+
+    /**
+     * Polls the position of the entry handed off to, until it advances
+     */
+    protected final TickScheduler.OnTickListener handoffProbe = new TickScheduler.OnTickListener() {
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            MediaPlayerRecorder current = loaded.get(index);
+            if (handoffStart < 0 || current == null) {
+                scheduler.unsubscribe(this);
+                return;
+            }
+            if (current.getCurrentState() != MediaPlayerRecorder.PLAYING)
+                return;
+            int position = current.getCurrentPosition();
+            if (position > 0) {
+                // The audio started position milliseconds ago
+                scheduler.unsubscribe(this);
+                handoffDone(Math.max(handoffStart, now - position));
+            }
+        }
+    };
+
+    public PlaylistPlayer() {
+        this(new AndroidEngineFactory(), TickScheduler.getShared());
+    }
+
+    /**
+     * @param engineFactory Factory of the engines used by each entry
+     * @param scheduler     Timer and clock used to measure the handoff latency
+     */
+    public PlaylistPlayer(EngineFactory engineFactory, Scheduler scheduler) {
+        this(engineFactory, new TickScheduler(scheduler));
+    }
+
+    /**
+     * @param engineFactory Factory of the engines used by each entry
+     * @param tickScheduler Ticks of the entries and of the handoff measurement
+     */
+    public PlaylistPlayer(EngineFactory engineFactory, TickScheduler tickScheduler) {
+        this.engineFactory = engineFactory;
+        this.clock = tickScheduler.getScheduler();
+        this.tickScheduler = tickScheduler;
+    }
+
+    public void add(String dataSource) {
+        queue.add(dataSource);
+        if (!loaded.isEmpty())
+            prefetch();
+    }
+
+    public void addAll(List<String> dataSources) {
+        queue.addAll(dataSources);
+        if (!loaded.isEmpty())
+            prefetch();
+    }
+
+    /**
+     * Releases every entry and empties the queue.
+     */
+    public void clear() {
+        for (MediaPlayerRecorder mpr : loaded.values())
+            mpr.release();
+        loaded.clear();
+        queue.clear();
+        index = 0;
+        handoffStart = -1;
+        tickScheduler.unsubscribe(handoffProbe);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public String get(int index) {
+        return queue.get(index);
+    }
+
+    public int getCurrentIndex() {
+        return index;
+    }
+
+    /**
+     * @return MediaPlayerRecorder of the current entry, or null if it has not been loaded yet
+     */
+    public MediaPlayerRecorder getCurrent() {
+        return loaded.get(index);
+    }
+
+    /**
+     * Starts or resumes the current entry.
+     *
+     * @return False if the queue is empty or the entry could not be started
+     */
+    public boolean play() {
+        if (index >= queue.size())
+            return false;
+        MediaPlayerRecorder current = load(index);
+        boolean result = current.play();
+        prefetch();
+        return result;
+    }
+
+    public void pause() {
+        MediaPlayerRecorder current = loaded.get(index);
+        if (current != null)
+            current.pause();
+    }
+
+    public boolean isPlaying() {
+        MediaPlayerRecorder current = loaded.get(index);
+        return current != null && current.isPlaying();
+    }
+
+    /**
+     * Moves to the entry at the given index and starts it.
+     *
+     * @param index Index in the queue
+     * @return False if the entry could not be started
+     */
+    public boolean skipTo(int index) {
+        if (index < 0 || index >= queue.size())
+            throw new IndexOutOfBoundsException("Invalid playlist index " + index);
+        MediaPlayerRecorder current = loaded.get(this.index);
+        if (current != null) {
+            current.setNextMediaPlayerRecorder(null);
+            current.pause();
+        }
+        this.index = index;
+        this.handoffStart = -1;
+        tickScheduler.unsubscribe(handoffProbe);
+        unloadOutsideWindow();
+        return play();
+    }
+
+    public boolean next() {
+        return index + 1 < queue.size() && skipTo(index + 1);
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Sets how many entries after the current one are kept prepared.
+     * 0 disables prefetching (and gapless chaining).
+     *
+     * @param prefetchDepth Number of entries to prepare in advance
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        if (prefetchDepth < 0)
+            throw new IllegalArgumentException("prefetchDepth must not be negative");
+        this.prefetchDepth = prefetchDepth;
+        unloadOutsideWindow();
+        if (!loaded.isEmpty())
+            prefetch();
+    }
+
+    public PlayerPool getPlayerPool() {
+        return playerPool;
+    }
+
+    /**
+     * @param playerPool Pool shared by the entries, or null
+     */
+    public void setPlayerPool(PlayerPool playerPool) {
+        this.playerPool = playerPool;
+    }
+
+    /**
+     * @return Latency in milliseconds of the last handoff, or -1 if there was none
+     */
+    public long getLastHandoffLatency() {
+        return lastHandoffLatency;
+    }
+
+    /**
+     * @return Highest handoff latency in milliseconds, or -1 if there was none
+     */
+    public long getMaxHandoffLatency() {
+        return maxHandoffLatency;
+    }
+
+    public OnHandoffListener getOnHandoffListener() {
+        return onHandoffListener;
+    }
+
+    public void setOnHandoffListener(OnHandoffListener onHandoffListener) {
+        this.onHandoffListener = onHandoffListener;
+    }
+
+    public OnPlaylistCompletionListener getOnPlaylistCompletionListener() {
+        return onPlaylistCompletionListener;
+    }
+
+    public void setOnPlaylistCompletionListener(OnPlaylistCompletionListener onPlaylistCompletionListener) {
+        this.onPlaylistCompletionListener = onPlaylistCompletionListener;
+    }
+
+    protected MediaPlayerRecorder load(int index) {
+        MediaPlayerRecorder mpr = loaded.get(index);
+        if (mpr == null) {
+            mpr = spare.poll();
+            if (mpr == null) {
+                mpr = new MediaPlayerRecorder(engineFactory, tickScheduler);
+                mpr.setOnCompletionListener(this);
+                mpr.setOnPreparedListener(this);
+            }
+            mpr.setPlayerPool(playerPool);
+            mpr.setDataSource(queue.get(index));
+            loaded.put(index, mpr);
+        }
+        return mpr;
+    }
+
+    /**
+     * Prepares the entries after the current one and chains the next one when possible.
+     */
+    protected void prefetch() {
+        int last = Math.min(queue.size() - 1, index + prefetchDepth);
+        for (int i = index + 1; i <= last; i++) {
+            MediaPlayerRecorder mpr = load(i);
+            if (mpr.getCurrentState() == MediaPlayerRecorder.NONE)
+                mpr.prepareToPlay();
+        }
+        chain();
+    }
+
+    protected void chain() {
+        MediaPlayerRecorder current = loaded.get(index);
+        MediaPlayerRecorder next = loaded.get(index + 1);
+        if (current != null && next != null && current.getNextMediaPlayerRecorder() != next)
+            current.setNextMediaPlayerRecorder(next);
+    }
+
+    protected void unloadOutsideWindow() {
+        Iterator<Map.Entry<Integer, MediaPlayerRecorder>> it = loaded.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, MediaPlayerRecorder> entry = it.next();
+            int i = entry.getKey();
+            if (i < index || i > index + prefetchDepth) {
+                it.remove();
+                entry.getValue().release();
+                spare.add(entry.getValue());
+            }
+        }
+    }
+
+    protected void handoffDone(long now) {
+        long latency = now - handoffStart;
+        handoffStart = -1;
+        lastHandoffLatency = latency;
+        if (latency > maxHandoffLatency)
+            maxHandoffLatency = latency;
+        if (onHandoffListener != null)
+            onHandoffListener.onHandoff(this, index, latency, handoffChained);
+    }
+
+    @Override
+    public void onCompletion(MediaPlayerRecorder mpr, boolean success) {
+        if (loaded.get(index) != mpr)
+            return;
+        long now = clock.now();
+
+        index++;
+        unloadOutsideWindow();
+        if (index >= queue.size()) {
+            index = queue.size();
+            if (onPlaylistCompletionListener != null)
+                onPlaylistCompletionListener.onPlaylistCompletion(this);
+            return;
+        }
+
+        MediaPlayerRecorder current = load(index);
+        handoffStart = now;
+        handoffChained = current.getCurrentState() == MediaPlayerRecorder.PLAYING;
+        if (!handoffChained)
+            current.play();
+        tickScheduler.subscribe(handoffProbe, MediaPlayerRecorder.FIRST_AUDIO_PROBE_INTERVAL);
+        prefetch();
+    }
+
+    @Override
+    public void onPlayerPrepared(MediaPlayerRecorder mpr) {
+        MediaPlayerRecorder current = loaded.get(index);
+        if (mpr == current || mpr == loaded.get(index + 1))
+            chain();
+    }
+
+    @Override
+    public void onRecorderPrepared(MediaPlayerRecorder mpr) {
+    }
+}
@@ -0,0 +1,121 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used results of AudioProbe, keyed by path, length and modification time:
+ * a file that changed is probed again. Files that cannot be probed are remembered too, until they change.
+ */
+public class ProbeCache {
+
+    private static volatile ProbeCache shared;
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final AudioProbe.Info info;
+
+        Entry(long length, long lastModified, AudioProbe.Info info) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.info = info;
+        }
+    }
+
+    protected final int maxEntries;
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    protected int hits;
+    protected int misses;
+
+    public ProbeCache() {
+        this(256);
+    }
+
+    /**
+     * @param maxEntries Results kept
+     */
+    public ProbeCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return The cache used by default by MediaPlayerRecorder
+     */
+    public static ProbeCache getShared() {
+        ProbeCache cache = shared;
+        if (cache == null) {
+            synchronized (ProbeCache.class) {
+                cache = shared;
+                if (cache == null)
+                    shared = cache = new ProbeCache();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Probes a file, unless it did not change since it was last probed. Reads headers only, but may
+     * still touch storage: keep it off loops on the main thread.
+     *
+     * @return What its headers tell, or null if it does not exist or cannot be probed
+     */
+    public AudioProbe.Info get(String path) {
+        File file = new File(path);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (lastModified == 0)
+            return null;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                hits++;
+                return entry.info;
+            }
+            misses++;
+        }
+
+        AudioProbe.Info info;
+        try {
+            info = AudioProbe.probe(file);
+        } catch (IOException e) {
+            info = null;
+        } catch (RuntimeException e) {
+            // Malformed boxes
+            info = null;
+        }
+
+        synchronized (this) {
+            entries.put(path, new Entry(length, lastModified, info));
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return info;
+    }
+
+    public synchronized void invalidate(String path) {
+        entries.remove(path);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,418 @@
+package rtoshiro.github.com.audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * On-disk cache of byte ranges of remote resources, bounded by a byte budget.
+ * <p/>
+ * Each resource has a sparse data file and an index file holding its length, content type and
+ * the list of cached spans. When the cached bytes exceed the budget, the least recently used
+ * resources that are not open are deleted.
+ */
+public class RangeCache {
+
+    private static final int INDEX_MAGIC = 0x4d505252; // MPRR
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Cached resource. Obtained with open() and given back with close().
+     */
+    public class Entry {
+        final String key;
+        final File dataFile;
+        final File indexFile;
+        String url;
+        long length = -1;
+        String contentType;
+        // sorted, non overlapping [start, end) pairs
+        long[] spans = new long[8];
+        int spanCount;
+        long cachedBytes;
+        int users;
+        RandomAccessFile file;
+        boolean dirty;
+
+        Entry(String key) {
+            this.key = key;
+            this.dataFile = new File(directory, key + ".data");
+            this.indexFile = new File(directory, key + ".index");
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return Length of the resource in bytes, or -1 if unknown
+         */
+        public synchronized long getLength() {
+            return length;
+        }
+
+        public synchronized String getContentType() {
+            return contentType;
+        }
+
+        public synchronized long getCachedBytes() {
+            return cachedBytes;
+        }
+
+        public void setInfo(long length, String contentType) {
+            long dropped = 0;
+            synchronized (this) {
+                if (this.length != length) {
+                    // the resource has changed, cached spans are not valid anymore
+                    dropped = cachedBytes;
+                    spanCount = 0;
+                    cachedBytes = 0;
+                    this.length = length;
+                    dirty = true;
+                }
+                if (contentType != null && !contentType.equals(this.contentType)) {
+                    this.contentType = contentType;
+                    dirty = true;
+                }
+            }
+            if (dropped != 0)
+                added(-dropped);
+        }
+
+        /**
+         * @param position Offset in the resource
+         * @return Number of contiguous cached bytes starting at position (0 if position is not cached)
+         */
+        public synchronized long available(long position) {
+            int i = find(position);
+            if (i >= 0)
+                return spans[2 * i + 1] - position;
+            return 0;
+        }
+
+        /**
+         * @param position Offset in the resource
+         * @return Start of the first cached span after position, or -1 if there is none
+         */
+        public synchronized long nextCachedStart(long position) {
+            for (int i = 0; i < spanCount; i++)
+                if (spans[2 * i] > position)
+                    return spans[2 * i];
+            return -1;
+        }
+
+        public synchronized int read(long position, byte[] buffer, int offset, int count) throws IOException {
+            long available = available(position);
+            if (available <= 0)
+                return -1;
+            count = (int) Math.min(count, available);
+            RandomAccessFile f = file();
+            f.seek(position);
+            f.readFully(buffer, offset, count);
+            return count;
+        }
+
+        public void write(long position, byte[] buffer, int offset, int count) throws IOException {
+            long delta;
+            synchronized (this) {
+                RandomAccessFile f = file();
+                f.seek(position);
+                f.write(buffer, offset, count);
+                delta = addSpan(position, position + count);
+                dirty = true;
+            }
+            if (delta != 0)
+                added(delta);
+        }
+
+        private int find(long position) {
+            int low = 0;
+            int high = spanCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (spans[2 * mid + 1] <= position)
+                    low = mid + 1;
+                else if (spans[2 * mid] > position)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        /**
+         * @return Number of bytes newly covered
+         */
+        private long addSpan(long start, long end) {
+            long[] merged = new long[(spanCount + 1) * 2];
+            int n = 0;
+            boolean placed = false;
+            for (int i = 0; i < spanCount; i++) {
+                long s = spans[2 * i];
+                long e = spans[2 * i + 1];
+                if (e < start) {
+                    merged[n++] = s;
+                    merged[n++] = e;
+                } else if (s > end) {
+                    if (!placed) {
+                        merged[n++] = start;
+                        merged[n++] = end;
+                        placed = true;
+                    }
+                    merged[n++] = s;
+                    merged[n++] = e;
+                } else {
+                    start = Math.min(start, s);
+                    end = Math.max(end, e);
+                }
+            }
+            if (!placed) {
+                merged[n++] = start;
+                merged[n++] = end;
+            }
+            long total = 0;
+            for (int i = 0; i < n; i += 2)
+                total += merged[i + 1] - merged[i];
+            long delta = total - cachedBytes;
+            spans = merged;
+            spanCount = n / 2;
+            cachedBytes = total;
+            return delta;
+        }
+
+        private RandomAccessFile file() throws IOException {
+            if (file == null)
+                file = new RandomAccessFile(dataFile, "rw");
+            return file;
+        }
+
+        synchronized void flush() {
+            if (!dirty)
+                return;
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeUTF(url);
+                out.writeLong(length);
+                out.writeUTF(contentType != null ? contentType : "");
+                out.writeInt(spanCount);
+                for (int i = 0; i < spanCount * 2; i++)
+                    out.writeLong(spans[i]);
+                dirty = false;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        synchronized boolean load() {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+                    return false;
+                url = in.readUTF();
+                length = in.readLong();
+                contentType = in.readUTF();
+                if (contentType.length() == 0)
+                    contentType = null;
+                spanCount = in.readInt();
+                spans = new long[Math.max(8, spanCount * 2)];
+                cachedBytes = 0;
+                for (int i = 0; i < spanCount; i++) {
+                    spans[2 * i] = in.readLong();
+                    spans[2 * i + 1] = in.readLong();
+                    cachedBytes += spans[2 * i + 1] - spans[2 * i];
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        synchronized void delete() {
+            closeQuietly(file);
+            file = null;
+            dataFile.delete();
+            indexFile.delete();
+            spanCount = 0;
+            cachedBytes = 0;
+        }
+
+        synchronized void closeFile() {
+            closeQuietly(file);
+            file = null;
+        }
+    }
+
+    protected final File directory;
+    protected final long maxBytes;
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    protected long totalBytes;
+    protected long evictions;
+
+    /**
+     * @param directory Directory where data and index files are stored (created if needed)
+     * @param maxBytes  Budget of cached bytes
+     */
+    public RangeCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+        loadEntries();
+    }
+
+    /**
+     * Opens the entry of the url, creating it if needed.
+     * Open entries are never evicted.
+     */
+    public synchronized Entry open(String url) {
+        String key = keyOf(url);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entry.url = url;
+            entry.dirty = true;
+            entries.put(key, entry);
+        }
+        entry.users++;
+        return entry;
+    }
+
+    /**
+     * Gives back an entry obtained with open(), persisting its index.
+     */
+    public void close(Entry entry) {
+        entry.flush();
+        synchronized (this) {
+            entry.users--;
+            if (entry.users == 0)
+                entry.closeFile();
+            trim();
+        }
+    }
+
+    /**
+     * Deletes every entry that is not open.
+     */
+    public synchronized void clear() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.users == 0) {
+                totalBytes -= entry.getCachedBytes();
+                entry.delete();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    protected synchronized void added(long delta) {
+        totalBytes += delta;
+    }
+
+    protected void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.users > 0)
+                continue;
+            totalBytes -= entry.getCachedBytes();
+            entry.delete();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    protected void loadEntries() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        List<File> indexes = new ArrayList<File>();
+        for (File f : files)
+            if (f.getName().endsWith(".index"))
+                indexes.add(f);
+        // oldest first, so the LRU order survives restarts
+        Collections.sort(indexes, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File f : indexes) {
+            String name = f.getName();
+            Entry entry = new Entry(name.substring(0, name.length() - ".index".length()));
+            if (entry.load() && entry.dataFile.exists()) {
+                entries.put(entry.key, entry);
+                totalBytes += entry.cachedBytes;
+            } else {
+                entry.delete();
+            }
+        }
+        trim();
+    }
+
+    protected static String keyOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            char[] hex = new char[digest.length * 2];
+            final char[] digits = "0123456789abcdef".toCharArray();
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = digits[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = digits[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+
+/**
+ * Recording engine used by MediaPlayerRecorder.
+ * <p/>
+ * It mirrors the subset of android.media.MediaRecorder the library needs, so the state machine
+ * can run on top of the Android recorder or on top of a simulated one (see FakeRecorderEngine).
+ */
+public interface RecorderEngine {
+
+    interface Listener {
+        /**
+         * Called when an error occurs while recording.
+         *
+         * @param engine RecorderEngine that encountered the error
+         * @param what   the type of error (MediaRecorder.MEDIA_RECORDER_ERROR_*)
+         * @param extra  an extra code, specific to the error
+         */
+        void onError(RecorderEngine engine, int what, int extra);
+
+        /**
+         * Called when an info or a warning occurs while recording.
+         *
+         * @param engine RecorderEngine the info pertains to
+         * @param what   the type of info (MediaRecorder.MEDIA_RECORDER_INFO_*)
+         * @param extra  an extra code, specific to the info
+         */
+        void onInfo(RecorderEngine engine, int what, int extra);
+    }
+
+    void setListener(Listener listener);
+
+    void setOutputFile(String path);
+
+    void setMaxDuration(int maxDuration);
+
+    void setMaxFileSize(long maxFileSize);
+
+    void prepare() throws IOException;
+
+    void start();
+
+    /**
+     * Stops recording. It is safe to call it when the engine has not been started.
+     */
+    void stop();
+
+    void release();
+}
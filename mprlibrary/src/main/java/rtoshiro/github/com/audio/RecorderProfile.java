@@ -0,0 +1,195 @@
+package rtoshiro.github.com.audio;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+
+/**
+ * Settings of MediaRecorder: audio source, container, codec, sample rate, channels and bit rate.
+ * <p/>
+ * Presets:
+ * <ul>
+ * <li>SPEECH: AAC-LC 16 kHz mono at 24 kbit/s in MPEG-4, about 180 KB per minute</li>
+ * <li>MUSIC: AAC-LC 44.1 kHz stereo at 128 kbit/s in MPEG-4, about 960 KB per minute</li>
+ * <li>LOW_BANDWIDTH: AMR-NB 8 kHz mono at 12.2 kbit/s in 3GPP, about 92 KB per minute</li>
+ * <li>DEFAULT: what previous versions recorded, AAC 16 kHz mono at the bit rate of the device</li>
+ * <li>DURABLE_SPEECH: SPEECH in ADTS, playable up to its last frame if recording is interrupted
+ * (see MediaPlayerRecorder.setDurableRecording). API 16.</li>
+ * </ul>
+ * Profiles are immutable; see RecorderProfileBenchmark to measure them on a device.
+ */
+public class RecorderProfile {
+
+    public static final RecorderProfile DEFAULT = new RecorderProfile("default",
+            MediaRecorder.AudioSource.MIC, MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.AAC, 16000, 1, 0);
+
+    public static final RecorderProfile SPEECH = new RecorderProfile("speech",
+            MediaRecorder.AudioSource.MIC, MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.AAC, 16000, 1, 24000);
+
+    public static final RecorderProfile MUSIC = new RecorderProfile("music",
+            MediaRecorder.AudioSource.MIC, MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.AAC, 44100, 2, 128000);
+
+    public static final RecorderProfile LOW_BANDWIDTH = new RecorderProfile("low_bandwidth",
+            MediaRecorder.AudioSource.MIC, MediaRecorder.OutputFormat.THREE_GPP, MediaRecorder.AudioEncoder.AMR_NB, 8000, 1, 12200);
+
+    public static final RecorderProfile DURABLE_SPEECH = new RecorderProfile("durable_speech",
+            MediaRecorder.AudioSource.MIC, MediaRecorder.OutputFormat.AAC_ADTS, MediaRecorder.AudioEncoder.AAC, 16000, 1, 24000);
+
+    protected final String name;
+    protected final int audioSource;
+    protected final int outputFormat;
+    protected final int audioEncoder;
+    protected final int sampleRate;
+    protected final int channels;
+    protected final int bitRate;
+
+    /**
+     * @param name         Name, used in reports
+     * @param audioSource  MediaRecorder.AudioSource
+     * @param outputFormat MediaRecorder.OutputFormat
+     * @param audioEncoder MediaRecorder.AudioEncoder
+     * @param sampleRate   Sample rate in Hz
+     * @param channels     1 or 2
+     * @param bitRate      Bits per second, or 0 for the default of the device
+     */
+    public RecorderProfile(String name, int audioSource, int outputFormat, int audioEncoder, int sampleRate, int channels, int bitRate) {
+        this.name = name;
+        this.audioSource = audioSource;
+        this.outputFormat = outputFormat;
+        this.audioEncoder = audioEncoder;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitRate = bitRate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getAudioSource() {
+        return audioSource;
+    }
+
+    public int getOutputFormat() {
+        return outputFormat;
+    }
+
+    public int getAudioEncoder() {
+        return audioEncoder;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * @return A copy with another bit rate
+     */
+    public RecorderProfile withBitRate(int bitRate) {
+        return new RecorderProfile(name, audioSource, outputFormat, audioEncoder, sampleRate, channels, bitRate);
+    }
+
+    /**
+     * @return A copy with another audio source (e.g. VOICE_RECOGNITION, without automatic gain control)
+     */
+    public RecorderProfile withAudioSource(int audioSource) {
+        return new RecorderProfile(name, audioSource, outputFormat, audioEncoder, sampleRate, channels, bitRate);
+    }
+
+    /**
+     * @return Lowest API level supporting the encoder and the container
+     */
+    public int getMinSdk() {
+        int sdk = Build.VERSION_CODES.BASE;
+        if (audioEncoder == MediaRecorder.AudioEncoder.AAC || audioEncoder == MediaRecorder.AudioEncoder.AMR_WB
+                || outputFormat == MediaRecorder.OutputFormat.AMR_WB)
+            sdk = Build.VERSION_CODES.GINGERBREAD_MR1;
+        if (audioEncoder == MediaRecorder.AudioEncoder.HE_AAC || audioEncoder == MediaRecorder.AudioEncoder.AAC_ELD
+                || outputFormat == MediaRecorder.OutputFormat.AAC_ADTS)
+            sdk = Build.VERSION_CODES.JELLY_BEAN;
+        if (audioEncoder == MediaRecorder.AudioEncoder.VORBIS || outputFormat == MediaRecorder.OutputFormat.WEBM)
+            sdk = Build.VERSION_CODES.LOLLIPOP;
+        return sdk;
+    }
+
+    /**
+     * @return This profile, or LOW_BANDWIDTH if the platform does not support it
+     */
+    public RecorderProfile forSdk(int sdk) {
+        return sdk >= getMinSdk() ? this : LOW_BANDWIDTH;
+    }
+
+    /**
+     * @return Extension of the files of the container, with the dot
+     */
+    public String getExtension() {
+        switch (outputFormat) {
+            case MediaRecorder.OutputFormat.THREE_GPP:
+                return ".3gp";
+            case MediaRecorder.OutputFormat.AMR_NB:
+            case MediaRecorder.OutputFormat.AMR_WB:
+                return ".amr";
+            case MediaRecorder.OutputFormat.AAC_ADTS:
+                return ".aac";
+            case MediaRecorder.OutputFormat.WEBM:
+                return ".webm";
+            default:
+                return ".m4a";
+        }
+    }
+
+    /**
+     * @return MIME type of the encoder, for MediaCodec, or null if there is none
+     */
+    public String getMime() {
+        switch (audioEncoder) {
+            case MediaRecorder.AudioEncoder.DEFAULT:
+            case MediaRecorder.AudioEncoder.AMR_NB:
+                return "audio/3gpp";
+            case MediaRecorder.AudioEncoder.AMR_WB:
+                return "audio/amr-wb";
+            case MediaRecorder.AudioEncoder.VORBIS:
+                return "audio/vorbis";
+            case MediaRecorder.AudioEncoder.AAC:
+            case MediaRecorder.AudioEncoder.HE_AAC:
+            case MediaRecorder.AudioEncoder.AAC_ELD:
+                return "audio/mp4a-latm";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return Expected size of one minute of recording in bytes, from the bit rate, or -1 if it is the device default
+     */
+    public long getBytesPerMinute() {
+        return bitRate > 0 ? bitRate / 8L * 60 : -1;
+    }
+
+    /**
+     * Applies the profile. Must be called on a new (or reset) MediaRecorder, before setOutputFile.
+     */
+    public void apply(MediaRecorder recorder) {
+        recorder.setAudioSource(audioSource);
+        recorder.setOutputFormat(outputFormat);
+        recorder.setAudioEncoder(audioEncoder);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO) {
+            recorder.setAudioSamplingRate(sampleRate);
+            recorder.setAudioChannels(channels);
+            if (bitRate > 0)
+                recorder.setAudioEncodingBitRate(bitRate);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + sampleRate + " Hz, " + channels + " ch, " + (bitRate > 0 ? bitRate / 1000 + " kbit/s" : "default bit rate") + ")";
+    }
+}
@@ -0,0 +1,310 @@
+package rtoshiro.github.com.audio;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the size and the encoding cost of RecorderProfiles on the device, with MediaCodec (API 16).
+ * <p/>
+ * Each profile encodes the same synthetic speech-like signal (voiced harmonics, syllable envelope,
+ * pauses and a little noise) as fast as the encoder allows. The size is the encoded payload plus an
+ * estimate of what the container of the profile adds. The cost is the wall-clock time of the encoding:
+ * encoders may run in the media server process, so the CPU time of the application would miss it.
+ * <p/>
+ * Runs for seconds per profile: call it from a background thread, e.g. an instrumentation test.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class RecorderProfileBenchmark {
+
+    /**
+     * Bit rate MediaRecorder uses when none is set
+     */
+    public static final int DEFAULT_RECORDER_BIT_RATE = 12200;
+
+    private static final long TIMEOUT_US = 10000;
+
+    public static class Result {
+        protected final RecorderProfile profile;
+        protected final long durationMillis;
+        protected final long payloadBytes;
+        protected final long containerBytes;
+        protected final long frames;
+        protected final long encodeMillis;
+
+        public Result(RecorderProfile profile, long durationMillis, long payloadBytes, long containerBytes, long frames, long encodeMillis) {
+            this.profile = profile;
+            this.durationMillis = durationMillis;
+            this.payloadBytes = payloadBytes;
+            this.containerBytes = containerBytes;
+            this.frames = frames;
+            this.encodeMillis = encodeMillis;
+        }
+
+        public RecorderProfile getProfile() {
+            return profile;
+        }
+
+        /**
+         * @return Duration of the encoded signal in milliseconds
+         */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return Bytes produced by the encoder
+         */
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        /**
+         * @return Estimated bytes added by the container: headers, sample tables or frame headers
+         */
+        public long getContainerBytes() {
+            return containerBytes;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getEncodeMillis() {
+            return encodeMillis;
+        }
+
+        /**
+         * @return Estimated size of one minute of recording, container included
+         */
+        public long getBytesPerMinute() {
+            return durationMillis > 0 ? (payloadBytes + containerBytes) * 60000 / durationMillis : 0;
+        }
+
+        /**
+         * @return Milliseconds of encoding per minute of audio
+         */
+        public double getEncodeMillisPerMinute() {
+            return durationMillis > 0 ? encodeMillis * 60000.0 / durationMillis : 0;
+        }
+
+        /**
+         * @return How many times faster than real time the encoder is
+         */
+        public double getRealtimeFactor() {
+            return encodeMillis > 0 ? (double) durationMillis / encodeMillis : Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-14s %8d B/min (%6d payload + %5d container) %8.1f ms/min %7.1fx realtime",
+                    profile.getName(), getBytesPerMinute(), payloadBytes * 60000 / Math.max(1, durationMillis),
+                    containerBytes * 60000 / Math.max(1, durationMillis), getEncodeMillisPerMinute(), getRealtimeFactor());
+        }
+    }
+
+    protected final int durationMillis;
+
+    public RecorderProfileBenchmark() {
+        this(60000);
+    }
+
+    /**
+     * @param durationMillis Duration of the signal encoded for each profile
+     */
+    public RecorderProfileBenchmark(int durationMillis) {
+        if (durationMillis <= 0)
+            throw new IllegalArgumentException("Invalid duration");
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Runs SPEECH, MUSIC, LOW_BANDWIDTH and DEFAULT.
+     */
+    public List<Result> runPresets() throws IOException {
+        return run(RecorderProfile.SPEECH, RecorderProfile.MUSIC, RecorderProfile.LOW_BANDWIDTH, RecorderProfile.DEFAULT);
+    }
+
+    public List<Result> run(RecorderProfile... profiles) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        for (RecorderProfile profile : profiles)
+            results.add(run(profile));
+        return results;
+    }
+
+    /**
+     * Encodes the signal with the encoder of the profile.
+     *
+     * @throws IOException If the platform has no encoder for the profile
+     */
+    public Result run(RecorderProfile profile) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            throw new IOException("Encoding requires API 16");
+        String mime = profile.getMime();
+        if (mime == null)
+            throw new IOException("No encoder for " + profile);
+
+        int sampleRate = profile.getSampleRate();
+        int channels = profile.getChannels();
+        MediaFormat format = MediaFormat.createAudioFormat(mime, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, profile.getBitRate() > 0 ? profile.getBitRate() : DEFAULT_RECORDER_BIT_RATE);
+        if (mime.equals("audio/mp4a-latm"))
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, getAacProfile(profile.getAudioEncoder()));
+
+        MediaCodec codec;
+        try {
+            codec = MediaCodec.createEncoderByType(mime);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("No encoder for " + profile);
+        }
+        long totalFrames = (long) sampleRate * durationMillis / 1000;
+        short[] samples = new short[0];
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long payload = 0;
+        long config = 0;
+        long frames = 0;
+        long started = System.nanoTime();
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            long queued = 0;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        ByteBuffer input = inputBuffers[index];
+                        input.clear();
+                        int count = (int) Math.min(input.capacity() / (2 * channels), totalFrames - queued);
+                        long time = queued * 1000000 / sampleRate;
+                        if (count <= 0) {
+                            codec.queueInputBuffer(index, 0, 0, time, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            if (samples.length < count * channels)
+                                samples = new short[count * channels];
+                            synthesize(samples, queued, count, sampleRate, channels);
+                            input.order(ByteOrder.nativeOrder()).asShortBuffer().put(samples, 0, count * channels);
+                            codec.queueInputBuffer(index, 0, count * channels * 2, time, 0);
+                            queued += count;
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                // Only the sizes are needed, the output buffers themselves are never read
+                if (index >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        config += info.size;
+                    } else if (info.size > 0) {
+                        payload += info.size;
+                        frames++;
+                    }
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                        outputDone = true;
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Encoder failed for " + profile);
+        } finally {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            codec.release();
+        }
+        long encodeMillis = (System.nanoTime() - started) / 1000000;
+        return new Result(profile, durationMillis, payload, config + getContainerOverhead(profile, frames, durationMillis), frames, encodeMillis);
+    }
+
+    /**
+     * @return MediaCodecInfo.CodecProfileLevel of the AAC encoder
+     */
+    protected static int getAacProfile(int audioEncoder) {
+        switch (audioEncoder) {
+            case MediaRecorder.AudioEncoder.HE_AAC:
+                return MediaCodecInfo.CodecProfileLevel.AACObjectHE;
+            case MediaRecorder.AudioEncoder.AAC_ELD:
+                return MediaCodecInfo.CodecProfileLevel.AACObjectELD;
+            default:
+                return MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+        }
+    }
+
+    /**
+     * Estimates the bytes the container of the profile adds to the encoded frames.
+     * <p/>
+     * MPEG-4 and 3GPP: ftyp and moov boxes, 4 bytes of sample size per frame and a chunk offset per second.
+     * ADTS: a 7 bytes header per frame. AMR: the magic number. WebM: a block header per frame.
+     */
+    public static long getContainerOverhead(RecorderProfile profile, long frames, long durationMillis) {
+        switch (profile.getOutputFormat()) {
+            case MediaRecorder.OutputFormat.AAC_ADTS:
+                return 7 * frames;
+            case MediaRecorder.OutputFormat.AMR_NB:
+                return 6;
+            case MediaRecorder.OutputFormat.AMR_WB:
+                return 9;
+            case MediaRecorder.OutputFormat.WEBM:
+                return 400 + 8 * frames;
+            default:
+                return 700 + 4 * frames + 4 * ((durationMillis + 999) / 1000);
+        }
+    }
+
+    /**
+     * Writes frames of a deterministic speech-like signal: a voiced source at 100 to 200 Hz with decaying
+     * harmonics, shaped by a 4 Hz syllable envelope, pauses every few seconds and low noise.
+     *
+     * @param out        Interleaved samples
+     * @param firstFrame Index of the first frame in the signal
+     * @param count      Number of frames
+     */
+    public static void synthesize(short[] out, long firstFrame, int count, int sampleRate, int channels) {
+        for (int i = 0; i < count; i++) {
+            long frame = firstFrame + i;
+            double t = (double) frame / sampleRate;
+            // Pitch glides between 100 and 200 Hz; phase is the integral of the frequency
+            double phase = 2 * Math.PI * (150 * t - 50 / (2 * Math.PI * 0.7) * Math.cos(2 * Math.PI * 0.7 * t));
+            double voiced = 0;
+            double pitch = 150 + 50 * Math.sin(2 * Math.PI * 0.7 * t);
+            for (int h = 1; h <= 12 && h * pitch < sampleRate / 2; h++)
+                voiced += Math.sin(h * phase) / h;
+            double syllable = Math.max(0, Math.sin(2 * Math.PI * 4 * t));
+            // 0.8 s pause every 3 s
+            double pause = (t % 3.0) < 2.2 ? 1 : 0;
+            // Deterministic noise, a hash of the frame index
+            long x = frame * 6364136223846793005L + 1442695040888963407L;
+            x ^= x >>> 33;
+            double noise = ((x & 0xFFFF) / 32768.0 - 1) * 0.02;
+            double sample = 0.35 * voiced * syllable * pause + noise;
+            short value = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * Short.MAX_VALUE)));
+            for (int c = 0; c < channels; c++)
+                out[i * channels + c] = value;
+        }
+    }
+
+    /**
+     * @return One line per result, with a header
+     */
+    public static String report(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-14s %8s %36s %8s %7s", "profile", "size", "", "encode", "speed")).append('\n');
+        for (Result result : results)
+            sb.append(result).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,241 @@
+package rtoshiro.github.com.audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Summaries of recordings (duration, format, size, levels) kept in memory and persisted to a file,
+ * so that listing a library of recordings reads one file instead of parsing each recording.
+ * Filled by RecordingIndexer; an entry is up to date while the length and modification time of its file match.
+ * <p/>
+ * Format (big endian): magic "MPRI", version, entry count, then per entry: path (UTF), length (long),
+ * modification time (long), format (UTF), duration (long), sample rate, channels, peak and loudness (floats).
+ */
+public class RecordingIndex {
+
+    public static final int MAGIC = 0x4d505249;
+    public static final int VERSION = 1;
+
+    /**
+     * Summary of a recording.
+     */
+    public static class Entry {
+        protected final String path;
+        protected final long length;
+        protected final long lastModified;
+        protected final String format;
+        protected final long duration;
+        protected final int sampleRate;
+        protected final int channels;
+        protected final float peak;
+        protected final float loudness;
+
+        public Entry(String path, long length, long lastModified, String format, long duration,
+                     int sampleRate, int channels, float peak, float loudness) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.format = format;
+            this.duration = duration;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.peak = peak;
+            this.loudness = loudness;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return Length of the file in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return One of the AudioProbe.FORMAT_ constants
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return Duration in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return Sample rate in Hz, or 0 if unknown
+         */
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        /**
+         * @return Number of channels, or 0 if unknown
+         */
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return Highest sample level in dBFS, or NaN if there are no peaks
+         */
+        public float getPeak() {
+            return peak;
+        }
+
+        /**
+         * @return Root mean square of the waveform envelope in dBFS, a loudness estimate, or NaN if there are no peaks
+         */
+        public float getLoudness() {
+            return loudness;
+        }
+
+        /**
+         * @return True if the entry describes the file as it is
+         */
+        public boolean isFresh(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return path + " (" + format + ", " + duration + " ms, " + length + " bytes)";
+        }
+    }
+
+    protected final File file;
+    protected final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+    protected boolean modified;
+
+    /**
+     * Loads the index from file, if it exists. An unreadable index is started again empty.
+     *
+     * @param file File the index is persisted to
+     */
+    public RecordingIndex(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try {
+                read();
+            } catch (IOException e) {
+                e.printStackTrace();
+                entries.clear();
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The entry of a file, or null
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @return Every entry, sorted by path
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void put(Entry entry) {
+        entries.put(entry.path, entry);
+        modified = true;
+    }
+
+    public synchronized Entry remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null)
+            modified = true;
+        return entry;
+    }
+
+    /**
+     * @return True if entries changed since the index was loaded or saved
+     */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Writes the index, through a temporary file renamed over it.
+     */
+    public synchronized void save() throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 16 * 1024));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                output.writeUTF(entry.path);
+                output.writeLong(entry.length);
+                output.writeLong(entry.lastModified);
+                output.writeUTF(entry.format);
+                output.writeLong(entry.duration);
+                output.writeInt(entry.sampleRate);
+                output.writeInt(entry.channels);
+                output.writeFloat(entry.peak);
+                output.writeFloat(entry.loudness);
+            }
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            RangeCache.closeQuietly(output);
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+        modified = false;
+    }
+
+    protected void read() throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+        try {
+            if (input.readInt() != MAGIC)
+                throw new IOException(file + " is not a recording index");
+            if (input.readInt() != VERSION)
+                throw new IOException(file + " has an unsupported version");
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(input.readUTF(), input.readLong(), input.readLong(), input.readUTF(),
+                        input.readLong(), input.readInt(), input.readInt(), input.readFloat(), input.readFloat());
+                entries.put(entry.path, entry);
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            RangeCache.closeQuietly(input);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans directories of recordings into a RecordingIndex, on a pool of threads.
+ * <p/>
+ * Each directory is listed by a task that submits a task per subdirectory and per new or changed file,
+ * so listing and parsing run in parallel. Files whose length and modification time match their entry
+ * are not opened; entries of files that disappeared from the scanned directories are removed.
+ * Durations, formats, sample rates and channels come from the headers (AudioProbe); levels from the peak
+ * file of the recording, generated by decoding only if a PeakCache is set.
+ */
+public class RecordingIndexer {
+
+    /**
+     * Files with a known audio extension
+     */
+    public static final FileFilter AUDIO_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            String name = file.getName().toLowerCase();
+            return name.endsWith(".m4a") || name.endsWith(".mp4") || name.endsWith(".3gp")
+                    || name.endsWith(".aac") || name.endsWith(".amr") || name.endsWith(".wav");
+        }
+    };
+
+    /**
+     * Counts of a scan.
+     */
+    public static class Result {
+        protected final int files;
+        protected final int indexed;
+        protected final int removed;
+        protected final int failed;
+
+        public Result(int files, int indexed, int removed, int failed) {
+            this.files = files;
+            this.indexed = indexed;
+            this.removed = removed;
+            this.failed = failed;
+        }
+
+        /**
+         * @return Recordings found
+         */
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * @return Recordings parsed because they were new or had changed
+         */
+        public int getIndexed() {
+            return indexed;
+        }
+
+        /**
+         * @return Entries removed because their file is gone
+         */
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return Recordings that could not be parsed, left out of the index
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return files + " files, " + indexed + " indexed, " + removed + " removed, " + failed + " failed";
+        }
+    }
+
+    protected final RecordingIndex index;
+    protected final int threads;
+    protected FileFilter fileFilter = AUDIO_FILES;
+    protected PeakCache peakCache;
+
+    public RecordingIndexer(RecordingIndex index) {
+        this(index, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param index   Index to update
+     * @param threads Threads of the pool used by a scan
+     */
+    public RecordingIndexer(RecordingIndex index, int threads) {
+        this.index = index;
+        this.threads = Math.max(1, threads);
+    }
+
+    public RecordingIndex getIndex() {
+        return index;
+    }
+
+    public FileFilter getFileFilter() {
+        return fileFilter;
+    }
+
+    /**
+     * @param fileFilter Files of the scanned directories to index, AUDIO_FILES by default
+     */
+    public void setFileFilter(FileFilter fileFilter) {
+        this.fileFilter = fileFilter;
+    }
+
+    public PeakCache getPeakCache() {
+        return peakCache;
+    }
+
+    /**
+     * @param peakCache Cache used to generate the missing peak files, by decoding, or null to only read
+     *                  the up to date peak files next to the recordings (the default)
+     */
+    public void setPeakCache(PeakCache peakCache) {
+        this.peakCache = peakCache;
+    }
+
+    /**
+     * Updates the index with the recordings of directories and their subdirectories, then saves it if it changed.
+     * Blocks until the scan is done: call it off the main thread.
+     */
+    public Result scan(File... directories) throws IOException, InterruptedException {
+        final Scan scan = new Scan(directories);
+        try {
+            for (File directory : directories)
+                scan.submitDirectory(directory);
+            scan.await();
+        } finally {
+            scan.executor.shutdownNow();
+        }
+
+        int removed = 0;
+        for (RecordingIndex.Entry entry : index.getEntries()) {
+            if (scan.isCovered(entry.getPath()) && !scan.seen.contains(entry.getPath())) {
+                index.remove(entry.getPath());
+                removed++;
+            }
+        }
+        if (index.isModified())
+            index.save();
+        return new Result(scan.seen.size(), scan.indexed.get(), removed, scan.failed.get());
+    }
+
+    /**
+     * Reads the summary of a recording.
+     */
+    protected RecordingIndex.Entry summarize(File file) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        AudioProbe.Info info = AudioProbe.probe(file);
+        PeakFile peaks = loadPeaks(file);
+        if (peaks == null)
+            return new RecordingIndex.Entry(file.getPath(), length, lastModified, info.getFormat(), info.getDuration(),
+                    info.getSampleRate(), info.getChannels(), Float.NaN, Float.NaN);
+
+        // Peak and envelope of the finest level
+        int peak = 0;
+        double sum = 0;
+        int count = peaks.getLevelCount() > 0 ? peaks.getPeakCount(0) : 0;
+        for (int i = 0; i < count; i++) {
+            int level = Math.max(Math.abs((int) peaks.getMin(0, i)), Math.abs((int) peaks.getMax(0, i)));
+            if (level > peak)
+                peak = level;
+            sum += (double) level * level;
+        }
+        return new RecordingIndex.Entry(file.getPath(), length, lastModified, info.getFormat(), info.getDuration(),
+                peaks.getSampleRate(), peaks.getChannels(),
+                count > 0 ? toDecibels(peak) : Float.NaN, count > 0 ? toDecibels(Math.sqrt(sum / count)) : Float.NaN);
+    }
+
+    protected PeakFile loadPeaks(File file) {
+        PeakCache cache = this.peakCache;
+        try {
+            if (cache != null)
+                return cache.get(file.getPath());
+            File sidecar = PeakFile.sidecarOf(file.getPath());
+            if (!sidecar.isFile())
+                return null;
+            PeakFile peaks = PeakFile.open(sidecar);
+            boolean fresh = peaks.getSourceLength() > 0 ? peaks.getSourceLength() == file.length()
+                    : sidecar.lastModified() >= file.lastModified();
+            return fresh ? peaks : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static float toDecibels(double level) {
+        return level > 0 ? (float) (20 * Math.log10(level / 32768.0)) : Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * State of a scan: pending tasks, files seen and counts.
+     */
+    private class Scan {
+        final ExecutorService executor;
+        final String[] roots;
+        final Set<String> seen = new HashSet<String>();
+        final AtomicInteger indexed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final FileFilter filter = fileFilter;
+        private int pending;
+
+        Scan(File[] directories) {
+            roots = new String[directories.length];
+            for (int i = 0; i < directories.length; i++)
+                roots[i] = directories[i].getPath() + File.separator;
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RecordingIndexer-" + count.incrementAndGet());
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        boolean isCovered(String path) {
+            for (String root : roots) {
+                if (path.startsWith(root))
+                    return true;
+            }
+            return false;
+        }
+
+        void submitDirectory(final File directory) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    File[] files = directory.listFiles();
+                    if (files == null)
+                        return;
+                    for (File file : files) {
+                        if (file.isDirectory())
+                            submitDirectory(file);
+                        else if (filter.accept(file))
+                            onFile(file);
+                    }
+                }
+            });
+        }
+
+        void onFile(final File file) {
+            synchronized (seen) {
+                seen.add(file.getPath());
+            }
+            RecordingIndex.Entry entry = index.get(file.getPath());
+            if (entry != null && entry.isFresh(file))
+                return;
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        index.put(summarize(file));
+                        indexed.incrementAndGet();
+                    } catch (Exception e) {
+                        // Unknown format, unfinished or malformed file
+                        index.remove(file.getPath());
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        void submit(final Runnable task) {
+            synchronized (this) {
+                pending++;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        synchronized (Scan.this) {
+                            if (--pending == 0)
+                                Scan.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (pending > 0)
+                wait();
+        }
+    }
+}
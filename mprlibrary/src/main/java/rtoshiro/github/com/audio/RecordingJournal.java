@@ -0,0 +1,137 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * File a durable recording is written to (path + ".rec", or path + ".partN.rec" for the segments of a
+ * pausable recording) until RecordingRecovery turns it into the playable file.
+ * <p/>
+ * While recording, a daemon thread flushes it to storage at an interval, so that at most an interval of
+ * audio is lost if the device loses power. The recorder itself writes the frames as they are encoded.
+ */
+public class RecordingJournal {
+
+    public static final String EXTENSION = ".rec";
+    public static final long DEFAULT_SYNC_INTERVAL = 2000;
+
+    private static final String PART = ".part";
+
+    protected final File file;
+    protected final long syncInterval;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int syncs;
+
+    /**
+     * @param file         Journal
+     * @param syncInterval Milliseconds between flushes
+     */
+    public RecordingJournal(File file, long syncInterval) {
+        this.file = file;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @return The journal of a file
+     */
+    public static String journalOf(String path) {
+        return path + EXTENSION;
+    }
+
+    /**
+     * @return The file a journal is recovered into, or null if path is not a journal
+     */
+    public static String outputOf(String path) {
+        if (!path.endsWith(EXTENSION))
+            return null;
+        String output = path.substring(0, path.length() - EXTENSION.length());
+        int segment = segmentOf(path);
+        if (segment >= 0)
+            output = output.substring(0, output.lastIndexOf(PART));
+        return output;
+    }
+
+    /**
+     * @return Index of the segment of a journal, or -1 if it is not the journal of a segment
+     */
+    public static int segmentOf(String path) {
+        int end = path.length() - EXTENSION.length();
+        int start = path.lastIndexOf(PART, end) + PART.length();
+        if (start < PART.length() || start >= end)
+            return -1;
+        try {
+            return Integer.parseInt(path.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Number of flushes since start
+     */
+    public int getSyncs() {
+        return syncs;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(syncInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sync();
+                }
+            }
+        }, "RecordingJournal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops flushing, after a last flush. Waits for the flush in progress, if any.
+     */
+    public synchronized void stop() {
+        if (thread == null)
+            return;
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        sync();
+    }
+
+    /**
+     * Flushes what has been written to the journal to storage.
+     */
+    public void sync() {
+        if (!file.isFile())
+            return;
+        RandomAccessFile journal = null;
+        try {
+            journal = new RandomAccessFile(file, "r");
+            journal.getFD().sync();
+            syncs++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            RangeCache.closeQuietly(journal);
+        }
+    }
+}
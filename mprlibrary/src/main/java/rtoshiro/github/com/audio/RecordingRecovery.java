@@ -0,0 +1,437 @@
+package rtoshiro.github.com.audio;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns recording journals (see RecordingJournal) into playable files, when recording stops or after a crash.
+ * <p/>
+ * A journal is self-describing at every frame, so whatever was on disk when the process died can be played:
+ * <ul>
+ * <li>ADTS (MediaRecorder with OutputFormat.AAC_ADTS): the frames are muxed into an M4A file in one
+ * sequential pass. ADTS headers are stripped while copying, the sample sizes are kept (4 bytes per frame)
+ * and moov is written after mdat. A truncated last frame is dropped.</li>
+ * <li>WAV (PcmRecorderEngine): the sizes of the header are set from the length of the file.</li>
+ * <li>Raw AMR: used as is.</li>
+ * </ul>
+ * Journals of the segments of a pausable recording (path + ".partN.rec") are joined in the same pass.
+ * The output is written to a temporary file and renamed; journals are deleted once it is complete, so
+ * a crash during recovery leaves them to be recovered again.
+ */
+public final class RecordingRecovery {
+
+    static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    static final int SAMPLES_PER_FRAME = 1024;
+    static final int FRAMES_PER_CHUNK = 64;
+
+    private static final byte[] AMR_MAGIC = {'#', '!', 'A', 'M', 'R'};
+    private static final byte[] RIFF_MAGIC = {'R', 'I', 'F', 'F'};
+
+    private RecordingRecovery() {
+    }
+
+    /**
+     * Recovers every journal left in a directory, e.g. at startup, after the recordings of a crashed process.
+     * Journals that cannot be recovered are kept.
+     *
+     * @return Files recovered
+     */
+    public static List<File> recover(File directory) {
+        List<File> recovered = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return recovered;
+        // Journals grouped by output, segments in order
+        Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        Arrays.sort(files);
+        for (File file : files) {
+            String output = RecordingJournal.outputOf(file.getPath());
+            if (output == null)
+                continue;
+            List<File> group = groups.get(output);
+            if (group == null) {
+                group = new ArrayList<File>();
+                groups.put(output, group);
+            }
+            group.add(file);
+        }
+        for (Map.Entry<String, List<File>> entry : groups.entrySet()) {
+            List<File> group = entry.getValue();
+            Collections.sort(group, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    int first = RecordingJournal.segmentOf(a.getPath());
+                    int second = RecordingJournal.segmentOf(b.getPath());
+                    return first < second ? -1 : (first == second ? 0 : 1);
+                }
+            });
+            File output = new File(entry.getKey());
+            try {
+                finish(group, output);
+                recovered.add(output);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Writes the playable file of journals and deletes them.
+     *
+     * @param journals Journals, in order, of the same format
+     * @param output   File to write
+     */
+    public static void finish(List<File> journals, File output) throws IOException {
+        List<File> nonEmpty = new ArrayList<File>(journals.size());
+        for (File journal : journals) {
+            if (journal.length() > 0)
+                nonEmpty.add(journal);
+        }
+        if (nonEmpty.isEmpty())
+            throw new IOException("Nothing recorded in " + journals);
+
+        File temporary = new File(output.getPath() + ".tmp");
+        byte[] magic = readMagic(nonEmpty.get(0));
+        try {
+            if (isAdts(magic, 0)) {
+                muxAdts(nonEmpty, temporary);
+            } else if (startsWith(magic, RIFF_MAGIC)) {
+                joinWav(nonEmpty, temporary);
+            } else if (startsWith(magic, AMR_MAGIC) && nonEmpty.size() == 1) {
+                copy(nonEmpty.get(0), temporary);
+            } else if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p') {
+                // MPEG_4, finalized by the recorder when it stopped; without its moov (a crash), the stitcher fails
+                Mp4SegmentStitcher.stitch(nonEmpty, temporary);
+            } else {
+                throw new IOException(nonEmpty.get(0) + " cannot be recovered");
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        }
+        output.delete();
+        if (!temporary.renameTo(output)) {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + output);
+        }
+        for (File journal : journals)
+            journal.delete();
+    }
+
+    /**
+     * @return True if the file starts as a WAV file
+     */
+    static boolean isWav(File file) throws IOException {
+        return startsWith(readMagic(file), RIFF_MAGIC);
+    }
+
+    static boolean isAdts(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) == 0xff && (buffer[offset + 1] & 0xf6) == 0xf0;
+    }
+
+    private static boolean startsWith(byte[] buffer, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] readMagic(File file) throws IOException {
+        byte[] magic = new byte[8];
+        InputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            int read;
+            while (length < magic.length && (read = in.read(magic, length, magic.length - length)) > 0)
+                length += read;
+        } finally {
+            RangeCache.closeQuietly(in);
+        }
+        return magic;
+    }
+
+    /**
+     * Copies the frames of ADTS journals into the mdat of an M4A file, then writes its moov.
+     */
+    static void muxAdts(List<File> journals, File output) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(output, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            Mp4Writer head = new Mp4Writer();
+            head.begin(Mp4Box.FTYP).writeInt(Mp4Box.type("M4A ")).writeInt(0)
+                    .writeInt(Mp4Box.type("M4A ")).writeInt(Mp4Box.type("mp42")).writeInt(Mp4Box.type("isom")).end();
+            // mdat with a 64 bit size, patched at the end
+            int mdat = head.size();
+            head.writeInt(1).writeInt(Mp4Box.MDAT).writeLong(0);
+            writeFully(channel, head.toByteBuffer());
+            long payload = channel.position();
+
+            int[] sizes = new int[1024];
+            int frames = 0;
+            int config = -1;
+            int maxSize = 0;
+            byte[] header = new byte[9];
+            byte[] data = new byte[8192];
+            ByteBuffer wrapped = ByteBuffer.wrap(data);
+            for (File journal : journals) {
+                InputStream in = new BufferedInputStream(new FileInputStream(journal), 64 * 1024);
+                try {
+                    while (readFully(in, header, 0, 7) && isAdts(header, 0)) {
+                        boolean crc = (header[1] & 1) == 0;
+                        int frameConfig = ((header[2] & 0xff) << 8 | (header[3] & 0xc0)) & 0xfdc0;
+                        int frameLength = (header[3] & 0x03) << 11 | (header[4] & 0xff) << 3 | (header[5] & 0xe0) >>> 5;
+                        int headerLength = crc ? 9 : 7;
+                        int size = frameLength - headerLength;
+                        if ((header[6] & 0x03) != 0)
+                            throw new IOException(journal + " has several AAC frames per ADTS frame");
+                        if (config < 0)
+                            config = frameConfig;
+                        else if (config != frameConfig)
+                            throw new IOException(journal + " changes its audio configuration");
+                        if (size <= 0 || (crc && !readFully(in, header, 7, 2)))
+                            break;
+                        if (data.length < size) {
+                            data = new byte[Math.max(size, data.length * 2)];
+                            wrapped = ByteBuffer.wrap(data);
+                        }
+                        // A truncated last frame is dropped
+                        if (!readFully(in, data, 0, size))
+                            break;
+                        wrapped.clear().limit(size);
+                        writeFully(channel, wrapped);
+                        if (frames == sizes.length)
+                            sizes = copyOf(sizes, frames * 2);
+                        sizes[frames++] = size;
+                        if (size > maxSize)
+                            maxSize = size;
+                    }
+                } finally {
+                    RangeCache.closeQuietly(in);
+                }
+            }
+            if (frames == 0)
+                throw new IOException("No complete frame in " + journals);
+
+            long end = channel.position();
+            int profile = (config >>> 14) & 0x03;
+            int rateIndex = (config >>> 10) & 0x0f;
+            int channels = (config >>> 6) & 0x07;
+            if (rateIndex >= SAMPLE_RATES.length || channels == 0)
+                throw new IOException("Unsupported ADTS configuration in " + journals);
+            ByteBuffer moov = buildMoov(profile + 1, rateIndex, channels, sizes, frames, maxSize, payload);
+            writeFully(channel, moov);
+            ByteBuffer mdatSize = ByteBuffer.allocate(8);
+            mdatSize.putLong(0, end - mdat);
+            channel.write(mdatSize, mdat + 8);
+            out.getFD().sync();
+        } finally {
+            RangeCache.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Builds the moov of a single AAC track, its samples laid out contiguously from payload.
+     *
+     * @param objectType AAC audio object type (2 for LC)
+     */
+    static ByteBuffer buildMoov(int objectType, int rateIndex, int channels, int[] sizes, int frames, int maxSize, long payload) {
+        int sampleRate = SAMPLE_RATES[rateIndex];
+        long mediaDuration = (long) frames * SAMPLES_PER_FRAME;
+        long duration = mediaDuration * 1000 / sampleRate;
+        long bytes = 0;
+        for (int i = 0; i < frames; i++)
+            bytes += sizes[i];
+        int averageBitRate = (int) (bytes * 8 * sampleRate / mediaDuration);
+        int maxBitRate = (int) ((long) maxSize * 8 * sampleRate / SAMPLES_PER_FRAME);
+        int chunks = (frames + FRAMES_PER_CHUNK - 1) / FRAMES_PER_CHUNK;
+        boolean co64 = payload + bytes > 0xffffffffL;
+
+        Mp4Writer writer = new Mp4Writer();
+        writer.begin(Mp4Box.MOOV);
+        writer.beginFull(Mp4Box.MVHD, 0, 0).writeInt(0).writeInt(0).writeInt(1000).writeInt((int) duration)
+                .writeInt(0x00010000).writeShort(0x0100).writeShort(0).writeLong(0);
+        writeMatrix(writer);
+        writer.write(new byte[24], 0, 24);
+        writer.writeInt(2).end();
+
+        writer.begin(Mp4Box.TRAK);
+        writer.beginFull(Mp4Box.TKHD, 0, 7).writeInt(0).writeInt(0).writeInt(1).writeInt(0).writeInt((int) duration)
+                .writeLong(0).writeShort(0).writeShort(0).writeShort(0x0100).writeShort(0);
+        writeMatrix(writer);
+        writer.writeInt(0).writeInt(0).end();
+        writer.begin(Mp4Box.MDIA);
+        writer.beginFull(Mp4Box.MDHD, 0, 0).writeInt(0).writeInt(0).writeInt(sampleRate).writeInt((int) mediaDuration)
+                .writeShort(0x55c4).writeShort(0).end();
+        writer.beginFull(Mp4Box.HDLR, 0, 0).writeInt(0).writeInt(Mp4Box.type("soun")).writeInt(0).writeInt(0).writeInt(0);
+        byte[] name = "SoundHandler".getBytes();
+        writer.write(name, 0, name.length);
+        writer.writeByte(0).end();
+        writer.begin(Mp4Box.MINF);
+        writer.beginFull(Mp4Box.SMHD, 0, 0).writeShort(0).writeShort(0).end();
+        writer.begin(Mp4Box.DINF).beginFull(Mp4Box.DREF, 0, 0).writeInt(1).beginFull(Mp4Box.type("url "), 0, 1).end().end().end();
+
+        writer.begin(Mp4Box.STBL);
+        writer.beginFull(Mp4Box.STSD, 0, 0).writeInt(1);
+        writer.begin(Mp4Box.MP4A).writeInt(0).writeShort(0).writeShort(1).writeLong(0)
+                .writeShort(channels).writeShort(16).writeShort(0).writeShort(0).writeInt(sampleRate < 65536 ? sampleRate << 16 : 0);
+        // ES descriptor: decoder config (AAC, audio stream) with the AudioSpecificConfig, then SL config
+        int audioSpecificConfig = objectType << 11 | rateIndex << 7 | channels << 3;
+        writer.beginFull(Mp4Box.ESDS, 0, 0)
+                .writeByte(0x03).writeByte(25).writeShort(0).writeByte(0)
+                .writeByte(0x04).writeByte(17).writeByte(0x40).writeByte(0x15)
+                .writeByte(0).writeShort(Math.min(maxSize, 0xffff)).writeInt(maxBitRate).writeInt(averageBitRate)
+                .writeByte(0x05).writeByte(2).writeShort(audioSpecificConfig)
+                .writeByte(0x06).writeByte(1).writeByte(0x02)
+                .end();
+        writer.end().end();
+
+        writer.beginFull(Mp4Box.STTS, 0, 0).writeInt(1).writeInt(frames).writeInt(SAMPLES_PER_FRAME).end();
+        int last = frames - (chunks - 1) * FRAMES_PER_CHUNK;
+        if (last == FRAMES_PER_CHUNK || chunks == 1) {
+            writer.beginFull(Mp4Box.STSC, 0, 0).writeInt(1).writeInt(1).writeInt(chunks == 1 ? last : FRAMES_PER_CHUNK).writeInt(1).end();
+        } else {
+            writer.beginFull(Mp4Box.STSC, 0, 0).writeInt(2).writeInt(1).writeInt(FRAMES_PER_CHUNK).writeInt(1)
+                    .writeInt(chunks).writeInt(last).writeInt(1).end();
+        }
+        writer.beginFull(Mp4Box.STSZ, 0, 0).writeInt(0).writeInt(frames);
+        for (int i = 0; i < frames; i++)
+            writer.writeInt(sizes[i]);
+        writer.end();
+        writer.beginFull(co64 ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0).writeInt(chunks);
+        long offset = payload;
+        for (int i = 0; i < frames; i++) {
+            if (i % FRAMES_PER_CHUNK == 0) {
+                if (co64)
+                    writer.writeLong(offset);
+                else
+                    writer.writeInt((int) offset);
+            }
+            offset += sizes[i];
+        }
+        writer.end();
+        writer.end().end().end().end().end();
+        return writer.toByteBuffer();
+    }
+
+    private static void writeMatrix(Mp4Writer writer) {
+        writer.writeInt(0x00010000).writeInt(0).writeInt(0)
+                .writeInt(0).writeInt(0x00010000).writeInt(0)
+                .writeInt(0).writeInt(0).writeInt(0x40000000);
+    }
+
+    /**
+     * Writes the PCM of WAV journals after one header with the right sizes.
+     */
+    static void joinWav(List<File> journals, File output) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(WavFileWriter.HEADER_SIZE);
+        int sampleRate = 0;
+        int channels = 0;
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            FileChannel channel = out.getChannel();
+            channel.position(WavFileWriter.HEADER_SIZE);
+            long dataSize = 0;
+            for (File journal : journals) {
+                FileInputStream in = new FileInputStream(journal);
+                try {
+                    FileChannel source = in.getChannel();
+                    Mp4Box.readFully(source, header, 0);
+                    header.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                    int rate = header.getInt(24);
+                    int count = header.getShort(22);
+                    if (sampleRate == 0) {
+                        sampleRate = rate;
+                        channels = count;
+                    } else if (rate != sampleRate || count != channels) {
+                        throw new IOException(journal + " has a different format");
+                    }
+                    // Whole frames only: the last one may have been cut
+                    long length = (source.size() - WavFileWriter.HEADER_SIZE) / (2 * channels) * (2 * channels);
+                    long position = WavFileWriter.HEADER_SIZE;
+                    long remaining = length;
+                    while (remaining > 0) {
+                        long transferred = source.transferTo(position, remaining, channel);
+                        if (transferred <= 0)
+                            throw new IOException("Unexpected end of " + journal);
+                        position += transferred;
+                        remaining -= transferred;
+                    }
+                    dataSize += length;
+                } finally {
+                    RangeCache.closeQuietly(in);
+                }
+            }
+            WavFileWriter.writeHeader(header, sampleRate, channels, dataSize);
+            channel.position(0);
+            writeFully(channel, header);
+            out.getFD().sync();
+        } finally {
+            RangeCache.closeQuietly(out);
+        }
+    }
+
+    private static void copy(File input, File output) throws IOException {
+        FileInputStream in = new FileInputStream(input);
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            FileChannel source = in.getChannel();
+            long position = 0;
+            long size = source.size();
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, out.getChannel());
+                if (transferred <= 0)
+                    throw new IOException("Unexpected end of " + input);
+                position += transferred;
+            }
+            out.getFD().sync();
+        } finally {
+            RangeCache.closeQuietly(in);
+            RangeCache.closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return False if the stream ended before length bytes
+     */
+    private static boolean readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0)
+                return false;
+            offset += read;
+            length -= read;
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Grows the table of frame sizes without Arrays.copyOf (API 9)
+     */
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
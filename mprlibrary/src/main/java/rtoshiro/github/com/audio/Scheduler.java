@@ -0,0 +1,17 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Clock that can run code later, on the thread it belongs to.
+ */
+public interface Scheduler extends Clock {
+
+    /**
+     * Schedules the runnable to run after delay milliseconds.
+     */
+    void schedule(Runnable runnable, long delay);
+
+    /**
+     * Removes every pending occurrence of the runnable.
+     */
+    void cancel(Runnable runnable);
+}
@@ -0,0 +1,161 @@
+package rtoshiro.github.com.audio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Silent spans of a recording, stored next to it (path + ".silence") by VoiceActivityDetector.
+ * Used to skip silence during playback (see MediaPlayerRecorder.setSkipSilence).
+ * <p/>
+ * Format (big endian): magic "MPRS", version, sample rate, then a (start, end) pair of ints in
+ * milliseconds per span, in order. Spans are appended as they end and flushed, so the file of an
+ * interrupted recording holds every span that had ended; a partial pair at the end is ignored.
+ */
+public class SilenceFile {
+
+    public static final int MAGIC = 0x4d505253;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".silence";
+
+    /**
+     * Milliseconds of silence kept before the speech a skip jumps to
+     */
+    public static final int LEAD_IN = 200;
+
+    protected final int sampleRate;
+    protected final int[] starts;
+    protected final int[] ends;
+
+    protected SilenceFile(int sampleRate, int[] starts, int[] ends) {
+        this.sampleRate = sampleRate;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * @return The silence file of an audio file
+     */
+    public static File sidecarOf(String path) {
+        return new File(path + EXTENSION);
+    }
+
+    /**
+     * Reads the silence file of an audio file.
+     *
+     * @return The spans, or null if the file does not exist or cannot be read
+     */
+    public static SilenceFile load(String path) {
+        File file = sidecarOf(path);
+        if (!file.isFile())
+            return null;
+        try {
+            return read(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static SilenceFile read(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC)
+                throw new IOException(file + " is not a silence file");
+            if (input.readInt() != VERSION)
+                throw new IOException(file + " has an unsupported version");
+            int sampleRate = input.readInt();
+            int count = (int) Math.max(0, (file.length() - 12) / 8);
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = input.readInt();
+                ends[i] = input.readInt();
+            }
+            return new SilenceFile(sampleRate, starts, ends);
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            RangeCache.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Creates a silence file and writes its header.
+     */
+    static DataOutputStream create(File file, int sampleRate) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 256));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(sampleRate);
+        output.flush();
+        return output;
+    }
+
+    static void append(DataOutputStream output, int start, int end) throws IOException {
+        output.writeInt(start);
+        output.writeInt(end);
+        output.flush();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getCount() {
+        return starts.length;
+    }
+
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    public int getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * @return Total duration of the spans in milliseconds
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < starts.length; i++)
+            total += ends[i] - starts[i];
+        return total;
+    }
+
+    /**
+     * @return Index of the span containing position, or -1
+     */
+    public int indexOf(int position) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (position < starts[middle])
+                high = middle - 1;
+            else if (position >= ends[middle])
+                low = middle + 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Position to seek to in order to skip the silence at position, or -1 if there is nothing to skip
+     */
+    public int getSkipTarget(int position) {
+        int index = indexOf(position);
+        if (index < 0)
+            return -1;
+        int target = ends[index] - LEAD_IN;
+        return target > position + LEAD_IN ? target : -1;
+    }
+}
@@ -0,0 +1,168 @@
+package rtoshiro.github.com.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * PcmConsumer that forwards only the speech of the PCM to other consumers, as a VoiceActivityDetector decides.
+ * <p/>
+ * Silent windows are kept in a short ring instead of being forwarded. When speech starts, the ring is
+ * forwarded first: the attack windows that made the detector open, and the pre-roll before them, so the
+ * start of words is not cut. The hangover of the detector keeps the end of words the same way.
+ * <p/>
+ * The consumers see a continuous stream: frame indices count the forwarded frames only.
+ * Memory use is the ring and one chunk, whatever the length of the recording.
+ */
+public class SilenceTrimmer implements PcmConsumer {
+
+    public static final int DEFAULT_PRE_ROLL = 200;
+
+    protected final VoiceActivityDetector detector;
+    protected final PcmConsumer[] outputs;
+    protected final int preRoll;
+
+    protected int frameSize;
+    protected int windowBytes;
+    protected byte[] window;
+    protected int windowFill;
+    protected byte[] ring;
+    protected int ringWindows;
+    protected int ringHead;
+    protected int ringCount;
+    protected ByteBuffer out;
+    protected long written;
+
+    public SilenceTrimmer(VoiceActivityDetector detector, PcmConsumer... outputs) {
+        this(detector, DEFAULT_PRE_ROLL, outputs);
+    }
+
+    /**
+     * @param detector Detector deciding what is speech. It is started and stopped by the trimmer.
+     * @param preRoll  Milliseconds of silence forwarded before each start of speech
+     * @param outputs  Consumers of the speech
+     */
+    public SilenceTrimmer(VoiceActivityDetector detector, int preRoll, PcmConsumer... outputs) {
+        this.detector = detector;
+        this.preRoll = preRoll;
+        this.outputs = outputs;
+    }
+
+    public VoiceActivityDetector getDetector() {
+        return detector;
+    }
+
+    /**
+     * @return Frames forwarded since start
+     */
+    public long getWrittenFrames() {
+        return written;
+    }
+
+    /**
+     * @return Frames left out since start
+     */
+    public long getTrimmedFrames() {
+        return detector.getFrames() - written - (windowFill + ringCount * windowBytes) / Math.max(1, frameSize);
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) throws IOException {
+        detector.onStart(sampleRate, channels);
+        frameSize = channels * 2;
+        windowBytes = detector.getWindowFrames() * frameSize;
+        window = new byte[windowBytes];
+        windowFill = 0;
+        // The pre-roll, and the attack windows before the one that opens
+        ringWindows = preRoll / VoiceActivityDetector.WINDOW_MILLIS + detector.getAttackWindows() - 1;
+        ring = new byte[ringWindows * windowBytes];
+        ringHead = 0;
+        ringCount = 0;
+        written = 0;
+        for (PcmConsumer output : outputs)
+            output.onStart(sampleRate, channels);
+    }
+
+    @Override
+    public void onPcm(ByteBuffer buffer, long frameIndex) throws IOException {
+        final int limit = buffer.limit();
+        ensureCapacity(ring.length + windowBytes + limit);
+        out.clear();
+        int position = 0;
+        while (position < limit) {
+            // Pieces end at window boundaries, so the decision applies to whole windows
+            int length = Math.min(limit - position, detector.getFramesToWindowEnd() * frameSize);
+            buffer.position(position);
+            buffer.get(window, windowFill, length);
+            boolean changed = detector.process(buffer, position, length);
+            windowFill += length;
+            position += length;
+            if (windowFill == windowBytes) {
+                windowFill = 0;
+                if (detector.isVoice()) {
+                    if (changed)
+                        drainRing();
+                    out.put(window, 0, windowBytes);
+                } else if (changed) {
+                    // Last window of the hangover
+                    out.put(window, 0, windowBytes);
+                } else
+                    pushRing();
+            }
+        }
+        forward();
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        try {
+            if (detector.isVoice() && windowFill > 0) {
+                ensureCapacity(windowFill);
+                out.clear();
+                out.put(window, 0, windowFill);
+                forward();
+            }
+        } finally {
+            try {
+                for (PcmConsumer output : outputs)
+                    output.onStop();
+            } finally {
+                detector.onStop();
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (out == null || out.capacity() < capacity)
+            out = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private void pushRing() {
+        if (ringWindows == 0)
+            return;
+        System.arraycopy(window, 0, ring, ((ringHead + ringCount) % ringWindows) * windowBytes, windowBytes);
+        if (ringCount < ringWindows)
+            ringCount++;
+        else
+            ringHead = (ringHead + 1) % ringWindows;
+    }
+
+    private void drainRing() {
+        for (int i = 0; i < ringCount; i++)
+            out.put(ring, ((ringHead + i) % ringWindows) * windowBytes, windowBytes);
+        ringHead = 0;
+        ringCount = 0;
+    }
+
+    private void forward() throws IOException {
+        int length = out.position();
+        if (length == 0)
+            return;
+        for (PcmConsumer output : outputs) {
+            out.limit(length);
+            out.position(0);
+            output.onPcm(out, written);
+        }
+        written += length / frameSize;
+    }
+}
@@ -0,0 +1,18 @@
+package rtoshiro.github.com.audio;
+
+/**
+ * Decides when playback of a remote source, requested before it was prepared, actually starts.
+ */
+public interface StartPolicy {
+
+    /**
+     * Called when the player is prepared, then on every buffering update and periodically
+     * until it returns true.
+     *
+     * @param estimator Buffering estimate of the source
+     * @param position  Playback position in milliseconds
+     * @param waited    Milliseconds since the player has been prepared
+     * @return True to start playback now
+     */
+    boolean shouldStart(BandwidthEstimator estimator, int position, long waited);
+}
@@ -0,0 +1,221 @@
+package rtoshiro.github.com.audio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.ERROR;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.NONE;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PAUSED;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PLAYING;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PREPAREDTOPLAY;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PREPAREDTORECORD;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PREPARINGTOPLAY;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PREPARINGTORECORD;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.PREPARINGTORECORDANDRECORDING;
+import static rtoshiro.github.com.audio.MediaPlayerRecorder.RECORDING;
+
+/**
+ * Transition table of MediaPlayerRecorder.
+ * <p/>
+ * Every (event, state) pair is precomputed into a target state and an action the caller has to
+ * perform. The state is updated with compare-and-set, so fire() can be called concurrently from
+ * the caller thread and from the engine callback threads.
+ * <p/>
+ * fire() returns a packed transition; use action(), from() and to() to read it.
+ */
+public class StateMachine {
+
+    public interface OnTransitionListener {
+        /**
+         * Called after the state has changed.
+         *
+         * @param event Event that caused the transition (EVENT_*), or EVENT_NONE for direct updates
+         * @param from  State before the transition
+         * @param to    State after the transition
+         */
+        void onTransition(int event, int from, int to);
+    }
+
+    public static final int EVENT_NONE = -1;
+    public static final int EVENT_PREPARE_TO_PLAY = 0;
+    public static final int EVENT_PREPARE_TO_RECORD = 1;
+    public static final int EVENT_PLAY = 2;
+    public static final int EVENT_RECORD = 3;
+    public static final int EVENT_PAUSE = 4;
+    public static final int EVENT_SEEK = 5;
+    public static final int EVENT_PLAYER_PREPARED = 6;
+    public static final int EVENT_RECORDER_PREPARED = 7;
+    public static final int EVENT_RELEASE = 8;
+    private static final int EVENT_COUNT = 9;
+
+    /**
+     * Nothing to do (the event may or may not have changed the state)
+     */
+    public static final int ACTION_NONE = 0;
+    /**
+     * The event is not allowed in the current state
+     */
+    public static final int ACTION_REJECT = 1;
+    public static final int ACTION_PREPARE_PLAYER = 2;
+    public static final int ACTION_PREPARE_RECORDER = 3;
+    /**
+     * The engine has to be prepared before the event can be handled
+     */
+    public static final int ACTION_PREPARE_FIRST = 4;
+    public static final int ACTION_START_PLAYER = 5;
+    public static final int ACTION_START_RECORDER = 6;
+    public static final int ACTION_PAUSE_PLAYER = 7;
+    public static final int ACTION_STOP_RECORDER = 8;
+    public static final int ACTION_NOTIFY_PREPARED = 9;
+    public static final int ACTION_PLAY_AFTER_PREPARED = 10;
+    public static final int ACTION_RECORD_AFTER_PREPARED = 11;
+    private static final int ACTION_RECORDING_CONFLICT = 12;
+    private static final int ACTION_PLAYING_CONFLICT = 13;
+
+    private static final int STATE_COUNT = 11;
+    private static final int[] PLAY_STATES = {PLAYING, PREPARINGTOPLAY, PREPAREDTOPLAY, PREPARINGTOPLAYANDPLAYING};
+    private static final int[] RECORD_STATES = {RECORDING, PREPARINGTORECORD, PREPAREDTORECORD, PREPARINGTORECORDANDRECORDING};
+
+    /**
+     * TABLE[event][state + 1] = (action << 8) | (target state + 1)
+     */
+    private static final int[][] TABLE = new int[EVENT_COUNT][STATE_COUNT];
+
+    static {
+        for (int event = 0; event < EVENT_COUNT; event++)
+            for (int state = ERROR; state < STATE_COUNT - 1; state++)
+                put(event, ACTION_NONE, state, state);
+
+        put(EVENT_PREPARE_TO_PLAY, ACTION_PREPARE_PLAYER, PREPARINGTOPLAY, NONE, PAUSED, ERROR);
+        put(EVENT_PREPARE_TO_PLAY, ACTION_RECORDING_CONFLICT, -2, RECORD_STATES);
+
+        put(EVENT_PREPARE_TO_RECORD, ACTION_PREPARE_RECORDER, PREPARINGTORECORD, NONE, PAUSED, ERROR);
+        put(EVENT_PREPARE_TO_RECORD, ACTION_PLAYING_CONFLICT, -2, PLAY_STATES);
+
+        put(EVENT_PLAY, ACTION_PREPARE_FIRST, -2, NONE);
+        put(EVENT_PLAY, ACTION_REJECT, -2, ERROR);
+        put(EVENT_PLAY, ACTION_NONE, PREPARINGTOPLAYANDPLAYING, PREPARINGTOPLAY);
+        put(EVENT_PLAY, ACTION_START_PLAYER, PLAYING, PAUSED, PREPAREDTOPLAY);
+        put(EVENT_PLAY, ACTION_RECORDING_CONFLICT, -2, RECORD_STATES);
+
+        put(EVENT_RECORD, ACTION_PREPARE_FIRST, -2, NONE, PAUSED);
+        put(EVENT_RECORD, ACTION_REJECT, -2, ERROR);
+        put(EVENT_RECORD, ACTION_NONE, PREPARINGTORECORDANDRECORDING, PREPARINGTORECORD);
+        put(EVENT_RECORD, ACTION_START_RECORDER, RECORDING, PREPAREDTORECORD);
+        put(EVENT_RECORD, ACTION_PLAYING_CONFLICT, -2, PLAY_STATES);
+
+        put(EVENT_PAUSE, ACTION_PAUSE_PLAYER, PAUSED, PLAY_STATES);
+        put(EVENT_PAUSE, ACTION_STOP_RECORDER, NONE, RECORD_STATES);
+
+        put(EVENT_SEEK, ACTION_RECORDING_CONFLICT, -2, RECORD_STATES);
+
+        put(EVENT_PLAYER_PREPARED, ACTION_NOTIFY_PREPARED, PREPAREDTOPLAY, PREPARINGTOPLAY, PAUSED);
+        put(EVENT_PLAYER_PREPARED, ACTION_PLAY_AFTER_PREPARED, PREPAREDTOPLAY, PREPARINGTOPLAYANDPLAYING);
+
+        put(EVENT_RECORDER_PREPARED, ACTION_NOTIFY_PREPARED, PREPAREDTORECORD, PREPARINGTORECORD);
+        put(EVENT_RECORDER_PREPARED, ACTION_RECORD_AFTER_PREPARED, PREPAREDTORECORD, PREPARINGTORECORDANDRECORDING);
+
+        for (int state = ERROR; state < STATE_COUNT - 1; state++)
+            put(EVENT_RELEASE, ACTION_NONE, NONE, state);
+    }
+
+    /**
+     * @param target Target state, or -2 to keep the current state
+     */
+    private static void put(int event, int action, int target, int... states) {
+        for (int state : states)
+            TABLE[event][state + 1] = (action << 8) | ((target == -2 ? state : target) + 1);
+    }
+
+    private final AtomicInteger state;
+    private volatile OnTransitionListener listener;
+
+    public StateMachine(int initialState) {
+        this.state = new AtomicInteger(initialState);
+    }
+
+    public int get() {
+        return state.get();
+    }
+
+    public void setOnTransitionListener(OnTransitionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Applies the event to the current state.
+     *
+     * @param event One of EVENT_*
+     * @return Packed transition (see action(), from(), to())
+     * @throws IllegalStateException If the event conflicts with the current state (playing versus recording)
+     */
+    public int fire(int event) throws IllegalStateException {
+        final int[] row = TABLE[event];
+        while (true) {
+            final int from = state.get();
+            final int entry = row[from + 1];
+            final int action = entry >>> 8;
+            final int to = (entry & 0xff) - 1;
+
+            if (action == ACTION_RECORDING_CONFLICT)
+                throw new IllegalStateException("Recording state conflicts with Playing state");
+            if (action == ACTION_PLAYING_CONFLICT)
+                throw new IllegalStateException("Playing state conflicts with Recording state");
+
+            if (from == to)
+                return pack(action, from, to);
+            if (state.compareAndSet(from, to)) {
+                notifyTransition(event, from, to);
+                return pack(action, from, to);
+            }
+        }
+    }
+
+    /**
+     * Sets the state if it is still the expected one.
+     *
+     * @return True if the state has been updated
+     */
+    public boolean compareAndSet(int expect, int update) {
+        if (state.compareAndSet(expect, update)) {
+            if (expect != update)
+                notifyTransition(EVENT_NONE, expect, update);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the state unconditionally.
+     *
+     * @return The previous state
+     */
+    public int set(int update) {
+        int from = state.getAndSet(update);
+        if (from != update)
+            notifyTransition(EVENT_NONE, from, update);
+        return from;
+    }
+
+    private void notifyTransition(int event, int from, int to) {
+        OnTransitionListener l = this.listener;
+        if (l != null)
+            l.onTransition(event, from, to);
+    }
+
+    private static int pack(int action, int from, int to) {
+        return (action << 16) | ((from + 1) << 8) | (to + 1);
+    }
+
+    public static int action(int transition) {
+        return transition >>> 16;
+    }
+
+    public static int from(int transition) {
+        return ((transition >>> 8) & 0xff) - 1;
+    }
+
+    public static int to(int transition) {
+        return (transition & 0xff) - 1;
+    }
+}
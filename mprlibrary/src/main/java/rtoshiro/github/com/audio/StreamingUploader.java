@@ -0,0 +1,380 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Uploads a file while it is being written, in fixed-size chunks, to a ChunkSink.
+ * <p/>
+ * While the file grows, every complete chunk is sent as soon as it is on disk, so when writing stops
+ * only the tail is left to send. The file itself is the buffer: a slow sink makes the upload lag
+ * behind (see getLag) but never blocks the writer, and memory use is one chunk.
+ * <p/>
+ * Recorders patch their header when they stop (the MP4 mdat size and moov, the WAV sizes): after
+ * finish(), the CRC32 of every chunk already sent is checked against the final file and the chunks
+ * that changed are sent again. Failed writes are retried with an exponential backoff; an upload that
+ * was interrupted resumes from the bytes the sink reports with open().
+ * <p/>
+ * The upload runs on its own thread; the listener is called on that thread.
+ */
+public class StreamingUploader {
+
+    public interface Listener {
+        /**
+         * @param uploaded Bytes of the file sent so far
+         */
+        void onUploadProgress(StreamingUploader uploader, long uploaded);
+
+        /**
+         * @param length Length of the uploaded file
+         */
+        void onUploadComplete(StreamingUploader uploader, long length);
+
+        void onUploadError(StreamingUploader uploader, IOException e);
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final long DEFAULT_POLL_INTERVAL = 250;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_RETRY_DELAY = 500;
+
+    protected final File file;
+    protected final ChunkSink sink;
+    protected final int chunkSize;
+    protected long pollInterval = DEFAULT_POLL_INTERVAL;
+    protected int maxRetries = DEFAULT_MAX_RETRIES;
+    protected long retryDelay = DEFAULT_RETRY_DELAY;
+    protected volatile Listener listener;
+
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    private Thread thread;
+    private boolean finishing;
+    private boolean cancelled;
+    private boolean done;
+    private IOException error;
+    private volatile long uploaded;
+    private long pendingAtFinish = -1;
+    private long[] crcs = new long[64];
+    private int sentChunks;
+    private long resentChunks;
+    private long retries;
+
+    public StreamingUploader(File file, ChunkSink sink) {
+        this(file, sink, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param file      File being written
+     * @param sink      Destination
+     * @param chunkSize Size of the chunks in bytes
+     */
+    public StreamingUploader(File file, ChunkSink sink, int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size");
+        this.file = file;
+        this.sink = sink;
+        this.chunkSize = chunkSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public ChunkSink getSink() {
+        return sink;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param pollInterval Milliseconds between two checks of the file length
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param maxRetries Attempts after the first one, for each request
+     * @param retryDelay Milliseconds before the first retry, doubled for each next one
+     */
+    public void setRetries(int maxRetries, long retryDelay) {
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Starts uploading, on a new thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                upload();
+            }
+        }, "StreamingUploader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Tells that the file is complete: the tail and the patched chunks are sent, then the upload is finished.
+     */
+    public void finish() {
+        synchronized (lock) {
+            if (finishing)
+                return;
+            finishing = true;
+            pendingAtFinish = Math.max(0, file.length() - uploaded);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops uploading. The sink is left incomplete, it can be resumed by another uploader.
+     */
+    public void cancel() {
+        Thread thread;
+        synchronized (lock) {
+            cancelled = true;
+            lock.notifyAll();
+        }
+        synchronized (this) {
+            thread = this.thread;
+        }
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Waits for the upload to complete, fail or be cancelled.
+     *
+     * @return True if it has ended
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            long left;
+            while (!done && (left = deadline - System.currentTimeMillis()) > 0)
+                lock.wait(left);
+            return done;
+        }
+    }
+
+    public boolean isDone() {
+        synchronized (lock) {
+            return done;
+        }
+    }
+
+    /**
+     * @return True if the upload has been finished successfully
+     */
+    public boolean isComplete() {
+        synchronized (lock) {
+            return done && error == null && !cancelled;
+        }
+    }
+
+    /**
+     * @return The error that stopped the upload, or null
+     */
+    public IOException getError() {
+        synchronized (lock) {
+            return error;
+        }
+    }
+
+    /**
+     * @return Bytes of the file sent, from its start
+     */
+    public long getUploaded() {
+        return uploaded;
+    }
+
+    /**
+     * @return Bytes written to the file but not sent yet
+     */
+    public long getLag() {
+        return Math.max(0, file.length() - uploaded);
+    }
+
+    /**
+     * @return Bytes that were left to send when finish() was called, or -1 before
+     */
+    public long getPendingAtFinish() {
+        synchronized (lock) {
+            return pendingAtFinish;
+        }
+    }
+
+    /**
+     * @return Number of chunks sent again because the file changed after they were sent
+     */
+    public long getResentChunks() {
+        synchronized (lock) {
+            return resentChunks;
+        }
+    }
+
+    /**
+     * @return Number of failed requests that have been retried
+     */
+    public long getRetries() {
+        synchronized (lock) {
+            return retries;
+        }
+    }
+
+    protected void upload() {
+        RandomAccessFile input = null;
+        IOException failure = null;
+        try {
+            byte[] buffer = new byte[chunkSize];
+            long committed = open();
+            input = new RandomAccessFile(file, "r");
+
+            // Resumes after the complete chunks the sink has; their CRC is taken from the file
+            long resumed = Math.min(committed, input.length()) / chunkSize * chunkSize;
+            for (long offset = 0; offset < resumed; offset += chunkSize) {
+                read(input, offset, buffer, chunkSize);
+                addChunk(offset, checksum(buffer, chunkSize));
+            }
+            uploaded = resumed;
+
+            while (true) {
+                boolean last;
+                synchronized (lock) {
+                    if (cancelled)
+                        return;
+                    last = finishing;
+                }
+                while (input.length() - uploaded >= chunkSize) {
+                    addChunk(uploaded, send(input, uploaded, buffer, chunkSize));
+                    uploaded += chunkSize;
+                    notifyProgress();
+                }
+                if (last)
+                    break;
+                synchronized (lock) {
+                    if (!finishing && !cancelled)
+                        lock.wait(pollInterval);
+                }
+            }
+
+            // The chunks the writer patched when it stopped
+            for (int i = 0; i < sentChunks; i++) {
+                long offset = (long) i * chunkSize;
+                read(input, offset, buffer, chunkSize);
+                if (checksum(buffer, chunkSize) != crcs[i]) {
+                    crcs[i] = send(input, offset, buffer, chunkSize);
+                    synchronized (lock) {
+                        resentChunks++;
+                    }
+                }
+            }
+            long length = input.length();
+            if (length > uploaded) {
+                send(input, uploaded, buffer, (int) (length - uploaded));
+                uploaded = length;
+                notifyProgress();
+            }
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    sink.finish(length);
+                    break;
+                } catch (IOException e) {
+                    retry(attempt, e);
+                }
+            }
+            Listener l = listener;
+            if (l != null)
+                l.onUploadComplete(this, length);
+        } catch (IOException e) {
+            failure = e;
+            Listener l = listener;
+            if (l != null)
+                l.onUploadError(this, e);
+        } catch (InterruptedException e) {
+            // cancelled
+        } finally {
+            RangeCache.closeQuietly(input);
+            synchronized (lock) {
+                error = failure;
+                done = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private long open() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return sink.open();
+            } catch (IOException e) {
+                retry(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Reads and writes one chunk, retrying on failures.
+     *
+     * @return CRC32 of the chunk
+     */
+    private long send(RandomAccessFile input, long offset, byte[] buffer, int length) throws IOException, InterruptedException {
+        read(input, offset, buffer, length);
+        long checksum = checksum(buffer, length);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                sink.write(offset, buffer, length, checksum);
+                return checksum;
+            } catch (IOException e) {
+                retry(attempt, e);
+            }
+        }
+    }
+
+    private void retry(int attempt, IOException e) throws IOException, InterruptedException {
+        synchronized (lock) {
+            if (attempt >= maxRetries || cancelled)
+                throw e;
+            retries++;
+        }
+        Thread.sleep(retryDelay << Math.min(attempt, 16));
+    }
+
+    private void addChunk(long offset, long checksum) {
+        int index = (int) (offset / chunkSize);
+        if (index >= crcs.length) {
+            long[] grown = new long[Math.max(index + 1, crcs.length * 2)];
+            System.arraycopy(crcs, 0, grown, 0, sentChunks);
+            crcs = grown;
+        }
+        crcs[index] = checksum;
+        sentChunks = Math.max(sentChunks, index + 1);
+    }
+
+    private long checksum(byte[] buffer, int length) {
+        crc.reset();
+        crc.update(buffer, 0, length);
+        return crc.getValue();
+    }
+
+    private void notifyProgress() {
+        Listener l = listener;
+        if (l != null)
+            l.onUploadProgress(this, uploaded);
+    }
+
+    private static void read(RandomAccessFile input, long offset, byte[] buffer, int length) throws IOException {
+        input.seek(offset);
+        input.readFully(buffer, 0, length);
+    }
+}
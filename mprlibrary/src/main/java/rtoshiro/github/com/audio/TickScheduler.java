@@ -0,0 +1,219 @@
+package rtoshiro.github.com.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Periodic ticks for many subscribers on a single timer.
+ * <p/>
+ * Each subscriber has its own interval. Ticks falling within the coalescing window of each other
+ * are delivered together, from one timer event. Deadlines follow the subscription schedule
+ * (start + n * interval), so they do not drift. The timer is stopped while there is no subscriber.
+ * <p/>
+ * Ticks are delivered on the thread of the Scheduler (the main thread for the shared instance).
+ */
+public class TickScheduler {
+
+    public interface OnTickListener {
+        /**
+         * @param now Monotonic time of the scheduler, in milliseconds
+         */
+        void onTick(TickScheduler scheduler, long now);
+    }
+
+    private static class Subscription {
+        final OnTickListener listener;
+        long interval;
+        long due;
+
+        Subscription(OnTickListener listener, long interval, long due) {
+            this.listener = listener;
+            this.interval = interval;
+            this.due = due;
+        }
+    }
+
+    public static final long DEFAULT_COALESCING_WINDOW = 50;
+
+    private static TickScheduler shared;
+
+    protected final Scheduler scheduler;
+    protected final long coalescingWindow;
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    /**
+     * Subscriptions due in the current timer event, reused by every event: grows with the subscribers
+     */
+    private Subscription[] due = new Subscription[8];
+    /**
+     * True while fire() delivers ticks (only touched on the scheduler thread)
+     */
+    private boolean firing;
+    private long scheduledAt = -1;
+    private long timerEvents;
+
+    private final Runnable timer = new Runnable() {
+        @Override
+        public void run() {
+            fire();
+        }
+    };
+
+    /**
+     * @return The instance shared by every MediaPlayerRecorder, ticking on the main thread
+     */
+    public static synchronized TickScheduler getShared() {
+        if (shared == null)
+            shared = new TickScheduler(new HandlerScheduler(), DEFAULT_COALESCING_WINDOW);
+        return shared;
+    }
+
+    public TickScheduler(Scheduler scheduler) {
+        this(scheduler, DEFAULT_COALESCING_WINDOW);
+    }
+
+    /**
+     * @param scheduler        Timer and monotonic clock
+     * @param coalescingWindow Ticks due within this many milliseconds are delivered by the same timer event
+     */
+    public TickScheduler(Scheduler scheduler, long coalescingWindow) {
+        this.scheduler = scheduler;
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    public long now() {
+        return scheduler.now();
+    }
+
+    /**
+     * @return Scheduler of the ticks, on the thread the listeners are called on
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Subscribes the listener, or changes its interval. The first tick is delivered as soon as possible.
+     *
+     * @param interval Milliseconds between ticks
+     */
+    public void subscribe(OnTickListener listener, long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+        synchronized (this) {
+            long now = scheduler.now();
+            Subscription subscription = find(listener);
+            if (subscription == null) {
+                subscriptions.add(new Subscription(listener, interval, now));
+            } else {
+                subscription.interval = interval;
+                subscription.due = Math.min(subscription.due, now + interval);
+            }
+            reschedule(now);
+        }
+    }
+
+    /**
+     * Unsubscribes the listener. The timer stops with the last subscriber.
+     */
+    public void unsubscribe(OnTickListener listener) {
+        synchronized (this) {
+            Subscription subscription = find(listener);
+            if (subscription != null) {
+                subscriptions.remove(subscription);
+                reschedule(scheduler.now());
+            }
+        }
+    }
+
+    public synchronized boolean isSubscribed(OnTickListener listener) {
+        return find(listener) != null;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return True while the timer is scheduled, i.e. while there are subscribers
+     */
+    public synchronized boolean isRunning() {
+        return scheduledAt >= 0;
+    }
+
+    /**
+     * @return Number of timer events since creation (each one delivering one or more ticks)
+     */
+    public synchronized long getTimerEvents() {
+        return timerEvents;
+    }
+
+    private Subscription find(OnTickListener listener) {
+        for (int i = 0; i < subscriptions.size(); i++) {
+            Subscription subscription = subscriptions.get(i);
+            if (subscription.listener == listener)
+                return subscription;
+        }
+        return null;
+    }
+
+    /**
+     * Schedules the timer for the earliest deadline, or stops it if there is no subscriber.
+     */
+    private void reschedule(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < subscriptions.size(); i++)
+            earliest = Math.min(earliest, subscriptions.get(i).due);
+        if (earliest == Long.MAX_VALUE) {
+            if (scheduledAt >= 0) {
+                scheduler.cancel(timer);
+                scheduledAt = -1;
+            }
+            return;
+        }
+        if (scheduledAt >= 0 && scheduledAt <= earliest)
+            return;
+        if (scheduledAt >= 0)
+            scheduler.cancel(timer);
+        scheduledAt = earliest;
+        scheduler.schedule(timer, earliest - now);
+    }
+
+    private void fire() {
+        long now;
+        Subscription[] due;
+        int count = 0;
+        synchronized (this) {
+            timerEvents++;
+            scheduledAt = -1;
+            now = scheduler.now();
+            due = this.due;
+            if (firing || due.length < subscriptions.size()) {
+                // A tick delivered from a listener (e.g. advancing a virtual clock) must not reuse the array
+                due = new Subscription[Math.max(subscriptions.size(), due.length * 2)];
+                if (!firing)
+                    this.due = due;
+            }
+            for (int i = 0; i < subscriptions.size(); i++) {
+                Subscription subscription = subscriptions.get(i);
+                if (subscription.due <= now + coalescingWindow) {
+                    due[count++] = subscription;
+                    subscription.due += subscription.interval;
+                    if (subscription.due <= now)
+                        subscription.due = now + subscription.interval;
+                }
+            }
+            reschedule(now);
+        }
+        boolean nested = firing;
+        firing = true;
+        try {
+            for (int i = 0; i < count; i++) {
+                Subscription subscription = due[i];
+                due[i] = null;
+                subscription.listener.onTick(this, now);
+            }
+        } finally {
+            firing = nested;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package rtoshiro.github.com.audio;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Deterministic clock used by the fake engines.
+ * <p/>
+ * Time only moves when advance() or runUntilIdle() is called. Scheduled runnables are executed
+ * in time order (and in scheduling order for the same time) on the thread that advances the clock.
+ */
+public class VirtualClock implements Scheduler {
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Event(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            if (sequence != other.sequence)
+                return sequence < other.sequence ? -1 : 1;
+            return 0;
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long now;
+    private long sequence;
+
+    /**
+     * @return Current virtual time in milliseconds
+     */
+    @Override
+    public synchronized long now() {
+        return now;
+    }
+
+    /**
+     * Schedules the runnable to run after delay virtual milliseconds.
+     *
+     * @param runnable Runnable to run
+     * @param delay    Delay in milliseconds (negative values are treated as 0)
+     */
+    @Override
+    public synchronized void schedule(Runnable runnable, long delay) {
+        events.add(new Event(now + Math.max(0, delay), sequence++, runnable));
+    }
+
+    /**
+     * Removes every pending occurrence of the runnable.
+     *
+     * @param runnable Runnable previously passed to schedule
+     */
+    @Override
+    public synchronized void cancel(Runnable runnable) {
+        Iterator<Event> it = events.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == runnable)
+                it.remove();
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return events.size();
+    }
+
+    /**
+     * Moves time forward, running every event due in the interval.
+     *
+     * @param millis Amount of virtual milliseconds to advance
+     */
+    public void advance(long millis) {
+        long target;
+        synchronized (this) {
+            target = now + millis;
+        }
+        while (true) {
+            Event event;
+            synchronized (this) {
+                event = events.peek();
+                if (event == null || event.time > target) {
+                    now = target;
+                    return;
+                }
+                events.poll();
+                now = event.time;
+            }
+            event.runnable.run();
+        }
+    }
+
+    /**
+     * Runs events until none is pending, moving time to each one.
+     *
+     * @param maxEvents Upper bound of events to run, protects against self rescheduling runnables
+     * @return Number of events that have been run
+     */
+    public int runUntilIdle(int maxEvents) {
+        int count = 0;
+        while (count < maxEvents) {
+            Event event;
+            synchronized (this) {
+                event = events.poll();
+                if (event == null)
+                    break;
+                now = event.time;
+            }
+            event.runnable.run();
+            count++;
+        }
+        return count;
+    }
+}
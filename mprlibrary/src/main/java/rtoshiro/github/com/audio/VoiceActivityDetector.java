@@ -0,0 +1,319 @@
+package rtoshiro.github.com.audio;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PcmConsumer that tells speech from silence with the energy of the PCM, as it is captured.
+ * <p/>
+ * The PCM is cut into windows of a few milliseconds. Speech starts once the level of consecutive windows
+ * has stayed above the open threshold for the attack time; it ends once it has stayed below the close
+ * threshold for the hangover time. The close threshold is lower than the open one, so a level between
+ * them never toggles the state. Both transitions are dated back to the first window that caused them.
+ * <p/>
+ * Memory use does not depend on the length of the recording. When a silence file is set, the silent
+ * spans longer than the minimum silence are appended to it as they end (see SilenceFile).
+ */
+public class VoiceActivityDetector implements PcmConsumer {
+
+    public interface Listener {
+        /**
+         * @param frame Index of the first frame of speech, since start
+         */
+        void onVoiceStart(VoiceActivityDetector detector, long frame);
+
+        /**
+         * @param frame Index of the first frame of silence, since start
+         */
+        void onSilenceStart(VoiceActivityDetector detector, long frame);
+    }
+
+    /**
+     * RecorderEngine.Listener.onInfo code of a start of speech, the extra is its position in milliseconds
+     */
+    public static final int INFO_VOICE_START = 3000;
+
+    /**
+     * RecorderEngine.Listener.onInfo code of a start of silence, the extra is its position in milliseconds
+     */
+    public static final int INFO_SILENCE_START = 3001;
+
+    public static final float DEFAULT_OPEN_THRESHOLD = -40f;
+    public static final float DEFAULT_CLOSE_THRESHOLD = -48f;
+    public static final int DEFAULT_ATTACK = 30;
+    public static final int DEFAULT_HANGOVER = 600;
+    public static final int DEFAULT_MIN_SILENCE = 1000;
+    public static final int WINDOW_MILLIS = 10;
+
+    protected float openThreshold = DEFAULT_OPEN_THRESHOLD;
+    protected float closeThreshold = DEFAULT_CLOSE_THRESHOLD;
+    protected int attack = DEFAULT_ATTACK;
+    protected int hangover = DEFAULT_HANGOVER;
+    protected int minSilence = DEFAULT_MIN_SILENCE;
+    protected volatile Listener listener;
+    protected File silenceFile;
+
+    protected int sampleRate;
+    protected int channels;
+    protected int windowFrames;
+    private double openLevel;
+    private double closeLevel;
+    private int attackWindows;
+    private int hangoverWindows;
+
+    private volatile boolean voice;
+    private long frames;
+    private long windows;
+    private int windowSamples;
+    private double windowSum;
+    private int runWindows;
+    private long runStart;
+    private long silenceStart;
+    private long voiceFrames;
+    private DataOutputStream silenceOutput;
+
+    public VoiceActivityDetector() {
+    }
+
+    /**
+     * Copies the settings of another detector, not its state nor its listener.
+     */
+    public VoiceActivityDetector(VoiceActivityDetector settings) {
+        this.openThreshold = settings.openThreshold;
+        this.closeThreshold = settings.closeThreshold;
+        this.attack = settings.attack;
+        this.hangover = settings.hangover;
+        this.minSilence = settings.minSilence;
+    }
+
+    /**
+     * @param openThreshold  Level in dBFS above which speech starts
+     * @param closeThreshold Level in dBFS below which speech ends, at most openThreshold
+     */
+    public void setThresholds(float openThreshold, float closeThreshold) {
+        if (closeThreshold > openThreshold)
+            throw new IllegalArgumentException("Close threshold above open threshold");
+        this.openThreshold = openThreshold;
+        this.closeThreshold = closeThreshold;
+    }
+
+    public float getOpenThreshold() {
+        return openThreshold;
+    }
+
+    public float getCloseThreshold() {
+        return closeThreshold;
+    }
+
+    /**
+     * @param attack   Milliseconds above the open threshold before speech starts
+     * @param hangover Milliseconds below the close threshold before speech ends
+     */
+    public void setTimes(int attack, int hangover) {
+        this.attack = attack;
+        this.hangover = hangover;
+    }
+
+    public int getAttack() {
+        return attack;
+    }
+
+    public int getHangover() {
+        return hangover;
+    }
+
+    /**
+     * @param minSilence Milliseconds of the shortest silence written to the silence file
+     */
+    public void setMinSilence(int minSilence) {
+        this.minSilence = minSilence;
+    }
+
+    public int getMinSilence() {
+        return minSilence;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param silenceFile File the silent spans are written to, or null. Used from the next start.
+     */
+    public void setSilenceFile(File silenceFile) {
+        this.silenceFile = silenceFile;
+    }
+
+    /**
+     * @return True while speech is detected. Can be called from any thread.
+     */
+    public boolean isVoice() {
+        return voice;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return Frames in a window
+     */
+    public int getWindowFrames() {
+        return windowFrames;
+    }
+
+    /**
+     * @return Windows above the open threshold needed to start speech
+     */
+    public int getAttackWindows() {
+        return attackWindows;
+    }
+
+    /**
+     * @return Frames analysed since start
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return Frames of completed windows detected as speech since start
+     */
+    public long getVoiceFrames() {
+        return voiceFrames;
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.windowFrames = Math.max(1, sampleRate * WINDOW_MILLIS / 1000);
+        // Mean square of a window, compared without logarithms
+        this.openLevel = Math.pow(10, openThreshold / 10.0) * 32768.0 * 32768.0;
+        this.closeLevel = Math.pow(10, closeThreshold / 10.0) * 32768.0 * 32768.0;
+        this.attackWindows = Math.max(1, (attack + WINDOW_MILLIS - 1) / WINDOW_MILLIS);
+        this.hangoverWindows = Math.max(1, (hangover + WINDOW_MILLIS - 1) / WINDOW_MILLIS);
+        this.voice = false;
+        this.frames = 0;
+        this.windows = 0;
+        this.windowSamples = 0;
+        this.windowSum = 0;
+        this.runWindows = 0;
+        this.silenceStart = 0;
+        this.voiceFrames = 0;
+        closeSilenceFile();
+        if (silenceFile != null)
+            silenceOutput = SilenceFile.create(silenceFile, sampleRate);
+    }
+
+    @Override
+    public void onPcm(ByteBuffer buffer, long frameIndex) throws IOException {
+        process(buffer, 0, buffer.limit());
+    }
+
+    /**
+     * Analyses PCM bytes, ending a window each time one is complete.
+     *
+     * @param buffer 16 bit native order PCM
+     * @param offset Offset of the first byte, at a frame boundary
+     * @param length Length in bytes
+     * @return True if a window ended with a transition
+     */
+    public boolean process(ByteBuffer buffer, int offset, int length) throws IOException {
+        final int windowLength = windowFrames * channels;
+        final int end = offset + length;
+        boolean changed = false;
+        int samples = windowSamples;
+        double sum = windowSum;
+        for (int i = offset; i < end; i += 2) {
+            int sample = buffer.getShort(i);
+            sum += sample * sample;
+            if (++samples == windowLength) {
+                changed |= endWindow(sum / samples);
+                samples = 0;
+                sum = 0;
+            }
+        }
+        windowSamples = samples;
+        windowSum = sum;
+        frames += length / (2 * channels);
+        return changed;
+    }
+
+    /**
+     * @return Frames still needed to complete the current window
+     */
+    public int getFramesToWindowEnd() {
+        return windowFrames - windowSamples / channels;
+    }
+
+    private boolean endWindow(double level) throws IOException {
+        // Windows are aligned on the start of the stream
+        long windowStart = windows * windowFrames;
+        long windowEnd = ++windows * windowFrames;
+        if (!voice) {
+            if (level >= openLevel) {
+                if (runWindows++ == 0)
+                    runStart = windowStart;
+                if (runWindows >= attackWindows) {
+                    runWindows = 0;
+                    voice = true;
+                    voiceFrames += windowEnd - runStart;
+                    onVoiceStart(runStart);
+                    return true;
+                }
+            } else
+                runWindows = 0;
+        } else {
+            voiceFrames += windowFrames;
+            if (level < closeLevel) {
+                if (runWindows++ == 0)
+                    runStart = windowStart;
+                if (runWindows >= hangoverWindows) {
+                    runWindows = 0;
+                    voice = false;
+                    voiceFrames -= windowEnd - runStart;
+                    silenceStart = runStart;
+                    Listener l = listener;
+                    if (l != null)
+                        l.onSilenceStart(this, runStart);
+                    return true;
+                }
+            } else
+                runWindows = 0;
+        }
+        return false;
+    }
+
+    private void onVoiceStart(long frame) throws IOException {
+        writeSilence(silenceStart, frame);
+        Listener l = listener;
+        if (l != null)
+            l.onVoiceStart(this, frame);
+    }
+
+    private void writeSilence(long start, long end) throws IOException {
+        if (silenceOutput != null && (end - start) * 1000 >= (long) minSilence * sampleRate)
+            SilenceFile.append(silenceOutput, (int) (start * 1000 / sampleRate), (int) (end * 1000 / sampleRate));
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        try {
+            if (!voice)
+                writeSilence(silenceStart, frames);
+        } finally {
+            closeSilenceFile();
+        }
+    }
+
+    private void closeSilenceFile() throws IOException {
+        if (silenceOutput != null) {
+            DataOutputStream output = silenceOutput;
+            silenceOutput = null;
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package rtoshiro.github.com.audio;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * AudioDecoder of 16 bit PCM WAV files, as written by WavFileWriter.
+ */
+public class WavDecoder implements AudioDecoder {
+
+    protected FileInputStream input;
+    protected FileChannel channel;
+    protected int sampleRate;
+    protected int channels;
+    protected long position;
+    protected long end;
+
+    @Override
+    public void open(String path) throws IOException {
+        release();
+        input = new FileInputStream(path);
+        channel = input.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.limit(12);
+        Mp4Box.readFully(channel, header, 0);
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157)
+            throw new IOException(path + " is not a WAV file");
+
+        // Walks the chunks until data, reading fmt on the way
+        long offset = 12;
+        long fileSize = channel.size();
+        header.limit(8);
+        while (offset + 8 <= fileSize) {
+            Mp4Box.readFully(channel, header, offset);
+            int id = header.getInt(0);
+            long size = header.getInt(4) & 0xffffffffL;
+            if (id == 0x20746d66) {
+                ByteBuffer fmt = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                Mp4Box.readFully(channel, fmt, offset + 8);
+                if (fmt.getShort(0) != 1 || fmt.getShort(14) != 16)
+                    throw new IOException(path + " is not 16 bit PCM");
+                channels = fmt.getShort(2);
+                sampleRate = fmt.getInt(4);
+            } else if (id == 0x61746164) {
+                if (channels == 0)
+                    throw new IOException(path + " has no fmt chunk");
+                position = offset + 8;
+                // Size may not be patched yet when recording was interrupted
+                end = size == 0 ? fileSize : Math.min(fileSize, position + size);
+                return;
+            }
+            offset += 8 + size + (size & 1);
+        }
+        throw new IOException(path + " has no data chunk");
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        int frameSize = channels * 2;
+        long remaining = end - position;
+        if (remaining < frameSize)
+            return -1;
+        int length = (int) Math.min(remaining, buffer.capacity() - buffer.capacity() % frameSize);
+        buffer.clear();
+        buffer.limit(length);
+        Mp4Box.readFully(channel, buffer, position);
+        position += length;
+        if (buffer.order() != ByteOrder.LITTLE_ENDIAN) {
+            for (int i = 0; i < length; i += 2) {
+                byte low = buffer.get(i);
+                buffer.put(i, buffer.get(i + 1));
+                buffer.put(i + 1, low);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void release() {
+        if (input != null) {
+            RangeCache.closeQuietly(input);
+            input = null;
+            channel = null;
+        }
+    }
+}
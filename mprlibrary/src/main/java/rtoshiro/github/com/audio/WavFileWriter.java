@@ -0,0 +1,99 @@
+package rtoshiro.github.com.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * PcmConsumer that writes a 16 bit PCM WAV file.
+ * Chunks are written straight from the ring with FileChannel, without copies.
+ */
+public class WavFileWriter implements PcmConsumer {
+
+    public static final int HEADER_SIZE = 44;
+
+    protected final File file;
+    protected final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    protected RandomAccessFile output;
+    protected FileChannel channel;
+    protected int sampleRate;
+    protected int channels;
+    protected long dataSize;
+
+    public WavFileWriter(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Number of PCM bytes written so far
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.dataSize = 0;
+        this.output = new RandomAccessFile(file, "rw");
+        this.output.setLength(0);
+        this.channel = output.getChannel();
+        writeHeader();
+        this.channel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void onPcm(ByteBuffer buffer, long frameIndex) throws IOException {
+        while (buffer.hasRemaining())
+            dataSize += channel.write(buffer);
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            writeHeader();
+        } finally {
+            output.close();
+            output = null;
+            channel = null;
+        }
+    }
+
+    protected void writeHeader() throws IOException {
+        writeHeader(header, sampleRate, channels, dataSize);
+        channel.write(header, 0);
+    }
+
+    /**
+     * Fills buffer (from its start) with a 44 bytes WAV header and flips it.
+     */
+    public static void writeHeader(ByteBuffer buffer, int sampleRate, int channels, long dataSize) {
+        int size = (int) Math.min(dataSize, 0xffffffffL - 36);
+        buffer.clear();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        buffer.putInt(36 + size);
+        buffer.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        buffer.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        buffer.putInt(16);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) channels);
+        buffer.putInt(sampleRate);
+        buffer.putInt(sampleRate * channels * 2);
+        buffer.putShort((short) (channels * 2));
+        buffer.putShort((short) 16);
+        buffer.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        buffer.putInt(size);
+        buffer.flip();
+    }
+}
@@ -0,0 +1,119 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioBundleTest {
+
+    File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("bundle", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        RecordingIndexerTest.delete(dir);
+    }
+
+    static byte[] read(File file, long offset, long length) throws IOException {
+        byte[] bytes = new byte[(int) length];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        input.seek(offset);
+        input.readFully(bytes);
+        input.close();
+        return bytes;
+    }
+
+    @Test
+    public void entriesAreFoundByName() throws IOException {
+        File prompts = new File(dir, "prompts");
+        prompts.mkdirs();
+        File a = ProbeCacheTest.writeM4a(prompts, "beep.m4a", 10);
+        File b = ProbeCacheTest.writeM4a(prompts, "welcome.m4a", 100);
+        new FileOutputStream(new File(prompts, "notes.txt")).close();
+        File bundleFile = new File(dir, "prompts" + AudioBundle.EXTENSION);
+        AudioBundleBuilder.main(new String[]{bundleFile.getPath(), prompts.getPath()});
+
+        AudioBundle bundle = AudioBundle.open(bundleFile);
+        assertEquals(2, bundle.size());
+        AudioBundle.Entry entry = bundle.get("welcome.m4a");
+        assertEquals(6400, entry.getDuration());
+        assertEquals(b.length(), entry.getLength());
+        assertEquals(0, entry.getOffset() % AudioBundleBuilder.ALIGNMENT);
+        assertArrayEquals(read(b, 0, b.length()), read(bundleFile, entry.getOffset(), entry.getLength()));
+        entry = bundle.get("beep.m4a");
+        assertArrayEquals(read(a, 0, a.length()), read(bundleFile, entry.getOffset(), entry.getLength()));
+        assertNull(bundle.get("notes.txt"));
+        assertNull(bundle.get("beep"));
+        assertEquals(2, bundle.getEntries().size());
+        bundle.close();
+    }
+
+    @Test
+    public void everyNameOfALargeBundleIsFound() throws IOException {
+        AudioBundleBuilder builder = new AudioBundleBuilder();
+        for (int i = 0; i < 500; i++) {
+            File file = new File(dir, i + ".bin");
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(new byte[i % 7 + 1]);
+            output.close();
+            builder.add("prompt/" + i + "/\u00e9", file);
+        }
+        File bundleFile = new File(dir, "large.bundle");
+        builder.build(bundleFile);
+
+        AudioBundle bundle = AudioBundle.open(bundleFile);
+        for (int i = 0; i < 500; i++) {
+            AudioBundle.Entry entry = bundle.get("prompt/" + i + "/\u00e9");
+            assertEquals(i % 7 + 1, entry.getLength());
+            assertEquals(-1, entry.getDuration());
+        }
+        assertNull(bundle.get("prompt/500/\u00e9"));
+        List<AudioBundle.Entry> entries = bundle.getEntries();
+        assertEquals(500, entries.size());
+        assertEquals(entries.get(0).getOffset(), bundle.get(entries.get(0).getName()).getOffset());
+        bundle.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        AudioBundle.open(ProbeCacheTest.writeM4a(dir, "a.m4a", 10));
+    }
+
+    @Test
+    public void entriesArePlayedFromTheBundleDescriptor() throws IOException {
+        File bundleFile = new File(dir, "b.bundle");
+        new AudioBundleBuilder().add("a", ProbeCacheTest.writeM4a(dir, "a.m4a", 50)).build(bundleFile);
+        AudioBundle bundle = AudioBundle.open(bundleFile);
+        AudioBundle.Entry entry = bundle.get("a");
+
+        VirtualClock clock = new VirtualClock();
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+        mpr.setBundleEntry(entry);
+        assertEquals(3200, mpr.getDuration());
+        assertFalse(mpr.prepareToRecord());
+        assertTrue(mpr.prepareToPlay());
+        assertEquals("fd:" + entry.getOffset() + "+" + entry.getLength(), ((FakePlayerEngine) mpr.player).getDataSource());
+        clock.advance(factory.getPrepareDelay());
+        assertEquals(MediaPlayerRecorder.PREPAREDTOPLAY, mpr.getCurrentState());
+
+        mpr.setDataSource(new File(dir, "c.m4a").getPath());
+        assertNull(mpr.getBundleEntry());
+        mpr.release();
+        bundle.close();
+    }
+}
@@ -0,0 +1,194 @@
+package rtoshiro.github.com.audio;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the proxy against a local stand-in origin server that supports Range requests.
+ */
+public class CachingProxyTest {
+
+    private static final int SIZE = 200000;
+
+    private final byte[] content = new byte[SIZE];
+    private final AtomicLong originBytes = new AtomicLong();
+    private volatile String acceptEncoding;
+    private HttpServer origin;
+    private File directory;
+    private CachingProxy proxy;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < SIZE; i++)
+            content[i] = (byte) (i * 31 + 7);
+
+        origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        origin.createContext("/clip.m4a", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int start = 0;
+                int end = SIZE - 1;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                    start = Integer.parseInt(bounds[0]);
+                    if (bounds[1].length() > 0)
+                        end = Math.min(end, Integer.parseInt(bounds[1]));
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+                }
+                exchange.getResponseHeaders().add("Content-Type", "audio/mp4");
+                exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+                // Counted first: the client may have read the body before close returns
+                originBytes.addAndGet(end - start + 1);
+                OutputStream body = exchange.getResponseBody();
+                body.write(content, start, end - start + 1);
+                body.close();
+            }
+        });
+        origin.start();
+        url = "http://127.0.0.1:" + origin.getAddress().getPort() + "/clip.m4a";
+
+        directory = new File(System.getProperty("java.io.tmpdir"), "mpr-proxy-" + System.nanoTime());
+        proxy = new CachingProxy(new RangeCache(directory, 1024 * 1024));
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        origin.stop(0);
+        proxy.getCache().clear();
+        new File(directory, "small").delete();
+        directory.delete();
+    }
+
+    private byte[] get(String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(proxy.getProxyUrl(url)).openConnection();
+        if (range != null)
+            connection.setRequestProperty("Range", range);
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+            out.write(buffer, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void replayCostsNoNetwork() throws IOException {
+        assertArrayEquals(content, get(null));
+        assertEquals(SIZE, originBytes.get());
+
+        assertArrayEquals(content, get(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 5000), get("bytes=1000-4999"));
+        assertEquals(SIZE, originBytes.get());
+        assertEquals(SIZE + 4000, proxy.getBytesFromCache());
+    }
+
+    @Test
+    public void originBytesAreNotEncoded() throws IOException {
+        get("bytes=0-999");
+        assertEquals("identity", acceptEncoding);
+    }
+
+    @Test
+    public void suffixRangesArePartial() throws IOException {
+        // Cold: the length is learnt from the origin first
+        HttpURLConnection connection = (HttpURLConnection) new URL(proxy.getProxyUrl(url)).openConnection();
+        connection.setRequestProperty("Range", "bytes=-1000");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes " + (SIZE - 1000) + "-" + (SIZE - 1) + "/" + SIZE, connection.getHeaderField("Content-Range"));
+        connection.disconnect();
+
+        assertArrayEquals(Arrays.copyOfRange(content, SIZE - 1000, SIZE), get("bytes=-1000"));
+        assertArrayEquals(content, get("bytes=-" + (SIZE * 2)));
+    }
+
+    @Test
+    public void onlyMissingSpansAreFetched() throws IOException {
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 1000), get("bytes=0-999"));
+        assertArrayEquals(Arrays.copyOfRange(content, 3000, 4000), get("bytes=3000-3999"));
+        assertEquals(2000, originBytes.get());
+
+        assertArrayEquals(Arrays.copyOfRange(content, 500, 5000), get("bytes=500-4999"));
+        assertEquals(2000 + 2000 + 1000, originBytes.get());
+    }
+
+    @Test
+    public void cacheSurvivesRestart() throws IOException {
+        get(null);
+        proxy.stop();
+
+        proxy = new CachingProxy(new RangeCache(directory, 1024 * 1024));
+        proxy.start();
+        assertArrayEquals(content, get(null));
+        assertEquals(SIZE, originBytes.get());
+    }
+
+    @Test
+    public void spansCachedWhileConnectingAreNotRefetched() throws IOException {
+        proxy.stop();
+        proxy = new CachingProxy(new RangeCache(directory, 1024 * 1024)) {
+            boolean first = true;
+
+            @Override
+            protected HttpURLConnection openUpstream(String url, long start, long end) throws IOException {
+                HttpURLConnection connection = super.openUpstream(url, start, end);
+                if (first) {
+                    // Another connection caches the start of the range while this one connects
+                    first = false;
+                    RangeCache.Entry entry = getCache().open(url);
+                    entry.setInfo(SIZE, "audio/mp4");
+                    entry.write(0, content, 0, 1000);
+                    getCache().close(entry);
+                }
+                return connection;
+            }
+        };
+        proxy.start();
+
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 5000), get("bytes=0-4999"));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 5000), get("bytes=1000-4999"));
+        assertEquals(1000 + 4000, proxy.getBytesFromCache());
+    }
+
+    @Test
+    public void budgetEvictsLeastRecentlyUsed() throws IOException {
+        RangeCache cache = new RangeCache(new File(directory, "small"), 1000);
+        RangeCache.Entry a = cache.open("http://host/a");
+        a.setInfo(800, null);
+        a.write(0, content, 0, 800);
+        cache.close(a);
+        RangeCache.Entry b = cache.open("http://host/b");
+        b.setInfo(800, null);
+        b.write(0, content, 0, 800);
+        cache.close(b);
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(800, cache.getTotalBytes());
+        assertEquals(1, cache.getEvictions());
+        cache.clear();
+    }
+}
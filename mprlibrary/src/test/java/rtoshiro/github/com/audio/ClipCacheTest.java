@@ -0,0 +1,88 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ClipCacheTest {
+
+    File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("clips", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        RecordingIndexerTest.delete(dir);
+    }
+
+    String writeClip(String name, int millis) throws IOException {
+        File file = new File(dir, name);
+        RecordingIndexerTest.writeWav(file, 8000, millis, 8000);
+        return file.getPath();
+    }
+
+    @Test
+    public void clipsAreDecodedOnce() throws IOException {
+        String path = writeClip("a.wav", 250);
+        ClipCache cache = new ClipCache(1 << 20, PeakCache.DEFAULT_DECODERS);
+        PcmClip clip = cache.get(path);
+        assertEquals(8000, clip.getSampleRate());
+        assertEquals(1, clip.getChannels());
+        assertEquals(2000, clip.getFrames());
+        assertEquals(250, clip.getDuration());
+        assertSame(clip, cache.get(path));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5f, cache.getHitRate(), 0);
+        assertEquals(4000, cache.getResidentBytes());
+
+        writeClip("a.wav", 500);
+        assertEquals(4000, cache.get(path).getFrames());
+        assertEquals(8000, cache.getResidentBytes());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedClipsAreEvicted() throws IOException {
+        String a = writeClip("a.wav", 100);
+        String b = writeClip("b.wav", 100);
+        String c = writeClip("c.wav", 100);
+        String large = writeClip("large.wav", 1000);
+        // Room for two clips of 1600 bytes
+        ClipCache cache = new ClipCache(4000, PeakCache.DEFAULT_DECODERS);
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+        assertTrue(cache.contains(c));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3200, cache.getResidentBytes());
+
+        // Larger than the budget: played, not kept
+        assertEquals(8000, cache.get(large).getFrames());
+        assertFalse(cache.contains(large));
+        assertEquals(2, cache.size());
+
+        cache.invalidate(a);
+        assertEquals(1600, cache.getResidentBytes());
+        cache.clear();
+        assertEquals(0, cache.getResidentBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void missingClipsFail() throws IOException {
+        new ClipCache().get(new File(dir, "missing.wav").getPath());
+    }
+}
@@ -0,0 +1,154 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ClipPlayerTest {
+
+    /**
+     * Keeps what is written.
+     */
+    static class RecordingOutput implements PcmOutput {
+        final int sampleRate;
+        final int channels;
+        short[] written = new short[0];
+        volatile int starts;
+        volatile int stops;
+
+        RecordingOutput(int sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        @Override
+        public int getChannels() {
+            return channels;
+        }
+
+        @Override
+        public synchronized void start() throws IOException {
+            starts++;
+        }
+
+        @Override
+        public synchronized int write(short[] samples, int offset, int size) {
+            int length = written.length;
+            written = Arrays.copyOf(written, length + size);
+            System.arraycopy(samples, offset, written, length, size);
+            return size;
+        }
+
+        @Override
+        public synchronized void stop() {
+            stops++;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Mixed by the test instead of a thread.
+     */
+    static ClipPlayer player(PcmOutput output, int maxVoices, int framesPerBlock) {
+        return new ClipPlayer(new ClipCache(), output, maxVoices, framesPerBlock) {
+            @Override
+            protected Thread startThread() {
+                return null;
+            }
+        };
+    }
+
+    static PcmClip constant(int frames, int rate, int channels, int value) {
+        short[] samples = new short[frames * channels];
+        Arrays.fill(samples, (short) value);
+        return new PcmClip(samples, rate, channels);
+    }
+
+    @Test
+    public void overlappingClipsAreSummedAndSaturated() {
+        ClipPlayer player = player(new RecordingOutput(8000, 1), 4, 4);
+        short[] out = new short[4];
+        player.play(constant(6, 8000, 1, 1000), 1);
+        player.play(constant(2, 8000, 1, 500), 0.5f);
+        assertTrue(player.mix(out, 4));
+        assertArrayEquals(new short[]{1250, 1250, 1000, 1000}, out);
+        assertEquals(1, player.getVoiceCount());
+
+        player.play(constant(4, 8000, 1, 32000), 1);
+        assertTrue(player.mix(out, 4));
+        assertArrayEquals(new short[]{Short.MAX_VALUE, Short.MAX_VALUE, 32000, 32000}, out);
+        assertEquals(0, player.getVoiceCount());
+        assertFalse(player.mix(out, 4));
+    }
+
+    @Test
+    public void clipsAreConvertedToTheOutput() {
+        ClipPlayer player = player(new RecordingOutput(16000, 2), 4, 8);
+        short[] out = new short[16];
+        // Mono ramp at half the rate: each frame twice, interpolated, on both channels
+        player.play(new PcmClip(new short[]{0, 100, 200, 300}, 8000, 1), 1);
+        assertTrue(player.mix(out, 8));
+        assertArrayEquals(new short[]{0, 0, 50, 50, 100, 100, 150, 150, 200, 200, 250, 250, 300, 300, 300, 300}, out);
+        assertEquals(0, player.getVoiceCount());
+
+        player = player(new RecordingOutput(8000, 1), 4, 2);
+        out = new short[2];
+        player.play(new PcmClip(new short[]{100, 300, -100, -300}, 8000, 2), 1);
+        assertTrue(player.mix(out, 2));
+        assertArrayEquals(new short[]{200, -200}, out);
+    }
+
+    @Test
+    public void oldestVoicesAreStolen() {
+        ClipPlayer player = player(new RecordingOutput(8000, 1), 2, 1);
+        short[] out = new short[1];
+        int first = player.play(constant(10, 8000, 1, 1), 1);
+        int second = player.play(constant(10, 8000, 1, 10), 1);
+        player.play(constant(10, 8000, 1, 100), 1);
+        assertEquals(1, player.getStolen());
+        assertEquals(3, player.getTriggers());
+        assertFalse(player.stop(first));
+        player.mix(out, 1);
+        assertEquals(110, out[0]);
+
+        assertTrue(player.stop(second));
+        player.mix(out, 1);
+        assertEquals(100, out[0]);
+        player.stopAll();
+        assertFalse(player.mix(out, 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedPlayersDoNotPlay() {
+        ClipPlayer player = player(new RecordingOutput(8000, 1), 2, 1);
+        player.release();
+        player.play(constant(10, 8000, 1, 1), 1);
+    }
+
+    @Test
+    public void theThreadWritesUntilTheVoicesEnd() throws InterruptedException {
+        RecordingOutput output = new RecordingOutput(8000, 1);
+        ClipPlayer player = new ClipPlayer(new ClipCache(), output, 4, 64);
+        player.play(constant(1000, 8000, 1, 1000), 1);
+        for (int i = 0; i < 200 && (player.getVoiceCount() > 0 || output.stops == 0); i++)
+            Thread.sleep(10);
+        player.release();
+        assertEquals(1, output.starts);
+        assertEquals(1, output.stops);
+        // Whole blocks
+        assertEquals(1024, output.written.length);
+        assertEquals(1000, output.written[999]);
+        assertEquals(0, output.written[1000]);
+    }
+}
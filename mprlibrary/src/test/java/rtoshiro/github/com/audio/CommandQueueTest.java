@@ -0,0 +1,205 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandQueueTest {
+
+    VirtualClock clock;
+    MediaPlayerRecorder mpr;
+    final List<Integer> seeks = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        factory.setSeekDelay(40);
+        mpr = new MediaPlayerRecorder(factory);
+        mpr.setTickScheduler(new TickScheduler(clock));
+        mpr.setCommandWorker(clock);
+        mpr.setDataSource("song.mp3");
+        mpr.getSeekListeners().add(new MediaPlayerRecorder.OnSeekListener() {
+            @Override
+            public void onSeekComplete(MediaPlayerRecorder mpr) {
+                seeks.add(mpr.getCurrentPosition());
+            }
+        });
+    }
+
+    @Test
+    public void scrubbingOnlyReachesTheLatestTarget() {
+        assertTrue(mpr.play());
+        assertEquals(MediaPlayerRecorder.NONE, mpr.getCurrentState());
+        clock.advance(1000);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+
+        // A drag: many seeks while the first one is in flight
+        for (int i = 1; i <= 50; i++) {
+            mpr.seekTo(i * 100);
+            if (i == 1)
+                clock.advance(0);
+        }
+        CommandQueue queue = mpr.getCommandQueue();
+        assertTrue(queue.isWaiting());
+        assertEquals(1, queue.getPendingCount());
+
+        clock.advance(200);
+        assertEquals(2, seeks.size());
+        assertEquals(5000, (int) seeks.get(1));
+        assertEquals(48, queue.getCoalesced());
+        // Playback resumes once, after the latest seek
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void pauseAndPlayCancelOut() {
+        mpr.play();
+        clock.advance(1000);
+        CommandQueue queue = mpr.getCommandQueue();
+        long executed = queue.getExecuted();
+        for (int i = 0; i < 10; i++) {
+            mpr.pause();
+            mpr.play();
+        }
+        assertEquals(1, queue.getPendingCount());
+        clock.advance(10);
+        assertEquals(executed + 1, queue.getExecuted());
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void pauseStillStopsRecording() {
+        final List<Integer> errors = new ArrayList<Integer>();
+        mpr.setOnErrorListener(new MediaPlayerRecorder.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayerRecorder mpr, int what, int extra) {
+                errors.add(extra);
+                return true;
+            }
+        });
+        mpr.record();
+        clock.advance(1000);
+        assertEquals(MediaPlayerRecorder.RECORDING, mpr.getCurrentState());
+        mpr.pause();
+        mpr.play();
+        assertEquals(2, mpr.getCommandQueue().getPendingCount());
+        clock.advance(1000);
+        assertTrue(errors.isEmpty());
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void playThenPauseStillPrepares() {
+        MediaPlayerRecorder direct = new MediaPlayerRecorder(new FakeEngineFactory(clock));
+        direct.setTickScheduler(new TickScheduler(clock));
+        direct.setDataSource("song.mp3");
+        direct.play();
+        direct.pause();
+        mpr.play();
+        mpr.pause();
+        clock.advance(1000);
+        assertEquals(0, mpr.getCommandQueue().getCoalesced());
+        // Prepared and paused, as without the queue
+        assertEquals(MediaPlayerRecorder.PREPAREDTOPLAY, mpr.getCurrentState());
+        assertEquals(direct.getCurrentState(), mpr.getCurrentState());
+        assertFalse(mpr.isPlaying());
+    }
+
+    @Test
+    public void lateCompletionsAreDropped() {
+        final List<Integer> run = new ArrayList<Integer>();
+        final CommandQueue[] queue = new CommandQueue[1];
+        final List<Long> sequences = new ArrayList<Long>();
+        queue[0] = new CommandQueue(clock, new CommandQueue.Target() {
+            @Override
+            public boolean execute(int command, int arg, Object value) {
+                run.add(command);
+                sequences.add(queue[0].getSequence());
+                return command == CommandQueue.SEEK;
+            }
+
+            @Override
+            public void onFailure(int command, RuntimeException e) {
+            }
+
+            @Override
+            public boolean canReplace(int queued, int next) {
+                return true;
+            }
+        });
+        queue[0].setCompleteTimeout(100);
+        queue[0].enqueue(CommandQueue.SEEK, 1000, null);
+        clock.advance(0);
+        queue[0].enqueue(CommandQueue.SEEK, 2000, null);
+        // The first seek times out, the second one runs
+        clock.advance(100);
+        assertEquals(2, run.size());
+        queue[0].enqueue(CommandQueue.PLAY);
+
+        // The first seek completes late: the second one is still in flight
+        queue[0].complete(sequences.get(0));
+        clock.advance(10);
+        assertTrue(queue[0].isWaiting());
+        assertEquals(2, run.size());
+
+        queue[0].complete(sequences.get(1));
+        clock.advance(0);
+        assertEquals(3, run.size());
+        assertEquals(CommandQueue.PLAY, (int) run.get(2));
+    }
+
+    @Test
+    public void invalidCommandsGoToTheErrorListener() {
+        final int[] extra = {0};
+        mpr.setOnErrorListener(new MediaPlayerRecorder.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayerRecorder mpr, int what, int e) {
+                extra[0] = e;
+                return true;
+            }
+        });
+        mpr.play();
+        mpr.record();
+        clock.advance(1000);
+        assertEquals(MediaPlayerRecorder.ERROR_INVALID_OPERATION, extra[0]);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void failedCommandsDoNotStopTheQueue() {
+        final List<Integer> run = new ArrayList<Integer>();
+        final List<Integer> failed = new ArrayList<Integer>();
+        CommandQueue queue = new CommandQueue(clock, new CommandQueue.Target() {
+            @Override
+            public boolean execute(int command, int arg, Object value) {
+                if (command == CommandQueue.PREPARE_TO_PLAY)
+                    throw new IllegalArgumentException();
+                run.add(command);
+                return false;
+            }
+
+            @Override
+            public void onFailure(int command, RuntimeException e) {
+                failed.add(command);
+            }
+
+            @Override
+            public boolean canReplace(int queued, int next) {
+                return true;
+            }
+        });
+        queue.enqueue(CommandQueue.PREPARE_TO_PLAY);
+        queue.enqueue(CommandQueue.PLAY);
+        clock.advance(0);
+        assertEquals(1, failed.size());
+        assertEquals(CommandQueue.PREPARE_TO_PLAY, (int) failed.get(0));
+        assertEquals(1, run.size());
+        assertEquals(CommandQueue.PLAY, (int) run.get(0));
+        assertEquals(0, queue.getPendingCount());
+    }
+}
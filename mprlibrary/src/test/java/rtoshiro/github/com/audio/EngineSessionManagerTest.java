@@ -0,0 +1,128 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EngineSessionManagerTest {
+
+    VirtualClock clock;
+    FakeEngineFactory factory;
+    TickScheduler ticks;
+    EngineSessionManager manager;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        ticks = new TickScheduler(clock);
+        manager = new EngineSessionManager(2);
+    }
+
+    MediaPlayerRecorder create(String source) {
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory, ticks);
+        mpr.setSessionManager(manager);
+        mpr.setDataSource(source);
+        return mpr;
+    }
+
+    MediaPlayerRecorder playAndPause(String source, long millis) {
+        MediaPlayerRecorder mpr = create(source);
+        mpr.play();
+        clock.advance(factory.getPrepareDelay() + millis);
+        mpr.pause();
+        return mpr;
+    }
+
+    @Test
+    public void leastRecentlyUsedPausedPlayerIsEvictedAndResumes() {
+        MediaPlayerRecorder first = playAndPause("1.mp3", 1000);
+        MediaPlayerRecorder second = playAndPause("2.mp3", 2000);
+        assertEquals(2, manager.getLiveCount());
+
+        // Using the first one makes the second one the least recently used
+        first.seekTo(1500);
+        clock.advance(100);
+        MediaPlayerRecorder third = playAndPause("3.mp3", 3000);
+        assertEquals(1, manager.getEvictions());
+        assertEquals(2, manager.getLiveCount());
+        assertNull(second.player);
+        assertNotNull(first.player);
+
+        // The evicted instance looks paused where it was
+        assertEquals(MediaPlayerRecorder.PAUSED, second.getCurrentState());
+        assertEquals(2000, second.getCurrentPosition());
+        assertEquals(factory.getPlayerDuration(), second.getDuration());
+
+        assertTrue(second.play());
+        clock.advance(factory.getPrepareDelay() + factory.getSeekDelay());
+        assertEquals(MediaPlayerRecorder.PLAYING, second.getCurrentState());
+        assertEquals(2000, second.getCurrentPosition());
+        clock.advance(500);
+        assertEquals(2500, second.getCurrentPosition());
+        assertEquals(1, manager.getRestores());
+        // Resuming evicted the first one, the least recently used
+        assertNull(first.player);
+        assertNotNull(third.player);
+        assertEquals(2, manager.getMaxLiveCount());
+    }
+
+    @Test
+    public void seekWhileEvictedMovesTheResumePosition() {
+        MediaPlayerRecorder first = playAndPause("1.mp3", 1000);
+        playAndPause("2.mp3", 1000);
+        playAndPause("3.mp3", 1000);
+        assertNull(first.player);
+
+        first.seekTo(7000);
+        assertEquals(7000, first.getCurrentPosition());
+        first.play();
+        clock.advance(factory.getPrepareDelay() + factory.getSeekDelay() + 1000);
+        assertEquals(8000, first.getCurrentPosition());
+    }
+
+    @Test
+    public void playingInstancesAreNeverEvicted() {
+        MediaPlayerRecorder first = create("1.mp3");
+        MediaPlayerRecorder second = create("2.mp3");
+        MediaPlayerRecorder third = create("3.mp3");
+        first.play();
+        second.play();
+        third.play();
+        clock.advance(1000);
+        assertEquals(MediaPlayerRecorder.PLAYING, first.getCurrentState());
+        assertEquals(MediaPlayerRecorder.PLAYING, second.getCurrentState());
+        assertEquals(MediaPlayerRecorder.PLAYING, third.getCurrentState());
+        assertEquals(0, manager.getEvictions());
+        assertEquals(1, manager.getOverLimit());
+        assertEquals(3, manager.getLiveCount());
+
+        first.release();
+        second.release();
+        third.release();
+        assertEquals(0, manager.getLiveCount());
+    }
+
+    @Test
+    public void chainedInstancesAreNotEvicted() {
+        factory.setPlayerDuration(5000);
+        MediaPlayerRecorder first = create("1.mp3");
+        MediaPlayerRecorder second = create("2.mp3");
+        first.play();
+        second.prepareToPlay();
+        clock.advance(factory.getPrepareDelay());
+        assertTrue(first.setNextMediaPlayerRecorder(second));
+
+        MediaPlayerRecorder third = playAndPause("3.mp3", 100);
+        assertNotNull(second.player);
+        assertEquals(0, manager.getEvictions());
+
+        clock.advance(5000);
+        assertEquals(MediaPlayerRecorder.PLAYING, second.getCurrentState());
+        // Unchained once started: evictable again when paused
+        second.pause();
+        assertNull(second.previous);
+        assertTrue(second.isEvictable());
+    }
+}
@@ -0,0 +1,109 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives MediaPlayerRecorder through the fake engines on a virtual clock.
+ */
+public class FakeEngineTest {
+
+    private VirtualClock clock;
+    private FakeEngineFactory factory;
+    private MediaPlayerRecorder mpr;
+    private int completions;
+    private int prepared;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        factory.setPlayerDuration(1000);
+        factory.setPrepareDelay(50);
+        mpr = new MediaPlayerRecorder(factory);
+        mpr.setOnCompletionListener(new MediaPlayerRecorder.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayerRecorder mpr, boolean success) {
+                completions++;
+            }
+        });
+        mpr.setOnPreparedListener(new MediaPlayerRecorder.OnPreparedListener() {
+            @Override
+            public void onRecorderPrepared(MediaPlayerRecorder mpr) {
+                prepared++;
+            }
+
+            @Override
+            public void onPlayerPrepared(MediaPlayerRecorder mpr) {
+                prepared++;
+            }
+        });
+    }
+
+    @Test
+    public void playsUntilCompletion() {
+        mpr.setDataSource("/sdcard/audio.m4a");
+        assertTrue(mpr.play());
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, mpr.getCurrentState());
+
+        clock.advance(50);
+        assertEquals(1, prepared);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+
+        clock.advance(400);
+        assertEquals(400, mpr.getCurrentPosition());
+
+        clock.advance(600);
+        assertEquals(1, completions);
+        assertEquals(MediaPlayerRecorder.PAUSED, mpr.getCurrentState());
+    }
+
+    @Test
+    public void pauseStopsTheClock() {
+        mpr.setDataSource("/sdcard/audio.m4a");
+        mpr.play();
+        clock.advance(250);
+        mpr.pause();
+        clock.advance(5000);
+        assertEquals(200, mpr.getCurrentPosition());
+        assertEquals(0, completions);
+
+        mpr.play();
+        clock.advance(800);
+        assertEquals(1, completions);
+    }
+
+    @Test
+    public void recordsUntilMaxDuration() {
+        mpr.setDataSource("/sdcard/record.m4a");
+        mpr.setMaxDuration(3000);
+        assertTrue(mpr.record());
+        assertEquals(MediaPlayerRecorder.RECORDING, mpr.getCurrentState());
+
+        clock.advance(3000);
+        assertEquals(1, completions);
+        assertEquals(MediaPlayerRecorder.NONE, mpr.getCurrentState());
+    }
+
+    @Test
+    public void prepareErrorCompletesUnsuccessfully() {
+        mpr.setDataSource("/sdcard/error.m4a");
+        mpr.play();
+        clock.advance(50);
+        assertEquals(1, completions);
+        assertEquals(0, prepared);
+    }
+
+    @Test
+    public void manySessions() {
+        for (int i = 0; i < 1000; i++) {
+            mpr.setDataSource("/sdcard/audio" + i + ".m4a");
+            mpr.play();
+            clock.advance(1100);
+        }
+        assertEquals(1000, completions);
+        assertEquals(1000, factory.getCreatedPlayers());
+    }
+}
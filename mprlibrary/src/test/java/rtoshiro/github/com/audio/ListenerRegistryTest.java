@@ -0,0 +1,97 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+
+    static class Calls implements MediaPlayerRecorder.OnCompletionListener {
+        final List<Boolean> calls = new ArrayList<Boolean>();
+
+        @Override
+        public void onCompletion(MediaPlayerRecorder mpr, boolean success) {
+            calls.add(success);
+        }
+    }
+
+    /**
+     * Executor that runs tasks when asked, like a busy thread would.
+     */
+    static class QueueExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks)
+                task.run();
+            tasks.clear();
+        }
+    }
+
+    @Test
+    public void settersReplaceOnlyTheirOwnListener() {
+        VirtualClock clock = new VirtualClock();
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(new FakeEngineFactory(clock));
+        mpr.setTickScheduler(new TickScheduler(clock));
+        mpr.setDataSource("file.mp3");
+        Calls first = new Calls();
+        Calls second = new Calls();
+        Calls added = new Calls();
+        mpr.setOnCompletionListener(first);
+        mpr.getCompletionListeners().add(added);
+        mpr.setOnCompletionListener(second);
+        assertEquals(2, mpr.getCompletionListeners().size());
+
+        mpr.play();
+        clock.runUntilIdle(1000);
+        assertEquals(0, first.calls.size());
+        assertEquals(1, second.calls.size());
+        assertEquals(1, added.calls.size());
+        assertSame(second, mpr.getOnCompletionListener());
+    }
+
+    @Test
+    public void executorSubscribersDoNotRunOnTheDispatchingThread() throws InterruptedException {
+        ListenerRegistry<MediaPlayerRecorder.OnCompletionListener> registry = new ListenerRegistry<MediaPlayerRecorder.OnCompletionListener>();
+        ListenerRegistry.Notifier<MediaPlayerRecorder.OnCompletionListener> notifier = new ListenerRegistry.Notifier<MediaPlayerRecorder.OnCompletionListener>() {
+            @Override
+            public boolean notify(MediaPlayerRecorder.OnCompletionListener listener, int arg1, int arg2, long value) {
+                listener.onCompletion(null, arg1 != 0);
+                return true;
+            }
+        };
+        Calls inline = new Calls();
+        Calls queued = new Calls();
+        QueueExecutor executor = new QueueExecutor();
+        registry.add(inline);
+        registry.add(queued, executor);
+        assertFalse(registry.add(inline));
+
+        // Only inline subscribers can handle an event
+        assertTrue(registry.dispatch(notifier, 1, 0, 0));
+        assertEquals(1, inline.calls.size());
+        assertEquals(0, queued.calls.size());
+
+        Thread.sleep(5);
+        executor.runAll();
+        assertEquals(1, queued.calls.size());
+        ListenerRegistry.Subscriber<MediaPlayerRecorder.OnCompletionListener> subscriber = registry.getSubscribers().get(1);
+        assertSame(queued, subscriber.getListener());
+        assertEquals(1, subscriber.getDispatches());
+        assertTrue(subscriber.getMaxLatencyNanos() >= 5000000L);
+        assertEquals(subscriber.getMaxLatencyNanos(), registry.getMaxLatencyNanos());
+
+        assertTrue(registry.remove(inline));
+        assertFalse(registry.dispatch(notifier, 1, 0, 0));
+        assertEquals(1, inline.calls.size());
+    }
+}
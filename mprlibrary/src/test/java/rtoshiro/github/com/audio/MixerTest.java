@@ -0,0 +1,84 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MixerTest {
+
+    /**
+     * Endless constant source.
+     */
+    static Mixer.Source constant(final float value) {
+        return new Mixer.Source() {
+            @Override
+            public int read(float[] buffer, int frames) {
+                Arrays.fill(buffer, 0, frames * 2, value);
+                return frames;
+            }
+        };
+    }
+
+    @Test
+    public void tracksAreSummedWithTheirGain() {
+        Mixer mixer = new Mixer(2, 4, 3);
+        float[] out = new float[8];
+        assertEquals(0, mixer.addTrack(constant(0.5f), 1));
+        assertEquals(1, mixer.addTrack(constant(0.25f), 0.5f));
+        assertEquals(2, mixer.mix(out));
+        for (float sample : out)
+            assertEquals(0.625f, sample, 1e-6);
+
+        mixer.setMasterGain(2);
+        mixer.removeTrack(0);
+        assertEquals(1, mixer.mix(out));
+        assertEquals(0.25f, out[7], 1e-6);
+        assertEquals(1, mixer.getTrackCount());
+    }
+
+    @Test
+    public void gainsRampToTheirTarget() {
+        Mixer mixer = new Mixer(2, 4, 1);
+        float[] out = new float[8];
+        int track = mixer.addTrack(constant(1), 0);
+        mixer.setGain(track, 1, 6);
+        mixer.mix(out);
+        assertArrayEquals(new float[]{1 / 6f, 1 / 6f, 2 / 6f, 2 / 6f, 3 / 6f, 3 / 6f, 4 / 6f, 4 / 6f}, out, 1e-5f);
+        mixer.mix(out);
+        assertArrayEquals(new float[]{5 / 6f, 5 / 6f, 1, 1, 1, 1, 1, 1}, out, 1e-5f);
+        assertEquals(1, mixer.getGain(track), 0);
+
+        mixer.setGain(track, 0.5f, 0);
+        mixer.mix(out);
+        assertEquals(0.5f, out[0], 0);
+    }
+
+    @Test
+    public void clipsEndAndAreSaturated() {
+        Mixer mixer = new Mixer(2, 4, 2);
+        short[] out = new short[8];
+        PcmClip clip = new PcmClip(new short[]{30000, -30000, 16384, 16384, 100}, 8000, 1);
+        mixer.addTrack(new Mixer.ClipSource(clip, 2), 1);
+        mixer.addTrack(new Mixer.ClipSource(clip, 2), 1);
+        assertEquals(2, mixer.mix(out));
+        assertArrayEquals(new short[]{32767, 32767, -32768, -32768, 32767, 32767, 32767, 32767}, out);
+        assertEquals(2, mixer.getTrackCount());
+
+        // Last frame, then silence
+        assertEquals(2, mixer.mix(out));
+        assertArrayEquals(new short[]{200, 200, 0, 0, 0, 0, 0, 0}, out);
+        assertEquals(0, mixer.getTrackCount());
+        assertFalse(mixer.isPlaying(0));
+        assertEquals(0, mixer.mix(out));
+    }
+
+    @Test
+    public void tracksAreLimited() {
+        Mixer mixer = new Mixer(1, 16, 2);
+        mixer.addTrack(constant(0), 1);
+        mixer.addTrack(constant(0), 1);
+        assertEquals(-1, mixer.addTrack(constant(0), 1));
+    }
+}
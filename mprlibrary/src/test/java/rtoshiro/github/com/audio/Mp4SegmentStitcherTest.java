@@ -0,0 +1,193 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Mp4SegmentStitcherTest {
+
+    static final int SAMPLES_PER_CHUNK = 4;
+
+    File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("stitch", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    /**
+     * Writes a single track AAC-like recording, laid out as MediaRecorder does (mdat before moov).
+     */
+    static void writeSegment(File file, byte[][] samples, int sampleRate) throws IOException {
+        Mp4Writer writer = new Mp4Writer();
+        writer.begin(Mp4Box.FTYP).writeInt(Mp4Box.type("M4A ")).writeInt(0).writeInt(Mp4Box.type("isom")).end();
+        writer.begin(Mp4Box.MDAT);
+        int payload = writer.size();
+        List<Integer> chunks = new ArrayList<Integer>();
+        for (int i = 0; i < samples.length; i++) {
+            if (i % SAMPLES_PER_CHUNK == 0)
+                chunks.add(writer.size());
+            writer.write(samples[i], 0, samples[i].length);
+        }
+        writer.end();
+        assertTrue(payload > 0);
+
+        long mediaDuration = samples.length * 1024L;
+        long movieDuration = mediaDuration * 1000 / sampleRate;
+        writer.begin(Mp4Box.MOOV);
+        writer.beginFull(Mp4Box.MVHD, 0, 0).writeInt(0).writeInt(0).writeInt(1000).writeInt((int) movieDuration);
+        writer.write(new byte[80], 0, 80);
+        writer.end();
+        writer.begin(Mp4Box.TRAK);
+        writer.beginFull(Mp4Box.TKHD, 0, 7).writeInt(0).writeInt(0).writeInt(1).writeInt(0).writeInt((int) movieDuration);
+        writer.write(new byte[60], 0, 60);
+        writer.end();
+        writer.begin(Mp4Box.EDTS).end();
+        writer.begin(Mp4Box.MDIA);
+        writer.beginFull(Mp4Box.MDHD, 0, 0).writeInt(0).writeInt(0).writeInt(sampleRate).writeInt((int) mediaDuration).writeInt(0).end();
+        writer.beginFull(Mp4Box.HDLR, 0, 0).writeInt(0).writeInt(Mp4Box.type("soun")).writeInt(0).writeInt(0).writeInt(0).writeByte(0).end();
+        writer.begin(Mp4Box.MINF);
+        writer.beginFull(Mp4Box.SMHD, 0, 0).writeInt(0).end();
+        writer.begin(Mp4Box.STBL);
+        writer.beginFull(Mp4Box.STSD, 0, 0).writeInt(1);
+        writer.begin(Mp4Box.type("mp4a")).writeInt(0).writeShort(0).writeShort(1).writeInt(sampleRate).end();
+        writer.end();
+        writer.beginFull(Mp4Box.STTS, 0, 0).writeInt(1).writeInt(samples.length).writeInt(1024).end();
+        int tail = samples.length % SAMPLES_PER_CHUNK;
+        writer.beginFull(Mp4Box.STSC, 0, 0).writeInt(tail == 0 ? 1 : 2);
+        writer.writeInt(1).writeInt(SAMPLES_PER_CHUNK).writeInt(1);
+        if (tail != 0)
+            writer.writeInt(chunks.size()).writeInt(tail).writeInt(1);
+        writer.end();
+        writer.beginFull(Mp4Box.STSZ, 0, 0).writeInt(0).writeInt(samples.length);
+        for (byte[] sample : samples)
+            writer.writeInt(sample.length);
+        writer.end();
+        writer.beginFull(Mp4Box.STCO, 0, 0).writeInt(chunks.size());
+        for (int chunk : chunks)
+            writer.writeInt(chunk);
+        writer.end();
+        writer.end().end().end().end().end();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            writer.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    static byte[][] samples(int count, int seed) {
+        byte[][] samples = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            samples[i] = new byte[100 + (i * 37 + seed) % 200];
+            Arrays.fill(samples[i], (byte) (seed + i));
+        }
+        return samples;
+    }
+
+    @Test
+    public void joinsSamplesAndTables() throws IOException {
+        byte[][][] runs = {samples(10, 1), samples(7, 50), samples(13, 100)};
+        List<File> segments = new ArrayList<File>();
+        for (int i = 0; i < runs.length; i++) {
+            File file = new File(dir, "rec.m4a.part" + i);
+            writeSegment(file, runs[i], 16000);
+            segments.add(file);
+        }
+        File output = new File(dir, "rec.m4a");
+        Mp4SegmentStitcher.stitch(segments, output);
+
+        Mp4SegmentStitcher.Segment joined = Mp4SegmentStitcher.parse(output);
+        assertEquals(30, joined.sampleCount);
+        assertEquals(30 * 1024L, joined.getMediaDuration());
+        assertEquals(1, joined.sttsCounts.length);
+        ByteBuffer moov = joined.moov;
+        assertEquals(-1, Mp4Box.path(moov, joined.trak, Mp4Box.EDTS));
+        int mvhd = Mp4Box.child(moov, 0, Mp4Box.MVHD);
+        assertEquals(30 * 1024 * 1000 / 16000, moov.getInt(mvhd + 24));
+        int mdhd = Mp4Box.path(moov, joined.trak, Mp4Box.MDIA, Mp4Box.MDHD);
+        assertEquals(30 * 1024, moov.getInt(mdhd + 24));
+
+        // moov is before mdat, and every sample is found where the tables say
+        assertTrue(joined.mdatPayload > moov.capacity());
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            int sample = 0;
+            for (int chunk = 0; chunk < joined.chunkOffsets.length; chunk++) {
+                long offset = joined.chunkOffsets[chunk];
+                int perChunk = SAMPLES_PER_CHUNK;
+                for (int i = joined.stscFirst.length - 1; i >= 0; i--) {
+                    if (joined.stscFirst[i] <= chunk + 1) {
+                        perChunk = joined.stscSamples[i];
+                        break;
+                    }
+                }
+                for (int i = 0; i < perChunk && sample < joined.sampleCount; i++, sample++) {
+                    byte[] expected = runs[sample < 10 ? 0 : sample < 17 ? 1 : 2][sample < 10 ? sample : sample < 17 ? sample - 10 : sample - 17];
+                    byte[] actual = new byte[joined.sampleSizes[sample]];
+                    file.seek(offset);
+                    file.readFully(actual);
+                    assertArrayEquals(expected, actual);
+                    offset += actual.length;
+                }
+            }
+            assertEquals(30, sample);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDifferentSampleRates() throws IOException {
+        File a = new File(dir, "a.m4a");
+        File b = new File(dir, "b.m4a");
+        writeSegment(a, samples(4, 1), 16000);
+        writeSegment(b, samples(4, 2), 44100);
+        Mp4SegmentStitcher.stitch(Arrays.asList(a, b), new File(dir, "out.m4a"));
+    }
+
+    @Test
+    public void pausableRecordingResumesAndJoins() throws IOException {
+        FakeEngineFactory factory = new FakeEngineFactory(new VirtualClock());
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setPausableRecording(true);
+        String path = new File(dir, "voice.m4a").getPath();
+        mpr.setDataSource(path);
+
+        assertTrue(mpr.record());
+        mpr.pause();
+        assertTrue(mpr.record());
+        mpr.pause();
+        assertEquals(2, factory.getCreatedRecorders());
+
+        // Stand-in for what the recorders wrote
+        writeSegment(new File(path + ".part0"), samples(5, 3), 16000);
+        writeSegment(new File(path + ".part1"), samples(6, 9), 16000);
+
+        assertTrue(mpr.finishRecording());
+        assertFalse(new File(path + ".part0").exists());
+        assertFalse(new File(path + ".part1").exists());
+        assertEquals(11, Mp4SegmentStitcher.parse(new File(path)).sampleCount);
+    }
+}
@@ -0,0 +1,150 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PcmCaptureTest {
+
+    /**
+     * Produces a ramp of samples, sleeping between reads to pace the capture.
+     */
+    static class RampSource implements PcmSource {
+        final long pauseMillis;
+        short next;
+
+        RampSource(long pauseMillis) {
+            this.pauseMillis = pauseMillis;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return 8000;
+        }
+
+        @Override
+        public int getChannels() {
+            return 1;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+            for (int i = 0; i < size; i += 2)
+                buffer.putShort(i, next++);
+            return size;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    @Test
+    public void slowConsumerLosesChunksWithoutStallingTheProducer() throws InterruptedException {
+        PcmRingBuffer ring = new PcmRingBuffer(64, 4);
+        PcmRingBuffer.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 10; i++) {
+            ring.writeChunk().putShort(0, (short) i);
+            ring.commit(64);
+        }
+        ByteBuffer chunk = cursor.take();
+        assertEquals(7, chunk.getShort(0));
+        assertTrue(cursor.release());
+        assertEquals(7, cursor.getLost());
+        assertEquals(10, cursor.getMaxLag());
+    }
+
+    @Test
+    public void writesEveryCapturedFrame() throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        RampSource source = new RampSource(1);
+        PcmCapture capture = new PcmCapture(source, PcmCapture.createRing(source, 10, 320));
+        File file = File.createTempFile("capture", ".wav");
+        WavFileWriter writer = new WavFileWriter(file);
+        LevelMeter meter = new LevelMeter();
+        capture.addConsumer(writer);
+        capture.addConsumer(meter);
+        capture.setMaxFrames(8000);
+        capture.setListener(new PcmCapture.Listener() {
+            @Override
+            public void onError(PcmCapture capture, int error) {
+            }
+
+            @Override
+            public void onLimitReached(PcmCapture capture, boolean bytes) {
+                done.countDown();
+            }
+        });
+
+        capture.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        capture.stop();
+
+        assertEquals(8000, capture.getFramesCaptured());
+        assertEquals(0, capture.getLost(writer));
+        assertEquals(16000, writer.getDataSize());
+        assertEquals(WavFileWriter.HEADER_SIZE + 16000, file.length());
+        assertTrue(meter.getPeak() > 0);
+        file.delete();
+    }
+
+    @Test
+    public void failedConsumersStopTheCapture() throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] error = {0};
+        RampSource source = new RampSource(1);
+        PcmCapture capture = new PcmCapture(source, PcmCapture.createRing(source, 10, 320));
+        // A writer on a full disk
+        capture.addConsumer(new PcmConsumer() {
+            @Override
+            public void onStart(int sampleRate, int channels) {
+            }
+
+            @Override
+            public void onPcm(ByteBuffer buffer, long frameIndex) throws IOException {
+                if (frameIndex >= 800)
+                    throw new IOException("No space left on device");
+            }
+
+            @Override
+            public void onStop() {
+            }
+        });
+        capture.setListener(new PcmCapture.Listener() {
+            @Override
+            public void onError(PcmCapture capture, int e) {
+                error[0] = e;
+                done.countDown();
+            }
+
+            @Override
+            public void onLimitReached(PcmCapture capture, boolean bytes) {
+            }
+        });
+
+        capture.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(PcmCapture.ERROR_CONSUMER, error[0]);
+        assertFalse(capture.isRunning());
+        capture.stop();
+    }
+}
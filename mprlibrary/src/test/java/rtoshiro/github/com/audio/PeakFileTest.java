@@ -0,0 +1,176 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class PeakFileTest {
+
+    static final int FRAMES = 100000;
+
+    File dir;
+    short[] samples;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("peaks", "");
+        dir.delete();
+        dir.mkdirs();
+        samples = new short[FRAMES];
+        for (int i = 0; i < FRAMES; i++)
+            samples[i] = (short) (Math.sin(i / 50.0) * (i % 30000));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    File writeWav(String name, short[] pcm) throws IOException {
+        File file = new File(dir, name);
+        WavFileWriter writer = new WavFileWriter(file);
+        writer.onStart(8000, 1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pcm.length * 2).order(ByteOrder.nativeOrder());
+        for (short sample : pcm)
+            buffer.putShort(sample);
+        buffer.flip();
+        writer.onPcm(buffer, 0);
+        writer.onStop();
+        return file;
+    }
+
+    @Test
+    public void rendersEveryZoomLikeTheSamples() throws IOException {
+        File wav = writeWav("a.wav", samples);
+        File file = PeakFile.sidecarOf(wav.getPath());
+        PeakFileWriter.generate(new WavDecoder(), wav.getPath(), file);
+
+        PeakFile peaks = PeakFile.open(file);
+        assertEquals(FRAMES, peaks.getFrames());
+        assertEquals(wav.length(), peaks.getSourceLength());
+        assertTrue(peaks.getLevelCount() > 3);
+        assertEquals(PeakFileWriter.DEFAULT_FRAMES_PER_PEAK * 4, peaks.getFramesPerPeak(1));
+
+        int[][] ranges = {{0, FRAMES, 100}, {0, FRAMES, 1000}, {12345, 23456, 300}, {500, 600, 50}};
+        for (int[] range : ranges) {
+            int pixels = range[2];
+            short[] mins = new short[pixels];
+            short[] maxs = new short[pixels];
+            assertEquals(pixels, peaks.render(range[0], range[1], pixels, mins, maxs));
+            double framesPerPixel = (double) (range[1] - range[0]) / pixels;
+            int size = peaks.getFramesPerPeak(peaks.levelFor(framesPerPixel));
+            for (int p = 0; p < pixels; p++) {
+                long from = range[0] + (long) (p * framesPerPixel);
+                long to = range[0] + (long) ((p + 1) * framesPerPixel);
+                // The column covers whole peaks: the samples of those peaks bound it exactly
+                long first = from / size * size;
+                long last = Math.min(FRAMES, (Math.max(from / size, (to - 1) / size) + 1) * size);
+                short min = Short.MAX_VALUE;
+                short max = Short.MIN_VALUE;
+                for (long i = first; i < last; i++) {
+                    min = (short) Math.min(min, samples[(int) i]);
+                    max = (short) Math.max(max, samples[(int) i]);
+                }
+                assertEquals(min, mins[p]);
+                assertEquals(max, maxs[p]);
+            }
+        }
+    }
+
+    @Test
+    public void writerFillsLostChunksWithSilence() throws IOException {
+        File file = new File(dir, "gap.peaks");
+        PeakFileWriter writer = new PeakFileWriter(file, 100);
+        writer.onStart(8000, 1);
+        ByteBuffer chunk = ByteBuffer.allocate(200).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 100; i++)
+            chunk.putShort(i * 2, (short) 1000);
+        writer.onPcm(chunk, 0);
+        chunk.position(0);
+        writer.onPcm(chunk, 300);
+        writer.onStop();
+
+        PeakFile peaks = PeakFile.open(file);
+        assertEquals(400, peaks.getFrames());
+        assertEquals(4, peaks.getPeakCount(0));
+        assertEquals(1000, peaks.getMax(0, 0));
+        assertEquals(0, peaks.getMax(0, 1));
+        assertEquals(0, peaks.getMin(0, 2));
+        assertEquals(1000, peaks.getMax(0, 3));
+        assertEquals(1000, peaks.getMax(1, 0));
+    }
+
+    @Test
+    public void cacheGeneratesOnlyMissingOrStalePeaks() throws IOException {
+        File wav = writeWav("b.wav", samples);
+        PeakCache cache = new PeakCache();
+        PeakFile first = cache.get(wav.getPath());
+        assertSame(first, cache.get(wav.getPath()));
+        assertEquals(1, cache.getGenerated());
+
+        // A new cache finds the peak file on disk
+        PeakCache other = new PeakCache();
+        assertEquals(FRAMES, other.get(wav.getPath()).getFrames());
+        assertEquals(0, other.getGenerated());
+
+        // Recorded again: stale
+        short[] shorter = new short[FRAMES / 2];
+        System.arraycopy(samples, 0, shorter, 0, shorter.length);
+        writeWav("b.wav", shorter);
+        assertEquals(FRAMES / 2, cache.get(wav.getPath()).getFrames());
+        assertEquals(2, cache.getGenerated());
+    }
+
+    @Test
+    public void concurrentGetsGenerateOnce() throws Exception {
+        final File wav = writeWav("c.wav", samples);
+        final PeakCache cache = new PeakCache(8, new PeakCache.DecoderFactory() {
+            @Override
+            public AudioDecoder createDecoder(String path) {
+                return new WavDecoder() {
+                    @Override
+                    public void open(String path) throws IOException {
+                        // Slow enough for the other gets to arrive meanwhile
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                        super.open(path);
+                    }
+                };
+            }
+        });
+        final PeakFile[] results = new PeakFile[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = cache.get(wav.getPath());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(1, cache.getGenerated());
+        for (PeakFile result : results)
+            assertSame(results[0], result);
+        assertEquals(FRAMES, results[0].getFrames());
+    }
+}
@@ -0,0 +1,72 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PlaybackMetricsTest {
+
+    @Test
+    public void percentilesStayWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(500, histogram.getPercentile(50), 500 / 8);
+        assertEquals(990, histogram.getPercentile(99), 990 / 8);
+        assertEquals(1000, histogram.getPercentile(100));
+        // Small values are exact
+        histogram.reset();
+        histogram.record(3);
+        histogram.record(7);
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(90));
+    }
+
+    @Test
+    public void playbackLatenciesAreRecorded() throws IOException {
+        VirtualClock clock = new VirtualClock();
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        factory.setPrepareDelay(120);
+        factory.setSeekDelay(40);
+        PlaybackMetrics metrics = new PlaybackMetrics(clock);
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setTickScheduler(new TickScheduler(clock));
+        mpr.setMetrics(metrics);
+        mpr.setDataSource("http://host/song.mp3");
+
+        mpr.play();
+        clock.advance(1000);
+        assertEquals(1, metrics.prepare.getCount());
+        assertEquals(120, metrics.prepare.getMax());
+        assertEquals(1, metrics.firstAudio.getCount());
+        assertTrue(metrics.firstAudio.getMax() > 120);
+        assertTrue(metrics.firstAudio.getMax() <= 120 + 2 * TickScheduler.DEFAULT_COALESCING_WINDOW);
+
+        mpr.seekTo(5000);
+        clock.advance(1000);
+        assertEquals(1, metrics.seek.getCount());
+        assertEquals(40, metrics.seek.getMax());
+        // Playback restarted after the seek
+        assertEquals(2, metrics.firstAudio.getCount());
+
+        ((FakePlayerEngine) mpr.player).stall(300);
+        clock.advance(1000);
+        assertEquals(1, metrics.getStallCount());
+        assertEquals(300, metrics.stall.getMax());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        metrics.writeBinary(new DataOutputStream(bytes));
+        PlaybackMetrics read = PlaybackMetrics.readBinary(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(metrics.toText(), read.toText());
+    }
+}
@@ -0,0 +1,83 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PlayerPoolTest {
+
+    private VirtualClock clock;
+    private FakeEngineFactory factory;
+    private PlayerPool pool;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        factory.setPrepareDelay(200);
+        pool = new PlayerPool(factory, 2, 10000, clock);
+    }
+
+    @Test
+    public void warmSourcePlaysImmediately() {
+        pool.prewarm("/sdcard/a.m4a");
+        clock.advance(200);
+
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setPlayerPool(pool);
+        mpr.setDataSource("/sdcard/a.m4a");
+        assertTrue(mpr.play());
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    public void coldSourceIsAMiss() {
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setPlayerPool(pool);
+        mpr.setDataSource("/sdcard/b.m4a");
+        mpr.play();
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, mpr.getCurrentState());
+        clock.advance(200);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+        assertEquals(1, pool.getMisses());
+
+        mpr.setDataSource("/sdcard/c.m4a");
+        assertEquals(1, pool.size());
+        mpr.play();
+        assertEquals(1, factory.getCreatedPlayers());
+    }
+
+    @Test
+    public void sizeIsCappedAndIdleInstancesExpire() {
+        pool.prewarm("/sdcard/1.m4a");
+        pool.prewarm("/sdcard/2.m4a");
+        pool.prewarm("/sdcard/3.m4a");
+        assertEquals(2, pool.size());
+        assertFalse(pool.isWarm("/sdcard/1.m4a"));
+        assertTrue(pool.isWarm("/sdcard/3.m4a"));
+
+        clock.advance(10001);
+        pool.evictIdle();
+        assertEquals(0, pool.size());
+        assertEquals(3, pool.getEvictions());
+    }
+
+    @Test
+    public void unusedPoolReleasesItsInstancesOnItsOwn() {
+        TickScheduler ticks = new TickScheduler(clock);
+        pool = new PlayerPool(factory, 2, 10000, ticks);
+        pool.prefill(2);
+        assertTrue(ticks.isRunning());
+
+        clock.advance(9000);
+        assertEquals(2, pool.size());
+        clock.advance(6000);
+        assertEquals(0, pool.size());
+        assertEquals(2, pool.getEvictions());
+        // No tick while the pool is empty
+        assertFalse(ticks.isRunning());
+    }
+}
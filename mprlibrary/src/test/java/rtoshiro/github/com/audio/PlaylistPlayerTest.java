@@ -0,0 +1,84 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PlaylistPlayerTest {
+
+    private VirtualClock clock;
+    private FakeEngineFactory factory;
+    private PlaylistPlayer playlist;
+    private int handoffs;
+    private int chainedHandoffs;
+    private boolean completed;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        factory.setPlayerDuration(1000);
+        factory.setPrepareDelay(100);
+        playlist = new PlaylistPlayer(factory, clock);
+        for (int i = 0; i < 3; i++)
+            playlist.add("/sdcard/track" + i + ".m4a");
+        playlist.setOnHandoffListener(new PlaylistPlayer.OnHandoffListener() {
+            @Override
+            public void onHandoff(PlaylistPlayer playlist, int index, long latency, boolean chained) {
+                handoffs++;
+                if (chained)
+                    chainedHandoffs++;
+            }
+        });
+        playlist.setOnPlaylistCompletionListener(new PlaylistPlayer.OnPlaylistCompletionListener() {
+            @Override
+            public void onPlaylistCompletion(PlaylistPlayer playlist) {
+                completed = true;
+            }
+        });
+    }
+
+    @Test
+    public void chainedEntriesHaveNoGap() {
+        playlist.play();
+        clock.advance(100 + 1000);
+        assertEquals(1, playlist.getCurrentIndex());
+        assertEquals(MediaPlayerRecorder.PLAYING, playlist.getCurrent().getCurrentState());
+        clock.advance(250);
+        assertEquals(250, playlist.getCurrent().getCurrentPosition());
+
+        clock.advance(2000);
+        assertTrue(completed);
+        assertEquals(2, handoffs);
+        assertEquals(2, chainedHandoffs);
+        assertEquals(0, playlist.getMaxHandoffLatency());
+    }
+
+    @Test
+    public void withoutPrefetchTheNextEntryIsPreparedAtCompletion() {
+        playlist.setPrefetchDepth(0);
+        playlist.play();
+        clock.advance(100 + 1000);
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, playlist.getCurrent().getCurrentState());
+        // Prepared after 100 ms, the first audio is seen by the next probe
+        clock.advance(150);
+        assertEquals(1, handoffs);
+        assertEquals(0, chainedHandoffs);
+        assertEquals(100, playlist.getLastHandoffLatency());
+    }
+
+    @Test
+    public void chainedLatencyIncludesTheStartOfTheOutput() {
+        factory.setChainDelay(30);
+        playlist.play();
+        clock.advance(100 + 1000);
+        assertEquals(1, playlist.getCurrentIndex());
+        assertEquals(0, handoffs);
+
+        clock.advance(100);
+        assertEquals(1, handoffs);
+        assertEquals(1, chainedHandoffs);
+        assertEquals(30, playlist.getLastHandoffLatency());
+    }
+}
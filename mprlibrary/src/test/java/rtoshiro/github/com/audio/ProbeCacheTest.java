@@ -0,0 +1,114 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ProbeCacheTest {
+
+    File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("probe", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    /**
+     * Writes an M4A file of AAC-LC 16 kHz mono frames.
+     */
+    static File writeM4a(File dir, String name, int frames) throws IOException {
+        File adts = new File(dir, name + ".aac");
+        RecordingRecoveryTest.writeAdts(adts, 0, frames, false);
+        File m4a = new File(dir, name);
+        RecordingRecovery.muxAdts(Arrays.asList(adts), m4a);
+        adts.delete();
+        return m4a;
+    }
+
+    @Test
+    public void headersGiveTheCodecAndTheDuration() throws IOException {
+        AudioProbe.Info info = AudioProbe.probe(writeM4a(dir, "a.m4a", 250));
+        assertEquals(AudioProbe.FORMAT_MP4, info.getFormat());
+        assertEquals(AudioProbe.CODEC_AAC, info.getCodec());
+        assertEquals(16000, info.getSampleRate());
+        assertEquals(1, info.getChannels());
+        assertEquals(250 * 1024 * 1000 / 16000, info.getDuration());
+    }
+
+    @Test
+    public void mdatIsSkipped() throws IOException {
+        // A 1 GB sparse mdat before moov, as MediaRecorder lays files out
+        File file = new File(dir, "long.m4a");
+        ByteBuffer moov = RecordingRecovery.buildMoov(2, 8, 1, new int[]{100}, 1, 100, 32);
+        long mdatSize = 16 + (1L << 30);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(1);
+        raf.writeInt(Mp4Box.MDAT);
+        raf.writeLong(mdatSize);
+        raf.seek(mdatSize);
+        raf.getChannel().write(moov);
+        raf.close();
+
+        long start = System.nanoTime();
+        AudioProbe.Info info = AudioProbe.probe(file);
+        assertEquals(64, info.getDuration());
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+    }
+
+    @Test
+    public void changedFilesAreProbedAgain() throws IOException {
+        File file = writeM4a(dir, "b.m4a", 100);
+        ProbeCache cache = new ProbeCache(2);
+        assertEquals(6400, cache.get(file.getPath()).getDuration());
+        assertEquals(6400, cache.get(file.getPath()).getDuration());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        writeM4a(dir, "b.m4a", 200);
+        assertEquals(12800, cache.get(file.getPath()).getDuration());
+        assertEquals(2, cache.getMisses());
+
+        // Unknown files are remembered too, missing ones are not
+        File text = new File(dir, "c.txt");
+        new RandomAccessFile(text, "rw").close();
+        assertNull(cache.get(text.getPath()));
+        assertNull(cache.get(text.getPath()));
+        assertEquals(2, cache.getHits());
+        assertNull(cache.get(new File(dir, "missing.m4a").getPath()));
+        cache.get(writeM4a(dir, "d.m4a", 10).getPath());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void durationIsKnownBeforePrepare() throws IOException {
+        File file = writeM4a(dir, "e.m4a", 50);
+        VirtualClock clock = new VirtualClock();
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+        mpr.setProbeCache(new ProbeCache());
+        assertEquals(-1, mpr.getDuration());
+        mpr.setDataSource(file.getPath());
+        assertEquals(3200, mpr.getDuration());
+        assertEquals(0, factory.getCreatedPlayers());
+
+        mpr.setProbeCache(null);
+        assertEquals(-1, mpr.getDuration());
+    }
+}
@@ -0,0 +1,139 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RecorderPreparationTest {
+
+    File dir;
+    VirtualClock clock;
+    VirtualClock worker;
+    FakeEngineFactory factory;
+    MediaPlayerRecorder mpr;
+    final AtomicInteger prepared = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("prepare", "");
+        dir.delete();
+        dir.mkdirs();
+        clock = new VirtualClock();
+        worker = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+        mpr.setRecorderWorker(worker);
+        mpr.setOnPreparedListener(new MediaPlayerRecorder.OnPreparedListener() {
+            @Override
+            public void onRecorderPrepared(MediaPlayerRecorder mpr) {
+                prepared.incrementAndGet();
+            }
+
+            @Override
+            public void onPlayerPrepared(MediaPlayerRecorder mpr) {
+            }
+        });
+        mpr.setOnErrorListener(new MediaPlayerRecorder.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayerRecorder mpr, int what, int extra) {
+                errors.incrementAndGet();
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mpr.release();
+        RecordingIndexerTest.delete(dir);
+    }
+
+    @Test
+    public void recordDuringPreparationStartsOnCompletion() {
+        mpr.setDataSource(new File(dir, "a.m4a").getPath());
+        assertTrue(mpr.record());
+        assertEquals(MediaPlayerRecorder.PREPARINGTORECORDANDRECORDING, mpr.getCurrentState());
+        assertEquals(0, factory.getCreatedRecorders());
+
+        worker.advance(0);
+        assertEquals(1, factory.getCreatedRecorders());
+        assertEquals(MediaPlayerRecorder.PREPARINGTORECORDANDRECORDING, mpr.getCurrentState());
+        clock.advance(0);
+        assertEquals(1, prepared.get());
+        assertEquals(MediaPlayerRecorder.RECORDING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void pauseCancelsThePreparation() {
+        mpr.setPausableRecording(true);
+        mpr.setDataSource(new File(dir, "b.m4a").getPath());
+        mpr.record();
+        mpr.pause();
+        assertEquals(MediaPlayerRecorder.NONE, mpr.getCurrentState());
+
+        worker.advance(0);
+        clock.advance(0);
+        assertEquals(0, prepared.get());
+        assertEquals(MediaPlayerRecorder.NONE, mpr.getCurrentState());
+        assertFalse(mpr.isRecorderWarm());
+    }
+
+    @Test
+    public void prewarmedRecorderStartsAtOnce() {
+        mpr.setPausableRecording(true);
+        mpr.setDataSource(new File(dir, "c.m4a").getPath());
+        assertTrue(mpr.prewarmRecorder());
+        assertFalse(mpr.prewarmRecorder());
+        worker.advance(0);
+        clock.advance(0);
+        assertTrue(mpr.isRecorderWarm());
+        assertEquals(MediaPlayerRecorder.NONE, mpr.getCurrentState());
+        assertEquals(0, prepared.get());
+
+        mpr.record();
+        assertEquals(MediaPlayerRecorder.RECORDING, mpr.getCurrentState());
+        assertFalse(mpr.isRecorderWarm());
+        assertEquals(1, prepared.get());
+        assertEquals(1, factory.getCreatedRecorders());
+
+        // Record before the pre-warm completes
+        mpr.pause();
+        mpr.prewarmRecorder();
+        mpr.record();
+        assertEquals(MediaPlayerRecorder.PREPARINGTORECORDANDRECORDING, mpr.getCurrentState());
+        worker.advance(0);
+        clock.advance(0);
+        assertEquals(MediaPlayerRecorder.RECORDING, mpr.getCurrentState());
+        assertEquals(2, factory.getCreatedRecorders());
+    }
+
+    @Test
+    public void prewarmedRecorderIsDropped() {
+        mpr.setPausableRecording(true);
+        mpr.setDataSource(new File(dir, "d.m4a").getPath());
+        mpr.prewarmRecorder();
+        worker.advance(0);
+        clock.advance(0);
+        assertTrue(mpr.isRecorderWarm());
+        mpr.setDataSource(new File(dir, "e.m4a").getPath());
+        assertFalse(mpr.isRecorderWarm());
+    }
+
+    @Test
+    public void failureIsReported() {
+        mpr.setDataSource(new File(dir, "error.m4a").getPath());
+        mpr.record();
+        worker.advance(0);
+        clock.advance(0);
+        assertEquals(1, errors.get());
+        assertEquals(0, prepared.get());
+        assertEquals(MediaPlayerRecorder.NONE, mpr.getCurrentState());
+    }
+}
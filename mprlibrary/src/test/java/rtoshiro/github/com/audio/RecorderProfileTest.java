@@ -0,0 +1,60 @@
+package rtoshiro.github.com.audio;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecorderProfileTest {
+
+    @Test
+    public void presetsFallBackWhenThePlatformLacksTheirEncoder() {
+        assertSame(RecorderProfile.SPEECH, RecorderProfile.SPEECH.forSdk(Build.VERSION_CODES.GINGERBREAD_MR1));
+        assertSame(RecorderProfile.LOW_BANDWIDTH, RecorderProfile.SPEECH.forSdk(Build.VERSION_CODES.GINGERBREAD));
+        assertSame(RecorderProfile.LOW_BANDWIDTH, RecorderProfile.LOW_BANDWIDTH.forSdk(Build.VERSION_CODES.BASE));
+
+        RecorderProfile adts = new RecorderProfile("adts", MediaRecorder.AudioSource.MIC, MediaRecorder.OutputFormat.AAC_ADTS,
+                MediaRecorder.AudioEncoder.HE_AAC, 32000, 1, 16000);
+        assertEquals(Build.VERSION_CODES.JELLY_BEAN, adts.getMinSdk());
+        assertEquals(".aac", adts.getExtension());
+        assertEquals("audio/mp4a-latm", adts.getMime());
+    }
+
+    @Test
+    public void sizesFollowTheBitRate() {
+        assertEquals(180000, RecorderProfile.SPEECH.getBytesPerMinute());
+        assertEquals(960000, RecorderProfile.MUSIC.getBytesPerMinute());
+        assertEquals(91500, RecorderProfile.LOW_BANDWIDTH.getBytesPerMinute());
+        assertEquals(-1, RecorderProfile.DEFAULT.getBytesPerMinute());
+        assertEquals(12000, RecorderProfile.DEFAULT.withBitRate(1600).getBytesPerMinute());
+        assertEquals(".m4a", RecorderProfile.SPEECH.getExtension());
+        assertEquals(".3gp", RecorderProfile.LOW_BANDWIDTH.getExtension());
+
+        // 1 minute of AAC at 16 kHz: 1024 samples per frame
+        long frames = 16000 * 60 / 1024;
+        assertEquals(700 + 4 * frames + 4 * 60, RecorderProfileBenchmark.getContainerOverhead(RecorderProfile.SPEECH, frames, 60000));
+    }
+
+    @Test
+    public void synthesizedSignalIsDeterministicWithPauses() {
+        int rate = 16000;
+        short[] whole = new short[rate * 3];
+        RecorderProfileBenchmark.synthesize(whole, 0, whole.length, rate, 1);
+        short[] part = new short[100];
+        RecorderProfileBenchmark.synthesize(part, 20000, 100, rate, 1);
+        for (int i = 0; i < part.length; i++)
+            assertEquals(whole[20000 + i], part[i]);
+
+        // Loud while talking, only noise during the pause at 2.2 to 3 s
+        int talking = 0;
+        int pause = 0;
+        for (int i = 0; i < rate * 2; i++)
+            talking = Math.max(talking, Math.abs(whole[i]));
+        for (int i = rate * 23 / 10; i < rate * 3; i++)
+            pause = Math.max(pause, Math.abs(whole[i]));
+        assertTrue(talking > 8000);
+        assertTrue(pause < 1000);
+    }
+}
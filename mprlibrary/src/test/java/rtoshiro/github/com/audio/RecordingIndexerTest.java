@@ -0,0 +1,128 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingIndexerTest {
+
+    File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("indexer", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes a WAV file of a 440 Hz sine.
+     */
+    static void writeWav(File file, int sampleRate, int millis, int amplitude) throws IOException {
+        WavFileWriter writer = new WavFileWriter(file);
+        writer.onStart(sampleRate, 1);
+        int frames = sampleRate * millis / 1000;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frames * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < frames; i++)
+            buffer.putShort((short) Math.round(amplitude * Math.sin(2 * Math.PI * 440 * i / sampleRate)));
+        buffer.flip();
+        writer.onPcm(buffer, 0);
+        writer.onStop();
+    }
+
+    @Test
+    public void rescansOnlyParseChangedFiles() throws IOException, InterruptedException {
+        File sub = new File(dir, "2026/10");
+        sub.mkdirs();
+        File wav = new File(dir, "a.wav");
+        writeWav(wav, 8000, 1500, 16384);
+        PeakFileWriter.generate(new WavDecoder(), wav.getPath(), PeakFile.sidecarOf(wav.getPath()));
+        File aac = new File(sub, "b.aac");
+        RecordingRecoveryTest.writeAdts(aac, 0, 125, false);
+        File m4a = new File(sub, "c.m4a");
+        Mp4SegmentStitcherTest.writeSegment(m4a, Mp4SegmentStitcherTest.samples(10, 1), 16000);
+        File broken = new File(dir, "d.m4a");
+        new FileOutputStream(broken).close();
+        new FileOutputStream(new File(dir, "notes.txt")).close();
+
+        File indexFile = new File(dir, "index");
+        RecordingIndexer indexer = new RecordingIndexer(new RecordingIndex(indexFile), 3);
+        RecordingIndexer.Result result = indexer.scan(dir);
+        assertEquals(4, result.getFiles());
+        assertEquals(3, result.getIndexed());
+        assertEquals(1, result.getFailed());
+
+        // Read back without parsing the recordings
+        RecordingIndex index = new RecordingIndex(indexFile);
+        List<RecordingIndex.Entry> entries = index.getEntries();
+        assertEquals(3, entries.size());
+        RecordingIndex.Entry entry = index.get(wav.getPath());
+        assertEquals(AudioProbe.FORMAT_WAV, entry.getFormat());
+        assertEquals(1500, entry.getDuration());
+        assertEquals(wav.length(), entry.getLength());
+        assertEquals(8000, entry.getSampleRate());
+        assertEquals(-6.0, entry.getPeak(), 0.1);
+        // Peak blocks are longer than a period of the sine: its envelope is flat
+        assertEquals(entry.getPeak(), entry.getLoudness(), 0.1);
+        entry = index.get(aac.getPath());
+        assertEquals(AudioProbe.FORMAT_ADTS, entry.getFormat());
+        assertEquals(125 * 1024 * 1000 / 16000, entry.getDuration());
+        assertTrue(Float.isNaN(entry.getPeak()));
+        assertEquals(AudioProbe.FORMAT_MP4, index.get(m4a.getPath()).getFormat());
+
+        indexer = new RecordingIndexer(index, 3);
+        result = indexer.scan(dir);
+        assertEquals(0, result.getIndexed());
+        assertEquals(1, result.getFailed());
+
+        RecordingRecoveryTest.writeAdts(aac, 125, 125, false);
+        assertTrue(m4a.delete());
+        result = indexer.scan(dir);
+        assertEquals(1, result.getIndexed());
+        assertEquals(1, result.getRemoved());
+        assertEquals(250 * 1024 * 1000 / 16000, new RecordingIndex(indexFile).get(aac.getPath()).getDuration());
+        assertNull(new RecordingIndex(indexFile).get(m4a.getPath()));
+    }
+
+    @Test
+    public void entriesOutsideTheScannedDirectoriesAreKept() throws IOException, InterruptedException {
+        File first = new File(dir, "first");
+        File second = new File(dir, "second");
+        first.mkdirs();
+        second.mkdirs();
+        writeWav(new File(first, "a.wav"), 8000, 100, 1000);
+        writeWav(new File(second, "b.wav"), 8000, 200, 1000);
+        RecordingIndexer indexer = new RecordingIndexer(new RecordingIndex(new File(dir, "index")));
+        indexer.scan(first, second);
+        assertEquals(2, indexer.getIndex().size());
+
+        new File(second, "b.wav").delete();
+        RecordingIndexer.Result result = indexer.scan(first);
+        assertEquals(0, result.getRemoved());
+        assertEquals(2, indexer.getIndex().size());
+        assertEquals(1, indexer.scan(second).getRemoved());
+    }
+}
@@ -0,0 +1,260 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingRecoveryTest {
+
+    File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("recovery", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    /**
+     * @return Payload size of frame i
+     */
+    static int frameSize(int i) {
+        return 40 + (i * 37) % 90;
+    }
+
+    /**
+     * Appends AAC-LC 16 kHz mono ADTS frames, payload bytes set to the index of their frame.
+     */
+    static void writeAdts(File file, int first, int count, boolean crc) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            for (int i = first; i < first + count; i++) {
+                int header = crc ? 9 : 7;
+                int length = header + frameSize(i);
+                byte[] frame = new byte[length];
+                frame[0] = (byte) 0xff;
+                frame[1] = (byte) (crc ? 0xf0 : 0xf1);
+                // LC, 16 kHz (index 8), 1 channel
+                frame[2] = (byte) (1 << 6 | 8 << 2);
+                frame[3] = (byte) (1 << 6 | (length >>> 11) & 0x03);
+                frame[4] = (byte) (length >>> 3);
+                frame[5] = (byte) ((length & 0x07) << 5 | 0x1f);
+                frame[6] = (byte) 0xfc;
+                Arrays.fill(frame, header, length, (byte) i);
+                out.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static void truncate(File file, long bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - bytes);
+        raf.close();
+    }
+
+    static void assertFrames(File file, int count) throws IOException {
+        Mp4SegmentStitcher.Segment segment = Mp4SegmentStitcher.parse(file);
+        assertEquals(16000, segment.mediaTimescale);
+        assertEquals(count, segment.sampleCount);
+        assertEquals((long) count * 1024, segment.getMediaDuration());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // Samples are contiguous from the first chunk
+            long offset = segment.chunkOffsets[0];
+            for (int i = 0; i < count; i++) {
+                assertEquals(frameSize(i), segment.sampleSizes[i]);
+                raf.seek(offset);
+                assertEquals((byte) i, raf.readByte());
+                offset += segment.sampleSizes[i];
+            }
+            assertEquals(segment.mdatPayload + segment.mdatSize, offset);
+        } finally {
+            raf.close();
+        }
+        // stsd (full box, entry count), mp4a (sample entry of 28 bytes), esds
+        assertEquals(Mp4Box.MP4A, Mp4Box.type(segment.stsd, 16));
+        int esds = 16 + 8 + 28;
+        assertEquals(Mp4Box.ESDS, Mp4Box.type(segment.stsd, esds));
+        // AudioSpecificConfig: LC, 16 kHz, mono
+        assertEquals(0x1408, segment.stsd.getShort(esds + Mp4Box.size(segment.stsd, esds) - 5) & 0xffff);
+    }
+
+    @Test
+    public void interruptedSegmentsAreMuxedUpToTheLastCompleteFrame() throws IOException {
+        String path = new File(dir, "voice.m4a").getPath();
+        File part0 = new File(path + ".part0.rec");
+        File part1 = new File(path + ".part1.rec");
+        File part10 = new File(path + ".part10.rec");
+        writeAdts(part0, 0, 100, false);
+        writeAdts(part1, 100, 50, true);
+        writeAdts(part10, 150, 21, false);
+        // The process died in the middle of the last frame
+        truncate(part10, 10);
+
+        List<File> recovered = RecordingRecovery.recover(dir);
+        assertEquals(Arrays.asList(new File(path)), recovered);
+        assertFalse(part0.exists());
+        assertFalse(part1.exists());
+        assertFalse(part10.exists());
+        assertFrames(new File(path), 170);
+    }
+
+    @Test
+    public void unrecoverableJournalsAreKept() throws IOException {
+        File journal = new File(dir, "voice.m4a.rec");
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        // An MPEG-4 recording without moov
+        raf.writeInt(8);
+        raf.writeInt(Mp4Box.MDAT);
+        raf.close();
+        assertTrue(RecordingRecovery.recover(dir).isEmpty());
+        assertTrue(journal.exists());
+        assertFalse(new File(dir, "voice.m4a").exists());
+    }
+
+    @Test
+    public void wavHeaderIsRewrittenFromTheLength() throws IOException {
+        File journal = new File(dir, "voice.wav.rec");
+        ByteBuffer header = ByteBuffer.allocate(WavFileWriter.HEADER_SIZE);
+        // Header as written at start, before any size is known
+        WavFileWriter.writeHeader(header, 8000, 2, 0);
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.getChannel().write(header);
+        raf.write(new byte[4000 + 3]);
+        raf.close();
+
+        RecordingRecovery.finish(Arrays.asList(journal), new File(dir, "voice.wav"));
+        assertFalse(journal.exists());
+        File wav = new File(dir, "voice.wav");
+        assertEquals(WavFileWriter.HEADER_SIZE + 4000, wav.length());
+        raf = new RandomAccessFile(wav, "r");
+        ByteBuffer read = ByteBuffer.allocate(WavFileWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        raf.getChannel().read(read, 0);
+        raf.close();
+        assertEquals(36 + 4000, read.getInt(4));
+        assertEquals(2, read.getShort(22));
+        assertEquals(8000, read.getInt(24));
+        assertEquals(4000, read.getInt(40));
+    }
+
+    @Test
+    public void durableRecordingIsFinishedWhenStopped() throws IOException {
+        FakeEngineFactory factory = new FakeEngineFactory(new VirtualClock());
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setDurableRecording(true);
+        String path = new File(dir, "voice.m4a").getPath();
+        mpr.setDataSource(path);
+
+        assertTrue(mpr.record());
+        // Stand-in for what the recorder wrote
+        File journal = new File(RecordingJournal.journalOf(path));
+        writeAdts(journal, 0, 30, false);
+        mpr.pause();
+
+        assertFalse(journal.exists());
+        assertFrames(new File(path), 30);
+    }
+
+    @Test
+    public void durableMp4RecordingIsFinishedOrReported() throws IOException {
+        FakeEngineFactory factory = new FakeEngineFactory(new VirtualClock());
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setDurableRecording(true);
+        final int[] errors = {0};
+        mpr.setOnErrorListener(new MediaPlayerRecorder.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayerRecorder mpr, int what, int extra) {
+                errors[0]++;
+                return true;
+            }
+        });
+        String path = new File(dir, "voice.m4a").getPath();
+        mpr.setDataSource(path);
+
+        // Stand-in for an MPEG_4 recorder, which writes its moov when it stops
+        assertTrue(mpr.record());
+        File journal = new File(RecordingJournal.journalOf(path));
+        Mp4SegmentStitcherTest.writeSegment(journal, Mp4SegmentStitcherTest.samples(5, 3), 16000);
+        mpr.pause();
+        assertFalse(journal.exists());
+        assertEquals(5, Mp4SegmentStitcher.parse(new File(path)).sampleCount);
+        assertEquals(0, errors[0]);
+
+        // Cut before its moov: kept, and reported
+        assertTrue(mpr.record());
+        Mp4SegmentStitcherTest.writeSegment(journal, Mp4SegmentStitcherTest.samples(5, 3), 16000);
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(64);
+        raf.close();
+        mpr.pause();
+        assertTrue(journal.exists());
+        assertEquals(1, errors[0]);
+    }
+
+    @Test
+    public void pausableWavRecordingIsJoined() throws IOException {
+        FakeEngineFactory factory = new FakeEngineFactory(new VirtualClock());
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setPausableRecording(true);
+        String path = new File(dir, "voice.wav").getPath();
+        mpr.setDataSource(path);
+
+        assertTrue(mpr.record());
+        mpr.pause();
+        assertTrue(mpr.record());
+        mpr.pause();
+
+        // Stand-in for what the PCM recorders wrote, the second one at another rate
+        File part0 = new File(path + ".part0");
+        File part1 = new File(path + ".part1");
+        RecordingIndexerTest.writeWav(part0, 8000, 500, 8000);
+        RecordingIndexerTest.writeWav(part1, 16000, 250, 8000);
+        assertFalse(mpr.finishRecording());
+        assertTrue(part0.exists());
+        assertTrue(part1.exists());
+
+        // Kept, so joined once fixed
+        RecordingIndexerTest.writeWav(part1, 8000, 250, 8000);
+        assertTrue(mpr.finishRecording());
+        assertFalse(part0.exists());
+        assertFalse(part1.exists());
+        assertEquals(WavFileWriter.HEADER_SIZE + 6000 * 2, new File(path).length());
+        WavDecoder decoder = new WavDecoder();
+        decoder.open(path);
+        try {
+            assertEquals(8000, decoder.getSampleRate());
+            assertEquals(1, decoder.getChannels());
+        } finally {
+            decoder.release();
+        }
+    }
+
+    @Test
+    public void journalPathsAreParsed() {
+        assertEquals("/a/b.m4a", RecordingJournal.outputOf("/a/b.m4a.rec"));
+        assertEquals("/a/b.m4a", RecordingJournal.outputOf("/a/b.m4a.part12.rec"));
+        assertEquals(12, RecordingJournal.segmentOf("/a/b.m4a.part12.rec"));
+        assertEquals(-1, RecordingJournal.segmentOf("/a/b.m4a.rec"));
+        assertNull(RecordingJournal.outputOf("/a/b.m4a"));
+    }
+}
@@ -0,0 +1,113 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StartPolicyTest {
+
+    VirtualClock clock;
+    FakeEngineFactory factory;
+    MediaPlayerRecorder mpr;
+    int prepared;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        factory = new FakeEngineFactory(clock);
+        factory.setPrepareDelay(50);
+        mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+        mpr.setDataSource("http://host/song.mp3");
+        mpr.setStartPolicy(new BufferedStartPolicy(2000, 60000, 1.2));
+        mpr.setOnPreparedListener(new MediaPlayerRecorder.OnPreparedListener() {
+            @Override
+            public void onRecorderPrepared(MediaPlayerRecorder mpr) {
+            }
+
+            @Override
+            public void onPlayerPrepared(MediaPlayerRecorder mpr) {
+                prepared++;
+            }
+        });
+    }
+
+    @Test
+    public void slowSourceStartsWhenItCanPlayToTheEnd() {
+        // Downloads at half the playback speed: 10 s of media in 20 s
+        factory.setBufferingRate(0.5);
+        mpr.play();
+        clock.advance(11100);
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, mpr.getCurrentState());
+        assertEquals(0, prepared);
+        BandwidthEstimator estimator = mpr.getBandwidthEstimator();
+        assertEquals(0.5, estimator.getFillRate(), 0.06);
+        assertEquals(5500, estimator.getBufferedPosition());
+
+        // 60% buffered: at 0.5 / 1.2, the rest downloads before playback reaches it
+        clock.advance(1000);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+        assertEquals(1, prepared);
+        assertEquals(Long.MAX_VALUE, estimator.getTimeToStall(0));
+    }
+
+    @Test
+    public void fastSourceOnlyNeedsTheMinimumBuffer() {
+        factory.setBufferingRate(2);
+        mpr.play();
+        clock.advance(1000);
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, mpr.getCurrentState());
+        clock.advance(100);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void heldStartRunsOnTheCommandWorker() {
+        VirtualClock worker = new VirtualClock();
+        mpr.setCommandWorker(worker);
+        factory.setBufferingRate(2);
+        mpr.play();
+        worker.advance(0);
+        clock.advance(1100);
+        // Allowed, but the start waits for the worker
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, mpr.getCurrentState());
+        assertEquals(CommandQueue.START_HELD, mpr.getCommandQueue().getNextCommand());
+        worker.advance(0);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+        assertEquals(1, prepared);
+    }
+
+    @Test
+    public void liveSourceStartsWhenPrepared() {
+        // Unknown duration: the buffered position never advances
+        factory.setPlayerDuration(-1);
+        factory.setBufferingRate(0.5);
+        mpr.play();
+        clock.advance(100);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+        assertEquals(1, prepared);
+    }
+
+    @Test
+    public void pauseWhileHeldKeepsThePreparedPlayer() {
+        factory.setBufferingRate(0.5);
+        mpr.play();
+        clock.advance(3000);
+        assertEquals(MediaPlayerRecorder.PREPARINGTOPLAYANDPLAYING, mpr.getCurrentState());
+        mpr.pause();
+        assertEquals(MediaPlayerRecorder.PREPAREDTOPLAY, mpr.getCurrentState());
+        assertEquals(1, prepared);
+        // A play requested after the prepare is not held
+        mpr.play();
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+
+    @Test
+    public void withoutPolicyPlaybackStartsWhenPrepared() {
+        factory.setBufferingRate(0.5);
+        mpr.setStartPolicy(null);
+        mpr.play();
+        clock.advance(100);
+        assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+    }
+}
@@ -0,0 +1,82 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StateMachineTest {
+
+    @Test
+    public void playFromPausedStartsPlayer() {
+        StateMachine machine = new StateMachine(MediaPlayerRecorder.PAUSED);
+        int transition = machine.fire(StateMachine.EVENT_PLAY);
+        assertEquals(StateMachine.ACTION_START_PLAYER, StateMachine.action(transition));
+        assertEquals(MediaPlayerRecorder.PAUSED, StateMachine.from(transition));
+        assertEquals(MediaPlayerRecorder.PLAYING, StateMachine.to(transition));
+        assertEquals(MediaPlayerRecorder.PLAYING, machine.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recordWhilePlayingConflicts() {
+        new StateMachine(MediaPlayerRecorder.PLAYING).fire(StateMachine.EVENT_RECORD);
+    }
+
+    @Test
+    public void releaseAlwaysGoesToNone() {
+        for (int state = MediaPlayerRecorder.ERROR; state <= MediaPlayerRecorder.PREPARINGTORECORDANDRECORDING; state++) {
+            StateMachine machine = new StateMachine(state);
+            machine.fire(StateMachine.EVENT_RELEASE);
+            assertEquals(MediaPlayerRecorder.NONE, machine.get());
+        }
+    }
+
+    @Test
+    public void hookSeesEveryChange() {
+        final AtomicInteger changes = new AtomicInteger();
+        StateMachine machine = new StateMachine(MediaPlayerRecorder.NONE);
+        machine.setOnTransitionListener(new StateMachine.OnTransitionListener() {
+            @Override
+            public void onTransition(int event, int from, int to) {
+                changes.incrementAndGet();
+            }
+        });
+        machine.fire(StateMachine.EVENT_PREPARE_TO_PLAY);
+        machine.fire(StateMachine.EVENT_PLAY);
+        machine.fire(StateMachine.EVENT_PLAY);
+        machine.fire(StateMachine.EVENT_PLAYER_PREPARED);
+        assertEquals(3, changes.get());
+        assertEquals(MediaPlayerRecorder.PREPAREDTOPLAY, machine.get());
+    }
+
+    @Test
+    public void concurrentPlayStartsOnce() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            final StateMachine machine = new StateMachine(MediaPlayerRecorder.PREPAREDTOPLAY);
+            final AtomicInteger starts = new AtomicInteger();
+            final CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (StateMachine.action(machine.fire(StateMachine.EVENT_PLAY)) == StateMachine.ACTION_START_PLAYER)
+                            starts.incrementAndGet();
+                    }
+                });
+                threads[i].start();
+            }
+            go.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals(1, starts.get());
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package rtoshiro.github.com.audio;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uploads to a local stand-in server implementing resumable PUT requests.
+ */
+public class StreamingUploaderTest {
+
+    static final int CHUNK = 1024;
+
+    HttpServer server;
+    URL url;
+    File file;
+    final Object lock = new Object();
+    byte[] received = new byte[0];
+    long completedLength = -1;
+    final AtomicInteger writes = new AtomicInteger();
+    final AtomicInteger failNextWrites = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                String range = exchange.getRequestHeaders().getFirst("Content-Range").substring("bytes ".length());
+                int status = 308;
+                synchronized (lock) {
+                    int slash = range.indexOf('/');
+                    if (range.startsWith("*")) {
+                        String length = range.substring(slash + 1);
+                        if (!length.equals("*")) {
+                            completedLength = Long.parseLong(length);
+                            status = completedLength == received.length ? 200 : 400;
+                        }
+                    } else if (failNextWrites.getAndDecrement() > 0) {
+                        status = 503;
+                    } else {
+                        int dash = range.indexOf('-');
+                        int first = Integer.parseInt(range.substring(0, dash));
+                        CRC32 crc = new CRC32();
+                        crc.update(body);
+                        if (!Long.toHexString(crc.getValue()).equals(exchange.getRequestHeaders().getFirst("X-Content-CRC32"))) {
+                            status = 400;
+                        } else {
+                            if (first + body.length > received.length)
+                                received = Arrays.copyOf(received, first + body.length);
+                            System.arraycopy(body, 0, received, first, body.length);
+                            writes.incrementAndGet();
+                        }
+                    }
+                    if (status == 308 && received.length > 0)
+                        exchange.getResponseHeaders().add("Range", "bytes=0-" + (received.length - 1));
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+        file = File.createTempFile("upload", ".m4a");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        file.delete();
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 13 + seed);
+        return data;
+    }
+
+    void waitForUpload(StreamingUploader uploader, long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (uploader.getUploaded() < bytes && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(uploader.getUploaded() >= bytes);
+    }
+
+    @Test
+    public void onlyTheTailAndThePatchedHeaderAreLeftAtTheEnd() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        StreamingUploader uploader = new StreamingUploader(file, new HttpChunkSink(url), CHUNK);
+        uploader.setPollInterval(5);
+        uploader.start();
+
+        // A recorder writing: complete chunks leave while it writes
+        for (int i = 0; i < 10; i++) {
+            out.write(pattern(CHUNK, i));
+            out.flush();
+        }
+        waitForUpload(uploader, 10 * CHUNK);
+        out.write(pattern(300, 99));
+        out.close();
+        // It patches its header when it stops
+        RandomAccessFile patch = new RandomAccessFile(file, "rw");
+        patch.seek(8);
+        patch.writeInt(0x12345678);
+        patch.close();
+
+        uploader.finish();
+        assertTrue(uploader.await(5000));
+        assertTrue(uploader.isComplete());
+        assertEquals(300, uploader.getPendingAtFinish());
+        assertEquals(1, uploader.getResentChunks());
+        assertEquals(12, writes.get());
+        synchronized (lock) {
+            assertEquals(file.length(), completedLength);
+            assertArrayEquals(readAll(new FileInputStream(file)), received);
+        }
+    }
+
+    @Test
+    public void failedWritesAreRetriedAndUploadsResume() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(pattern(5 * CHUNK + 10, 1));
+        out.close();
+        // The server already has the first 2 chunks and a bit of the third
+        synchronized (lock) {
+            received = Arrays.copyOf(pattern(5 * CHUNK + 10, 1), 2 * CHUNK + 100);
+        }
+        failNextWrites.set(2);
+
+        StreamingUploader uploader = new StreamingUploader(file, new HttpChunkSink(url), CHUNK);
+        uploader.setRetries(3, 1);
+        uploader.finish();
+        uploader.start();
+        assertTrue(uploader.await(5000));
+        assertTrue(uploader.isComplete());
+        assertEquals(2, uploader.getRetries());
+        // Chunks 3, 4, 5 and the tail
+        assertEquals(4, writes.get());
+        synchronized (lock) {
+            assertArrayEquals(pattern(5 * CHUNK + 10, 1), received);
+        }
+    }
+
+    @Test
+    public void persistentFailuresEndTheUpload() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(pattern(CHUNK, 1));
+        out.close();
+        failNextWrites.set(100);
+        final IOException[] reported = {null};
+        StreamingUploader uploader = new StreamingUploader(file, new HttpChunkSink(url), CHUNK);
+        uploader.setRetries(2, 1);
+        uploader.setListener(new StreamingUploader.Listener() {
+            @Override
+            public void onUploadProgress(StreamingUploader uploader, long uploaded) {
+            }
+
+            @Override
+            public void onUploadComplete(StreamingUploader uploader, long length) {
+            }
+
+            @Override
+            public void onUploadError(StreamingUploader uploader, IOException e) {
+                reported[0] = e;
+            }
+        });
+        uploader.finish();
+        uploader.start();
+        assertTrue(uploader.await(5000));
+        assertFalse(uploader.isComplete());
+        assertNotNull(uploader.getError());
+        assertSame(uploader.getError(), reported[0]);
+    }
+}
@@ -0,0 +1,107 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TickSchedulerTest {
+
+    static class Recorder implements TickScheduler.OnTickListener {
+        final List<Long> ticks = new ArrayList<Long>();
+
+        @Override
+        public void onTick(TickScheduler scheduler, long now) {
+            ticks.add(now);
+        }
+    }
+
+    VirtualClock clock;
+    TickScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        scheduler = new TickScheduler(clock, 50);
+    }
+
+    @Test
+    public void subscribersShareOneTimerWithoutDrift() {
+        Recorder second = new Recorder();
+        Recorder half = new Recorder();
+        scheduler.subscribe(second, 1000);
+        scheduler.subscribe(half, 500);
+        assertEquals(1, clock.getPendingCount());
+
+        clock.advance(10000);
+        assertEquals(11, second.ticks.size());
+        assertEquals(21, half.ticks.size());
+        for (int i = 0; i < second.ticks.size(); i++)
+            assertEquals(i * 1000L, (long) second.ticks.get(i));
+        // Every tick of the 1000 ms subscriber comes with one of the 500 ms one
+        assertEquals(21, scheduler.getTimerEvents());
+    }
+
+    @Test
+    public void closeDeadlinesAreCoalesced() {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        scheduler.subscribe(a, 1000);
+        clock.advance(30);
+        scheduler.subscribe(b, 1000);
+        clock.advance(5000);
+        // First ticks are immediate, then b (due at 1030, 2030...) ticks with a
+        assertEquals(30L, (long) b.ticks.get(0));
+        assertEquals(a.ticks.subList(1, a.ticks.size()), b.ticks.subList(1, b.ticks.size()));
+        assertEquals(7, scheduler.getTimerEvents());
+    }
+
+    @Test
+    public void timerStopsWithTheLastSubscriber() {
+        Recorder a = new Recorder();
+        scheduler.subscribe(a, 200);
+        clock.advance(1000);
+        assertTrue(scheduler.isRunning());
+        scheduler.unsubscribe(a);
+        assertFalse(scheduler.isRunning());
+        assertEquals(0, clock.getPendingCount());
+        int ticks = a.ticks.size();
+        clock.advance(1000);
+        assertEquals(ticks, a.ticks.size());
+    }
+
+    @Test
+    public void recordingTimeKeepsCountingAcrossPausableRuns() {
+        FakeEngineFactory factory = new FakeEngineFactory(clock);
+        MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory);
+        mpr.setTickScheduler(scheduler);
+        mpr.setPausableRecording(true);
+        mpr.setDataSource("/tmp/tick-test.m4a");
+        final List<Long> updates = new ArrayList<Long>();
+        mpr.setOnTimeUpdateListener(new MediaPlayerRecorder.OnTimeUpdateListener() {
+            @Override
+            public void onTimeUpdate(MediaPlayerRecorder mpr, long currentPosition) {
+                updates.add(currentPosition);
+            }
+        });
+        mpr.setTimeUpdateInterval(250);
+
+        assertTrue(mpr.record());
+        clock.advance(1000);
+        mpr.pause();
+        assertFalse(scheduler.isRunning());
+        assertEquals(1000, mpr.getRecordingTime());
+
+        clock.advance(5000);
+        assertTrue(mpr.record());
+        clock.advance(500);
+        assertEquals(1500, mpr.getRecordingTime());
+        assertEquals(1500L, (long) updates.get(updates.size() - 1));
+        mpr.pause();
+        mpr.setPausableRecording(false);
+        mpr.setDataSource(null);
+    }
+}
@@ -0,0 +1,165 @@
+package rtoshiro.github.com.audio;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VoiceActivityDetectorTest {
+
+    static final int RATE = 16000;
+    static final int CHUNK = 320;
+
+    /**
+     * Feeds 20 ms chunks of a signal made of spans of sine (level in dBFS) and near silence (-70 dBFS).
+     *
+     * @param spans Pairs of (milliseconds, level), level 0 meaning silence
+     */
+    static void feed(PcmConsumer consumer, int... spans) throws IOException {
+        List<Short> samples = new ArrayList<Short>();
+        for (int i = 0; i < spans.length; i += 2) {
+            double amplitude = Math.pow(10, (spans[i + 1] == 0 ? -70 : spans[i + 1]) / 20.0) * Math.sqrt(2) * 32767;
+            for (int n = 0; n < spans[i] * RATE / 1000; n++)
+                samples.add((short) Math.round(amplitude * Math.sin(2 * Math.PI * 440 * samples.size() / RATE)));
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK * 2).order(ByteOrder.nativeOrder());
+        consumer.onStart(RATE, 1);
+        for (int offset = 0; offset < samples.size(); offset += CHUNK) {
+            int count = Math.min(CHUNK, samples.size() - offset);
+            buffer.clear();
+            for (int i = 0; i < count; i++)
+                buffer.putShort(samples.get(offset + i));
+            buffer.flip();
+            consumer.onPcm(buffer, offset);
+        }
+        consumer.onStop();
+    }
+
+    static class Events implements VoiceActivityDetector.Listener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onVoiceStart(VoiceActivityDetector detector, long frame) {
+            events.add("voice " + frame * 1000 / detector.getSampleRate());
+        }
+
+        @Override
+        public void onSilenceStart(VoiceActivityDetector detector, long frame) {
+            events.add("silence " + frame * 1000 / detector.getSampleRate());
+        }
+    }
+
+    static class Collector implements PcmConsumer {
+        long frames;
+        long nextIndex;
+
+        @Override
+        public void onStart(int sampleRate, int channels) {
+        }
+
+        @Override
+        public void onPcm(ByteBuffer buffer, long frameIndex) {
+            assertEquals(nextIndex, frameIndex);
+            frames += buffer.remaining() / 2;
+            nextIndex = frames;
+        }
+
+        @Override
+        public void onStop() {
+        }
+    }
+
+    @Test
+    public void transitionsAreDatedBackAndShortSilencesAreNotMarked() throws IOException {
+        File file = File.createTempFile("vad", SilenceFile.EXTENSION);
+        try {
+            VoiceActivityDetector detector = new VoiceActivityDetector();
+            Events events = new Events();
+            detector.setListener(events);
+            detector.setSilenceFile(file);
+            feed(detector, 1000, 0, 1000, -20, 300, 0, 200, -20, 2000, 0, 500, -20, 500, 0);
+
+            // The 300 ms gap is shorter than the hangover
+            assertEquals("[voice 1000, silence 2500, voice 4500]", events.events.toString());
+            SilenceFile silence = SilenceFile.read(file);
+            assertEquals(RATE, silence.getSampleRate());
+            assertEquals(2, silence.getCount());
+            assertEquals(0, silence.getStart(0));
+            assertEquals(1000, silence.getEnd(0));
+            assertEquals(2500, silence.getStart(1));
+            assertEquals(4500, silence.getEnd(1));
+            assertEquals(4300, silence.getSkipTarget(3000));
+            assertEquals(-1, silence.getSkipTarget(4400));
+            assertEquals(-1, silence.getSkipTarget(2000));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void levelsBetweenTheThresholdsKeepTheState() throws IOException {
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        Events events = new Events();
+        detector.setListener(events);
+        // -44 dBFS is between the open (-40) and close (-48) thresholds
+        feed(detector, 500, -44, 500, 0, 500, -30, 2000, -44, 1000, 0);
+        assertEquals("[voice 1000, silence 3500]", events.events.toString());
+    }
+
+    @Test
+    public void trimmerForwardsSpeechWithPreRollAndHangover() throws IOException {
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        Collector collector = new Collector();
+        SilenceTrimmer trimmer = new SilenceTrimmer(detector, collector);
+        feed(trimmer, 1000, 0, 1000, -20, 2000, 0, 500, -20, 500, 0);
+
+        // 800..2600 (pre-roll, speech, hangover), then 3800..5000 (still in the hangover at the end)
+        assertEquals(3000 * RATE / 1000, collector.frames);
+        assertEquals(collector.frames, trimmer.getWrittenFrames());
+        assertEquals(2000 * RATE / 1000, trimmer.getTrimmedFrames());
+    }
+
+    @Test
+    public void playbackSeeksOverMarkedSilence() throws IOException {
+        File audio = File.createTempFile("vad", ".wav");
+        File sidecar = SilenceFile.sidecarOf(audio.getPath());
+        DataOutputStream output = SilenceFile.create(sidecar, RATE);
+        SilenceFile.append(output, 1000, 5000);
+        output.close();
+        try {
+            VirtualClock clock = new VirtualClock();
+            FakeEngineFactory factory = new FakeEngineFactory(clock);
+            MediaPlayerRecorder mpr = new MediaPlayerRecorder(factory, new TickScheduler(clock));
+            mpr.setSkipSilence(true);
+            mpr.setDataSource(audio.getPath());
+            mpr.play();
+            clock.advance(factory.getPrepareDelay() + 900);
+            assertEquals(900, mpr.getCurrentPosition());
+            clock.advance(200);
+            assertTrue(mpr.getCurrentPosition() >= 4800);
+            assertTrue(mpr.getCurrentPosition() < 5000);
+            assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+
+            final List<String> activity = new ArrayList<String>();
+            mpr.setOnVoiceActivityListener(new MediaPlayerRecorder.OnVoiceActivityListener() {
+                @Override
+                public void onVoiceActivity(MediaPlayerRecorder mpr, boolean voice, long position) {
+                    activity.add(voice + " " + position);
+                }
+            });
+            mpr.onInfo((RecorderEngine) null, VoiceActivityDetector.INFO_VOICE_START, 1234);
+            assertEquals("[true 1234]", activity.toString());
+            assertEquals(MediaPlayerRecorder.PLAYING, mpr.getCurrentState());
+        } finally {
+            audio.delete();
+            sidecar.delete();
+        }
+    }
+}